@@ -8,6 +8,7 @@ import static com.twitter.university.webfilez.Constants.DESCRIPTION_ATTR_NAME;
 import static com.twitter.university.webfilez.Constants.EXPIRY;
 import static com.twitter.university.webfilez.Constants.QUOTA;
 import static com.twitter.university.webfilez.Constants.READ_ALLOWED;
+import static com.twitter.university.webfilez.Constants.USER_ID;
 import static com.twitter.university.webfilez.Constants.WRITE_ALLOWED;
 import static com.twitter.university.webfilez.WebUtil.READ_ONLY_ALLOWED_METHODS_HEADER;
 import static com.twitter.university.webfilez.WebUtil.READ_WRITE_ALLOWED_METHODS_HEADER;
@@ -214,6 +215,7 @@ public class AuthFilter implements Filter {
                 httpRequest.setAttribute(WRITE_ALLOWED, auth.getAccess()
                         .contains(Access.WRITE));
                 httpRequest.setAttribute(AUTH_TOKEN_ATTR_NAME, authToken);
+                httpRequest.setAttribute(USER_ID, auth.getUserId());
                 if (logger.isTraceEnabled()) {
                     logger.trace(String.format(
                             "Authorized user #%d (%s) from %s to %s %s for %s",
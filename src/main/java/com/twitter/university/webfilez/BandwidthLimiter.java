@@ -0,0 +1,202 @@
+package com.twitter.university.webfilez;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shapes downloads to (up to) three byte rates at once: one for the server
+ * as a whole, one for each base path, and one for each user. Each rate is a
+ * {@link TokenBucket} that holds a second's worth of bytes, so short bursts
+ * go out at full speed.
+ * <p>
+ * Transfers account for what they send in batches, rather than on every
+ * write, and when no rate is set there is nothing to account for at all.
+ */
+public final class BandwidthLimiter {
+    private static final int MAX_BATCH_SIZE = 64 * 1024;
+
+    // past this many, idle buckets (which are no different from new ones)
+    // are dropped
+    private static final int MAX_BUCKETS = 1000;
+
+    private final TokenBucket global;
+
+    private final long basePathRate;
+
+    private final long userRate;
+
+    private final ConcurrentMap<String, TokenBucket> basePaths =
+            new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, TokenBucket> users =
+            new ConcurrentHashMap<>();
+
+    /**
+     * @param globalRate
+     *            the most bytes per second sent overall (or zero for no
+     *            limit)
+     * @param basePathRate
+     *            the most bytes per second sent from any one base path
+     * @param userRate
+     *            the most bytes per second sent to any one user
+     */
+    public BandwidthLimiter(long globalRate, long basePathRate, long userRate) {
+        this.global = globalRate > 0 ? new TokenBucket(globalRate,
+                globalRate) : null;
+        this.basePathRate = basePathRate;
+        this.userRate = userRate;
+    }
+
+    /**
+     * @return the shaper for one transfer, or <code>null</code> if there is
+     *         nothing to limit
+     */
+    public Shaper getShaper(String basePath, String user) {
+        return this.getShaper(basePath, user, true);
+    }
+
+    /**
+     * @param wait
+     *            whether the transfer can afford to wait for the buckets to
+     *            catch up with it; if not, what it sends is still accounted
+     *            for, but it is up to the next transfer that can to wait
+     * @return the shaper for one transfer, or <code>null</code> if there is
+     *         nothing to limit
+     */
+    public Shaper getShaper(String basePath, String user, boolean wait) {
+        final List<TokenBucket> buckets = new ArrayList<>(3);
+        if (this.global != null) {
+            buckets.add(this.global);
+        }
+        if (this.basePathRate > 0 && basePath != null) {
+            buckets.add(getBucket(this.basePaths, basePath,
+                    this.basePathRate));
+        }
+        if (this.userRate > 0 && user != null) {
+            buckets.add(getBucket(this.users, user, this.userRate));
+        }
+        return buckets.isEmpty() ? null : new Shaper(
+                buckets.toArray(new TokenBucket[buckets.size()]), wait);
+    }
+
+    private static TokenBucket getBucket(
+            ConcurrentMap<String, TokenBucket> buckets, String key, long rate) {
+        TokenBucket bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= MAX_BUCKETS) {
+                for (Map.Entry<String, TokenBucket> entry : buckets.entrySet()) {
+                    if (entry.getValue().isIdle()) {
+                        buckets.remove(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            bucket = new TokenBucket(rate, rate);
+            final TokenBucket existing = buckets.putIfAbsent(key, bucket);
+            if (existing != null) {
+                bucket = existing;
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * Paces a single transfer. Not thread-safe (but the buckets it draws
+     * from are shared).
+     */
+    public static final class Shaper {
+        private final TokenBucket[] buckets;
+
+        private final long batchSize;
+
+        private final boolean wait;
+
+        private long pending;
+
+        Shaper(TokenBucket[] buckets, boolean wait) {
+            this.buckets = buckets;
+            this.wait = wait;
+            long batchSize = MAX_BATCH_SIZE;
+            for (TokenBucket bucket : buckets) {
+                // a fraction of a second's worth, so the pacing stays smooth
+                batchSize = Math.min(batchSize, bucket.getRate() / 8);
+            }
+            this.batchSize = Math.max(batchSize, 1);
+        }
+
+        /**
+         * Account for bytes sent, and (every batch, unless this shaper may
+         * not wait) wait until the slowest bucket has caught up with them.
+         */
+        public void sent(int bytes) throws InterruptedIOException {
+            final long delay = this.reserve(bytes);
+            if (delay > 0 && this.wait) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                            "Interrupted while shaping transfer");
+                }
+            }
+        }
+
+        /**
+         * Account for bytes sent, for those who cannot afford to wait in
+         * place.
+         *
+         * @return how long (in nanoseconds) to hold off before sending more
+         */
+        public long reserve(int bytes) {
+            this.pending += bytes;
+            return this.pending >= this.batchSize ? this.take() : 0;
+        }
+
+        /**
+         * @return the given stream, with what is written to it accounted for
+         *         (and waited on) as it is sent
+         */
+        public OutputStream shape(OutputStream out) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    this.out.write(b);
+                    sent(1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len)
+                        throws IOException {
+                    this.out.write(b, off, len);
+                    sent(len);
+                }
+            };
+        }
+
+        /**
+         * Account for the last partial batch, without waiting for it (the
+         * next transfer will).
+         */
+        public void done() {
+            if (this.pending > 0) {
+                this.take();
+            }
+        }
+
+        private long take() {
+            long delay = 0;
+            for (TokenBucket bucket : this.buckets) {
+                delay = Math.max(delay, bucket.take(this.pending));
+            }
+            this.pending = 0;
+            return delay;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.twitter.university.webfilez;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded pool, with a bounded queue, that runs one class of requests, so
+ * that a burst of (say) heavy operations can only ever take up its own
+ * threads, and never the ones that cheap requests need. Once both the pool
+ * and the queue are full, requests are turned away (rather than left to pile
+ * up), and the pool's occupancy is exposed as an MBean.
+ * <p>
+ * Within a bulkhead, each user may only have so many requests running or
+ * waiting at once, and the waiting ones are run in (weighted) round-robin
+ * order across users, so that no one user can crowd out everyone else.
+ */
+public final class Bulkhead implements BulkheadMBean {
+    private static final Logger logger = LoggerFactory
+            .getLogger(Bulkhead.class);
+
+    private final String name;
+
+    private final int queueCapacity;
+
+    private final ThreadPoolExecutor executor;
+
+    private final int userLimit;
+
+    private final Map<String, Integer> inFlight = new HashMap<>();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong throttled = new AtomicLong();
+
+    private ObjectName objectName;
+
+    /**
+     * Thrown when a user already has as many requests in a bulkhead as they
+     * are allowed.
+     */
+    public static final class ThrottledException extends
+            RejectedExecutionException {
+        private static final long serialVersionUID = 1L;
+
+        public ThrottledException(String msg) {
+            super(msg);
+        }
+    }
+
+    public Bulkhead(String name, int threads, int queueCapacity) {
+        this(name, threads, queueCapacity, 0, null);
+    }
+
+    /**
+     * @param userLimit
+     *            the maximum number of requests that any one user can have
+     *            running or waiting at once, or zero for no limit
+     * @param weights
+     *            the share of the waiting requests' turns that each user
+     *            gets, relative to the default of one (may be
+     *            <code>null</code>)
+     */
+    public Bulkhead(String name, int threads, int queueCapacity,
+            int userLimit, Map<String, Integer> weights) {
+        this.name = name;
+        this.queueCapacity = Math.max(queueCapacity, 0);
+        this.userLimit = Math.max(userLimit, 0);
+        final BlockingQueue<Runnable> queue = queueCapacity > 0
+                ? new FairQueue(queueCapacity, weights)
+                : new SynchronousQueue<Runnable>();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L,
+                TimeUnit.SECONDS, queue, new NamedThreadFactory(name));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @throws RejectedExecutionException
+     *             if the bulkhead is full
+     */
+    public void execute(Runnable task) {
+        this.execute("", task);
+    }
+
+    /**
+     * Run the given task on behalf of the given user.
+     * 
+     * @throws ThrottledException
+     *             if the user is already at their limit
+     * @throws RejectedExecutionException
+     *             if the bulkhead is full
+     */
+    public void execute(final String user, final Runnable task) {
+        if (!this.admit(user)) {
+            throw new ThrottledException("User [" + user + "] is at the ["
+                    + this.userLimit + "] request limit of bulkhead ["
+                    + this.name + "]");
+        }
+        try {
+            this.executor.execute(new FairQueue.Keyed() {
+                @Override
+                public String getKey() {
+                    return user;
+                }
+
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        release(user);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.release(user);
+            this.rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Count a request that is run elsewhere (such as a non-blocking transfer,
+     * which needs no thread of its own) against its user's limit. Every
+     * request that is admitted must be {@link #release(String) released}.
+     *
+     * @return false if the user is already at their limit
+     */
+    public boolean admit(String user) {
+        synchronized (this.inFlight) {
+            final Integer count = this.inFlight.get(user);
+            if (count == null) {
+                this.inFlight.put(user, 1);
+            } else if (this.userLimit > 0 && count >= this.userLimit) {
+                this.throttled.incrementAndGet();
+                return false;
+            } else {
+                this.inFlight.put(user, count + 1);
+            }
+            return true;
+        }
+    }
+
+    public void release(String user) {
+        synchronized (this.inFlight) {
+            final Integer count = this.inFlight.get(user);
+            if (count == null || count <= 1) {
+                this.inFlight.remove(user);
+            } else {
+                this.inFlight.put(user, count - 1);
+            }
+        }
+    }
+
+    /**
+     * Expose this bulkhead as an MBean (named after it and the given
+     * context).
+     */
+    public void register(String context) {
+        try {
+            final ObjectName objectName = new ObjectName(
+                    "com.twitter.university.webfilez:type=Bulkhead,context="
+                            + ObjectName.quote(context) + ",name="
+                            + this.name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    objectName);
+            this.objectName = objectName;
+        } catch (JMException e) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("Failed to register bulkhead [" + this.name
+                        + "] with JMX", e);
+            }
+        }
+    }
+
+    public void shutdown() {
+        if (this.objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                        this.objectName);
+            } catch (JMException e) {
+                if (logger.isWarnEnabled()) {
+                    logger.warn("Failed to unregister bulkhead [" + this.name
+                            + "] from JMX", e);
+                }
+            }
+        }
+        this.executor.shutdownNow();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getThreads() {
+        return this.executor.getMaximumPoolSize();
+    }
+
+    @Override
+    public int getActive() {
+        return this.executor.getActiveCount();
+    }
+
+    @Override
+    public int getQueued() {
+        return this.executor.getQueue().size();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    @Override
+    public long getCompleted() {
+        return this.executor.getCompletedTaskCount();
+    }
+
+    @Override
+    public long getRejected() {
+        return this.rejected.get();
+    }
+
+    @Override
+    public int getUserLimit() {
+        return userLimit;
+    }
+
+    @Override
+    public int getUsers() {
+        synchronized (this.inFlight) {
+            return this.inFlight.size();
+        }
+    }
+
+    @Override
+    public long getThrottled() {
+        return this.throttled.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Bulkhead [name=" + name + ", active=" + getActive()
+                + ", queued=" + getQueued() + ", rejected=" + getRejected()
+                + ", throttled=" + getThrottled() + "]";
+    }
+}
@@ -0,0 +1,53 @@
+package com.twitter.university.webfilez;
+
+/**
+ * The occupancy of a {@link Bulkhead}, as exposed over JMX.
+ */
+public interface BulkheadMBean {
+    String getName();
+
+    /**
+     * @return the maximum number of requests run at once
+     */
+    int getThreads();
+
+    /**
+     * @return the number of requests being run
+     */
+    int getActive();
+
+    /**
+     * @return the number of requests waiting to be run
+     */
+    int getQueued();
+
+    /**
+     * @return the maximum number of requests that can wait
+     */
+    int getQueueCapacity();
+
+    long getCompleted();
+
+    /**
+     * @return the number of requests turned away because the bulkhead was
+     *         full
+     */
+    long getRejected();
+
+    /**
+     * @return the maximum number of requests any one user can have running
+     *         or waiting at once (or zero if there is no such limit)
+     */
+    int getUserLimit();
+
+    /**
+     * @return the number of users with requests running or waiting
+     */
+    int getUsers();
+
+    /**
+     * @return the number of requests turned away because their user was
+     *         already at the limit
+     */
+    long getThrottled();
+}
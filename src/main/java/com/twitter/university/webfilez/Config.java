@@ -7,6 +7,10 @@ import static com.twitter.university.webfilez.WebUtil.asParams;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
 import java.util.regex.Pattern;
 
 import javax.naming.Context;
@@ -47,6 +51,80 @@ public final class Config {
 
     private boolean alwaysAllowReadRequests = false;
 
+    private int listingMaxAge;
+
+    private int listingChangeLogSize;
+
+    private int listingChangeLogDirectories;
+
+    private int deleteThreads;
+
+    private boolean trashEnabled = false;
+
+    private String trashDir;
+
+    private int trashPurgeRate;
+
+    private int copyParallelism;
+
+    private ParallelCopier.Strategy copyStrategy;
+
+    private int digestThreads;
+
+    private int digestIndexBasePaths;
+
+    private int followThreads;
+
+    private int followIdleTimeout;
+
+    private int searchThreads;
+
+    private int filenameIndexBasePaths;
+
+    private int diskUsageMaxAge;
+
+    private int diskUsageCacheSize;
+
+    private int zipArchiveCacheSize;
+
+    private int gzipThreads;
+
+    private String jobDir;
+
+    private int jobThreads;
+
+    private int jobQueueSize;
+
+    private int jobRetention;
+
+    private int heavyThreads;
+
+    private int heavyQueueSize;
+
+    private int transferThreads;
+
+    private int transferQueueSize;
+
+    private long smallDownloadSize;
+
+    private int retryAfter;
+
+    private int userHeavyLimit;
+
+    private int userTransferLimit;
+
+    private Map<String, Integer> userWeights;
+
+    private long downloadRate;
+
+    private long basePathDownloadRate;
+
+    private long userDownloadRate;
+
+    private int coalesceTimeout;
+
+    private boolean nonBlockingIo;
+
     public static Config getConfig(ServletContext context) {
         return (Config) context.getAttribute(Config.class.getName());
     }
@@ -101,6 +179,68 @@ public final class Config {
                         "supress-cookie-on-new-auth", Boolean.FALSE);
                 this.alwaysAllowReadRequests = params.getBoolean(
                         "always-allow-read-requests", Boolean.FALSE);
+                this.listingMaxAge = params.getInteger("listing-max-age", 5);
+                this.listingChangeLogSize = params.getInteger(
+                        "listing-change-log-size", 256);
+                this.listingChangeLogDirectories = params.getInteger(
+                        "listing-change-log-directories", 10000);
+                this.deleteThreads = params.getInteger("delete-threads", 4);
+                this.trashEnabled = params.getBoolean("trash-enabled",
+                        Boolean.FALSE);
+                this.trashDir = params.getString("trash-dir", FileSystems
+                        .getDefault().getPath(this.rootDir, ".trash")
+                        .toString());
+                this.trashPurgeRate = params.getInteger("trash-purge-rate",
+                        1000);
+                this.copyParallelism = params.getInteger("copy-parallelism",
+                        4);
+                this.copyStrategy = ParallelCopier.Strategy.valueOf(params
+                        .getString("copy-strategy", "copy").toUpperCase());
+                this.digestThreads = params.getInteger("digest-threads", 1);
+                this.digestIndexBasePaths = params.getInteger(
+                        "digest-index-base-paths", 1000);
+                this.followThreads = params.getInteger("follow-threads", 2);
+                this.followIdleTimeout = params.getInteger(
+                        "follow-idle-timeout", 300);
+                this.searchThreads = params.getInteger("search-threads", 4);
+                this.filenameIndexBasePaths = params.getInteger(
+                        "filename-index-base-paths", 100);
+                this.diskUsageMaxAge = params.getInteger("disk-usage-max-age",
+                        3600);
+                this.diskUsageCacheSize = params.getInteger(
+                        "disk-usage-cache-size", 10000);
+                this.zipArchiveCacheSize = params.getInteger(
+                        "zip-archive-cache-size", 100);
+                this.gzipThreads = params.getInteger("gzip-threads", 4);
+                this.jobDir = params.getString("job-dir", FileSystems
+                        .getDefault().getPath(this.rootDir, ".webfilez", "jobs")
+                        .toString());
+                this.jobThreads = params.getInteger("job-threads", 2);
+                this.jobQueueSize = params.getInteger("job-queue-size", 100);
+                this.jobRetention = params.getInteger("job-retention", 86400);
+                this.heavyThreads = params.getInteger("heavy-threads", 4);
+                this.heavyQueueSize = params.getInteger("heavy-queue-size", 16);
+                this.transferThreads = params.getInteger("transfer-threads",
+                        64);
+                this.transferQueueSize = params.getInteger(
+                        "transfer-queue-size", 256);
+                this.smallDownloadSize = params.getInteger(
+                        "small-download-size", 1024 * 1024);
+                this.retryAfter = params.getInteger("retry-after", 10);
+                this.userHeavyLimit = params.getInteger("user-heavy-limit", 2);
+                this.userTransferLimit = params.getInteger(
+                        "user-transfer-limit", 8);
+                this.userWeights = parseWeights(params
+                        .getString("user-weights"));
+                this.downloadRate = params.getInteger("download-rate", 0);
+                this.basePathDownloadRate = params.getInteger(
+                        "base-path-download-rate", 0);
+                this.userDownloadRate = params.getInteger(
+                        "user-download-rate", 0);
+                this.coalesceTimeout = params.getInteger("coalesce-timeout",
+                        30);
+                this.nonBlockingIo = params.getBoolean("non-blocking-io",
+                        Boolean.TRUE);
             } finally {
                 ctx.close();
             }
@@ -173,6 +313,192 @@ public final class Config {
         return alwaysAllowReadRequests;
     }
 
+    public int getListingMaxAge() {
+        return listingMaxAge;
+    }
+
+    public int getListingChangeLogSize() {
+        return listingChangeLogSize;
+    }
+
+    public int getListingChangeLogDirectories() {
+        return listingChangeLogDirectories;
+    }
+
+    public int getDeleteThreads() {
+        return deleteThreads;
+    }
+
+    public boolean isTrashEnabled() {
+        return trashEnabled;
+    }
+
+    public String getTrashDir() {
+        return trashDir;
+    }
+
+    public int getTrashPurgeRate() {
+        return trashPurgeRate;
+    }
+
+    public int getCopyParallelism() {
+        return copyParallelism;
+    }
+
+    public ParallelCopier.Strategy getCopyStrategy() {
+        return copyStrategy;
+    }
+
+    public int getDigestThreads() {
+        return digestThreads;
+    }
+
+    public int getDigestIndexBasePaths() {
+        return digestIndexBasePaths;
+    }
+
+    public int getFollowThreads() {
+        return followThreads;
+    }
+
+    public int getFollowIdleTimeout() {
+        return followIdleTimeout;
+    }
+
+    public int getSearchThreads() {
+        return searchThreads;
+    }
+
+    public int getFilenameIndexBasePaths() {
+        return filenameIndexBasePaths;
+    }
+
+    public int getDiskUsageMaxAge() {
+        return diskUsageMaxAge;
+    }
+
+    public int getDiskUsageCacheSize() {
+        return diskUsageCacheSize;
+    }
+
+    public int getZipArchiveCacheSize() {
+        return zipArchiveCacheSize;
+    }
+
+    public int getGzipThreads() {
+        return gzipThreads;
+    }
+
+    public String getJobDir() {
+        return jobDir;
+    }
+
+    public int getJobThreads() {
+        return jobThreads;
+    }
+
+    public int getJobQueueSize() {
+        return jobQueueSize;
+    }
+
+    public int getJobRetention() {
+        return jobRetention;
+    }
+
+    public int getHeavyThreads() {
+        return heavyThreads;
+    }
+
+    public int getHeavyQueueSize() {
+        return heavyQueueSize;
+    }
+
+    public int getTransferThreads() {
+        return transferThreads;
+    }
+
+    public int getTransferQueueSize() {
+        return transferQueueSize;
+    }
+
+    public long getSmallDownloadSize() {
+        return smallDownloadSize;
+    }
+
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    public int getUserHeavyLimit() {
+        return userHeavyLimit;
+    }
+
+    public int getUserTransferLimit() {
+        return userTransferLimit;
+    }
+
+    /**
+     * @return the share of the bulkheads' turns that each user (by id) gets,
+     *         relative to the default of one
+     */
+    public Map<String, Integer> getUserWeights() {
+        return userWeights;
+    }
+
+    /**
+     * @return the most bytes per second that downloads can use in total (or
+     *         zero for no limit)
+     */
+    public long getDownloadRate() {
+        return downloadRate;
+    }
+
+    public long getBasePathDownloadRate() {
+        return basePathDownloadRate;
+    }
+
+    public long getUserDownloadRate() {
+        return userDownloadRate;
+    }
+
+    /**
+     * @return how long (in seconds) to wait on someone else's identical
+     *         listing, roll-up, or archive layout before doing it ourselves
+     */
+    public int getCoalesceTimeout() {
+        return coalesceTimeout;
+    }
+
+    /**
+     * @return whether large downloads and uploads give up their thread while
+     *         waiting on the client
+     */
+    public boolean isNonBlockingIo() {
+        return nonBlockingIo;
+    }
+
+    /**
+     * Parse space-separated <code>user-id=weight</code> pairs.
+     */
+    private static Map<String, Integer> parseWeights(String in) {
+        if (in == null || in.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final Map<String, Integer> result = new HashMap<>();
+        final StringTokenizer st = new StringTokenizer(in, " ");
+        while (st.hasMoreTokens()) {
+            final String token = st.nextToken().trim();
+            final int i = token.indexOf('=');
+            if (i <= 0) {
+                throw new IllegalArgumentException("Invalid user weight ["
+                        + token + "]");
+            }
+            result.put(token.substring(0, i),
+                    Integer.valueOf(token.substring(i + 1)));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
     @Override
     public String toString() {
         return "Config [bufferSize=" + bufferSize + ", defaultMimeType="
@@ -186,6 +512,36 @@ public final class Config {
                 + ", key=*****" + ", authUrl=" + authUrl
                 + ", suppressCookieOnNewAuth=" + suppressCookieOnNewAuth
                 + ", supressRedirectOnNewAuth=" + supressRedirectOnNewAuth
-                + ", alwaysAllowReadRequests=" + alwaysAllowReadRequests + "]";
+                + ", alwaysAllowReadRequests=" + alwaysAllowReadRequests
+                + ", listingMaxAge=" + listingMaxAge
+                + ", listingChangeLogSize=" + listingChangeLogSize
+                + ", listingChangeLogDirectories="
+                + listingChangeLogDirectories + ", deleteThreads="
+                + deleteThreads + ", trashEnabled=" + trashEnabled
+                + ", trashDir=" + trashDir + ", trashPurgeRate="
+                + trashPurgeRate + ", copyParallelism=" + copyParallelism
+                + ", copyStrategy=" + copyStrategy + ", digestThreads="
+                + digestThreads + ", digestIndexBasePaths="
+                + digestIndexBasePaths + ", followThreads=" + followThreads
+                + ", followIdleTimeout=" + followIdleTimeout
+                + ", searchThreads=" + searchThreads
+                + ", filenameIndexBasePaths=" + filenameIndexBasePaths
+                + ", diskUsageMaxAge=" + diskUsageMaxAge
+                + ", diskUsageCacheSize=" + diskUsageCacheSize
+                + ", zipArchiveCacheSize=" + zipArchiveCacheSize
+                + ", gzipThreads=" + gzipThreads + ", jobDir=" + jobDir
+                + ", jobThreads=" + jobThreads + ", jobQueueSize="
+                + jobQueueSize + ", jobRetention=" + jobRetention
+                + ", heavyThreads=" + heavyThreads + ", heavyQueueSize="
+                + heavyQueueSize + ", transferThreads=" + transferThreads
+                + ", transferQueueSize=" + transferQueueSize
+                + ", smallDownloadSize=" + smallDownloadSize
+                + ", retryAfter=" + retryAfter + ", userHeavyLimit="
+                + userHeavyLimit + ", userTransferLimit=" + userTransferLimit
+                + ", userWeights=" + userWeights + ", downloadRate="
+                + downloadRate + ", basePathDownloadRate="
+                + basePathDownloadRate + ", userDownloadRate="
+                + userDownloadRate + ", coalesceTimeout=" + coalesceTimeout
+                + ", nonBlockingIo=" + nonBlockingIo + "]";
     }
 }
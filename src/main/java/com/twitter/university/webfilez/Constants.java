@@ -13,5 +13,6 @@ class Constants {
     public static final String READ_ALLOWED = "readAllowed";
     public static final String EXPIRY = "expiry";
     public static final String AUTH_TOKEN_ATTR_NAME = "authToken";
+    public static final String USER_ID = "userId";
 
 }
@@ -0,0 +1,329 @@
+package com.twitter.university.webfilez;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Searches the contents of the files in a directory tree for a literal string
+ * (of bytes), one line at a time, like <code>grep -F</code>.
+ * <p>
+ * The tree is walked on the calling thread, and the files are scanned on a
+ * shared pool, through memory-mapped windows. Each search only ever has as
+ * many files in flight as the pool has threads, so that one search cannot
+ * starve the others. Matches are reported as they are found (from the pool's
+ * threads), and the search stops as soon as the callback says so (or fails,
+ * e.g. because the client went away).
+ */
+public final class ContentSearch {
+    private static final Logger logger = LoggerFactory
+            .getLogger(ContentSearch.class);
+
+    private static final int WINDOW_SIZE = 1 << 26;
+
+    private static final int MAX_TEXT_LENGTH = 256;
+
+    private static final int BINARY_CHECK_LENGTH = 1 << 13;
+
+    private final ExecutorService executor;
+
+    private final int threads;
+
+    public ContentSearch(int threads) {
+        this.threads = threads;
+        this.executor = Executors.newFixedThreadPool(threads,
+                new NamedThreadFactory("search"));
+    }
+
+    public void shutdown() {
+        // let the searches waiting on the scans that never ran carry on
+        for (Runnable scan : this.executor.shutdownNow()) {
+            ((Scan) scan).skip();
+        }
+    }
+
+    /**
+     * Search the files under the given directory that are accepted by the
+     * given filter for the given pattern, and report the lines that contain
+     * it (at most one match per line).
+     *
+     * @param ignoreCase
+     *            whether to ignore the case of ASCII letters
+     * @throws IllegalArgumentException
+     *             if the pattern is empty or spans lines
+     * @throws IOException
+     *             if the callback failed
+     * @throws RejectedExecutionException
+     *             if this has been shut down
+     */
+    public void search(final Path dir, byte[] pattern, boolean ignoreCase,
+            final Filter filter, Callback callback) throws IOException,
+            InterruptedException {
+        if (pattern.length == 0) {
+            throw new IllegalArgumentException("Empty pattern");
+        }
+        for (byte b : pattern) {
+            if (b == '\n') {
+                throw new IllegalArgumentException(
+                        "Pattern must not span lines");
+            }
+        }
+        final Search search = new Search(pattern, ignoreCase, callback);
+        final long t = System.nanoTime();
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(final Path file,
+                        BasicFileAttributes attrs) throws IOException {
+                    if (search.stopped.get()) {
+                        return FileVisitResult.TERMINATE;
+                    } else if (attrs.isRegularFile() && attrs.size() > 0
+                            && filter.accept(file, attrs)) {
+                        try {
+                            search.permits.acquire();
+                        } catch (InterruptedException e) {
+                            search.stopped.set(true);
+                            return FileVisitResult.TERMINATE;
+                        }
+                        try {
+                            executor.execute(new Scan(search, file));
+                        } catch (RejectedExecutionException e) {
+                            search.permits.release();
+                            search.stopped.set(true);
+                            throw e;
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file,
+                        IOException e) throws IOException {
+                    if (logger.isWarnEnabled()) {
+                        logger.warn("Skipping [" + file + "] in search of ["
+                                + dir + "]", e);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } finally {
+            // wait for the files in flight
+            search.permits.acquireUninterruptibly(this.threads);
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Searched [" + dir + "] in ["
+                    + ((System.nanoTime() - t) / 1000000) + "] ms");
+        }
+        final IOException failure = search.failure.get();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static final class Scan implements Runnable {
+        private final Search search;
+
+        private final Path file;
+
+        Scan(Search search, Path file) {
+            this.search = search;
+            this.file = file;
+        }
+
+        @Override
+        public void run() {
+            try {
+                this.search.scan(this.file);
+            } finally {
+                this.search.permits.release();
+            }
+        }
+
+        void skip() {
+            this.search.permits.release();
+        }
+    }
+
+    private final class Search {
+        final byte[] pattern;
+
+        final boolean ignoreCase;
+
+        final Callback callback;
+
+        final Semaphore permits = new Semaphore(threads);
+
+        final AtomicBoolean stopped = new AtomicBoolean();
+
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+
+        Search(byte[] pattern, boolean ignoreCase, Callback callback) {
+            this.ignoreCase = ignoreCase;
+            this.pattern = ignoreCase ? fold(pattern) : pattern;
+            this.callback = callback;
+        }
+
+        void scan(Path file) {
+            try (FileChannel in = FileChannel.open(file,
+                    StandardOpenOption.READ)) {
+                this.scan(file, in);
+            } catch (IOException e) {
+                if (logger.isWarnEnabled()) {
+                    logger.warn("Failed to search [" + file + "]", e);
+                }
+            }
+        }
+
+        private void scan(Path file, FileChannel in) throws IOException {
+            final long size = in.size();
+            final byte first = this.pattern[0];
+            long line = 1;
+            long lineStart = 0;
+            boolean matched = false;
+            for (long start = 0; start < size; start += WINDOW_SIZE) {
+                if (this.stopped.get()) {
+                    return;
+                }
+                // matches must start in this window, but may end in the next
+                final int limit = (int) Math.min(WINDOW_SIZE, size - start);
+                final MappedByteBuffer window = in.map(
+                        FileChannel.MapMode.READ_ONLY, start, Math.min(size
+                                - start, (long) limit + this.pattern.length
+                                - 1));
+                if (start == 0 && isBinary(window)) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Not searching binary [" + file + "]");
+                    }
+                    return;
+                }
+                for (int i = 0; i < limit; i++) {
+                    final byte b = window.get(i);
+                    if (b == '\n') {
+                        line++;
+                        lineStart = start + i + 1;
+                        matched = false;
+                    } else if (!matched
+                            && (this.ignoreCase ? fold(b) : b) == first
+                            && this.matches(window, i)) {
+                        matched = true;
+                        final long offset = start + i;
+                        try {
+                            if (!this.callback.found(file, line, offset,
+                                    readText(in, lineStart, offset, size))) {
+                                this.stopped.set(true);
+                                return;
+                            }
+                        } catch (IOException e) {
+                            this.failure.compareAndSet(null, e);
+                            this.stopped.set(true);
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+
+        private boolean matches(ByteBuffer window, int i) {
+            if (i + this.pattern.length > window.limit()) {
+                return false;
+            }
+            for (int j = 1; j < this.pattern.length; j++) {
+                final byte b = window.get(i + j);
+                if ((this.ignoreCase ? fold(b) : b) != this.pattern[j]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return (up to {@link #MAX_TEXT_LENGTH} bytes of) the line that
+     *         contains the given offset, around that offset
+     */
+    private static String readText(FileChannel in, long lineStart,
+            long offset, long size) throws IOException {
+        final long start = Math.max(lineStart, offset - MAX_TEXT_LENGTH / 2);
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(
+                MAX_TEXT_LENGTH, size - start));
+        while (buffer.hasRemaining()
+                && in.read(buffer, start + buffer.position()) > 0) {
+        }
+        int length = 0;
+        while (length < buffer.position() && buffer.get(length) != '\n') {
+            length++;
+        }
+        if (length > 0 && buffer.get(length - 1) == '\r') {
+            length--;
+        }
+        return new String(buffer.array(), 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return whether the start of the given window looks binary, i.e. has a
+     *         NUL byte (like grep does)
+     */
+    private static boolean isBinary(ByteBuffer window) {
+        final int length = Math.min(window.limit(), BINARY_CHECK_LENGTH);
+        for (int i = 0; i < length; i++) {
+            if (window.get(i) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte fold(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static byte[] fold(byte[] bytes) {
+        final byte[] folded = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            folded[i] = fold(bytes[i]);
+        }
+        return folded;
+    }
+
+    /**
+     * Decides which files to search.
+     */
+    public interface Filter {
+        boolean accept(Path file, BasicFileAttributes attrs)
+                throws IOException;
+    }
+
+    /**
+     * Told about matches, possibly from several threads at once.
+     */
+    public interface Callback {
+        /**
+         * @param line
+         *            the (1-based) number of the line of the match
+         * @param offset
+         *            the offset of the match in the file
+         * @param text
+         *            the text of the line around the match
+         * @return whether to keep searching
+         */
+        boolean found(Path file, long line, long offset, String text)
+                throws IOException;
+    }
+}
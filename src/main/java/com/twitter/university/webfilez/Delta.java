@@ -0,0 +1,195 @@
+package com.twitter.university.webfilez;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Block checksums and deltas, rsync-style: a client that has a modified copy
+ * of a file fetches the checksums of the blocks of our copy, finds those
+ * blocks in its own copy (using the rolling weak checksum to test every
+ * offset, and the strong one to confirm), and sends back a delta made of
+ * references to our blocks plus literal data for everything else.
+ * <p>
+ * A delta is a sequence of operations, each starting with a single byte:
+ * <ul>
+ * <li><code>'C'</code>, followed by an 8-byte offset and a 4-byte length:
+ * copy the given range of the original file</li>
+ * <li><code>'L'</code>, followed by a 4-byte length and that many bytes:
+ * literal data</li>
+ * <li><code>'E'</code>: the end of the delta (so that a truncated delta is
+ * never mistaken for a complete one)</li>
+ * </ul>
+ * All numbers are big-endian (as read by {@link DataInputStream}).
+ */
+public final class Delta {
+    public static final byte OP_COPY = 'C';
+    public static final byte OP_LITERAL = 'L';
+    public static final byte OP_END = 'E';
+
+    public static final int MIN_BLOCK_SIZE = 1 << 10;
+    public static final int MAX_BLOCK_SIZE = 1 << 20;
+
+    private Delta() {
+
+    }
+
+    /**
+     * @return a block size that balances the number of checksums against the
+     *         amount of literal data sent for each change (i.e. roughly the
+     *         square root of the size of the file, as a power of two)
+     */
+    public static int getDefaultBlockSize(long size) {
+        final int sqrt = (int) Math.min(Math.sqrt(size), MAX_BLOCK_SIZE);
+        return Math.max(MIN_BLOCK_SIZE, Integer.highestOneBit(sqrt));
+    }
+
+    /**
+     * @return a new digest for the strong checksums of blocks
+     */
+    public static MessageDigest newBlockDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not supported", e);
+        }
+    }
+
+    /**
+     * @return the weak checksum of the given block: two 16-bit sums (of the
+     *         bytes, and of the running totals), the second one in the high
+     *         bits
+     */
+    public static int checksum(byte[] block, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            final int v = block[offset + i] & 0xff;
+            a += v;
+            b += (length - i) * v;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    /**
+     * @return the weak checksum of the block of the given length after moving
+     *         it forward by one byte, from its previous checksum
+     */
+    public static int roll(int checksum, int length, byte out, byte in) {
+        final int o = out & 0xff;
+        final int a = ((checksum & 0xffff) - o + (in & 0xff)) & 0xffff;
+        final int b = ((checksum >>> 16) - length * o + a) & 0xffff;
+        return a | (b << 16);
+    }
+
+    /**
+     * Apply the given delta to the given original.
+     *
+     * @param digest
+     *            updated with everything written to the result
+     * @param maxSize
+     *            the most that the result may grow to
+     * @return the size of the result
+     * @throws IllegalArgumentException
+     *             if the delta is malformed
+     * @throws TooLargeException
+     *             if the result would grow beyond the given maximum size
+     */
+    public static long apply(FileChannel original, DataInputStream delta,
+            FileChannel result, MessageDigest digest, int bufferSize,
+            long maxSize) throws IOException {
+        final long originalSize = original.size();
+        final ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+        long size = 0;
+        try {
+            for (byte op; (op = delta.readByte()) != OP_END;) {
+                switch (op) {
+                case OP_COPY: {
+                    long offset = delta.readLong();
+                    int length = delta.readInt();
+                    if (offset < 0 || length < 0
+                            || offset > originalSize - length) {
+                        throw new IllegalArgumentException("Cannot copy ["
+                                + length + "] bytes at [" + offset
+                                + "] of [" + originalSize + "]");
+                    } else if (size + length > maxSize) {
+                        throw new TooLargeException(size + length);
+                    }
+                    while (length > 0) {
+                        buffer.clear();
+                        buffer.limit(Math.min(length, buffer.capacity()));
+                        final int n = original.read(buffer, offset);
+                        if (n <= 0) {
+                            throw new IOException("Original shrunk at ["
+                                    + offset + "]");
+                        }
+                        buffer.flip();
+                        digest.update(buffer.array(), 0, n);
+                        writeFully(result, buffer);
+                        offset += n;
+                        length -= n;
+                        size += n;
+                    }
+                    break;
+                }
+                case OP_LITERAL: {
+                    int length = delta.readInt();
+                    if (length < 0) {
+                        throw new IllegalArgumentException(
+                                "Invalid literal length [" + length + "]");
+                    } else if (size + length > maxSize) {
+                        throw new TooLargeException(size + length);
+                    }
+                    while (length > 0) {
+                        final int n = Math.min(length, buffer.capacity());
+                        delta.readFully(buffer.array(), 0, n);
+                        buffer.clear();
+                        buffer.limit(n);
+                        digest.update(buffer.array(), 0, n);
+                        writeFully(result, buffer);
+                        length -= n;
+                        size += n;
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown operation ["
+                            + op + "] after [" + size + "] bytes");
+                }
+            }
+        } catch (EOFException e) {
+            throw new IllegalArgumentException("Truncated delta after ["
+                    + size + "] bytes");
+        }
+        return size;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Thrown when the result of applying a delta gets too large.
+     */
+    public static final class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final long size;
+
+        TooLargeException(long size) {
+            super("Delta result would grow to [" + size + "] bytes");
+            this.size = size;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+}
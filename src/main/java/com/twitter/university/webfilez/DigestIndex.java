@@ -0,0 +1,147 @@
+package com.twitter.university.webfilez;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-base-path index of content digests to files, used to create uploaded
+ * files from content that is already there (rather than transferring it
+ * again).
+ * <p>
+ * The index of a base path is built the first time it is looked up, from the
+ * digests that are already stored with its files, and then kept up to date as
+ * new digests get recorded. Only a bounded number of base paths is kept
+ * around. Entries are never trusted blindly: a hit is only returned if the
+ * file still has that digest.
+ */
+public final class DigestIndex implements Digests.Listener {
+    private static final Logger logger = LoggerFactory
+            .getLogger(DigestIndex.class);
+
+    private final Digests digests;
+
+    private final Map<Path, ConcurrentMap<String, Path>> indexes;
+
+    public DigestIndex(Digests digests, final int maxBasePaths) {
+        this.digests = digests;
+        this.indexes = new LinkedHashMap<Path, ConcurrentMap<String, Path>>(
+                16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Path, ConcurrentMap<String, Path>> e) {
+                return size() > maxBasePaths;
+            }
+        };
+    }
+
+    /**
+     * @return a file under the given base path with the given digest and
+     *         size, or null if we don't know of one
+     */
+    public Path find(Path basePath, byte[] digest, long size)
+            throws IOException {
+        final ConcurrentMap<String, Path> index = this.getIndex(basePath);
+        final String key = Digests.toHex(digest);
+        final Path file = index.get(key);
+        if (file != null) {
+            try {
+                final BasicFileAttributes attrs = Files.readAttributes(file,
+                        BasicFileAttributes.class);
+                if (attrs.isRegularFile()
+                        && attrs.size() == size
+                        && Arrays.equals(digest, this.digests.peek(file,
+                                attrs.size(), attrs.lastModifiedTime()
+                                        .toMillis()))) {
+                    return file;
+                }
+            } catch (IOException e) {
+                // gone
+            }
+            if (logger.isTraceEnabled()) {
+                logger.trace("Dropping stale entry [" + file + "] for ["
+                        + key + "]");
+            }
+            index.remove(key, file);
+        }
+        return null;
+    }
+
+    @Override
+    public void digested(Path file, byte[] digest) {
+        for (Map.Entry<Path, ConcurrentMap<String, Path>> e : this
+                .getLoadedIndexes()) {
+            if (file.startsWith(e.getKey())) {
+                e.getValue().put(Digests.toHex(digest), file);
+            }
+        }
+    }
+
+    private List<Map.Entry<Path, ConcurrentMap<String, Path>>>
+            getLoadedIndexes() {
+        synchronized (this.indexes) {
+            return new ArrayList<>(this.indexes.entrySet());
+        }
+    }
+
+    private ConcurrentMap<String, Path> getIndex(Path basePath)
+            throws IOException {
+        synchronized (this.indexes) {
+            final ConcurrentMap<String, Path> index = this.indexes
+                    .get(basePath);
+            if (index != null) {
+                return index;
+            }
+        }
+        // build it outside of the lock; we may end up doing this twice
+        // (concurrently), but that is harmless
+        final ConcurrentMap<String, Path> index = new ConcurrentHashMap<>();
+        final long t = System.nanoTime();
+        if (Files.isDirectory(basePath)) {
+            Files.walkFileTree(basePath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file,
+                        BasicFileAttributes attrs) throws IOException {
+                    if (attrs.isRegularFile()) {
+                        final byte[] digest = digests.peek(file, attrs.size(),
+                                attrs.lastModifiedTime().toMillis());
+                        if (digest != null) {
+                            index.put(Digests.toHex(digest), file);
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Indexed [" + index.size() + "] digest(s) in ["
+                    + basePath + "] in ["
+                    + ((System.nanoTime() - t) / 1000000) + "] ms");
+        }
+        synchronized (this.indexes) {
+            final ConcurrentMap<String, Path> existing = this.indexes
+                    .get(basePath);
+            if (existing != null) {
+                existing.putAll(index);
+                return existing;
+            }
+            this.indexes.put(basePath, index);
+            return index;
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package com.twitter.university.webfilez;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SHA-256 digests of file contents, persisted in a user-defined extended
+ * attribute of each file (as <code>digest:size:lastModified</code>), so that
+ * they survive restarts and renames, and are shared by hard links.
+ * <p>
+ * Uploads compute the digest as they stream (see
+ * {@link #newMessageDigest()}). A stored digest is only trusted while the
+ * file's size and modification time still match what was recorded with it;
+ * files that arrived (or changed) behind our back get their digest computed
+ * in the background the first time it is asked for.
+ */
+public final class Digests {
+    private static final Logger logger = LoggerFactory
+            .getLogger(Digests.class);
+
+    public static final String ALGORITHM = "SHA-256";
+
+    private static final String ATTRIBUTE_NAME = "webfilez.sha256";
+
+    private static final int MAX_PENDING = 10000;
+
+    // failures in a row to store a digest on a file store before we give up
+    // on computing digests lazily there
+    private static final int MAX_FAILURES = 3;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final ExecutorService executor;
+
+    private final Set<Path> pending = Collections
+            .newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+    private final int bufferSize;
+
+    private final ConcurrentMap<FileStore, AtomicInteger> failures =
+            new ConcurrentHashMap<>();
+
+    private final Set<FileStore> unsupported = Collections
+            .newSetFromMap(new ConcurrentHashMap<FileStore, Boolean>());
+
+    private volatile Listener listener;
+
+    public Digests(int threads, int bufferSize) {
+        this.executor = new ThreadPoolExecutor(threads, threads, 0,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(
+                        MAX_PENDING), new NamedThreadFactory("digest"));
+        this.bufferSize = bufferSize;
+    }
+
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not supported", e);
+        }
+    }
+
+    /**
+     * @return the digest of the given file, or null if it is not (yet) known,
+     *         in which case it will be computed in the background
+     */
+    public byte[] get(Path file) throws IOException {
+        final BasicFileAttributes attrs = Files.readAttributes(file,
+                BasicFileAttributes.class);
+        return this.get(file, attrs.size(), attrs.lastModifiedTime()
+                .toMillis());
+    }
+
+    /**
+     * @param size
+     *            the current size of the file
+     * @param lastModified
+     *            the current modification time of the file
+     * @return the digest of the given file, or null if it is not (yet) known,
+     *         in which case it will be computed in the background
+     */
+    public byte[] get(Path file, long size, long lastModified) {
+        final byte[] digest = read(file, size, lastModified);
+        if (digest == null && this.isPersistent(file)
+                && this.pending.add(file)) {
+            try {
+                this.executor.execute(new Compute(file));
+            } catch (RejectedExecutionException e) {
+                // we'll get to it next time
+                this.pending.remove(file);
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * @return the digest of the given file, or null if it is not known (in
+     *         which case it is not computed either)
+     */
+    public byte[] peek(Path file, long size, long lastModified) {
+        return read(file, size, lastModified);
+    }
+
+    /**
+     * Record the digest of the given file, for its current size and
+     * modification time.
+     */
+    public void put(Path file, byte[] digest) throws IOException {
+        final BasicFileAttributes attrs = Files.readAttributes(file,
+                BasicFileAttributes.class);
+        this.put(file, digest, attrs.size(), attrs.lastModifiedTime()
+                .toMillis());
+    }
+
+    public void put(Path file, byte[] digest, long size, long lastModified) {
+        final UserDefinedFileAttributeView view = Files.getFileAttributeView(
+                file, UserDefinedFileAttributeView.class);
+        if (view == null) {
+            return;
+        }
+        final String value = toHex(digest) + ":" + size + ":" + lastModified;
+        try {
+            view.write(ATTRIBUTE_NAME,
+                    ByteBuffer.wrap(value.getBytes(StandardCharsets.US_ASCII)));
+        } catch (IOException e) {
+            this.failed(file, e);
+            return;
+        }
+        if (!this.failures.isEmpty()) {
+            final FileStore store = getFileStore(file);
+            if (store != null) {
+                this.failures.remove(store);
+            }
+        }
+        final Listener listener = this.listener;
+        if (listener != null) {
+            listener.digested(file, digest);
+        }
+    }
+
+    /**
+     * Count a failure to store the digest of the given file against its file
+     * store, and if that keeps failing, stop computing digests lazily there:
+     * without persistence, that is just a waste of I/O.
+     */
+    private void failed(Path file, IOException e) {
+        final FileStore store = getFileStore(file);
+        if (store == null) {
+            // gone already
+            return;
+        }
+        AtomicInteger failures = this.failures.get(store);
+        if (failures == null) {
+            failures = new AtomicInteger();
+            final AtomicInteger existing = this.failures.putIfAbsent(store,
+                    failures);
+            if (existing != null) {
+                failures = existing;
+            }
+        }
+        if (failures.incrementAndGet() >= MAX_FAILURES
+                && this.unsupported.add(store)) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("Failed to store digest of [" + file
+                        + "]. Will no longer compute digests lazily on ["
+                        + store + "].", e);
+            }
+        } else if (logger.isDebugEnabled()) {
+            logger.debug("Failed to store digest of [" + file + "]", e);
+        }
+    }
+
+    /**
+     * @return whether digests can be stored with the given file (as far as we
+     *         know)
+     */
+    private boolean isPersistent(Path file) {
+        // looking up the file store is not free, so only when we have to
+        if (this.unsupported.isEmpty()) {
+            return true;
+        }
+        final FileStore store = getFileStore(file);
+        return store == null || !this.unsupported.contains(store);
+    }
+
+    private static FileStore getFileStore(Path file) {
+        try {
+            return Files.getFileStore(file);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Forget the digest of the given file, which is about to be modified in
+     * place (which might not change its size or its modification time, at
+     * least not at the granularity that we record).
+     */
+    public void invalidate(Path file) {
+        final UserDefinedFileAttributeView view = Files.getFileAttributeView(
+                file, UserDefinedFileAttributeView.class);
+        if (view != null) {
+            try {
+                view.delete(ATTRIBUTE_NAME);
+            } catch (IOException e) {
+                // no such attribute
+            }
+        }
+    }
+
+    private static byte[] read(Path file, long size, long lastModified) {
+        final UserDefinedFileAttributeView view = Files.getFileAttributeView(
+                file, UserDefinedFileAttributeView.class);
+        if (view == null) {
+            return null;
+        }
+        final String value;
+        try {
+            final ByteBuffer buffer = ByteBuffer.allocate(view
+                    .size(ATTRIBUTE_NAME));
+            view.read(ATTRIBUTE_NAME, buffer);
+            buffer.flip();
+            value = StandardCharsets.US_ASCII.decode(buffer).toString();
+        } catch (IOException e) {
+            // no such attribute
+            return null;
+        }
+        final String[] fields = value.split(":");
+        if (fields.length == 3 && fields[1].equals(Long.toString(size))
+                && fields[2].equals(Long.toString(lastModified))) {
+            try {
+                return fromHex(fields[0]);
+            } catch (IllegalArgumentException e) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Ignoring invalid digest [" + value
+                            + "] of [" + file + "]");
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the value of an (RFC 3230) <code>Digest</code> header
+     */
+    public static String toHeaderValue(byte[] digest) {
+        return ALGORITHM + "=" + DatatypeConverter.printBase64Binary(digest);
+    }
+
+    /**
+     * @return the digest in the given (RFC 3230) <code>Digest</code> header
+     *         value, or null if it does not have one that we use
+     */
+    public static byte[] fromHeaderValue(String value) {
+        if (value != null) {
+            for (String instance : value.split(",")) {
+                final int i = instance.indexOf('=');
+                if (i > 0
+                        && ALGORITHM.equalsIgnoreCase(instance.substring(0, i)
+                                .trim())) {
+                    try {
+                        final byte[] digest = DatatypeConverter
+                                .parseBase64Binary(instance.substring(i + 1)
+                                        .trim());
+                        if (digest.length == 32) {
+                            return digest;
+                        }
+                    } catch (IllegalArgumentException e) {
+                        // not valid base64
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    public static String toHex(byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd-length hex [" + hex + "]");
+        }
+        final byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            final int hi = Character.digit(hex.charAt(i * 2), 16);
+            final int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("Invalid hex [" + hex + "]");
+            }
+            bytes[i] = (byte) (hi << 4 | lo);
+        }
+        return bytes;
+    }
+
+    /**
+     * Notified whenever a digest gets recorded.
+     */
+    public static interface Listener {
+        public void digested(Path file, byte[] digest);
+    }
+
+    private final class Compute implements Runnable {
+        private final Path file;
+
+        Compute(Path file) {
+            this.file = file;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final BasicFileAttributes before = Files.readAttributes(
+                        this.file, BasicFileAttributes.class);
+                if (!before.isRegularFile()) {
+                    return;
+                }
+                final MessageDigest md = newMessageDigest();
+                try (InputStream in = Files.newInputStream(this.file)) {
+                    final byte[] buffer = new byte[bufferSize];
+                    for (int n; (n = in.read(buffer)) > 0;) {
+                        md.update(buffer, 0, n);
+                    }
+                }
+                final BasicFileAttributes after = Files.readAttributes(
+                        this.file, BasicFileAttributes.class);
+                if (before.size() == after.size()
+                        && before.lastModifiedTime().equals(
+                                after.lastModifiedTime())) {
+                    put(this.file, md.digest(), after.size(), after
+                            .lastModifiedTime().toMillis());
+                    if (logger.isTraceEnabled()) {
+                        logger.trace("Computed digest of [" + this.file + "]");
+                    }
+                } else if (logger.isDebugEnabled()) {
+                    logger.debug("[" + this.file
+                            + "] changed while computing its digest");
+                }
+            } catch (IOException e) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Failed to compute digest of [" + this.file
+                            + "]", e);
+                }
+            } finally {
+                pending.remove(this.file);
+            }
+        }
+    }
+}
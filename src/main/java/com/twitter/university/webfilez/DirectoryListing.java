@@ -0,0 +1,227 @@
+package com.twitter.university.webfilez;
+
+import static com.twitter.university.webfilez.FileUtil.size;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A snapshot of the entries of a single directory, read with one attribute
+ * lookup per entry, along with a fingerprint of everything that ends up in a
+ * listing (entry names, types, sizes, and modification times). The
+ * fingerprint lets us answer conditional listing requests without rendering
+ * the listing itself.
+ */
+public final class DirectoryListing {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Path dir;
+    private final List<Entry> entries;
+    private final Path readmeFile;
+    private final long totalSize;
+    private final long lastModified;
+    private final long fingerprint;
+
+    private DirectoryListing(Path dir, List<Entry> entries, Path readmeFile,
+            long totalSize, long lastModified, long fingerprint) {
+        this.dir = dir;
+        this.entries = entries;
+        this.readmeFile = readmeFile;
+        this.totalSize = totalSize;
+        this.lastModified = lastModified;
+        this.fingerprint = fingerprint;
+    }
+
+    public static DirectoryListing read(Path dir, Path readmeFileName)
+            throws IOException {
+        return read(dir, readmeFileName, true);
+    }
+
+    /**
+     * @param sizeDirectories
+     *            whether to compute the recursive size of sub-directories,
+     *            which requires walking them; if not, directory entries report
+     *            their own (filesystem-specific) size instead
+     */
+    public static DirectoryListing read(Path dir, Path readmeFileName,
+            boolean sizeDirectories) throws IOException {
+        return read(dir, readmeFileName, sizeDirectories, null);
+    }
+
+    /**
+     * @param diskUsage
+     *            where to get the recursive size of sub-directories from, or
+     *            null if directory entries should report their own
+     *            (filesystem-specific) size instead
+     */
+    public static DirectoryListing read(Path dir, Path readmeFileName,
+            DiskUsage diskUsage) throws IOException {
+        return read(dir, readmeFileName, diskUsage != null, diskUsage);
+    }
+
+    private static DirectoryListing read(Path dir, Path readmeFileName,
+            boolean sizeDirectories, DiskUsage diskUsage) throws IOException {
+        final List<Entry> entries = new ArrayList<>();
+        Path readmeFile = null;
+        long totalSize = 0;
+        long lastModified = Files.getLastModifiedTime(dir).toMillis();
+        long fingerprint = FNV_OFFSET_BASIS;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                final BasicFileAttributes attrs = Files.readAttributes(file,
+                        BasicFileAttributes.class);
+                final boolean directory = attrs.isDirectory();
+                final long size = !directory || !sizeDirectories ? attrs
+                        .size() : diskUsage == null ? size(file) : diskUsage
+                        .get(file).getSize();
+                final Entry entry = new Entry(file, file.getFileName()
+                        .toString(), directory, size, attrs.lastModifiedTime()
+                        .toMillis());
+                entries.add(entry);
+                totalSize += size;
+                lastModified = Math.max(lastModified, entry.lastModified);
+                fingerprint = hash(fingerprint, entry.name);
+                fingerprint = hash(fingerprint, directory ? 1 : 0);
+                fingerprint = hash(fingerprint, size);
+                fingerprint = hash(fingerprint, entry.lastModified);
+                if (file.getFileName().equals(readmeFileName)) {
+                    readmeFile = file;
+                }
+            }
+        }
+        return new DirectoryListing(dir, Collections.unmodifiableList(entries),
+                readmeFile, totalSize, lastModified, fingerprint);
+    }
+
+    public Path getDir() {
+        return dir;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public Path getReadmeFile() {
+        return readmeFile;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * @return the most recent modification time of the directory itself or
+     *         any of its immediate entries
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Build a strong ETag for a listing representation of this directory.
+     * Besides the directory contents, the listing also carries per-request
+     * values (the quota, the write permission, the auth token appended to
+     * links, and the selected fields), so those are mixed in as well.
+     */
+    public String toETag(long quota, boolean writeAllowed, String authToken,
+            Set<FileField> fields) {
+        return toETag(this.fingerprint, quota, writeAllowed, authToken, fields);
+    }
+
+    /**
+     * Build a strong ETag for a listing of anything else that has the given
+     * fingerprint.
+     */
+    static String toETag(long fingerprint, long quota, boolean writeAllowed,
+            String authToken, Set<FileField> fields) {
+        long h = hash(fingerprint, quota);
+        h = hash(h, writeAllowed ? 1 : 0);
+        for (FileField field : fields) {
+            h = hash(h, field.ordinal());
+        }
+        if (authToken != null) {
+            h = hash(h, authToken);
+        }
+        return "\"" + Long.toHexString(h) + "\"";
+    }
+
+    static long hash(long h, long value) {
+        for (int i = 0; i < 8; i++) {
+            h ^= value & 0xff;
+            h *= FNV_PRIME;
+            value >>>= 8;
+        }
+        return h;
+    }
+
+    static long hash(long h, String value) {
+        for (int i = 0, len = value.length(); i < len; i++) {
+            final char c = value.charAt(i);
+            h ^= c & 0xff;
+            h *= FNV_PRIME;
+            h ^= c >>> 8;
+            h *= FNV_PRIME;
+        }
+        // terminate the string so that ("ab", "c") != ("a", "bc")
+        h ^= 0xff;
+        h *= FNV_PRIME;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return "DirectoryListing [dir=" + dir + ", entries=" + entries.size()
+                + ", totalSize=" + totalSize + ", lastModified="
+                + lastModified + ", fingerprint="
+                + Long.toHexString(fingerprint) + "]";
+    }
+
+    public static final class Entry {
+        private final Path path;
+        private final String name;
+        private final boolean directory;
+        private final long size;
+        private final long lastModified;
+
+        public Entry(Path path, String name, boolean directory, long size,
+                long lastModified) {
+            this.path = path;
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.twitter.university.webfilez;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-directory version counters and bounded change logs, maintained by the
+ * servlet's mutating handlers. A listing hands out an opaque version token,
+ * which a client can later pass back to find out which entries were added,
+ * removed, or modified since.
+ * <p>
+ * Versions are drawn from a single sequence, so a change log that was evicted
+ * and later re-created can never be mistaken for the one that issued an older
+ * token. Tokens are also tied to this instance (epoch), so they do not survive
+ * a restart. Changes made outside of webfilez are only detected to the extent
+ * that they update the directory's modification time (i.e. entries being
+ * added or removed); in that case we refuse to produce a delta.
+ */
+public final class DirectoryVersions {
+    private static final Logger logger = LoggerFactory
+            .getLogger(DirectoryVersions.class);
+
+    private final String epoch = Long.toHexString(System.currentTimeMillis());
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final Path root;
+
+    private final int changeLogSize;
+
+    private final Map<Path, ChangeLog> changeLogs;
+
+    public DirectoryVersions(Path root, int changeLogSize,
+            final int maxDirectories) {
+        this.root = root;
+        this.changeLogSize = changeLogSize;
+        this.changeLogs = new LinkedHashMap<Path, ChangeLog>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, ChangeLog> e) {
+                return size() > maxDirectories;
+            }
+        };
+    }
+
+    /**
+     * Record that the given file (or directory) was created, modified, or
+     * removed. The change is recorded in its parent directory, and in turn
+     * every ancestor up to the root records its child on the way as modified
+     * (since its recursive size may have changed).
+     */
+    public void changed(Path file) {
+        final long version = this.sequence.incrementAndGet();
+        for (Path child = file, dir = file.getParent(); dir != null
+                && dir.startsWith(this.root); child = dir, dir = dir
+                .getParent()) {
+            this.getChangeLog(dir, true).record(version,
+                    child.getFileName().toString(), getLastModified(dir));
+        }
+        if (logger.isTraceEnabled()) {
+            logger.trace("Recorded change #" + version + " to [" + file + "]");
+        }
+    }
+
+    /**
+     * @return the token identifying the current version of the given
+     *         directory. It should be obtained before the directory is read, so
+     *         that concurrent changes are reported (again) to the client.
+     */
+    public String getToken(Path dir) {
+        return this.epoch + "-"
+                + Long.toHexString(this.getChangeLog(dir, true).getVersion());
+    }
+
+    /**
+     * @return the names of the entries in the given directory that were
+     *         added, removed, or modified since the version represented by
+     *         the given token, or null if we no longer know (or never knew)
+     *         the changes since then
+     */
+    public Set<String> getChangesSince(Path dir, String token) {
+        final int i = token == null ? -1 : token.indexOf('-');
+        if (i <= 0 || !this.epoch.equals(token.substring(0, i))) {
+            if (logger.isTraceEnabled()) {
+                logger.trace("Not a current version token [" + token + "]");
+            }
+            return null;
+        }
+        final long since;
+        try {
+            since = Long.parseLong(token.substring(i + 1), 16);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        final ChangeLog changeLog = this.getChangeLog(dir, false);
+        return changeLog == null ? null : changeLog.getChangesSince(since,
+                getLastModified(dir));
+    }
+
+    private ChangeLog getChangeLog(Path dir, boolean create) {
+        synchronized (this.changeLogs) {
+            ChangeLog changeLog = this.changeLogs.get(dir);
+            if (changeLog == null && create) {
+                changeLog = new ChangeLog(this.sequence.get(),
+                        this.changeLogSize, getLastModified(dir));
+                this.changeLogs.put(dir, changeLog);
+            }
+            return changeLog;
+        }
+    }
+
+    private static long getLastModified(Path dir) {
+        try {
+            return Files.getLastModifiedTime(dir).toMillis();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static final class ChangeLog {
+        private final long[] versions;
+        private final String[] names;
+        private int head = 0;
+        private int count = 0;
+        // changes up to and including this version are no longer available
+        private long truncated;
+        private long version;
+        private long lastModified;
+
+        ChangeLog(long baseline, int size, long lastModified) {
+            this.versions = new long[size];
+            this.names = new String[size];
+            this.truncated = baseline;
+            this.version = baseline;
+            this.lastModified = lastModified;
+        }
+
+        synchronized long getVersion() {
+            return this.version;
+        }
+
+        synchronized void record(long version, String name, long lastModified) {
+            if (this.count == this.versions.length) {
+                this.truncated = this.versions[this.head];
+            } else {
+                this.count++;
+            }
+            this.versions[this.head] = version;
+            this.names[this.head] = name;
+            this.head = (this.head + 1) % this.versions.length;
+            this.version = version;
+            this.lastModified = lastModified;
+        }
+
+        synchronized Set<String> getChangesSince(long since,
+                long currentLastModified) {
+            if (since < this.truncated || since > this.version) {
+                return null;
+            } else if (currentLastModified != this.lastModified) {
+                // changed behind our back
+                return null;
+            } else if (since == this.version) {
+                return Collections.emptySet();
+            }
+            final Set<String> result = new TreeSet<>();
+            for (int n = 0, i = this.head; n < this.count; n++) {
+                i = (i == 0 ? this.versions.length : i) - 1;
+                if (this.versions[i] <= since) {
+                    break;
+                }
+                result.add(this.names[i]);
+            }
+            return result;
+        }
+    }
+}
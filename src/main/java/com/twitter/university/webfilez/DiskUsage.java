@@ -0,0 +1,455 @@
+package com.twitter.university.webfilez;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Recursive sizes (and file counts) of directories, each rolled up from the
+ * files of the directory and the roll-ups of its sub-directories, and
+ * persisted in a user-defined extended attribute of the directory (as
+ * <code>size:files:lastModified:computed</code>), with the most recently used
+ * ones also kept in memory.
+ * <p>
+ * The servlet's mutating handlers invalidate the roll-ups of the ancestors of
+ * whatever they change, so only those get recomputed (from the still valid
+ * roll-ups of everything else). A roll-up is also dropped if its directory's
+ * modification time changed (i.e. entries were added or removed behind our
+ * back), or once it is older than the maximum age, which bounds how long other
+ * changes made behind our back can go unnoticed.
+ */
+public final class DiskUsage {
+    private static final Logger logger = LoggerFactory
+            .getLogger(DiskUsage.class);
+
+    private static final String ATTRIBUTE_NAME = "webfilez.du";
+
+    private static final int STRIPES = 1024;
+
+    private final Path root;
+
+    private final long maxAge;
+
+    private final Map<Path, Rollup> cache;
+
+    // bumped by every invalidation, so that a roll-up that was computed
+    // concurrently with one does not get stored
+    private final AtomicLongArray stamps = new AtomicLongArray(STRIPES);
+
+    private volatile boolean persistent = true;
+
+    private final SingleFlight<Rollup> rollups;
+
+    /**
+     * @param maxAge
+     *            how long (in ms) a roll-up can be trusted for
+     */
+    public DiskUsage(Path root, long maxAge, final int maxCached) {
+        this(root, maxAge, maxCached, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param coalesceTimeout
+     *            how long (in ms) to wait on a concurrent roll-up of the same
+     *            directory before rolling it up independently
+     */
+    public DiskUsage(Path root, long maxAge, final int maxCached,
+            long coalesceTimeout) {
+        this.root = root;
+        this.maxAge = maxAge;
+        this.rollups = new SingleFlight<>("disk-usage", coalesceTimeout);
+        this.cache = new LinkedHashMap<Path, Rollup>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Rollup> e) {
+                return size() > maxCached;
+            }
+        };
+    }
+
+    /**
+     * @return the total size of the given file, or of all the files under the
+     *         given directory
+     */
+    public long size(Path path) throws IOException {
+        final BasicFileAttributes attrs = Files.readAttributes(path,
+                BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        return attrs.isDirectory() ? this.coalesce(path, attrs).getSize()
+                : attrs.size();
+    }
+
+    /**
+     * @return the roll-up of the given directory, shared with whoever else
+     *         is rolling up the same (unchanged) directory at the same time
+     */
+    public Rollup get(Path dir) throws IOException {
+        return this.coalesce(dir, Files.readAttributes(dir,
+                BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+    }
+
+    private Rollup coalesce(final Path dir, final BasicFileAttributes attrs)
+            throws IOException {
+        // any change below the directory bumps its stamp
+        final String key = dir + "@" + this.stamps.get(stripe(dir)) + ":"
+                + attrs.lastModifiedTime().toMillis();
+        return this.rollups.get(key, new SingleFlight.Computation<Rollup>() {
+            @Override
+            public Rollup compute() throws IOException {
+                return get(dir, attrs);
+            }
+        });
+    }
+
+    private Rollup get(Path dir, BasicFileAttributes attrs)
+            throws IOException {
+        final long lastModified = attrs.lastModifiedTime().toMillis();
+        final long now = System.currentTimeMillis();
+        Rollup rollup;
+        synchronized (this.cache) {
+            rollup = this.cache.get(dir);
+        }
+        if (rollup == null && this.persistent) {
+            rollup = read(dir);
+        }
+        if (rollup != null && rollup.lastModified == lastModified
+                && now - rollup.computed < this.maxAge) {
+            return rollup;
+        }
+        final int stripe = stripe(dir);
+        final long stamp = this.stamps.get(stripe);
+        long size = 0;
+        long files = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                final BasicFileAttributes entryAttrs;
+                try {
+                    entryAttrs = Files.readAttributes(entry,
+                            BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS);
+                } catch (NoSuchFileException e) {
+                    // gone since
+                    continue;
+                }
+                if (entryAttrs.isDirectory()) {
+                    final Rollup child = this.get(entry, entryAttrs);
+                    size += child.size;
+                    files += child.files;
+                } else if (entryAttrs.isRegularFile()) {
+                    size += entryAttrs.size();
+                    files++;
+                }
+            }
+        }
+        rollup = new Rollup(size, files, lastModified, now);
+        this.put(dir, rollup, stripe, stamp);
+        if (logger.isTraceEnabled()) {
+            logger.trace("Rolled up [" + dir + "] to " + rollup);
+        }
+        return rollup;
+    }
+
+    /**
+     * @return the largest sub-directories and files of the given directory,
+     *         down to the given depth (1 being its own entries)
+     */
+    public Breakdown getBreakdown(final Path dir, int depth, final int top)
+            throws IOException {
+        final Rollup total = this.get(dir);
+        final PriorityQueue<Usage> directories = new PriorityQueue<>();
+        final PriorityQueue<Usage> files = new PriorityQueue<>();
+        Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), depth,
+                new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path d,
+                            BasicFileAttributes attrs) throws IOException {
+                        if (!d.equals(dir)) {
+                            this.visitDirectory(d, attrs);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file,
+                            BasicFileAttributes attrs) throws IOException {
+                        if (attrs.isDirectory()) {
+                            // at the maximum depth
+                            this.visitDirectory(file, attrs);
+                        } else if (attrs.isRegularFile()) {
+                            offer(files, new Usage(file, attrs.size(), 1), top);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file,
+                            IOException e) throws IOException {
+                        if (logger.isWarnEnabled()) {
+                            logger.warn("Skipping [" + file
+                                    + "] in disk usage of [" + dir + "]", e);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    private void visitDirectory(Path d,
+                            BasicFileAttributes attrs) throws IOException {
+                        final Rollup rollup = get(d, attrs);
+                        offer(directories, new Usage(d, rollup.size,
+                                rollup.files), top);
+                    }
+                });
+        return new Breakdown(total, sorted(directories), sorted(files));
+    }
+
+    private static void offer(PriorityQueue<Usage> queue, Usage usage,
+            int top) {
+        queue.add(usage);
+        if (queue.size() > top) {
+            queue.remove();
+        }
+    }
+
+    private static List<Usage> sorted(PriorityQueue<Usage> queue) {
+        final List<Usage> list = new ArrayList<>(queue);
+        Collections.sort(list, Collections.reverseOrder());
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Record that the given file (or directory) was created, modified, or
+     * removed, which invalidates the roll-ups of all of its ancestors.
+     */
+    public void changed(Path file) {
+        for (Path dir = file; dir != null && dir.startsWith(this.root); dir = dir
+                .getParent()) {
+            this.stamps.incrementAndGet(stripe(dir));
+            synchronized (this.cache) {
+                this.cache.remove(dir);
+            }
+            if (this.persistent && Files.isDirectory(dir)) {
+                final UserDefinedFileAttributeView view = Files
+                        .getFileAttributeView(dir,
+                                UserDefinedFileAttributeView.class);
+                if (view != null) {
+                    try {
+                        view.delete(ATTRIBUTE_NAME);
+                    } catch (IOException e) {
+                        // no such attribute
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Store the given roll-up, unless the directory was invalidated since the
+     * given stamp was taken (i.e. while it was being computed).
+     */
+    private void put(Path dir, Rollup rollup, int stripe, long stamp) {
+        // changed() bumps the stamp before it takes the lock to remove the
+        // roll-up, so either we see the bump or it sees our roll-up
+        synchronized (this.cache) {
+            if (this.stamps.get(stripe) != stamp) {
+                return;
+            }
+            this.cache.put(dir, rollup);
+        }
+        if (!this.persistent) {
+            return;
+        }
+        final UserDefinedFileAttributeView view = Files.getFileAttributeView(
+                dir, UserDefinedFileAttributeView.class);
+        try {
+            if (view == null) {
+                throw new IOException("No user-defined attributes");
+            }
+            final String value = rollup.size + ":" + rollup.files + ":"
+                    + rollup.lastModified + ":" + rollup.computed;
+            view.write(ATTRIBUTE_NAME,
+                    ByteBuffer.wrap(value.getBytes(StandardCharsets.US_ASCII)));
+        } catch (IOException e) {
+            this.persistent = false;
+            if (logger.isWarnEnabled()) {
+                logger.warn("Failed to store disk usage of [" + dir
+                        + "]. Will only keep disk usage in memory.", e);
+            }
+            return;
+        }
+        // but changed() may have deleted the attribute before we wrote it
+        if (this.stamps.get(stripe) != stamp) {
+            try {
+                view.delete(ATTRIBUTE_NAME);
+            } catch (IOException e) {
+                // deleted again since
+            }
+        }
+    }
+
+    private static Rollup read(Path dir) {
+        final UserDefinedFileAttributeView view = Files.getFileAttributeView(
+                dir, UserDefinedFileAttributeView.class);
+        if (view == null) {
+            return null;
+        }
+        final String value;
+        try {
+            final ByteBuffer buffer = ByteBuffer.allocate(view
+                    .size(ATTRIBUTE_NAME));
+            view.read(ATTRIBUTE_NAME, buffer);
+            buffer.flip();
+            value = StandardCharsets.US_ASCII.decode(buffer).toString();
+        } catch (IOException e) {
+            // no such attribute
+            return null;
+        }
+        final String[] fields = value.split(":");
+        if (fields.length == 4) {
+            try {
+                return new Rollup(Long.parseLong(fields[0]),
+                        Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                        Long.parseLong(fields[3]));
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Ignoring invalid disk usage [" + value + "] of ["
+                    + dir + "]");
+        }
+        return null;
+    }
+
+    private static int stripe(Path dir) {
+        return dir.hashCode() & (STRIPES - 1);
+    }
+
+    /**
+     * The total disk usage of a directory, and its largest parts.
+     */
+    public static final class Breakdown {
+        private final Rollup total;
+
+        private final List<Usage> directories;
+
+        private final List<Usage> files;
+
+        Breakdown(Rollup total, List<Usage> directories, List<Usage> files) {
+            this.total = total;
+            this.directories = directories;
+            this.files = files;
+        }
+
+        public Rollup getTotal() {
+            return total;
+        }
+
+        /**
+         * @return the largest sub-directories, largest first
+         */
+        public List<Usage> getDirectories() {
+            return directories;
+        }
+
+        /**
+         * @return the largest files, largest first
+         */
+        public List<Usage> getFiles() {
+            return files;
+        }
+    }
+
+    /**
+     * The disk usage of a single file or directory, ordered by size.
+     */
+    public static final class Usage implements Comparable<Usage> {
+        private final Path path;
+
+        private final long size;
+
+        private final long files;
+
+        Usage(Path path, long size, long files) {
+            this.path = path;
+            this.size = size;
+            this.files = files;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getFiles() {
+            return files;
+        }
+
+        @Override
+        public int compareTo(Usage that) {
+            return this.size < that.size ? -1 : this.size > that.size ? 1
+                    : that.path.compareTo(this.path);
+        }
+
+        @Override
+        public String toString() {
+            return "Usage [path=" + path + ", size=" + size + ", files="
+                    + files + "]";
+        }
+    }
+
+    /**
+     * The total size of, and number of, the files under a directory.
+     */
+    public static final class Rollup {
+        private final long size;
+
+        private final long files;
+
+        private final long lastModified;
+
+        private final long computed;
+
+        Rollup(long size, long files, long lastModified, long computed) {
+            this.size = size;
+            this.files = files;
+            this.lastModified = lastModified;
+            this.computed = computed;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getFiles() {
+            return files;
+        }
+
+        @Override
+        public String toString() {
+            return "Rollup [size=" + size + ", files=" + files + "]";
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package com.twitter.university.webfilez;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded work queue that hands out tasks in weighted round-robin order
+ * across their keys (i.e. users) rather than in arrival order, so that
+ * whoever queues up a burst of work only ever gets their fair share of the
+ * threads draining it. Each key takes (up to) its weight in consecutive tasks
+ * before it goes to the back of the line; keys with no weight of their own
+ * get a weight of one.
+ */
+public final class FairQueue extends AbstractQueue<Runnable> implements
+        BlockingQueue<Runnable> {
+
+    /**
+     * A task that knows whose it is. Anything else is queued under the empty
+     * key.
+     */
+    public interface Keyed extends Runnable {
+        String getKey();
+    }
+
+    private final int capacity;
+
+    private final Map<String, Integer> weights;
+
+    private final Map<String, Deque<Runnable>> queues = new HashMap<>();
+
+    // the keys with queued tasks, in the order in which they are served
+    private final Deque<String> keys = new ArrayDeque<>();
+
+    // how many tasks in a row the key at the head of the line has taken
+    private int served;
+
+    private int count;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+    public FairQueue(int capacity, Map<String, Integer> weights) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.weights = weights == null ? Collections
+                .<String, Integer> emptyMap() : weights;
+    }
+
+    private static String getKey(Object task) {
+        return task instanceof Keyed ? ((Keyed) task).getKey() : "";
+    }
+
+    private int getWeight(String key) {
+        final Integer weight = this.weights.get(key);
+        return weight == null || weight < 1 ? 1 : weight;
+    }
+
+    private void enqueue(Runnable task) {
+        final String key = getKey(task);
+        Deque<Runnable> queue = this.queues.get(key);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            this.queues.put(key, queue);
+            this.keys.addLast(key);
+        }
+        queue.addLast(task);
+        this.count++;
+        this.notEmpty.signal();
+    }
+
+    private Runnable dequeue() {
+        final String key = this.keys.peekFirst();
+        final Deque<Runnable> queue = this.queues.get(key);
+        final Runnable task = queue.pollFirst();
+        this.count--;
+        if (queue.isEmpty()) {
+            this.queues.remove(key);
+            this.keys.pollFirst();
+            this.served = 0;
+        } else if (++this.served >= getWeight(key)) {
+            // next in line
+            this.keys.addLast(this.keys.pollFirst());
+            this.served = 0;
+        }
+        this.notFull.signal();
+        return task;
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        this.lock.lock();
+        try {
+            if (this.count >= this.capacity) {
+                return false;
+            }
+            this.enqueue(task);
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        long nanos = unit.toNanos(timeout);
+        this.lock.lockInterruptibly();
+        try {
+            while (this.count >= this.capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = this.notFull.awaitNanos(nanos);
+            }
+            this.enqueue(task);
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable task) throws InterruptedException {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        this.lock.lockInterruptibly();
+        try {
+            while (this.count >= this.capacity) {
+                this.notFull.await();
+            }
+            this.enqueue(task);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        this.lock.lock();
+        try {
+            return this.count == 0 ? null : this.dequeue();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        this.lock.lockInterruptibly();
+        try {
+            while (this.count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = this.notEmpty.awaitNanos(nanos);
+            }
+            return this.dequeue();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        this.lock.lockInterruptibly();
+        try {
+            while (this.count == 0) {
+                this.notEmpty.await();
+            }
+            return this.dequeue();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        this.lock.lock();
+        try {
+            return this.count == 0 ? null : this.queues.get(
+                    this.keys.peekFirst()).peekFirst();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object task) {
+        if (task == null) {
+            return false;
+        }
+        this.lock.lock();
+        try {
+            final String key = getKey(task);
+            final Deque<Runnable> queue = this.queues.get(key);
+            if (queue == null || !queue.remove(task)) {
+                return false;
+            }
+            this.count--;
+            if (queue.isEmpty()) {
+                if (key.equals(this.keys.peekFirst())) {
+                    this.served = 0;
+                }
+                this.queues.remove(key);
+                this.keys.remove(key);
+            }
+            this.notFull.signal();
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        this.lock.lock();
+        try {
+            return this.count;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        this.lock.lock();
+        try {
+            return this.capacity - this.count;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of keys that have tasks waiting
+     */
+    public int getKeys() {
+        this.lock.lock();
+        try {
+            return this.keys.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return this.drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        this.lock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements && this.count > 0) {
+                c.add(this.dequeue());
+                n++;
+            }
+            return n;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return a snapshot of the queued tasks, in no particular order
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        final List<Runnable> snapshot = new ArrayList<>();
+        this.lock.lock();
+        try {
+            for (Deque<Runnable> queue : this.queues.values()) {
+                snapshot.addAll(queue);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        final Iterator<Runnable> iterator = snapshot.iterator();
+        return new Iterator<Runnable>() {
+            private Runnable last;
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Runnable next() {
+                return this.last = iterator.next();
+            }
+
+            @Override
+            public void remove() {
+                if (this.last == null) {
+                    throw new IllegalStateException();
+                }
+                FairQueue.this.remove(this.last);
+                this.last = null;
+            }
+        };
+    }
+}
@@ -0,0 +1,68 @@
+package com.twitter.university.webfilez;
+
+import java.util.EnumSet;
+import java.util.StringTokenizer;
+
+/**
+ * Attributes of a file that can be (selectively) reported back to the
+ * client, as named by the <code>fields</code> request parameter.
+ */
+public enum FileField {
+    LINKS("_links"), NAME("name"), PATH("path"), DIRECTORY("directory"), TYPE(
+            "type"), SIZE("size"), LAST_MODIFIED("lastModified"), ETAG("eTag"), DIGEST(
+            "digest");
+
+    private final String key;
+
+    private FileField(String key) {
+        this.key = key;
+    }
+
+    /**
+     * @return the JSON key under which this field is reported
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public static FileField forKey(String key) {
+        for (FileField field : values()) {
+            if (field.key.equals(key)) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse a comma-separated list of field keys.
+     *
+     * @param fields
+     *            the list to parse
+     * @param defaults
+     *            the fields to use if the list is null or empty
+     * @return the parsed fields
+     * @throws IllegalArgumentException
+     *             if the list contains an unknown field
+     */
+    public static EnumSet<FileField> parse(String fields,
+            EnumSet<FileField> defaults) {
+        if (fields == null || fields.trim().isEmpty()) {
+            return defaults;
+        }
+        final EnumSet<FileField> result = EnumSet.noneOf(FileField.class);
+        for (StringTokenizer st = new StringTokenizer(fields, ","); st
+                .hasMoreTokens();) {
+            final String key = st.nextToken().trim();
+            if (!key.isEmpty()) {
+                final FileField field = forKey(key);
+                if (field == null) {
+                    throw new IllegalArgumentException("No such field ["
+                            + key + "]");
+                }
+                result.add(field);
+            }
+        }
+        return result;
+    }
+}
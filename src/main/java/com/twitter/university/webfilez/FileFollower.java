@@ -0,0 +1,299 @@
+package com.twitter.university.webfilez;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams the bytes appended to a file to an asynchronous response as the
+ * file grows, like <code>tail -f</code>.
+ * <p>
+ * It is woken up by the {@link FileWatcher} (rather than polling the file),
+ * does all of its writing on the given executor (one run at a time, never on
+ * the watcher's thread), and completes the response once the file is gone,
+ * the client is gone, or nothing has been appended for the idle timeout. If
+ * the file gets truncated, it starts over from the beginning; if it gets
+ * replaced (e.g. by a PUT), it carries on from where it was.
+ * <p>
+ * Writes are non-blocking: when the client cannot take any more, the run
+ * gives up its thread (so that one slow client cannot hold up the others on
+ * the executor), and the container wakes it up again once it can. A client
+ * that takes nothing for the idle timeout is given up on.
+ */
+final class FileFollower implements FileWatcher.Listener, AsyncListener,
+        WriteListener, Runnable {
+    private static final Logger logger = LoggerFactory
+            .getLogger(FileFollower.class);
+
+    private final AsyncContext asyncContext;
+
+    private final Path file;
+
+    private final FileWatcher watcher;
+
+    private final Executor executor;
+
+    private final ScheduledExecutorService timer;
+
+    private final long idleTimeout;
+
+    private final ByteBuffer buffer;
+
+    private final AtomicInteger wakeUps = new AtomicInteger();
+
+    private final AtomicBoolean done = new AtomicBoolean();
+
+    private volatile boolean closing;
+
+    private volatile long lastActivity;
+
+    private volatile ScheduledFuture<?> idleCheck;
+
+    // only touched by run()
+    private long position;
+
+    private ServletOutputStream out;
+
+    /**
+     * @param position
+     *            where to start sending from
+     * @param idleTimeout
+     *            how long (in ms) to wait for the file to grow before giving
+     *            up on it
+     */
+    FileFollower(AsyncContext asyncContext, Path file, long position,
+            FileWatcher watcher, Executor executor,
+            ScheduledExecutorService timer, long idleTimeout, int bufferSize) {
+        this.asyncContext = asyncContext;
+        this.file = file;
+        this.position = position;
+        this.watcher = watcher;
+        this.executor = executor;
+        this.timer = timer;
+        this.idleTimeout = idleTimeout;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Send what the file already has, and then keep sending as it grows.
+     */
+    void start() throws IOException {
+        this.lastActivity = System.currentTimeMillis();
+        this.asyncContext.addListener(this);
+        this.out = this.asyncContext.getResponse().getOutputStream();
+        this.watcher.watch(this.file.getParent(), this);
+        this.scheduleIdleCheck(this.idleTimeout);
+        // the container calls back (and so wakes us up) once it can write
+        this.out.setWriteListener(this);
+    }
+
+    @Override
+    public void changed(Path dir, Path file) {
+        if (file == null || file.equals(this.file)) {
+            this.wakeUp();
+        }
+    }
+
+    private void wakeUp() {
+        // only the first of concurrent wake-ups schedules a run; the run
+        // keeps going until it has caught up with all of them
+        if (this.wakeUps.getAndIncrement() == 0) {
+            try {
+                this.executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                this.complete();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        int n;
+        do {
+            n = this.wakeUps.get();
+            if (this.done.get()) {
+                return;
+            } else if (this.closing) {
+                this.complete();
+                return;
+            }
+            try {
+                this.send();
+            } catch (IOException e) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Stopped following [" + this.file + "]: "
+                            + e.getMessage());
+                }
+                this.complete();
+                return;
+            }
+        } while (this.wakeUps.addAndGet(-n) > 0);
+    }
+
+    private void send() throws IOException {
+        final long size;
+        try {
+            size = Files.size(this.file);
+        } catch (NoSuchFileException e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("No longer following deleted [" + this.file + "]");
+            }
+            this.complete();
+            return;
+        }
+        if (size < this.position) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("[" + this.file + "] got truncated from ["
+                        + this.position + "] to [" + size
+                        + "] bytes. Starting over.");
+            }
+            this.position = 0;
+        }
+        if (size == this.position || !this.out.isReady()) {
+            // caught up, or waiting for the client (which will wake us up)
+            return;
+        }
+        try (FileChannel in = FileChannel.open(this.file,
+                StandardOpenOption.READ)) {
+            while (this.position < size) {
+                if (!this.out.isReady()) {
+                    return;
+                }
+                this.buffer.clear();
+                this.buffer.limit((int) Math.min(this.buffer.capacity(), size
+                        - this.position));
+                final int read = in.read(this.buffer, this.position);
+                if (read <= 0) {
+                    break;
+                }
+                this.out.write(this.buffer.array(), 0, read);
+                this.position += read;
+                this.lastActivity = System.currentTimeMillis();
+            }
+        } catch (NoSuchFileException e) {
+            // deleted since; we'll hear about it
+            return;
+        }
+        if (this.out.isReady()) {
+            this.out.flush();
+        }
+    }
+
+    @Override
+    public void onWritePossible() {
+        this.wakeUp();
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Stopped following [" + this.file + "]: "
+                    + error.getMessage());
+        }
+        this.close();
+    }
+
+    private void scheduleIdleCheck(long delay) {
+        try {
+            this.idleCheck = this.timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    checkIdle();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            this.close();
+        }
+    }
+
+    private void checkIdle() {
+        if (!this.done.get()) {
+            final long idle = System.currentTimeMillis() - this.lastActivity;
+            if (idle >= this.idleTimeout) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Stopped following [" + this.file
+                            + "] after [" + idle + "] ms of inactivity");
+                }
+                this.close();
+            } else {
+                this.scheduleIdleCheck(this.idleTimeout - idle);
+            }
+        }
+    }
+
+    /**
+     * Ask the writer to complete the response (so that we never complete it
+     * while it is being written to).
+     */
+    private void close() {
+        this.closing = true;
+        this.wakeUp();
+    }
+
+    private void complete() {
+        if (this.cleanUp()) {
+            try {
+                this.asyncContext.complete();
+            } catch (IllegalStateException e) {
+                // already completed by the container
+            }
+        }
+    }
+
+    private boolean cleanUp() {
+        if (this.done.compareAndSet(false, true)) {
+            this.watcher.unwatch(this.file.getParent(), this);
+            final ScheduledFuture<?> idleCheck = this.idleCheck;
+            if (idleCheck != null) {
+                idleCheck.cancel(false);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        this.cleanUp();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        this.complete();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        this.cleanUp();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+
+    }
+
+    @Override
+    public String toString() {
+        return "FileFollower [file=" + file + "]";
+    }
+}
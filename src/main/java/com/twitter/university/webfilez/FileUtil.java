@@ -15,6 +15,7 @@ import java.nio.file.attribute.FileTime;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
@@ -22,6 +23,8 @@ import java.util.zip.ZipOutputStream;
 
 public class FileUtil {
 
+	private static final AtomicLong tempFileCounter = new AtomicLong();
+
 	private FileUtil() {
 
 	}
@@ -119,6 +122,17 @@ public class FileUtil {
 		return backupFile;
 	}
 
+	/**
+	 * @return a (hidden) sibling of the given file that is unique to this
+	 *         call, and can be used to write the new contents of the file
+	 *         before renaming it over the file itself
+	 */
+	public static Path getTempFile(Path file, String extension) {
+		return file.resolveSibling(String.format(".__%s_%x_%x%s",
+				file.getFileName(), System.currentTimeMillis(),
+				tempFileCounter.incrementAndGet(), extension));
+	}
+
 	private static void zipFileToStream(Path file, String path,
 			ZipOutputStream zos) throws IOException {
 		if (!Files.isRegularFile(file)) {
@@ -160,12 +174,21 @@ public class FileUtil {
 	public static void zipDirectory(final Path sourceDir,
 			final Path relativeToPath, final ZipOutputStream out)
 			throws ZipException, IOException {
+		zipDirectory(sourceDir, relativeToPath, out, null);
+	}
+
+	private static void zipDirectory(final Path sourceDir,
+			final Path relativeToPath, final ZipOutputStream out,
+			final PathHandler pathHandler) throws ZipException, IOException {
 		Files.walkFileTree(sourceDir, new SimpleFileVisitor<Path>() {
 			@Override
 			public FileVisitResult visitFile(Path file,
 					BasicFileAttributes attrs) throws IOException {
 				zipFileToStream(file,
 						relativeToPath.relativize(file).toString(), out);
+				if (pathHandler != null) {
+					pathHandler.handle(file);
+				}
 				return FileVisitResult.CONTINUE;
 			}
 		});
@@ -185,12 +208,25 @@ public class FileUtil {
 
 	public static void zipFiles(final Path sourceDir, List<Path> sourceFiles,
 			OutputStream out) throws ZipException, IOException {
+		zipFiles(sourceDir, sourceFiles, out, null);
+	}
+
+	/**
+	 * @param pathHandler
+	 *            called with every (regular) file once it has been zipped
+	 */
+	public static void zipFiles(final Path sourceDir, List<Path> sourceFiles,
+			OutputStream out, PathHandler pathHandler) throws ZipException,
+			IOException {
 		try (final ZipOutputStream zOut = new ZipOutputStream(out)) {
 			for (Path file : sourceFiles) {
 				if (Files.isDirectory(file)) {
-					zipDirectory(file, sourceDir, zOut);
+					zipDirectory(file, sourceDir, zOut, pathHandler);
 				} else {
 					zipFileToStream(file, file.getFileName().toString(), zOut);
+					if (pathHandler != null) {
+						pathHandler.handle(file);
+					}
 				}
 			}
 		}
@@ -201,6 +237,13 @@ public class FileUtil {
 		zipFiles(sourceDir, sourceFiles, Files.newOutputStream(destinationFile));
 	}
 
+	public static void zipFiles(Path sourceDir, List<Path> sourceFiles,
+			Path destinationFile, PathHandler pathHandler)
+			throws ZipException, IOException {
+		zipFiles(sourceDir, sourceFiles,
+				Files.newOutputStream(destinationFile), pathHandler);
+	}
+
 	public static void unzip(Path sourceFile, Path destinationDir)
 			throws ZipException, IOException {
 		unzip(sourceFile, destinationDir, null);
@@ -230,7 +273,8 @@ public class FileUtil {
 					mkdirs(destinationFile, pathHandler);
 				} else {
 					mkdirs(destinationFile.getParent(), pathHandler);
-					Files.copy(zipFile.getInputStream(entry), destinationFile);
+					Files.copy(zipFile.getInputStream(entry), destinationFile,
+							StandardCopyOption.REPLACE_EXISTING);
 					long lastModified = entry.getTime();
 					if (lastModified != -1) {
 						Files.setLastModifiedTime(destinationFile,
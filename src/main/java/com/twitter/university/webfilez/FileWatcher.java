@@ -0,0 +1,160 @@
+package com.twitter.university.webfilez;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches directories for changes to their entries (on a single thread, for
+ * everybody) and tells the listeners of each directory about them. A
+ * directory is only watched while somebody is listening to it.
+ * <p>
+ * Listeners are called on the watcher's thread, so they must not block.
+ */
+public final class FileWatcher implements Runnable {
+    private static final Logger logger = LoggerFactory
+            .getLogger(FileWatcher.class);
+
+    private final WatchService watchService;
+
+    private final Map<Path, WatchKey> keys = new HashMap<>();
+
+    private final Map<Path, Set<Listener>> listeners = new HashMap<>();
+
+    private Thread thread;
+
+    public FileWatcher() throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    public synchronized void start() {
+        this.thread = new NamedThreadFactory("watcher").newThread(this);
+        this.thread.start();
+    }
+
+    public void stop() {
+        try {
+            this.watchService.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close watch service", e);
+        }
+        synchronized (this) {
+            if (this.thread != null) {
+                this.thread.interrupt();
+                this.thread = null;
+            }
+        }
+    }
+
+    /**
+     * Start telling the given listener about changes to the entries of the
+     * given directory.
+     */
+    public synchronized void watch(Path dir, Listener listener)
+            throws IOException {
+        final WatchKey key = this.keys.get(dir);
+        if (key == null || !key.isValid()) {
+            this.keys.put(dir, dir.register(this.watchService, ENTRY_CREATE,
+                    ENTRY_DELETE, ENTRY_MODIFY));
+            if (logger.isDebugEnabled()) {
+                logger.debug("Watching [" + dir + "]");
+            }
+        }
+        Set<Listener> set = this.listeners.get(dir);
+        if (set == null) {
+            set = new CopyOnWriteArraySet<>();
+            this.listeners.put(dir, set);
+        }
+        set.add(listener);
+    }
+
+    /**
+     * Stop telling the given listener about changes to the given directory.
+     */
+    public synchronized void unwatch(Path dir, Listener listener) {
+        final Set<Listener> set = this.listeners.get(dir);
+        if (set != null && set.remove(listener) && set.isEmpty()) {
+            this.listeners.remove(dir);
+            final WatchKey key = this.keys.remove(dir);
+            if (key != null) {
+                key.cancel();
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("No longer watching [" + dir + "]");
+            }
+        }
+    }
+
+    private synchronized Set<Listener> getListeners(Path dir) {
+        final Set<Listener> set = this.listeners.get(dir);
+        return set == null ? Collections.<Listener> emptySet() : set;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                final WatchKey key = this.watchService.take();
+                final Path dir = (Path) key.watchable();
+                final Set<Listener> set = this.getListeners(dir);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    // on overflow, anything in the directory may have changed
+                    final Path file = event.kind() == OVERFLOW ? null : dir
+                            .resolve((Path) event.context());
+                    if (logger.isTraceEnabled()) {
+                        logger.trace("Got [" + event.kind() + "] for ["
+                                + (file == null ? dir : file) + "]");
+                    }
+                    for (Listener listener : set) {
+                        try {
+                            listener.changed(dir, file);
+                        } catch (RuntimeException e) {
+                            logger.warn("Listener [" + listener
+                                    + "] failed on change to [" + file + "]",
+                                    e);
+                        }
+                    }
+                }
+                if (!key.reset()) {
+                    // the directory is gone; let the listeners find out
+                    for (Listener listener : set) {
+                        listener.changed(dir, null);
+                    }
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // stopped
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Told about changes to the entries of a watched directory.
+     */
+    public interface Listener {
+        /**
+         * @param file
+         *            the entry that was created, modified or deleted, or null
+         *            if any of them may have been
+         */
+        void changed(Path dir, Path file);
+    }
+}
@@ -0,0 +1,535 @@
+package com.twitter.university.webfilez;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-base-path index of the (relative) paths of all files and directories,
+ * for finding them by name without walking the tree.
+ * <p>
+ * Every path is indexed by the (case-insensitive) trigrams of its characters.
+ * A query (a substring, or a glob) is answered by picking the rarest trigram
+ * of its literal parts, and checking only the paths that have it; queries too
+ * short to have a trigram fall back to checking every path.
+ * <p>
+ * The index of a base path is built the first time it is looked up, and then
+ * kept up to date from the servlet's mutating handlers and (for changes made
+ * behind our back) from the {@link FileWatcher}, which watches every
+ * directory of an indexed tree. Removed paths are only marked as such, and an
+ * index is rebuilt (from its own paths) once most of it is stale. Only a
+ * bounded number of base paths is kept around.
+ */
+public final class FilenameIndex implements FileWatcher.Listener {
+    private static final Logger logger = LoggerFactory
+            .getLogger(FilenameIndex.class);
+
+    private static final String TEMP_FILE_PREFIX = ".__";
+
+    private final FileWatcher watcher;
+
+    private final Map<Path, Index> indexes;
+
+    private final List<Index> evicted = new ArrayList<>();
+
+    /**
+     * @param watcher
+     *            used to find out about changes made behind our back, or
+     *            null if we should only be told by {@link #changed(Path)}
+     */
+    public FilenameIndex(FileWatcher watcher, final int maxBasePaths) {
+        this.watcher = watcher;
+        this.indexes = new LinkedHashMap<Path, Index>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Index> e) {
+                if (size() > maxBasePaths) {
+                    evicted.add(e.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Find the files and directories under the given directory (which is in
+     * the given base path) whose path (relative to that directory) contains
+     * the given query, ignoring case. If the query has wildcards (
+     * <code>*</code>, <code>**</code> and <code>?</code>) it is a glob
+     * instead, which has to match the whole relative path if it has a slash,
+     * or just the name otherwise.
+     *
+     * @return up to <code>limit + 1</code> matching paths (so that the caller
+     *         can tell if there were more than the limit)
+     */
+    public List<Path> find(Path basePath, Path dir, String query, int limit)
+            throws IOException {
+        final Index index = this.getIndex(basePath);
+        final String prefix = dir.equals(basePath) ? "" : toRelativePath(
+                basePath, dir) + "/";
+        return index.find(prefix, new Query(query), limit + 1);
+    }
+
+    /**
+     * Record that the given file (or directory, with everything in it) was
+     * created, modified, or removed.
+     */
+    public void changed(Path file) {
+        this.update(file, true);
+    }
+
+    @Override
+    public void changed(Path dir, Path file) {
+        if (file == null) {
+            // overflow: anything in the directory may have changed
+            this.update(dir, true);
+        } else {
+            this.update(file, false);
+        }
+    }
+
+    private void update(Path file, boolean rescan) {
+        for (Index index : this.getLoadedIndexes()) {
+            if (file.startsWith(index.basePath)) {
+                try {
+                    index.update(file, rescan);
+                } catch (IOException e) {
+                    if (logger.isWarnEnabled()) {
+                        logger.warn("Failed to index [" + file + "]", e);
+                    }
+                }
+            }
+        }
+    }
+
+    private List<Index> getLoadedIndexes() {
+        synchronized (this.indexes) {
+            return new ArrayList<>(this.indexes.values());
+        }
+    }
+
+    private Index getIndex(Path basePath) throws IOException {
+        synchronized (this.indexes) {
+            final Index index = this.indexes.get(basePath);
+            if (index != null) {
+                return index;
+            }
+        }
+        // build it outside of the lock; we may end up doing this twice
+        // (concurrently), but that is harmless
+        final Index index = new Index(basePath);
+        index.update(basePath, true);
+        final List<Index> evicted;
+        final Index existing;
+        synchronized (this.indexes) {
+            existing = this.indexes.get(basePath);
+            if (existing == null) {
+                this.indexes.put(basePath, index);
+            }
+            evicted = new ArrayList<>(this.evicted);
+            this.evicted.clear();
+        }
+        if (existing != null) {
+            evicted.add(index);
+        }
+        for (Index e : evicted) {
+            e.unwatch(e.basePath);
+        }
+        return existing == null ? index : existing;
+    }
+
+    private static String toRelativePath(Path basePath, Path file) {
+        final StringBuilder path = new StringBuilder();
+        for (Path name : basePath.relativize(file)) {
+            if (path.length() > 0) {
+                path.append('/');
+            }
+            path.append(name);
+        }
+        return path.toString();
+    }
+
+    private static long trigram(CharSequence s, int i) {
+        return ((long) Character.toLowerCase(s.charAt(i)) << 32)
+                | ((long) Character.toLowerCase(s.charAt(i + 1)) << 16)
+                | Character.toLowerCase(s.charAt(i + 2));
+    }
+
+    private final class Index {
+        final Path basePath;
+
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        // by id; null once removed
+        final List<String> paths = new ArrayList<>();
+
+        final TreeMap<String, Integer> ids = new TreeMap<>();
+
+        final Map<Long, Postings> trigrams = new HashMap<>();
+
+        final Set<Path> watched = new HashSet<>();
+
+        int removed;
+
+        boolean watching = watcher != null;
+
+        Index(Path basePath) {
+            this.basePath = basePath;
+        }
+
+        List<Path> find(String prefix, Query query, int limit) {
+            final List<Path> result = new ArrayList<>();
+            this.lock.readLock().lock();
+            try {
+                final Postings postings = query.getRarest(this.trigrams);
+                if (postings == null) {
+                    // no trigrams to go by
+                    for (int id = 0; id < this.paths.size()
+                            && result.size() < limit; id++) {
+                        this.check(id, prefix, query, result);
+                    }
+                } else {
+                    for (int i = 0; i < postings.size
+                            && result.size() < limit; i++) {
+                        this.check(postings.ids[i], prefix, query, result);
+                    }
+                }
+            } finally {
+                this.lock.readLock().unlock();
+            }
+            return result;
+        }
+
+        private void check(int id, String prefix, Query query,
+                List<Path> result) {
+            final String path = this.paths.get(id);
+            if (path != null && path.length() > prefix.length()
+                    && path.startsWith(prefix)
+                    && query.matches(path, prefix.length())) {
+                result.add(this.basePath.resolve(path));
+            }
+        }
+
+        void update(Path file, boolean rescan) throws IOException {
+            final String path = toRelativePath(this.basePath, file);
+            if (!path.isEmpty()
+                    && file.getFileName().toString()
+                            .startsWith(TEMP_FILE_PREFIX)) {
+                return;
+            }
+            final boolean isDirectory = Files.isDirectory(file,
+                    LinkOption.NOFOLLOW_LINKS);
+            if (isDirectory && (rescan || !this.contains(path))) {
+                final List<String> found = new ArrayList<>();
+                final List<Path> dirs = new ArrayList<>();
+                this.walk(file, found, dirs);
+                this.lock.writeLock().lock();
+                try {
+                    this.remove(path);
+                    if (!path.isEmpty()) {
+                        this.add(path);
+                    }
+                    for (String p : found) {
+                        this.add(p);
+                    }
+                    this.compactIfStale();
+                } finally {
+                    this.lock.writeLock().unlock();
+                }
+                this.watch(dirs);
+            } else if (!isDirectory
+                    && Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+                if (!this.contains(path)) {
+                    this.lock.writeLock().lock();
+                    try {
+                        this.add(path);
+                    } finally {
+                        this.lock.writeLock().unlock();
+                    }
+                }
+            } else if (!isDirectory) {
+                this.lock.writeLock().lock();
+                try {
+                    this.remove(path);
+                    this.compactIfStale();
+                } finally {
+                    this.lock.writeLock().unlock();
+                }
+                this.unwatch(file);
+            }
+        }
+
+        private boolean contains(String path) {
+            this.lock.readLock().lock();
+            try {
+                return this.ids.containsKey(path);
+            } finally {
+                this.lock.readLock().unlock();
+            }
+        }
+
+        private void walk(final Path dir, final List<String> found,
+                final List<Path> dirs) throws IOException {
+            final long t = System.nanoTime();
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path d,
+                        BasicFileAttributes attrs) throws IOException {
+                    if (!d.equals(dir)
+                            && d.getFileName().toString()
+                                    .startsWith(TEMP_FILE_PREFIX)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    if (!d.equals(basePath)) {
+                        found.add(toRelativePath(basePath, d));
+                    }
+                    dirs.add(d);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file,
+                        BasicFileAttributes attrs) throws IOException {
+                    if (!file.getFileName().toString()
+                            .startsWith(TEMP_FILE_PREFIX)) {
+                        found.add(toRelativePath(basePath, file));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file,
+                        IOException e) throws IOException {
+                    if (logger.isWarnEnabled()) {
+                        logger.warn("Not indexing [" + file + "]", e);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            if (logger.isDebugEnabled()) {
+                logger.debug("Indexed [" + found.size() + "] name(s) in ["
+                        + dir + "] in ["
+                        + ((System.nanoTime() - t) / 1000000) + "] ms");
+            }
+        }
+
+        private void add(String path) {
+            if (this.ids.containsKey(path)) {
+                return;
+            }
+            final int id = this.paths.size();
+            this.paths.add(path);
+            this.ids.put(path, id);
+            for (int i = 0; i + 3 <= path.length(); i++) {
+                final Long trigram = trigram(path, i);
+                Postings postings = this.trigrams.get(trigram);
+                if (postings == null) {
+                    postings = new Postings();
+                    this.trigrams.put(trigram, postings);
+                }
+                postings.add(id);
+            }
+        }
+
+        /**
+         * Remove the given path and everything under it.
+         */
+        private void remove(String path) {
+            final Map<String, Integer> under = path.isEmpty() ? this.ids
+                    : this.ids.subMap(path + "/", path + "0");
+            for (Integer id : under.values()) {
+                this.paths.set(id, null);
+                this.removed++;
+            }
+            under.clear();
+            final Integer id = this.ids.remove(path);
+            if (id != null) {
+                this.paths.set(id, null);
+                this.removed++;
+            }
+        }
+
+        private void compactIfStale() {
+            if (this.removed > 1024 && this.removed > this.paths.size() / 2) {
+                final List<String> live = new ArrayList<>(this.ids.keySet());
+                this.paths.clear();
+                this.ids.clear();
+                this.trigrams.clear();
+                this.removed = 0;
+                for (String p : live) {
+                    this.add(p);
+                }
+            }
+        }
+
+        private void watch(List<Path> dirs) {
+            if (!this.watching) {
+                return;
+            }
+            for (Path dir : dirs) {
+                try {
+                    watcher.watch(dir, FilenameIndex.this);
+                    synchronized (this.watched) {
+                        this.watched.add(dir);
+                    }
+                } catch (IOException e) {
+                    // e.g. out of inotify watches; the servlet still keeps
+                    // us up to date with its own changes
+                    logger.warn("Failed to watch [" + dir
+                            + "]. No longer watching [" + this.basePath
+                            + "] for changes.", e);
+                    this.watching = false;
+                    return;
+                }
+            }
+        }
+
+        void unwatch(Path dir) {
+            if (watcher == null) {
+                return;
+            }
+            final List<Path> dirs = new ArrayList<>();
+            synchronized (this.watched) {
+                for (Path d : this.watched) {
+                    if (d.startsWith(dir)) {
+                        dirs.add(d);
+                    }
+                }
+                this.watched.removeAll(dirs);
+            }
+            for (Path d : dirs) {
+                watcher.unwatch(d, FilenameIndex.this);
+            }
+        }
+    }
+
+    /**
+     * Sorted ids of the paths that have a given trigram (they only ever get
+     * added in increasing order).
+     */
+    private static final class Postings {
+        int[] ids = new int[2];
+
+        int size;
+
+        void add(int id) {
+            if (this.size > 0 && this.ids[this.size - 1] == id) {
+                return;
+            }
+            if (this.size == this.ids.length) {
+                this.ids = Arrays.copyOf(this.ids, this.size * 2);
+            }
+            this.ids[this.size++] = id;
+        }
+    }
+
+    private static final class Query {
+        final String substring;
+
+        final Pattern glob;
+
+        final boolean matchName;
+
+        final List<String> literals = new ArrayList<>();
+
+        Query(String query) {
+            if (query.indexOf('*') < 0 && query.indexOf('?') < 0) {
+                this.substring = query;
+                this.glob = null;
+                this.matchName = false;
+                this.literals.add(query);
+            } else {
+                this.substring = null;
+                this.matchName = query.indexOf('/') < 0;
+                final StringBuilder regex = new StringBuilder();
+                final StringBuilder literal = new StringBuilder();
+                for (int i = 0; i < query.length(); i++) {
+                    final char c = query.charAt(i);
+                    if (c == '*' || c == '?') {
+                        if (literal.length() > 0) {
+                            this.literals.add(literal.toString());
+                            regex.append(Pattern.quote(literal.toString()));
+                            literal.setLength(0);
+                        }
+                        if (c == '?') {
+                            regex.append("[^/]");
+                        } else if (i + 1 < query.length()
+                                && query.charAt(i + 1) == '*') {
+                            regex.append(".*");
+                            i++;
+                        } else {
+                            regex.append("[^/]*");
+                        }
+                    } else {
+                        literal.append(c);
+                    }
+                }
+                if (literal.length() > 0) {
+                    this.literals.add(literal.toString());
+                    regex.append(Pattern.quote(literal.toString()));
+                }
+                this.glob = Pattern.compile(regex.toString(),
+                        Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+            }
+        }
+
+        /**
+         * @return the shortest list of candidates going by the trigrams of
+         *         the literal parts of the query (which may be empty), or
+         *         null if it has no trigrams
+         */
+        Postings getRarest(Map<Long, Postings> trigrams) {
+            Postings rarest = null;
+            for (String literal : this.literals) {
+                for (int i = 0; i + 3 <= literal.length(); i++) {
+                    Postings postings = trigrams.get(trigram(literal, i));
+                    if (postings == null) {
+                        postings = new Postings();
+                    }
+                    if (rarest == null || postings.size < rarest.size) {
+                        rarest = postings;
+                    }
+                }
+            }
+            return rarest;
+        }
+
+        boolean matches(String path, int start) {
+            if (this.glob == null) {
+                final int length = this.substring.length();
+                for (int i = start; i + length <= path.length(); i++) {
+                    if (path.regionMatches(true, i, this.substring, 0, length)) {
+                        return true;
+                    }
+                }
+                return false;
+            } else if (this.matchName) {
+                return this.glob.matcher(
+                        path.substring(path.lastIndexOf('/') + 1)).matches();
+            } else {
+                return this.glob.matcher(path.substring(start)).matches();
+            }
+        }
+    }
+}
@@ -0,0 +1,694 @@
+package com.twitter.university.webfilez;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs long operations (such as zipping, unzipping, or copying large trees)
+ * as background jobs on a bounded pool (with a bounded queue), so that they
+ * tie up neither request threads nor connections, and keeps track of their
+ * progress. Queued jobs are run in round-robin order across their owners.
+ * <p>
+ * Every job is persisted (as a properties file named after its id) whenever
+ * its state changes. The jobs that were still queued or running when the
+ * server went down are started over (after deleting whatever partial output
+ * they had recorded as their scratch file) when it comes back up, and the
+ * outcome of finished jobs can be polled for until they expire.
+ */
+public final class JobManager {
+    private static final Logger logger = LoggerFactory
+            .getLogger(JobManager.class);
+
+    private static final String EXTENSION = ".job";
+
+    private static final long SHUTDOWN_TIMEOUT = 10000;
+
+    public static enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED;
+
+        public boolean isFinished() {
+            return this != QUEUED && this != RUNNING;
+        }
+    }
+
+    /**
+     * Does the actual work of every job (depending on its type and
+     * parameters), reporting progress and results to the job as it goes.
+     */
+    public static interface Runner {
+        void run(Job job) throws Exception;
+    }
+
+    private final Path dir;
+
+    private final long retention;
+
+    private final Runner runner;
+
+    private final ThreadPoolExecutor executor;
+
+    private final ConcurrentMap<String, Job> jobs = new ConcurrentHashMap<>();
+
+    private volatile boolean persistent = true;
+
+    private volatile boolean shutdown;
+
+    /**
+     * @param retention
+     *            how long (in ms) finished jobs are kept around for
+     */
+    public JobManager(Path dir, int threads, int maxQueued, long retention,
+            Runner runner) {
+        this.dir = dir;
+        this.retention = retention;
+        this.runner = runner;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L,
+                TimeUnit.MILLISECONDS, new FairQueue(maxQueued, null),
+                new NamedThreadFactory("job"));
+    }
+
+    /**
+     * Load the persisted jobs, and start over the ones that did not finish.
+     */
+    public void start() {
+        try {
+            Files.createDirectories(this.dir);
+        } catch (IOException e) {
+            this.persistent = false;
+            if (logger.isWarnEnabled()) {
+                logger.warn("Failed to create job directory [" + this.dir
+                        + "]. Will only keep jobs in memory.", e);
+            }
+            return;
+        }
+        final List<Job> resumed = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.dir,
+                "*" + EXTENSION)) {
+            for (Path file : files) {
+                final Job job;
+                try {
+                    job = this.load(file);
+                } catch (IOException | RuntimeException e) {
+                    if (logger.isWarnEnabled()) {
+                        logger.warn("Ignoring invalid job [" + file + "]", e);
+                    }
+                    continue;
+                }
+                this.jobs.put(job.id, job);
+                if (!job.getState().isFinished()) {
+                    resumed.add(job);
+                }
+            }
+        } catch (IOException e) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("Failed to load jobs from [" + this.dir + "]", e);
+            }
+        }
+        for (Job job : resumed) {
+            if (logger.isInfoEnabled()) {
+                logger.info("Starting over " + job);
+            }
+            job.reset();
+            try {
+                this.schedule(job);
+            } catch (RejectedExecutionException e) {
+                job.end(State.FAILED, 503, "Too many jobs to start over");
+            }
+            this.store(job);
+        }
+        this.purge();
+    }
+
+    /**
+     * Let running jobs be interrupted without recording them as failed, so
+     * that they get started over next time, and wait (for a little while)
+     * for them to stop writing out their state.
+     */
+    public void shutdown() {
+        this.shutdown = true;
+        this.executor.shutdownNow();
+        try {
+            if (!this.executor.awaitTermination(SHUTDOWN_TIMEOUT,
+                    TimeUnit.MILLISECONDS) && logger.isWarnEnabled()) {
+                logger.warn("Gave up waiting for jobs to stop after ["
+                        + SHUTDOWN_TIMEOUT + "] ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queue a new job.
+     *
+     * @param owner
+     *            who the job belongs to (and can be looked up by)
+     * @throws RejectedExecutionException
+     *             if too many jobs are queued already
+     */
+    public Job submit(String type, String owner, Map<String, String> params) {
+        this.purge();
+        final Job job = new Job(UUID.randomUUID().toString(), type, owner,
+                new LinkedHashMap<>(params), System.currentTimeMillis());
+        this.jobs.put(job.id, job);
+        this.store(job);
+        try {
+            this.schedule(job);
+        } catch (RejectedExecutionException e) {
+            this.remove(job);
+            throw e;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Queued " + job);
+        }
+        return job;
+    }
+
+    /**
+     * @return the given job of the given owner, or null if there is no such
+     *         job (anymore)
+     */
+    public Job get(String id, String owner) {
+        final Job job = id == null ? null : this.jobs.get(id);
+        return job != null && job.owner.equals(owner) ? job : null;
+    }
+
+    /**
+     * Cancel the given job of the given owner, if it has not finished yet;
+     * a running job stops at its next progress report.
+     *
+     * @return the job, or null if there is no such job (anymore)
+     */
+    public Job cancel(String id, String owner) {
+        final Job job = this.get(id, owner);
+        if (job != null && job.cancel()) {
+            if (job.getState() == State.CANCELLED) {
+                // never started
+                this.executor.remove((Runnable) job.future);
+                this.store(job);
+            } else if (job.future != null) {
+                job.future.cancel(true);
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Cancelled " + job);
+            }
+        }
+        return job;
+    }
+
+    private void schedule(final Job job) {
+        final FutureTask<Void> future = new OwnedTask(job.getOwner(),
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        execute(job);
+                    }
+                });
+        job.future = future;
+        this.executor.execute(future);
+    }
+
+    private static final class OwnedTask extends FutureTask<Void> implements
+            FairQueue.Keyed {
+        private final String owner;
+
+        OwnedTask(String owner, Runnable task) {
+            super(task, null);
+            this.owner = owner;
+        }
+
+        @Override
+        public String getKey() {
+            return this.owner;
+        }
+    }
+
+    private void execute(Job job) {
+        if (!job.begin()) {
+            // cancelled while queued
+            return;
+        }
+        this.store(job);
+        State state = State.SUCCEEDED;
+        int status = 0;
+        String error = null;
+        try {
+            // done is done, even if it was cancelled in the meantime
+            this.runner.run(job);
+        } catch (Failure e) {
+            state = State.FAILED;
+            status = e.getStatus();
+            error = e.getMessage();
+        } catch (Exception e) {
+            if (this.shutdown) {
+                // leave it as running, so that it is started over
+                if (logger.isInfoEnabled()) {
+                    logger.info("Interrupted " + job + " by shutdown");
+                }
+                return;
+            } else if (job.isCancelled()) {
+                state = State.CANCELLED;
+            } else {
+                state = State.FAILED;
+                status = 500;
+                error = e.toString();
+                if (logger.isWarnEnabled()) {
+                    logger.warn("Failed " + job, e);
+                }
+            }
+        } finally {
+            // clear a cancelled job's interrupt
+            Thread.interrupted();
+        }
+        if (state != State.SUCCEEDED) {
+            deleteScratch(job);
+        }
+        job.end(state, status, error);
+        this.store(job);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Finished " + job);
+        }
+    }
+
+    private static void deleteScratch(Job job) {
+        final Path scratch = job.scratch;
+        if (scratch != null && Files.exists(scratch)) {
+            try {
+                FileUtil.delete(scratch);
+            } catch (IOException e) {
+                if (logger.isWarnEnabled()) {
+                    logger.warn("Failed to delete scratch [" + scratch
+                            + "] of " + job, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget about the jobs that finished too long ago.
+     */
+    private void purge() {
+        final long expired = System.currentTimeMillis() - this.retention;
+        for (Iterator<Job> i = this.jobs.values().iterator(); i.hasNext();) {
+            final Job job = i.next();
+            if (job.getState().isFinished() && job.finished < expired) {
+                this.remove(job);
+            }
+        }
+    }
+
+    private void remove(Job job) {
+        this.jobs.remove(job.id);
+        if (this.persistent) {
+            try {
+                Files.deleteIfExists(this.dir.resolve(job.id + EXTENSION));
+            } catch (IOException e) {
+                if (logger.isWarnEnabled()) {
+                    logger.warn("Failed to delete " + job, e);
+                }
+            }
+        }
+    }
+
+    private void store(Job job) {
+        if (!this.persistent) {
+            return;
+        }
+        final Path file = this.dir.resolve(job.id + EXTENSION);
+        // written in full and then renamed, and one at a time per job, so
+        // that the latest state always wins
+        synchronized (job) {
+            final Path temp = FileUtil.getTempFile(file, ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(temp)) {
+                    job.toProperties().store(out, null);
+                }
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                if (logger.isWarnEnabled()) {
+                    logger.warn("Failed to store " + job, e);
+                }
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                    // nothing else we can do
+                }
+            }
+        }
+    }
+
+    private Job load(Path file) throws IOException {
+        final Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        final Map<String, String> params = new LinkedHashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith("param.")) {
+                params.put(name.substring(6), properties.getProperty(name));
+            }
+        }
+        final Job job = new Job(properties.getProperty("id"),
+                properties.getProperty("type"),
+                properties.getProperty("owner"), params,
+                Long.parseLong(properties.getProperty("created")));
+        job.state = State.valueOf(properties.getProperty("state"));
+        job.started = Long.parseLong(properties.getProperty("started", "0"));
+        job.finished = Long.parseLong(properties.getProperty("finished", "0"));
+        job.attempts = Integer.parseInt(properties.getProperty("attempts",
+                "0"));
+        job.status = Integer.parseInt(properties.getProperty("status", "0"));
+        job.error = properties.getProperty("error");
+        job.bytesDone.set(Long.parseLong(properties.getProperty("bytesDone",
+                "0")));
+        job.entriesDone.set(Long.parseLong(properties.getProperty(
+                "entriesDone", "0")));
+        job.bytesTotal = Long.parseLong(properties.getProperty("bytesTotal",
+                "-1"));
+        job.entriesTotal = Long.parseLong(properties.getProperty(
+                "entriesTotal", "-1"));
+        final String scratch = properties.getProperty("scratch");
+        job.scratch = scratch == null ? null : FileSystems.getDefault()
+                .getPath(scratch);
+        for (int i = 0; properties.getProperty("result." + i) != null; i++) {
+            job.results.add(FileSystems.getDefault().getPath(
+                    properties.getProperty("result." + i)));
+        }
+        return job;
+    }
+
+    /**
+     * A background job, and its progress.
+     */
+    public final class Job {
+        private final String id;
+
+        private final String type;
+
+        private final String owner;
+
+        private final Map<String, String> params;
+
+        private final long created;
+
+        private volatile State state = State.QUEUED;
+
+        private volatile long started;
+
+        private volatile long finished;
+
+        private volatile int attempts;
+
+        private volatile int status;
+
+        private volatile String error;
+
+        private volatile boolean cancelled;
+
+        private final AtomicLong bytesDone = new AtomicLong();
+
+        private final AtomicLong entriesDone = new AtomicLong();
+
+        private volatile long bytesTotal = -1;
+
+        private volatile long entriesTotal = -1;
+
+        private volatile Path scratch;
+
+        private final List<Path> results = Collections
+                .synchronizedList(new ArrayList<Path>());
+
+        private volatile Future<?> future;
+
+        Job(String id, String type, String owner, Map<String, String> params,
+                long created) {
+            this.id = id;
+            this.type = type;
+            this.owner = owner;
+            this.params = Collections.unmodifiableMap(params);
+            this.created = created;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public String getParam(String name) {
+            return this.params.get(name);
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        public long getStarted() {
+            return started;
+        }
+
+        public long getFinished() {
+            return finished;
+        }
+
+        /**
+         * @return how many times the job has been started (more than once if
+         *         it was interrupted by a restart)
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * @return the HTTP status that describes why the job failed
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public long getBytesDone() {
+            return bytesDone.get();
+        }
+
+        public long getEntriesDone() {
+            return entriesDone.get();
+        }
+
+        /**
+         * @return the total number of bytes to process, or -1 if unknown
+         */
+        public long getBytesTotal() {
+            return bytesTotal;
+        }
+
+        /**
+         * @return the total number of entries to process, or -1 if unknown
+         */
+        public long getEntriesTotal() {
+            return entriesTotal;
+        }
+
+        /**
+         * @return the files that the job created
+         */
+        public List<Path> getResults() {
+            synchronized (this.results) {
+                return new ArrayList<>(this.results);
+            }
+        }
+
+        public void setTotal(long bytes, long entries) {
+            this.bytesTotal = bytes;
+            this.entriesTotal = entries;
+        }
+
+        /**
+         * Record progress.
+         *
+         * @throws CancelledException
+         *             if the job has been cancelled, to abort it
+         */
+        public void progress(long bytes, long entries)
+                throws CancelledException {
+            this.bytesDone.addAndGet(bytes);
+            this.entriesDone.addAndGet(entries);
+            if (this.cancelled) {
+                throw new CancelledException(this.id);
+            }
+        }
+
+        /**
+         * Record where the job writes its output before putting it in
+         * place, so that it gets deleted if the job does not finish.
+         */
+        public void setScratch(Path scratch) {
+            this.scratch = scratch;
+            store(this);
+        }
+
+        public void addResult(Path file) {
+            this.results.add(file);
+        }
+
+        public void addResults(Collection<Path> files) {
+            this.results.addAll(files);
+        }
+
+        synchronized boolean begin() {
+            if (this.cancelled) {
+                return false;
+            }
+            if (this.attempts > 0) {
+                // started over
+                deleteScratch(this);
+            }
+            this.state = State.RUNNING;
+            this.started = System.currentTimeMillis();
+            this.attempts++;
+            return true;
+        }
+
+        synchronized boolean cancel() {
+            if (this.state.isFinished()) {
+                return false;
+            }
+            this.cancelled = true;
+            if (this.state == State.QUEUED) {
+                this.state = State.CANCELLED;
+                this.finished = System.currentTimeMillis();
+            }
+            return true;
+        }
+
+        synchronized void end(State state, int status, String error) {
+            this.state = state;
+            this.status = status;
+            this.error = error;
+            this.finished = System.currentTimeMillis();
+        }
+
+        synchronized void reset() {
+            this.state = State.QUEUED;
+            this.bytesDone.set(0);
+            this.entriesDone.set(0);
+            this.results.clear();
+        }
+
+        synchronized Properties toProperties() {
+            final Properties properties = new Properties();
+            properties.setProperty("id", this.id);
+            properties.setProperty("type", this.type);
+            properties.setProperty("owner", this.owner);
+            properties.setProperty("created", Long.toString(this.created));
+            properties.setProperty("state", this.state.name());
+            properties.setProperty("started", Long.toString(this.started));
+            properties.setProperty("finished", Long.toString(this.finished));
+            properties.setProperty("attempts", Integer.toString(this.attempts));
+            properties.setProperty("status", Integer.toString(this.status));
+            if (this.error != null) {
+                properties.setProperty("error", this.error);
+            }
+            properties.setProperty("bytesDone",
+                    Long.toString(this.getBytesDone()));
+            properties.setProperty("entriesDone",
+                    Long.toString(this.getEntriesDone()));
+            properties.setProperty("bytesTotal",
+                    Long.toString(this.bytesTotal));
+            properties.setProperty("entriesTotal",
+                    Long.toString(this.entriesTotal));
+            if (this.scratch != null) {
+                properties.setProperty("scratch", this.scratch.toString());
+            }
+            for (Map.Entry<String, String> param : this.params.entrySet()) {
+                properties.setProperty("param." + param.getKey(),
+                        param.getValue());
+            }
+            final List<Path> results = this.getResults();
+            for (int i = 0; i < results.size(); i++) {
+                properties.setProperty("result." + i, results.get(i)
+                        .toString());
+            }
+            return properties;
+        }
+
+        @Override
+        public String toString() {
+            return "Job [id=" + id + ", type=" + type + ", owner=" + owner
+                    + ", state=" + state + "]";
+        }
+    }
+
+    /**
+     * Thrown by a job's runner to fail it with the given HTTP status.
+     */
+    public static final class Failure extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        public Failure(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    /**
+     * Thrown to abort a job that has been cancelled.
+     */
+    public static final class CancelledException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CancelledException(String id) {
+            super("Job [" + id + "] was cancelled");
+        }
+    }
+}
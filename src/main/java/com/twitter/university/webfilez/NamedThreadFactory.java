@@ -0,0 +1,25 @@
+package com.twitter.university.webfilez;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads named after the pool they belong to, so that they
+ * are easy to spot in thread dumps and never hold up a container shutdown.
+ */
+public final class NamedThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    public NamedThreadFactory(String name) {
+        this.prefix = "webfilez-" + name + "-";
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        final Thread thread = new Thread(r, this.prefix
+                + this.counter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
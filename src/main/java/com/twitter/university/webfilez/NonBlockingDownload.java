@@ -0,0 +1,154 @@
+package com.twitter.university.webfilez;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends (part of) a file using non-blocking (Servlet 3.1) I/O: it writes for
+ * as long as the client can take it, and then gives up its thread until the
+ * container calls back to say that it can take more, so a slow client ties up
+ * a connection, but not a thread.
+ * <p>
+ * When the transfer is shaped, it likewise gives up its thread (rather than
+ * sleeping on it) and picks up again on the given timer.
+ */
+public final class NonBlockingDownload implements WriteListener {
+    private static final Logger logger = LoggerFactory
+            .getLogger(NonBlockingDownload.class);
+
+    public interface Listener {
+        /**
+         * @param error
+         *            why the transfer failed, or <code>null</code> if it did
+         *            not
+         */
+        void done(Throwable error);
+    }
+
+    private final ServletOutputStream out;
+
+    private final Path file;
+
+    private final long start;
+
+    private final byte[] buffer;
+
+    private final BandwidthLimiter.Shaper shaper;
+
+    private final ScheduledExecutorService timer;
+
+    private final Listener listener;
+
+    private final AtomicBoolean done = new AtomicBoolean();
+
+    private SeekableByteChannel channel;
+
+    private long remaining;
+
+    /**
+     * @param shaper
+     *            what paces the transfer (may be <code>null</code>)
+     */
+    public NonBlockingDownload(ServletOutputStream out, Path file, long start,
+            long length, int bufferSize, BandwidthLimiter.Shaper shaper,
+            ScheduledExecutorService timer, Listener listener) {
+        this.out = out;
+        this.file = file;
+        this.start = start;
+        this.remaining = length;
+        this.buffer = new byte[bufferSize];
+        this.shaper = shaper;
+        this.timer = timer;
+        this.listener = listener;
+    }
+
+    /**
+     * Open the file and hand the rest over to the container.
+     */
+    public void start() throws IOException {
+        this.channel = Files.newByteChannel(this.file);
+        this.channel.position(this.start);
+        this.out.setWriteListener(this);
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        while (!this.done.get() && this.out.isReady()) {
+            if (this.remaining <= 0) {
+                this.finish(null);
+                return;
+            }
+            final int bytesRead = this.channel.read(ByteBuffer.wrap(
+                    this.buffer, 0,
+                    (int) Math.min(this.buffer.length, this.remaining)));
+            if (bytesRead < 0) {
+                throw new EOFException("File [" + this.file
+                        + "] got shorter while being sent, with ["
+                        + this.remaining + "] bytes to go");
+            }
+            this.out.write(this.buffer, 0, bytesRead);
+            this.remaining -= bytesRead;
+            if (this.shaper != null) {
+                final long delay = this.shaper.reserve(bytesRead);
+                if (delay > 0) {
+                    // the client was ready, so the container will not call
+                    // us back; it is up to us to pick up again
+                    this.timer.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            resume();
+                        }
+                    }, delay, TimeUnit.NANOSECONDS);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void resume() {
+        try {
+            this.onWritePossible();
+        } catch (IOException | RuntimeException e) {
+            this.onError(e);
+        }
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        this.finish(error);
+    }
+
+    private void finish(Throwable error) {
+        if (!this.done.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Failed to close [" + this.file + "]", e);
+            }
+        }
+        if (this.shaper != null) {
+            this.shaper.done();
+        }
+        if (logger.isTraceEnabled()) {
+            logger.trace((error == null ? "Sent " : "Failed to send ")
+                    + this.file);
+        }
+        this.listener.done(error);
+    }
+}
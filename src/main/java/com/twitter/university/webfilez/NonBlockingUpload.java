@@ -0,0 +1,126 @@
+package com.twitter.university.webfilez;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receives a request body into a (new) file using non-blocking (Servlet 3.1)
+ * I/O: it reads whatever the client has sent so far, and then gives up its
+ * thread until the container calls back to say that there is more, so a slow
+ * client ties up a connection, but not a thread. The body is digested on the
+ * way in.
+ */
+public final class NonBlockingUpload implements ReadListener {
+    private static final Logger logger = LoggerFactory
+            .getLogger(NonBlockingUpload.class);
+
+    public interface Listener {
+        void uploaded(long bytes, byte[] digest);
+
+        /**
+         * @param reading
+         *            true if reading from the client failed, false if writing
+         *            the file did
+         */
+        void failed(Throwable error, boolean reading);
+    }
+
+    private final ServletInputStream in;
+
+    private final Path file;
+
+    private final byte[] buffer;
+
+    private final Listener listener;
+
+    private final MessageDigest digest = Digests.newMessageDigest();
+
+    private final AtomicBoolean done = new AtomicBoolean();
+
+    private SeekableByteChannel channel;
+
+    private long bytes;
+
+    /**
+     * @param file
+     *            where to write the body to, which must not exist yet
+     */
+    public NonBlockingUpload(ServletInputStream in, Path file, int bufferSize,
+            Listener listener) {
+        this.in = in;
+        this.file = file;
+        this.buffer = new byte[bufferSize];
+        this.listener = listener;
+    }
+
+    /**
+     * Create the file and hand the rest over to the container.
+     */
+    public void start() throws IOException {
+        this.channel = Files.newByteChannel(this.file,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        this.in.setReadListener(this);
+    }
+
+    @Override
+    public void onDataAvailable() throws IOException {
+        for (int bytesRead; !this.done.get() && this.in.isReady()
+                && (bytesRead = this.in.read(this.buffer)) != -1;) {
+            this.digest.update(this.buffer, 0, bytesRead);
+            final ByteBuffer data = ByteBuffer.wrap(this.buffer, 0, bytesRead);
+            try {
+                while (data.hasRemaining()) {
+                    this.channel.write(data);
+                }
+            } catch (IOException e) {
+                this.finish(e, false);
+                return;
+            }
+            this.bytes += bytesRead;
+        }
+    }
+
+    @Override
+    public void onAllDataRead() throws IOException {
+        this.finish(null, false);
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        this.finish(error, true);
+    }
+
+    private void finish(Throwable error, boolean reading) {
+        if (!this.done.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+        if (error == null) {
+            if (logger.isTraceEnabled()) {
+                logger.trace("Received [" + this.bytes + "] bytes into ["
+                        + this.file + "]");
+            }
+            this.listener.uploaded(this.bytes, this.digest.digest());
+        } else {
+            this.listener.failed(error, reading);
+        }
+    }
+}
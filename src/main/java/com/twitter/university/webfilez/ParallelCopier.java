@@ -0,0 +1,291 @@
+package com.twitter.university.webfilez;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies directory trees on a shared fork/join pool, forking a task per
+ * sub-directory, so that the total number of copying threads (across all
+ * requests) is bounded by the pool's parallelism. Files are copied with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * (which lets the OS skip user-space buffers where it can), modification
+ * times are preserved, and the number of bytes copied is totaled along the
+ * way, so that the source does not need to be walked twice.
+ * <p>
+ * With the {@link Strategy#LINK} strategy, regular files are hard-linked
+ * rather than copied (when the source and the destination are on the same
+ * file store), which makes copying large read-only content cheap. This is only
+ * safe as long as nobody modifies such files in place: whoever writes to a file
+ * has to write a new file and rename it over the old one, which breaks the
+ * link. The size of linked files still counts against the budget, since every
+ * link is charged in full wherever it is.
+ */
+public final class ParallelCopier {
+    private static final Logger logger = LoggerFactory
+            .getLogger(ParallelCopier.class);
+
+    public static enum Strategy {
+        COPY, LINK
+    }
+
+    /**
+     * Told about every (regular) file as soon as it has been copied, from
+     * any of the copying threads; it can abort the copy by throwing.
+     */
+    public static interface Listener {
+        void copied(Path destination, long size) throws IOException;
+    }
+
+    private final ForkJoinPool pool;
+
+    public ParallelCopier(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    public void shutdown() {
+        this.pool.shutdownNow();
+    }
+
+    public long copy(Path source, Path destination, long budget)
+            throws IOException {
+        return this.copy(source, destination, budget, Strategy.COPY);
+    }
+
+    /**
+     * Copy the given source file or directory to the given destination.
+     *
+     * @param budget
+     *            the maximum number of bytes we are allowed to copy
+     * @param strategy
+     *            how to copy regular files; linking falls back to copying
+     *            when it is not supported between source and destination
+     * @return the number of bytes copied
+     * @throws BudgetExceededException
+     *             if the source turned out to be bigger than the budget, in
+     *             which case the destination is left partially copied
+     */
+    public long copy(Path source, Path destination, long budget,
+            Strategy strategy) throws IOException {
+        return this.copy(source, destination, budget, strategy, null);
+    }
+
+    /**
+     * Copy the given source file or directory to the given destination,
+     * telling the given listener (if any) about every file copied.
+     */
+    public long copy(Path source, Path destination, long budget,
+            Strategy strategy, Listener listener) throws IOException {
+        if (!Files.exists(source)) {
+            throw new FileNotFoundException("No such file/dir to copy: "
+                    + source);
+        }
+        final boolean link = strategy == Strategy.LINK
+                && Files.getFileStore(source).equals(
+                        Files.getFileStore(destination.getParent()));
+        final Copy copy = new Copy(budget, link, listener);
+        try {
+            final long size = this.pool.invoke(copy.new Task(source,
+                    destination));
+            if (logger.isTraceEnabled()) {
+                logger.trace("Copied [" + size + "] bytes from [" + source
+                        + "] to [" + destination + "]");
+            }
+            return size;
+        } catch (WrappedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static long transfer(Path source, Path destination, long size)
+            throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(destination,
+                        StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            while (position < size) {
+                final long n = in.transferTo(position, size - position, out);
+                if (n <= 0) {
+                    break; // shrunk while we were copying
+                }
+                position += n;
+            }
+            return position;
+        }
+    }
+
+    /**
+     * State shared by all the tasks of a single copy.
+     */
+    private static final class Copy {
+        private final AtomicLong remaining;
+
+        private volatile boolean link;
+
+        private volatile boolean aborted;
+
+        private final Listener listener;
+
+        Copy(long budget, boolean link, Listener listener) {
+            this.remaining = new AtomicLong(budget);
+            this.link = link;
+            this.listener = listener;
+        }
+
+        boolean link(Path source, Path destination) {
+            if (this.link) {
+                try {
+                    Files.createLink(destination, source);
+                    return true;
+                } catch (IOException | UnsupportedOperationException e) {
+                    // e.g. too many links, or not supported after all
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Failed to link [" + destination
+                                + "] to [" + source + "]. Copying instead: "
+                                + e);
+                    }
+                    if (e instanceof UnsupportedOperationException) {
+                        this.link = false;
+                    }
+                }
+            }
+            return false;
+        }
+
+        void reserve(long size) throws IOException {
+            if (this.remaining.addAndGet(-size) < 0) {
+                throw new BudgetExceededException(size);
+            }
+        }
+
+        private final class Task extends RecursiveTask<Long> {
+            private static final long serialVersionUID = 1L;
+
+            private final Path source;
+            private final Path destination;
+
+            Task(Path source, Path destination) {
+                this.source = source;
+                this.destination = destination;
+            }
+
+            @Override
+            protected Long compute() {
+                try {
+                    return this.copy();
+                } catch (IOException e) {
+                    aborted = true;
+                    throw new WrappedIOException(e);
+                } catch (RuntimeException e) {
+                    aborted = true;
+                    throw e;
+                }
+            }
+
+            private long copy() throws IOException {
+                if (aborted) {
+                    return 0;
+                }
+                final BasicFileAttributes attrs = Files.readAttributes(
+                        this.source, BasicFileAttributes.class);
+                long size = 0;
+                if (attrs.isDirectory()) {
+                    if (!Files.exists(this.destination)) {
+                        Files.createDirectories(this.destination);
+                    }
+                    final List<Task> subtasks = new ArrayList<>();
+                    try (DirectoryStream<Path> files = Files
+                            .newDirectoryStream(this.source)) {
+                        for (Path file : files) {
+                            if (aborted) {
+                                break;
+                            }
+                            final Path target = this.destination.resolve(file
+                                    .getFileName().toString());
+                            if (Files.isDirectory(file)) {
+                                final Task subtask = new Task(file, target);
+                                subtask.fork();
+                                subtasks.add(subtask);
+                            } else {
+                                size += new Task(file, target).copy();
+                            }
+                        }
+                    } finally {
+                        // always join all of them, so that nothing is still
+                        // writing into the destination when we return (or fail)
+                        RuntimeException failure = null;
+                        for (Task subtask : subtasks) {
+                            try {
+                                size += subtask.join();
+                            } catch (RuntimeException e) {
+                                if (failure == null) {
+                                    failure = e;
+                                }
+                            }
+                        }
+                        if (failure != null) {
+                            throw failure;
+                        }
+                    }
+                } else {
+                    reserve(attrs.size());
+                    if (link(this.source, this.destination)) {
+                        // same inode, so the modification time is the same
+                        size = attrs.size();
+                    } else {
+                        size = transfer(this.source, this.destination,
+                                attrs.size());
+                        Files.setLastModifiedTime(this.destination,
+                                attrs.lastModifiedTime());
+                    }
+                    if (listener != null) {
+                        listener.copied(this.destination, size);
+                    }
+                    return size;
+                }
+                Files.setLastModifiedTime(this.destination,
+                        attrs.lastModifiedTime());
+                return size;
+            }
+        }
+    }
+
+    /**
+     * Thrown when a copy would exceed its budget.
+     */
+    public static final class BudgetExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BudgetExceededException(long size) {
+            super("Copy budget exceeded while reserving [" + size
+                    + "] bytes");
+        }
+    }
+
+    private static final class WrappedIOException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        WrappedIOException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.twitter.university.webfilez;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A gzip stream that compresses consecutive blocks of its input in parallel
+ * (on the given executor), the way pigz does: each block is deflated on its
+ * own, primed with the last 32 KiB of the block before it (so compression
+ * barely suffers), and ends on a byte boundary (a sync flush), so that the
+ * compressed blocks can simply be concatenated (in order) into a single
+ * deflate stream.
+ * <p>
+ * At most a few blocks per thread are in flight, so memory use is bounded no
+ * matter how much gets written.
+ */
+public final class ParallelGzipOutputStream extends FilterOutputStream {
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED,
+            0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private final ExecutorService executor;
+
+    private final int level;
+
+    private final int maxPending;
+
+    private final Queue<Future<byte[]>> pending = new ArrayDeque<>();
+
+    private final CRC32 crc = new CRC32();
+
+    private byte[] block;
+
+    private int blockLength;
+
+    private byte[] dictionary;
+
+    private long length;
+
+    private boolean closed;
+
+    /**
+     * @param maxPending
+     *            how many blocks can be in flight (typically a couple per
+     *            thread of the executor)
+     */
+    public ParallelGzipOutputStream(OutputStream out,
+            ExecutorService executor, int level, int blockSize, int maxPending)
+            throws IOException {
+        super(out);
+        this.executor = executor;
+        this.level = level;
+        this.maxPending = maxPending;
+        this.block = new byte[blockSize];
+        out.write(HEADER);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (this.closed) {
+            throw new IOException("Stream closed");
+        }
+        this.crc.update(b, off, len);
+        this.length += len;
+        for (int o = off, remaining = len; remaining > 0;) {
+            final int n = Math.min(remaining, this.block.length
+                    - this.blockLength);
+            System.arraycopy(b, o, this.block, this.blockLength, n);
+            this.blockLength += n;
+            o += n;
+            remaining -= n;
+            if (this.blockLength == this.block.length) {
+                this.submit(false);
+            }
+        }
+    }
+
+    /**
+     * Write out whatever has been compressed so far (without waiting for
+     * blocks that are still being compressed).
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!this.pending.isEmpty() && this.pending.peek().isDone()) {
+            this.out.write(this.take());
+        }
+        this.out.flush();
+    }
+
+    /**
+     * Compress and write out what is left, and the gzip trailer, without
+     * closing the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.submit(true);
+        while (!this.pending.isEmpty()) {
+            this.out.write(this.take());
+        }
+        final int crc = (int) this.crc.getValue();
+        final int size = (int) this.length;
+        this.out.write(new byte[] { (byte) crc, (byte) (crc >> 8),
+                (byte) (crc >> 16), (byte) (crc >> 24), (byte) size,
+                (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24) });
+        this.closed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.finish();
+        } finally {
+            for (Future<byte[]> future : this.pending) {
+                future.cancel(true);
+            }
+            this.pending.clear();
+            this.out.close();
+        }
+    }
+
+    private void submit(final boolean last) throws IOException {
+        final byte[] input = this.block;
+        final int inputLength = this.blockLength;
+        final byte[] dict = this.dictionary;
+        this.pending.add(this.executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return deflate(input, inputLength, dict, last);
+            }
+        }));
+        if (!last) {
+            this.dictionary = Arrays.copyOfRange(input, Math.max(0,
+                    inputLength - DICTIONARY_SIZE), inputLength);
+            this.block = new byte[input.length];
+            this.blockLength = 0;
+        }
+        while (this.pending.size() > this.maxPending) {
+            this.out.write(this.take());
+        }
+    }
+
+    private byte[] take() throws IOException {
+        try {
+            return this.pending.remove().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress", e.getCause());
+        }
+    }
+
+    private byte[] deflate(byte[] input, int inputLength, byte[] dict,
+            boolean last) {
+        final Deflater deflater = new Deflater(this.level, true);
+        try {
+            if (dict != null) {
+                deflater.setDictionary(dict);
+            }
+            deflater.setInput(input, 0, inputLength);
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+                    inputLength / 2 + 64);
+            final byte[] buffer = new byte[Math.max(inputLength / 4, 1024)];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    compressed.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                // a sync flush ends the block on a byte boundary; it is done
+                // once it leaves room to spare in the buffer
+                for (int n; (n = deflater.deflate(buffer, 0, buffer.length,
+                        Deflater.SYNC_FLUSH)) > 0;) {
+                    compressed.write(buffer, 0, n);
+                    if (n < buffer.length) {
+                        break;
+                    }
+                }
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.twitter.university.webfilez;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces concurrent identical computations: the first caller for a key
+ * (the leader) computes the value, and whoever asks for the same key while
+ * it is at it waits for, and shares, its result instead of computing it all
+ * over again. Nothing is cached beyond that, so keys should include whatever
+ * version of the inputs the value depends on.
+ * <p>
+ * If the leader fails, or takes longer than the timeout, those waiting on it
+ * fall back to computing the value themselves.
+ */
+public final class SingleFlight<V> {
+    private static final Logger logger = LoggerFactory
+            .getLogger(SingleFlight.class);
+
+    public interface Computation<V> {
+        V compute() throws IOException;
+    }
+
+    private final String name;
+
+    private final long timeout;
+
+    private final ConcurrentMap<String, Flight<V>> flights =
+            new ConcurrentHashMap<>();
+
+    private final AtomicLong led = new AtomicLong();
+
+    private final AtomicLong joined = new AtomicLong();
+
+    private final AtomicLong fellBack = new AtomicLong();
+
+    /**
+     * @param timeout
+     *            how long (in ms) to wait for a leader before computing the
+     *            value independently
+     */
+    public SingleFlight(String name, long timeout) {
+        this.name = name;
+        this.timeout = timeout;
+    }
+
+    public V get(String key, Computation<V> computation) throws IOException {
+        final Flight<V> flight = new Flight<>();
+        final Flight<V> leader = this.flights.putIfAbsent(key, flight);
+        if (leader == null) {
+            this.led.incrementAndGet();
+            boolean succeeded = false;
+            try {
+                final V value = computation.compute();
+                flight.value = value;
+                succeeded = true;
+                return value;
+            } finally {
+                this.flights.remove(key, flight);
+                flight.finish(succeeded);
+            }
+        }
+        this.joined.incrementAndGet();
+        try {
+            if (leader.done.await(this.timeout, TimeUnit.MILLISECONDS)) {
+                if (leader.succeeded) {
+                    return leader.value;
+                }
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Leader of [" + key + "] in [" + this.name
+                            + "] failed. Computing it independently.");
+                }
+            } else if (logger.isDebugEnabled()) {
+                logger.debug("Gave up waiting on the leader of [" + key
+                        + "] in [" + this.name + "] after [" + this.timeout
+                        + "] ms. Computing it independently.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for ["
+                    + key + "]");
+        }
+        this.fellBack.incrementAndGet();
+        return computation.compute();
+    }
+
+    /**
+     * @return the number of computations that were actually run by a leader
+     */
+    public long getLed() {
+        return led.get();
+    }
+
+    /**
+     * @return the number of callers that waited on someone else's computation
+     */
+    public long getJoined() {
+        return joined.get();
+    }
+
+    /**
+     * @return the number of callers that waited, but in vain
+     */
+    public long getFellBack() {
+        return fellBack.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SingleFlight [name=" + name + ", inFlight=" + flights.size()
+                + ", led=" + getLed() + ", joined=" + getJoined()
+                + ", fellBack=" + getFellBack() + "]";
+    }
+
+    private static final class Flight<V> {
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        // published by the latch
+        private V value;
+
+        private boolean succeeded;
+
+        void finish(boolean succeeded) {
+            this.succeeded = succeeded;
+            this.done.countDown();
+        }
+    }
+}
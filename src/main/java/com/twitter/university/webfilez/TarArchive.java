@@ -0,0 +1,404 @@
+package com.twitter.university.webfilez;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The (uncompressed, POSIX ustar) tar archive of a set of files and
+ * directories, laid out up front from the files' current sizes, so that its
+ * exact length is known before any of it is sent, and so that any range of it
+ * can be sent without producing what comes before.
+ * <p>
+ * Names that do not fit the ustar header (and sizes of 8 GiB or more) get a
+ * PAX extended header. Only regular files and directories are archived. If a
+ * file changes size (or is deleted) after the layout, its entry is still sent
+ * with the size it had then (truncated, or padded with zeros), so that the
+ * archive stays exactly as long as announced.
+ */
+public final class TarArchive {
+    private static final Logger logger = LoggerFactory
+            .getLogger(TarArchive.class);
+
+    private static final int BLOCK = 512;
+
+    private static final byte[] ZEROS = new byte[BLOCK];
+
+    private static final long MAX_USTAR_SIZE = 077777777777L;
+
+    private static final String PAX_HEADER_NAME = "././@PaxHeader";
+
+    private final List<Entry> entries;
+
+    private final long size;
+
+    private final long lastModified;
+
+    private final byte[] digest;
+
+    private TarArchive(List<Entry> entries, long size, long lastModified,
+            byte[] digest) {
+        this.entries = entries;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.digest = digest;
+    }
+
+    /**
+     * Lay out the archive of the given files and (recursively) directories,
+     * named relative to the given directory.
+     */
+    public static TarArchive layout(final Path sourceDir, List<Path> files)
+            throws IOException {
+        final List<Entry> entries = new ArrayList<>();
+        for (Path file : files) {
+            Files.walkFileTree(file, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir,
+                        BasicFileAttributes attrs) throws IOException {
+                    entries.add(new Entry(dir, name(sourceDir, dir) + "/",
+                            0, attrs.lastModifiedTime().toMillis(), true));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file,
+                        BasicFileAttributes attrs) throws IOException {
+                    if (attrs.isRegularFile() && Files.isReadable(file)) {
+                        entries.add(new Entry(file, name(sourceDir, file),
+                                attrs.size(), attrs.lastModifiedTime()
+                                        .toMillis(), false));
+                    } else if (logger.isDebugEnabled()) {
+                        logger.debug("Not archiving [" + file
+                                + "]; not a readable regular file");
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file,
+                        IOException e) throws IOException {
+                    if (logger.isWarnEnabled()) {
+                        logger.warn("Not archiving [" + file + "]", e);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is always supported", e);
+        }
+        long offset = 0;
+        long lastModified = 0;
+        for (Entry entry : entries) {
+            entry.offset = offset;
+            entry.headerLength = entry.header().length;
+            offset += entry.headerLength + padded(entry.size);
+            lastModified = Math.max(lastModified, entry.lastModified);
+            md.update(entry.name.getBytes(StandardCharsets.UTF_8));
+            md.update(ByteBuffer.allocate(17).putLong(entry.size)
+                    .putLong(entry.lastModified).put((byte) 0).array());
+        }
+        // end of archive
+        offset += 2 * BLOCK;
+        return new TarArchive(entries, offset, lastModified, md.digest());
+    }
+
+    private static String name(Path sourceDir, Path file) {
+        final StringBuilder name = new StringBuilder();
+        for (Path element : sourceDir.relativize(file)) {
+            if (name.length() > 0) {
+                name.append('/');
+            }
+            name.append(element);
+        }
+        return name.toString();
+    }
+
+    private static long padded(long length) {
+        return (length + BLOCK - 1) & ~(BLOCK - 1L);
+    }
+
+    /**
+     * @return the exact length of the archive
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the number of (file and directory) entries in the archive
+     */
+    public int getEntries() {
+        return entries.size();
+    }
+
+    /**
+     * @return the latest modification time of the archived files
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return a digest of the names, sizes, and modification times of the
+     *         archived files, which identifies this layout
+     */
+    public byte[] getDigest() {
+        return digest.clone();
+    }
+
+    /**
+     * Write the whole archive.
+     */
+    public void write(OutputStream out, int bufferSize) throws IOException {
+        this.write(out, 0, this.size, bufferSize);
+    }
+
+    /**
+     * Write the given range of the archive.
+     */
+    public void write(OutputStream out, long start, long length,
+            int bufferSize) throws IOException {
+        if (start < 0 || length < 0 || start + length > this.size) {
+            throw new IllegalArgumentException("Invalid range [" + start
+                    + "+" + length + "] of [" + this.size + "]");
+        }
+        final long end = start + length;
+        long position = start;
+        byte[] buffer = null;
+        for (int i = this.find(start); i < this.entries.size()
+                && position < end; i++) {
+            final Entry entry = this.entries.get(i);
+            final long dataStart = entry.offset + entry.headerLength;
+            final long dataEnd = dataStart + entry.size;
+            if (position < dataStart) {
+                final int from = (int) (position - entry.offset);
+                final int to = (int) (Math.min(end, dataStart) - entry.offset);
+                out.write(entry.header(), from, to - from);
+                position += to - from;
+            }
+            if (position < end && position < dataEnd) {
+                if (buffer == null) {
+                    buffer = new byte[bufferSize];
+                }
+                final long to = Math.min(end, dataEnd);
+                position += writeData(entry, position - dataStart, to
+                        - position, out, buffer);
+            }
+            final long entryEnd = dataStart + padded(entry.size);
+            if (position < end && position < entryEnd) {
+                final long to = Math.min(end, entryEnd);
+                writeZeros(out, to - position);
+                position = to;
+            }
+        }
+        // end of archive
+        writeZeros(out, end - position);
+    }
+
+    /**
+     * @return the index of the entry that the given position is in (or the
+     *         number of entries if it is in the end of the archive)
+     */
+    private int find(long position) {
+        int low = 0;
+        int high = this.entries.size() - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (this.entries.get(mid).offset <= position) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return Math.max(low - 1, 0);
+    }
+
+    private static long writeData(Entry entry, long from, long length,
+            OutputStream out, byte[] buffer) throws IOException {
+        long remaining = length;
+        try (SeekableByteChannel in = Files.newByteChannel(entry.file)) {
+            in.position(from);
+            final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            while (remaining > 0) {
+                byteBuffer.clear();
+                byteBuffer.limit((int) Math.min(buffer.length, remaining));
+                final int n = in.read(byteBuffer);
+                if (n < 0) {
+                    break;
+                }
+                out.write(buffer, 0, n);
+                remaining -= n;
+            }
+        } catch (NoSuchFileException e) {
+            // deleted since it was laid out; as good as empty
+        }
+        if (remaining > 0) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("[" + entry.file + "] shrank (or was deleted)"
+                        + " since it was laid out to [" + entry.size
+                        + "] bytes. Padding with [" + remaining + "] zeros");
+            }
+            writeZeros(out, remaining);
+        }
+        return length;
+    }
+
+    private static void writeZeros(OutputStream out, long length)
+            throws IOException {
+        for (long remaining = length; remaining > 0; remaining -= BLOCK) {
+            out.write(ZEROS, 0, (int) Math.min(BLOCK, remaining));
+        }
+    }
+
+    private static final class Entry {
+        private final Path file;
+
+        private final String name;
+
+        private final long size;
+
+        private final long lastModified;
+
+        private final boolean directory;
+
+        private long offset;
+
+        private int headerLength;
+
+        Entry(Path file, String name, long size, long lastModified,
+                boolean directory) {
+            this.file = file;
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.directory = directory;
+        }
+
+        /**
+         * @return the header block(s) of this entry, preceded by a PAX
+         *         extended header if needed
+         */
+        byte[] header() {
+            final byte[] nameBytes = this.name.getBytes(StandardCharsets.UTF_8);
+            final int split = split(nameBytes);
+            final StringBuilder pax = new StringBuilder();
+            if (split < 0) {
+                appendPaxRecord(pax, "path", this.name);
+            }
+            if (this.size > MAX_USTAR_SIZE) {
+                appendPaxRecord(pax, "size", Long.toString(this.size));
+            }
+            final byte[] header = new byte[BLOCK];
+            if (split < 0) {
+                // truncated; superseded by the PAX header
+                System.arraycopy(nameBytes, 0, header, 0,
+                        Math.min(nameBytes.length, 100));
+            } else if (split == 0) {
+                System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+            } else {
+                System.arraycopy(nameBytes, split + 1, header, 0,
+                        nameBytes.length - split - 1);
+                System.arraycopy(nameBytes, 0, header, 345, split);
+            }
+            fillHeader(header, this.directory ? 0755 : 0644,
+                    this.size > MAX_USTAR_SIZE ? 0 : this.size,
+                    this.lastModified, this.directory ? '5' : '0');
+            if (pax.length() == 0) {
+                return header;
+            }
+            final byte[] records = pax.toString().getBytes(
+                    StandardCharsets.UTF_8);
+            final byte[] result = new byte[BLOCK
+                    + (int) padded(records.length) + BLOCK];
+            System.arraycopy(PAX_HEADER_NAME.getBytes(StandardCharsets.US_ASCII),
+                    0, result, 0, PAX_HEADER_NAME.length());
+            fillHeader(result, 0644, records.length, this.lastModified, 'x');
+            System.arraycopy(records, 0, result, BLOCK, records.length);
+            System.arraycopy(header, 0, result, result.length - BLOCK, BLOCK);
+            return result;
+        }
+
+        /**
+         * @return where to split the given name into the prefix and name
+         *         fields of a ustar header (0 if it fits the name field
+         *         alone), or -1 if it does not fit
+         */
+        private static int split(byte[] name) {
+            if (name.length <= 100) {
+                return 0;
+            }
+            for (int i = Math.min(155, name.length - 2); i > 0; i--) {
+                if (name[i] == '/') {
+                    return name.length - i - 1 <= 100 ? i : -1;
+                }
+            }
+            return -1;
+        }
+
+        private static void appendPaxRecord(StringBuilder pax, String key,
+                String value) {
+            final int length = key.length() + 3
+                    + value.getBytes(StandardCharsets.UTF_8).length;
+            // the length includes its own digits
+            int total = length + Integer.toString(length).length();
+            if (Integer.toString(total).length() > Integer.toString(length)
+                    .length()) {
+                total++;
+            }
+            pax.append(total).append(' ').append(key).append('=')
+                    .append(value).append('\n');
+        }
+
+        private static void fillHeader(byte[] header, int mode, long size,
+                long lastModified, char type) {
+            octal(header, 100, 8, mode);
+            octal(header, 108, 8, 0);
+            octal(header, 116, 8, 0);
+            octal(header, 124, 12, size);
+            octal(header, 136, 12, Math.max(lastModified / 1000, 0));
+            header[156] = (byte) type;
+            System.arraycopy("ustar\00000".getBytes(StandardCharsets.US_ASCII),
+                    0, header, 257, 8);
+            Arrays.fill(header, 148, 156, (byte) ' ');
+            int checksum = 0;
+            for (int i = 0; i < BLOCK; i++) {
+                checksum += header[i] & 0xff;
+            }
+            octal(header, 148, 7, checksum);
+        }
+
+        /**
+         * Write the given value as zero-padded, NUL-terminated octal digits.
+         */
+        private static void octal(byte[] header, int offset, int length,
+                long value) {
+            long v = value;
+            header[offset + length - 1] = 0;
+            for (int i = offset + length - 2; i >= offset; i--) {
+                header[i] = (byte) ('0' + (v & 7));
+                v >>>= 3;
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.twitter.university.webfilez;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket, kept as the (single) time at which it will be
+ * full again: taking tokens pushes that time out by however long they take
+ * to refill, and whatever is pushed beyond the bucket's capacity is how long
+ * the taker has to wait for them.
+ */
+public final class TokenBucket {
+    private final long rate;
+
+    private final double nanosPerToken;
+
+    private final long capacityNanos;
+
+    private final AtomicLong full;
+
+    /**
+     * @param rate
+     *            the tokens added per second
+     * @param capacity
+     *            the most tokens the bucket holds (i.e. the largest burst)
+     */
+    public TokenBucket(long rate, long capacity) {
+        if (rate <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Invalid rate [" + rate
+                    + "] or capacity [" + capacity + "]");
+        }
+        this.rate = rate;
+        this.nanosPerToken = 1e9 / rate;
+        this.capacityNanos = (long) (capacity * this.nanosPerToken);
+        this.full = new AtomicLong(System.nanoTime());
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * Take the given number of tokens, whether or not they are there yet.
+     *
+     * @return how long (in nanoseconds) to wait before using them
+     */
+    public long take(long tokens) {
+        final long cost = (long) (tokens * this.nanosPerToken);
+        while (true) {
+            final long now = System.nanoTime();
+            final long full = this.full.get();
+            final long next = (full - now > 0 ? full : now) + cost;
+            if (this.full.compareAndSet(full, next)) {
+                return Math.max(0, next - now - this.capacityNanos);
+            }
+        }
+    }
+
+    /**
+     * @return true if the bucket is full, and so no different from a new one
+     */
+    public boolean isIdle() {
+        return this.full.get() - System.nanoTime() <= 0;
+    }
+
+    @Override
+    public String toString() {
+        return "TokenBucket [rate=" + rate + ", idle=" + isIdle() + "]";
+    }
+}
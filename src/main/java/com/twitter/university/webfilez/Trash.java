@@ -0,0 +1,176 @@
+package com.twitter.university.webfilez;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Makes deletes of (large) directories cheap for the request thread: the
+ * directory is atomically renamed into a trash area, and a background purger
+ * then unlinks its contents at a limited rate, so that it does not starve
+ * other disk I/O.
+ * <p>
+ * The trash area has to live on the same volume as the files being deleted,
+ * and outside of any base path (so that it does not count towards anyone's
+ * quota). When a rename is not possible (e.g. the file is on a different
+ * volume), the caller is expected to fall back to deleting in place.
+ */
+public final class Trash implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(Trash.class);
+
+    private final Path trashDir;
+
+    private final int filesPerSecond;
+
+    private final AtomicLong counter = new AtomicLong();
+
+    private final BlockingQueue<Path> queue = new LinkedBlockingQueue<>();
+
+    private Thread purger;
+
+    public Trash(Path trashDir, int filesPerSecond) {
+        this.trashDir = trashDir;
+        this.filesPerSecond = filesPerSecond;
+    }
+
+    public synchronized void start() throws IOException {
+        Files.createDirectories(this.trashDir);
+        // pick up what the previous run did not get to
+        try (DirectoryStream<Path> files = Files
+                .newDirectoryStream(this.trashDir)) {
+            for (Path file : files) {
+                this.queue.add(file);
+            }
+        }
+        this.purger = new NamedThreadFactory("trash-purger").newThread(this);
+        this.purger.start();
+        if (logger.isInfoEnabled()) {
+            logger.info("Purging [" + this.queue.size() + "] item(s) from ["
+                    + this.trashDir + "] at up to [" + this.filesPerSecond
+                    + "] file(s) per second");
+        }
+    }
+
+    public synchronized void stop() {
+        if (this.purger != null) {
+            this.purger.interrupt();
+            this.purger = null;
+        }
+    }
+
+    /**
+     * Move the given file into the trash, from where it will be purged in the
+     * background.
+     *
+     * @return true if the file was moved, false if it could not be moved
+     *         atomically (in which case it is left alone)
+     */
+    public boolean moveToTrash(Path file) throws IOException {
+        final Path trashedFile = this.trashDir.resolve(Long.toHexString(System
+                .currentTimeMillis())
+                + "-"
+                + this.counter.incrementAndGet()
+                + "-"
+                + file.getFileName());
+        try {
+            Files.move(file, trashedFile, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Cannot move [" + file + "] to [" + trashedFile
+                        + "]: " + e.getMessage());
+            }
+            return false;
+        }
+        this.queue.add(trashedFile);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Moved [" + file + "] to [" + trashedFile + "]");
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                final Path file = this.queue.take();
+                try {
+                    final long t = System.nanoTime();
+                    final long count = this.purge(file);
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Purged [" + count + "] file(s) in ["
+                                + file + "] in ["
+                                + ((System.nanoTime() - t) / 1000000)
+                                + "] ms");
+                    }
+                } catch (IOException e) {
+                    logger.error("Failed to purge [" + file + "]", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Interrupted. Leaving [" + this.queue.size()
+                        + "] item(s) in [" + this.trashDir + "]");
+            }
+        }
+    }
+
+    private long purge(Path file) throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        final long[] count = new long[1];
+        try {
+            Files.walkFileTree(file, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file,
+                        BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    throttle(start, ++count[0]);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir,
+                        IOException e) throws IOException {
+                    if (e == null) {
+                        Files.delete(dir);
+                        throttle(start, ++count[0]);
+                        return FileVisitResult.CONTINUE;
+                    } else {
+                        throw e;
+                    }
+                }
+            });
+        } catch (InterruptedIOException e) {
+            throw new InterruptedException(e.getMessage());
+        }
+        return count[0];
+    }
+
+    private void throttle(long start, long count)
+            throws InterruptedIOException {
+        if (this.filesPerSecond > 0) {
+            final long due = start + count * 1000000000L / this.filesPerSecond;
+            final long wait = due - System.nanoTime();
+            if (wait > 1000000) {
+                try {
+                    Thread.sleep(wait / 1000000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -1,49 +1,62 @@
 package com.twitter.university.webfilez;
 
 import static com.twitter.university.webfilez.Constants.AUTH_TOKEN_ATTR_NAME;
-import static com.twitter.university.webfilez.FileUtil.copy;
-import static com.twitter.university.webfilez.FileUtil.delete;
+import static com.twitter.university.webfilez.Constants.USER_ID;
+import static com.twitter.university.webfilez.FileUtil.getBackupFile;
+import static com.twitter.university.webfilez.FileUtil.getTempFile;
 import static com.twitter.university.webfilez.FileUtil.getUniqueFileInDirectory;
-import static com.twitter.university.webfilez.FileUtil.size;
 import static com.twitter.university.webfilez.FileUtil.sizeOfZip;
 import static com.twitter.university.webfilez.FileUtil.unzip;
-import static com.twitter.university.webfilez.FileUtil.zipDirectory;
-import static com.twitter.university.webfilez.FileUtil.zipFile;
 import static com.twitter.university.webfilez.FileUtil.zipFiles;
 import static com.twitter.university.webfilez.WebUtil.JSON_CONTENT_TYPE;
+import static com.twitter.university.webfilez.WebUtil.NDJSON_CONTENT_TYPE;
 import static com.twitter.university.webfilez.WebUtil.READ_ONLY_ALLOWED_METHODS_HEADER;
 import static com.twitter.university.webfilez.WebUtil.READ_WRITE_ALLOWED_METHODS_HEADER;
+import static com.twitter.university.webfilez.WebUtil.SC_TOO_MANY_REQUESTS;
 import static com.twitter.university.webfilez.WebUtil.WRITE_ONLY_ALLOWED_METHODS_HEADER;
 import static com.twitter.university.webfilez.WebUtil.generateETag;
 import static com.twitter.university.webfilez.WebUtil.getFileName;
 import static com.twitter.university.webfilez.WebUtil.getParentUriPath;
+import static com.twitter.university.webfilez.WebUtil.getQueryParameter;
 import static com.twitter.university.webfilez.WebUtil.ifMatch;
-import static com.twitter.university.webfilez.WebUtil.ifModifiedSince;
 import static com.twitter.university.webfilez.WebUtil.ifNoneMatch;
 import static com.twitter.university.webfilez.WebUtil.ifUnmodifiedSince;
 import static com.twitter.university.webfilez.WebUtil.isHead;
 import static com.twitter.university.webfilez.WebUtil.isJson;
 import static com.twitter.university.webfilez.WebUtil.isMultiPartRequest;
+import static com.twitter.university.webfilez.WebUtil.isNdJson;
+import static com.twitter.university.webfilez.WebUtil.isNotModified;
+import static com.twitter.university.webfilez.WebUtil.isRespondAsync;
+import static com.twitter.university.webfilez.WebUtil.isTar;
+import static com.twitter.university.webfilez.WebUtil.isTarGzip;
 import static com.twitter.university.webfilez.WebUtil.isZip;
+import static com.twitter.university.webfilez.WebUtil.parseContentRange;
 import static com.twitter.university.webfilez.WebUtil.parseRange;
 import static com.twitter.university.webfilez.WebUtil.setContentLength;
 import static com.twitter.university.webfilez.WebUtil.setNoCacheHeaders;
+import static com.twitter.university.webfilez.WebUtil.setPrivateCacheHeaders;
 import static java.lang.Math.max;
 import static java.lang.Math.min;
+import static javax.servlet.http.HttpServletResponse.SC_ACCEPTED;
 import static javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST;
 import static javax.servlet.http.HttpServletResponse.SC_CONFLICT;
 import static javax.servlet.http.HttpServletResponse.SC_CREATED;
 import static javax.servlet.http.HttpServletResponse.SC_FORBIDDEN;
 import static javax.servlet.http.HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+import static javax.servlet.http.HttpServletResponse.SC_LENGTH_REQUIRED;
 import static javax.servlet.http.HttpServletResponse.SC_NOT_FOUND;
 import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
 import static javax.servlet.http.HttpServletResponse.SC_NO_CONTENT;
 import static javax.servlet.http.HttpServletResponse.SC_OK;
 import static javax.servlet.http.HttpServletResponse.SC_PARTIAL_CONTENT;
 import static javax.servlet.http.HttpServletResponse.SC_PRECONDITION_FAILED;
+import static javax.servlet.http.HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
 import static javax.servlet.http.HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE;
+import static javax.servlet.http.HttpServletResponse.SC_SERVICE_UNAVAILABLE;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -54,21 +67,50 @@ import java.io.Writer;
 import java.net.SocketException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
@@ -94,15 +136,524 @@ public final class WebFilezServlet extends HttpServlet {
     private static final Logger logger = LoggerFactory
             .getLogger(WebFilezServlet.class);
     protected static final String MULTIPART_BOUNDARY = "webfilez_boundary";
+    private static final int GZIP_BLOCK_SIZE = 128 * 1024;
+    // the user that a non-blocking transfer was admitted for, until whoever
+    // goes async takes over releasing it
+    private static final String TRANSFER_USER_ATTR_NAME = "transferUser";
+    // set on requests served on the transfer bulkhead, whose threads (unlike
+    // the container's) can afford to wait for their downloads to be shaped
+    private static final String TRANSFER_THREAD_ATTR_NAME = "transferThread";
+    private static final EnumSet<FileField> LISTING_FIELDS = EnumSet.of(
+            FileField.LINKS, FileField.NAME, FileField.TYPE, FileField.SIZE,
+            FileField.LAST_MODIFIED, FileField.ETAG);
+    private static final EnumSet<FileField> FILE_INFO_FIELDS = EnumSet.of(
+            FileField.LINKS, FileField.NAME, FileField.TYPE, FileField.SIZE,
+            FileField.LAST_MODIFIED, FileField.ETAG, FileField.DIGEST);
+    private static final EnumSet<FileField> FIND_FIELDS = EnumSet.of(
+            FileField.LINKS, FileField.PATH, FileField.TYPE);
+    private static final EnumSet<FileField> MANIFEST_FIELDS = EnumSet.of(
+            FileField.PATH, FileField.TYPE, FileField.SIZE,
+            FileField.LAST_MODIFIED);
+
+    private static final Set<String> TEXT_MIME_TYPES = new HashSet<>(
+            Arrays.asList("application/json", "application/xml",
+                    "application/javascript", "application/x-javascript",
+                    "application/x-sh", "application/x-csh",
+                    "application/x-tex", "application/x-latex",
+                    "application/sql"));
 
     private Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
 
     private Config config;
 
+    private DirectoryVersions versions;
+
+    private ExecutorService deleteExecutor;
+
+    private Trash trash;
+
+    private ParallelCopier copier;
+
+    private Digests digests;
+
+    private DigestIndex digestIndex;
+
+    private FileWatcher watcher;
+
+    private ExecutorService followExecutor;
+
+    private ScheduledExecutorService followTimer;
+
+    private ContentSearch search;
+
+    private FilenameIndex filenameIndex;
+
+    private DiskUsage diskUsage;
+
+    private ZipArchives zipArchives;
+
+    private ExecutorService gzipExecutor;
+
+    private JobManager jobs;
+
+    private Bulkhead heavyBulkhead;
+
+    private Bulkhead transferBulkhead;
+
+    private BandwidthLimiter bandwidthLimiter;
+
+    private ScheduledExecutorService transferTimer;
+
+    private SingleFlight<DirectoryListing> listings;
+
+    private SingleFlight<TarArchive> tarLayouts;
+
     @Override
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
         this.config = Config.getConfig(getServletContext());
+        this.versions = new DirectoryVersions(FileSystems.getDefault()
+                .getPath(this.config.getRootDir()),
+                this.config.getListingChangeLogSize(),
+                this.config.getListingChangeLogDirectories());
+        this.diskUsage = new DiskUsage(FileSystems.getDefault().getPath(
+                this.config.getRootDir()),
+                this.config.getDiskUsageMaxAge() * 1000L,
+                this.config.getDiskUsageCacheSize(),
+                this.config.getCoalesceTimeout() * 1000L);
+        this.listings = new SingleFlight<>("listings",
+                this.config.getCoalesceTimeout() * 1000L);
+        this.tarLayouts = new SingleFlight<>("tar-layouts",
+                this.config.getCoalesceTimeout() * 1000L);
+        this.zipArchives = new ZipArchives(this.config.getZipArchiveCacheSize());
+        this.deleteExecutor = Executors.newFixedThreadPool(
+                this.config.getDeleteThreads(), new NamedThreadFactory(
+                        "delete"));
+        this.copier = new ParallelCopier(this.config.getCopyParallelism());
+        this.digests = new Digests(this.config.getDigestThreads(),
+                this.config.getBufferSize());
+        this.digestIndex = new DigestIndex(this.digests,
+                this.config.getDigestIndexBasePaths());
+        this.digests.setListener(this.digestIndex);
+        if (this.config.isTrashEnabled()) {
+            this.trash = new Trash(FileSystems.getDefault().getPath(
+                    this.config.getTrashDir()),
+                    this.config.getTrashPurgeRate());
+            try {
+                this.trash.start();
+            } catch (IOException e) {
+                logger.error("Failed to set up trash in ["
+                        + this.config.getTrashDir()
+                        + "]. Deleting in place instead.", e);
+                this.trash = null;
+            }
+        }
+        this.followExecutor = Executors.newFixedThreadPool(
+                this.config.getFollowThreads(), new NamedThreadFactory(
+                        "follow"));
+        this.followTimer = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("follow-timer"));
+        this.search = new ContentSearch(this.config.getSearchThreads());
+        this.gzipExecutor = Executors.newFixedThreadPool(
+                this.config.getGzipThreads(), new NamedThreadFactory("gzip"));
+        try {
+            this.watcher = new FileWatcher();
+            this.watcher.start();
+        } catch (IOException e) {
+            logger.error("Failed to set up file watcher. Files cannot be"
+                    + " followed.", e);
+            this.watcher = null;
+        }
+        this.filenameIndex = new FilenameIndex(this.watcher,
+                this.config.getFilenameIndexBasePaths());
+        this.jobs = new JobManager(FileSystems.getDefault().getPath(
+                this.config.getJobDir()), this.config.getJobThreads(),
+                this.config.getJobQueueSize(),
+                this.config.getJobRetention() * 1000L,
+                new JobManager.Runner() {
+                    @Override
+                    public void run(JobManager.Job job) throws Exception {
+                        runJob(job);
+                    }
+                });
+        this.jobs.start();
+        this.transferTimer = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("transfer-timer"));
+        this.bandwidthLimiter = new BandwidthLimiter(
+                this.config.getDownloadRate(),
+                this.config.getBasePathDownloadRate(),
+                this.config.getUserDownloadRate());
+        final String context = getServletContext().getContextPath();
+        if (this.config.getHeavyThreads() > 0) {
+            this.heavyBulkhead = new Bulkhead("heavy",
+                    this.config.getHeavyThreads(),
+                    this.config.getHeavyQueueSize(),
+                    this.config.getUserHeavyLimit(),
+                    this.config.getUserWeights());
+            this.heavyBulkhead.register(context);
+        }
+        if (this.config.getTransferThreads() > 0) {
+            this.transferBulkhead = new Bulkhead("transfer",
+                    this.config.getTransferThreads(),
+                    this.config.getTransferQueueSize(),
+                    this.config.getUserTransferLimit(),
+                    this.config.getUserWeights());
+            this.transferBulkhead.register(context);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (this.heavyBulkhead != null) {
+            this.heavyBulkhead.shutdown();
+        }
+        if (this.transferBulkhead != null) {
+            this.transferBulkhead.shutdown();
+        }
+        this.jobs.shutdown();
+        if (this.trash != null) {
+            this.trash.stop();
+        }
+        this.deleteExecutor.shutdownNow();
+        this.copier.shutdown();
+        this.digests.shutdown();
+        if (this.watcher != null) {
+            this.watcher.stop();
+        }
+        this.followExecutor.shutdownNow();
+        this.followTimer.shutdownNow();
+        this.transferTimer.shutdownNow();
+        this.search.shutdown();
+        this.gzipExecutor.shutdownNow();
+        super.destroy();
+    }
+
+    /**
+     * Hand heavy operations and large transfers off to their own bounded
+     * pool, so that they cannot starve the container's threads (and with
+     * them the listings, polls, and small reads that everyone else is
+     * waiting on). Everything else is served right here.
+     */
+    @Override
+    protected void service(final HttpServletRequest request,
+            final HttpServletResponse response) throws ServletException,
+            IOException {
+        final Bulkhead bulkhead = this.getBulkhead(request);
+        if (bulkhead == null) {
+            super.service(request, response);
+            return;
+        } else if (bulkhead == this.transferBulkhead
+                && this.isNonBlockingTransfer(request)) {
+            this.serviceNonBlocking(bulkhead, request, response);
+            return;
+        }
+        final AsyncContext asyncContext = request.startAsync(request,
+                response);
+        // these can legitimately take a long time
+        asyncContext.setTimeout(0);
+        if (bulkhead == this.transferBulkhead) {
+            request.setAttribute(TRANSFER_THREAD_ATTR_NAME, Boolean.TRUE);
+        }
+        try {
+            bulkhead.execute(getUser(request), new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serviceInBulkhead(request, response);
+                    } finally {
+                        asyncContext.complete();
+                    }
+                }
+            });
+        } catch (Bulkhead.ThrottledException e) {
+            try {
+                this.refuseBusyRequest(request, response,
+                        SC_TOO_MANY_REQUESTS, e.getMessage());
+            } finally {
+                asyncContext.complete();
+            }
+        } catch (RejectedExecutionException e) {
+            try {
+                this.refuseBusyRequest(request, response,
+                        SC_SERVICE_UNAVAILABLE, "Bulkhead ["
+                                + bulkhead.getName() + "] is full");
+            } finally {
+                asyncContext.complete();
+            }
+        }
+    }
+
+    /**
+     * Serve a transfer that will not need a thread of its own (beyond this
+     * one, while it sets itself up), but which still counts against its
+     * user's limit until it is done.
+     */
+    private void serviceNonBlocking(Bulkhead bulkhead,
+            HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        final String user = getUser(request);
+        if (!bulkhead.admit(user)) {
+            this.refuseBusyRequest(request, response, SC_TOO_MANY_REQUESTS,
+                    "User [" + user + "] is at the ["
+                            + bulkhead.getUserLimit()
+                            + "] transfer limit of bulkhead ["
+                            + bulkhead.getName() + "]");
+            return;
+        }
+        request.setAttribute(TRANSFER_USER_ATTR_NAME, user);
+        try {
+            super.service(request, response);
+        } finally {
+            // unless the transfer went async (and took it over)
+            if (request.getAttribute(TRANSFER_USER_ATTR_NAME) != null) {
+                request.removeAttribute(TRANSFER_USER_ATTR_NAME);
+                bulkhead.release(user);
+            }
+        }
+    }
+
+    /**
+     * @return true if the request is a download or upload that will be done
+     *         with non-blocking I/O
+     */
+    private boolean isNonBlockingTransfer(HttpServletRequest request)
+            throws UnsupportedEncodingException {
+        if (!this.config.isNonBlockingIo() || !request.isAsyncSupported()) {
+            return false;
+        }
+        switch (request.getMethod()) {
+        case "GET":
+            // only plain files: archives (and their entries) are written out
+            // by blocking loops, which need a bulkhead thread of their own
+            if (getQueryParameter(request, "_action") != null
+                    || isZip(request) || isTar(request)
+                    || !Files.isRegularFile(this.getRequestFile(request))) {
+                return false;
+            }
+            // multiple ranges are still sent the old way
+            final String range = request.getHeader("Range");
+            return range == null || range.indexOf(',') < 0;
+        case "PUT":
+            return !isPartialPut(request) && !isMultiPartRequest(request)
+                    && request.getContentLength() > this.config
+                            .getSmallDownloadSize();
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return true if a transfer of the given size, in response to the given
+     *         request, should be done with non-blocking I/O
+     */
+    private boolean isNonBlocking(HttpServletRequest request, long size) {
+        return this.config.isNonBlockingIo()
+                && this.isLargeDownload(size)
+                && request.isAsyncSupported() && !request.isAsyncStarted();
+    }
+
+    /**
+     * @return true if a download of the given size is too large to be sent
+     *         on the container's thread
+     */
+    private boolean isLargeDownload(long size) {
+        return size > this.config.getSmallDownloadSize();
+    }
+
+    /**
+     * Go async for a non-blocking transfer, which will complete the returned
+     * context when it is done.
+     */
+    private AsyncContext startTransfer(HttpServletRequest request,
+            HttpServletResponse response) {
+        final AsyncContext asyncContext = request.startAsync(request,
+                response);
+        // slow clients are the whole point
+        asyncContext.setTimeout(0);
+        final String user = (String) request
+                .getAttribute(TRANSFER_USER_ATTR_NAME);
+        if (user != null) {
+            request.removeAttribute(TRANSFER_USER_ATTR_NAME);
+            final AtomicBoolean released = new AtomicBoolean();
+            asyncContext.addListener(new AsyncListener() {
+                private void release() {
+                    if (released.compareAndSet(false, true)) {
+                        transferBulkhead.release(user);
+                    }
+                }
+
+                @Override
+                public void onComplete(AsyncEvent event) {
+                    this.release();
+                }
+
+                @Override
+                public void onTimeout(AsyncEvent event) {
+                    this.release();
+                }
+
+                @Override
+                public void onError(AsyncEvent event) {
+                    this.release();
+                }
+
+                @Override
+                public void onStartAsync(AsyncEvent event) {
+                }
+            });
+        }
+        return asyncContext;
+    }
+
+    private void refuseBusyRequest(HttpServletRequest request,
+            HttpServletResponse response, int responseCode, String msg)
+            throws ServletException, IOException {
+        response.setHeader("Retry-After",
+                String.valueOf(this.config.getRetryAfter()));
+        this.refuseRequest(request, response, responseCode, msg + " for ["
+                + request.getMethod() + " " + request.getRequestURI() + "]");
+    }
+
+    /**
+     * @return who the request is on behalf of: the user id from their auth
+     *         token or, failing that (as with anonymous reads), their address
+     */
+    private static String getUser(HttpServletRequest request) {
+        final Long userId = (Long) request.getAttribute(USER_ID);
+        return userId == null || userId == 0 ? request.getRemoteAddr()
+                : String.valueOf(userId);
+    }
+
+    private void serviceInBulkhead(HttpServletRequest request,
+            HttpServletResponse response) {
+        try {
+            super.service(request, response);
+        } catch (IOException e) {
+            if (isClientAbortException(e)) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Client aborted [" + request.getRequestURI()
+                            + "]");
+                }
+            } else {
+                this.failInBulkhead(request, response, e);
+            }
+        } catch (ServletException | RuntimeException e) {
+            this.failInBulkhead(request, response, e);
+        }
+    }
+
+    private void failInBulkhead(HttpServletRequest request,
+            HttpServletResponse response, Exception e) {
+        logger.error("Failed to serve [" + request.getMethod() + " "
+                + request.getRequestURI() + "]", e);
+        if (!response.isCommitted()) {
+            try {
+                response.sendError(SC_INTERNAL_SERVER_ERROR);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * @return the bulkhead that this request should be run in, or
+     *         <code>null</code> if it is cheap enough to be served on the
+     *         container's thread
+     */
+    private Bulkhead getBulkhead(HttpServletRequest request)
+            throws UnsupportedEncodingException {
+        final String method = request.getMethod();
+        final String action = getRoutingParameter(request, "_action");
+        switch (method) {
+        case "PUT":
+            return this.transferBulkhead;
+        case "POST":
+            if (action == null) {
+                return null;
+            }
+            switch (action) {
+            case "upload":
+                return this.transferBulkhead;
+            case "zip":
+            case "unzip":
+            case "copy":
+                // a background job only needs to be queued
+                return isRespondAsync(request.getHeader("Prefer"),
+                        getRoutingParameter(request, "async")) ? null
+                        : this.heavyBulkhead;
+            case "delta":
+                return this.heavyBulkhead;
+            default:
+                return null;
+            }
+        case "GET":
+        case "HEAD":
+            if ("true".equals(getRoutingParameter(request, "follow"))) {
+                // followers go async by themselves
+                return null;
+            }
+            if (action != null) {
+                switch (action) {
+                case "zip_download":
+                case "tar_download":
+                    // shaped like any other download
+                    return this.transferBulkhead;
+                case "search":
+                case "du":
+                case "manifest":
+                case "checksums":
+                    return this.heavyBulkhead;
+                default:
+                    return null;
+                }
+            }
+            if (isZip(request) || isTar(request)) {
+                return this.transferBulkhead;
+            }
+            final Path file = this.getRequestFile(request);
+            try {
+                final BasicFileAttributes attributes = Files.readAttributes(
+                        file, BasicFileAttributes.class);
+                return "GET".equals(method) && attributes.isRegularFile()
+                        && this.isLargeDownload(attributes.size())
+                        ? this.transferBulkhead : null;
+            } catch (IOException e) {
+                return "GET".equals(method) ? this.getArchiveBulkhead(
+                        request, file) : null;
+            }
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * @return the given parameter, as needed to pick the request's bulkhead:
+     *         from the query string only if the request is multi-part, since
+     *         parsing that body means receiving the whole upload right here
+     *         (unlike a form, which is small)
+     */
+    private static String getRoutingParameter(HttpServletRequest request,
+            String name) {
+        return isMultiPartRequest(request) ? getQueryParameter(request, name)
+                : request.getParameter(name);
+    }
+
+    /**
+     * @return the transfer bulkhead if the given file is an entry of a large
+     *         archive (rather than a listing of one), which is sent like any
+     *         other large file, or <code>null</code> to let the request
+     *         itself deal with it
+     */
+    private Bulkhead getArchiveBulkhead(HttpServletRequest request, Path file) {
+        final Path archivePath = getArchivePath(file);
+        if (archivePath == null || request.getRequestURI().endsWith("/")) {
+            return null;
+        }
+        try {
+            return this.isLargeDownload(Files.size(getArchiveFile(archivePath)))
+                    ? this.transferBulkhead : null;
+        } catch (IOException e) {
+            return null;
+        }
     }
 
     @Override
@@ -133,11 +684,53 @@ public final class WebFilezServlet extends HttpServlet {
         final String basePath = this.getBasePath(request, true);
         String uri = request.getRequestURI();
         Path file = this.getRequestFile(request);
+        if (!Files.exists(file)) {
+            final Path archivePath = getArchivePath(file);
+            if (archivePath != null) {
+                this.handleArchive(request, response, archivePath, file);
+                return;
+            }
+        }
         if (fileExistsOrItIsTheBasePathAndIsCreated(file, uri, basePath,
                 this.getWriteAllowed(request))) {
             if (Files.isDirectory(file)) {
                 if (uri.endsWith("/")) {
-                    if (isZip(request)
+                    if ("manifest".equals(request.getParameter("_action"))) {
+                        try {
+                            this.handleManifest(request, response, file);
+                        } catch (JSONException e) {
+                            this.sendServerFailure(request, response,
+                                    "Failed to send manifest of [" + file
+                                            + "]", e);
+                        }
+                    } else if (request.getParameter("find") != null) {
+                        try {
+                            this.handleFind(request, response, file, basePath);
+                        } catch (JSONException e) {
+                            this.sendServerFailure(request, response,
+                                    "Failed to send files found in [" + file
+                                            + "]", e);
+                        }
+                    } else if ("job".equals(request.getParameter("_action"))) {
+                        try {
+                            this.handleJob(request, response);
+                        } catch (JSONException e) {
+                            this.sendServerFailure(request, response,
+                                    "Failed to send job ["
+                                            + request.getParameter("id")
+                                            + "]", e);
+                        }
+                    } else if ("du".equals(request.getParameter("_action"))) {
+                        try {
+                            this.handleDiskUsage(request, response, file);
+                        } catch (JSONException e) {
+                            this.sendServerFailure(request, response,
+                                    "Failed to send disk usage of [" + file
+                                            + "]", e);
+                        }
+                    } else if ("search".equals(request.getParameter("_action"))) {
+                        this.handleSearch(request, response, file);
+                    } else if (isZip(request)
                             || "zip_download".equals(request
                                     .getParameter("_action"))) {
                         try {
@@ -148,6 +741,17 @@ public final class WebFilezServlet extends HttpServlet {
                                     "Failed to send ZIP of files in [" + file
                                             + "]", e);
                         }
+                    } else if (isTar(request)
+                            || "tar_download".equals(request
+                                    .getParameter("_action"))) {
+                        try {
+                            this.handleTarDownloadRequest(request, response,
+                                    file);
+                        } catch (IOException e) {
+                            this.sendServerFailure(request, response,
+                                    "Failed to send tar of files in [" + file
+                                            + "]", e);
+                        }
                     } else {
                         try {
                             this.handleList(request, response, file, basePath);
@@ -164,7 +768,17 @@ public final class WebFilezServlet extends HttpServlet {
                     response.sendRedirect(uri + "/");
                 }
             } else if (Files.isRegularFile(file)) {
-                this.handleDownload(request, response, file);
+                if ("checksums".equals(request.getParameter("_action"))) {
+                    try {
+                        this.handleChecksums(request, response, file);
+                    } catch (JSONException e) {
+                        this.sendServerFailure(request, response,
+                                "Failed to send checksums of [" + file + "]",
+                                e);
+                    }
+                } else {
+                    this.handleDownload(request, response, file);
+                }
             } else {
                 this.sendServerFailure(request, response,
                         "Not a file or a directory [" + file
@@ -211,11 +825,12 @@ public final class WebFilezServlet extends HttpServlet {
         if (Files.exists(file)) {
             final long lastModified = Files.getLastModifiedTime(file)
                     .toMillis();
-            final String etag = generateETag(Files.size(file), lastModified);
-            if (ifMatch(request, etag)
+            if (ifMatch(request, this.getETags(file, Files.size(file),
+                    lastModified))
                     && ifUnmodifiedSince(request, lastModified)) {
                 try {
-                    delete(file);
+                    this.remove(file);
+                    this.changed(file);
                     if (logger.isDebugEnabled()) {
                         logger.debug("Deleted [" + file + "]");
                     }
@@ -263,13 +878,11 @@ public final class WebFilezServlet extends HttpServlet {
                                     + file + "]");
                     return;
                 } else {
-                    final long lastModified = Files.getLastModifiedTime(file)
-                            .toMillis();
-                    final String etag = generateETag(Files.size(file),
-                            lastModified);
-                    if (ifMatch(request, etag)
-                            && ifUnmodifiedSince(request, lastModified)) {
-                        if (!this.handleSingleUpload(file, request, response)) {
+                    if (this.canReplace(file, request)) {
+                        if (!(isPartialPut(request) ? this.handlePartialPut(
+                                file, request, response) : this
+                                .handleSingleUpload(file, SC_OK, request,
+                                        response))) {
                             return;
                         }
                     } else {
@@ -289,12 +902,21 @@ public final class WebFilezServlet extends HttpServlet {
                     logger.debug("Created directory [" + file + "]");
                 }
             } else {
-                if (!this.handleSingleUpload(file, request, response)) {
+                if (!(isPartialPut(request) ? this.handlePartialPut(file,
+                        request, response) : this.handleSingleUpload(file,
+                        SC_CREATED, request, response))) {
                     return;
                 }
             }
             responseCode = SC_CREATED;
         }
+        this.sendPutResponse(file, responseCode, request, response);
+    }
+
+    private void sendPutResponse(Path file, int responseCode,
+            HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        this.changed(file);
         response.setStatus(responseCode);
         try {
             this.sendFileInfoResponse(request, response, file, true);
@@ -329,6 +951,9 @@ public final class WebFilezServlet extends HttpServlet {
                         case "upload":
                             if (isMultiPartRequest(request)) {
                                 this.handleUpload(file, request, response);
+                            } else if (request.getParameter("digest") != null) {
+                                this.handleUploadByDigest(file, request,
+                                        response);
                             } else {
                                 refuseBadRequest(request, response,
                                         "Not a valid POST upload request to "
@@ -338,6 +963,9 @@ public final class WebFilezServlet extends HttpServlet {
                         case "zip":
                             this.handleZip(file, request, response);
                             break;
+                        case "delete":
+                            this.handleBatchDelete(file, request, response);
+                            break;
                         case "rename":
                             this.handleRename(file, request, response);
                             break;
@@ -348,6 +976,9 @@ public final class WebFilezServlet extends HttpServlet {
                         case "cut":
                             this.handleMove(file, request, response);
                             break;
+                        case "cancel_job":
+                            this.handleCancelJob(request, response);
+                            break;
                         default:
                             refuseBadRequest(
                                     request,
@@ -364,6 +995,9 @@ public final class WebFilezServlet extends HttpServlet {
                         case "rename":
                             this.handleRename(file, request, response);
                             break;
+                        case "delta":
+                            this.handleDelta(file, request, response);
+                            break;
                         default:
                             refuseBadRequest(
                                     request,
@@ -409,124 +1043,845 @@ public final class WebFilezServlet extends HttpServlet {
             response.setHeader("Content-Disposition",
                     String.format("attachment; filename=\"%s\"", filename));
             response.setHeader("Accept-Ranges", "none");
-            FileUtil.zipFiles(dir, files, response.getOutputStream());
+            final BandwidthLimiter.Shaper shaper = this.getShaper(request);
+            try {
+                FileUtil.zipFiles(dir, files,
+                        shape(response.getOutputStream(), shaper));
+            } finally {
+                if (shaper != null) {
+                    shaper.done();
+                }
+            }
         }
     }
 
-    private void handleList(HttpServletRequest request,
-            HttpServletResponse response, Path dir, String basePath)
-            throws IOException, ServletException, JSONException {
-        final String uri = request.getRequestURI();
-        final long lastModified = Files.getLastModifiedTime(dir).toMillis();
-        // TODO, we should probably find the most up-to-date file and use it for
-        // last-modified???
-        if (lastModified >= 0) {
-            response.setDateHeader("Last-Modified", lastModified);
+    /**
+     * Send the selected files as a tar archive: uncompressed, with its exact
+     * length and by range, or gzipped (in parallel), with neither.
+     */
+    private void handleTarDownloadRequest(HttpServletRequest request,
+            HttpServletResponse response, Path dir) throws ServletException,
+            IOException {
+        if (logger.isTraceEnabled()) {
+            logger.trace("Tar-downloading files in [" + dir + "]");
         }
-        setNoCacheHeaders(response);
-        if (isHead(request)) {
-            response.setHeader("ETag", generateETag(size(dir), lastModified));
-        } else if (isJson(request)) {
-            if (logger.isTraceEnabled()) {
-                logger.trace("Listing files in [" + dir + "]");
-            }
-            response.setContentType(JSON_CONTENT_TYPE);
+        final List<Path> files = this.getFilesFromRequest(request, dir);
+        if (files.isEmpty()) {
+            this.refuseBadRequest(request, response,
+                    "Select at least one file to tar-download");
+            return;
+        }
+        final boolean gzip = isTarGzip(request)
+                || "gzip".equals(request.getParameter("compress"));
+        String filename = request.getParameter("filename");
+        if (filename == null) {
+            filename = (files.size() == 1 ? files.get(0) : dir).getFileName()
+                    + (gzip ? ".tar.gz" : ".tar");
+        }
+        final TarArchive archive = this.layoutTar(dir, files);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Laid out [" + archive.getEntries()
+                    + "] entries of [" + archive.size() + "] bytes to tar ["
+                    + dir + "]");
+        }
+        final long lastModified = archive.getLastModified();
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setHeader("Content-Disposition",
+                String.format("attachment; filename=\"%s\"", filename));
+        if (gzip) {
+            response.setContentType("application/gzip");
             response.setHeader("Accept-Ranges", "none");
-            final String authToken = getAuthToken(request);
-            final ByteArrayOutputStream out = new ByteArrayOutputStream(8196);
-            long totalSize = 0;
-            Path readmeFile = null;
-            final Writer outWriter = new OutputStreamWriter(out,
-                    DEFAULT_CHARSET);
-            final JSONWriter jsonWriter = new JSONWriter(outWriter);
-            jsonWriter.object();
-            jsonWriter.key("files").array();
-            String baseUri = this.getAbsoluteUri(request);
-            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
-                for (Path file : files) {
-                    totalSize += writeFileInfoToJson(baseUri, file, jsonWriter,
-                            authToken);
-                    if (file.getFileName().equals(config.getReadmeFileName())) {
-                        readmeFile = file;
+            if (!isHead(request)) {
+                final BandwidthLimiter.Shaper shaper = this.getShaper(request);
+                try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(
+                        shape(response.getOutputStream(), shaper),
+                        this.gzipExecutor, Deflater.DEFAULT_COMPRESSION,
+                        GZIP_BLOCK_SIZE, this.config.getGzipThreads() * 2)) {
+                    archive.write(out, config.getBufferSize());
+                } catch (IOException e) {
+                    if (isClientAbortException(e)) {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Client aborted the connection while"
+                                    + " sending gzipped tar. Bailing out");
+                        }
+                    } else {
+                        throw e;
+                    }
+                } finally {
+                    if (shaper != null) {
+                        shaper.done();
                     }
                 }
             }
-            jsonWriter.endArray();
-            response.setHeader("ETag", generateETag(totalSize, lastModified));
-            jsonWriter.key("_links").object();
-            writeSelfLink(baseUri, jsonWriter);
-            if (uri.length() > basePath.length() && uri.startsWith(basePath)) {
-                String upUri = getParentUriPath(baseUri);
-                if (config.isAppendAuthToUrls() && authToken != null
-                        && !authToken.isEmpty()) {
-                    // assuming URL-encoded
-                    upUri += "?" + config.getTokenName() + "=" + authToken;
-                }
-                writeLink("up", upUri, jsonWriter);
-            } else {
-                if (logger.isTraceEnabled()) {
-                    logger.trace("No parent present for uri [" + uri
-                            + "] and basePath [" + basePath + "]");
-                }
+            return;
+        }
+        final String contentType = "application/x-tar";
+        final String eTag = generateETag(archive.getDigest());
+        response.setHeader("ETag", eTag);
+        response.setHeader("Accept-Ranges", "bytes");
+        final List<Range> ranges = parseRange(request, response, eTag,
+                lastModified, archive.size());
+        if (ranges == null) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("Cannot handle tar-download of [" + dir
+                        + "]. Problem with ranges.");
             }
-            if (readmeFile != null) {
-                writeLink("describedby", this.toUri(baseUri, readmeFile
-                        .getFileName().toString(), false, authToken),
-                        jsonWriter);
-            } else {
-                if (logger.isTraceEnabled()) {
-                    logger.trace("No README file present for uri [" + uri
-                            + "] and dir [" + dir + "]");
-                }
+        } else if (isNotModified(request, eTag, lastModified)) {
+            response.setStatus(SC_NOT_MODIFIED);
+        } else if (ranges.isEmpty()) {
+            response.setStatus(SC_OK);
+            response.setContentType(contentType);
+            setContentLength(response, archive.size());
+            if (!isHead(request)) {
+                this.sendTar(archive, response.getOutputStream(), null,
+                        this.getShaper(request));
             }
-            jsonWriter.endObject();
-            jsonWriter.key("name").value(dir.getFileName());
-            jsonWriter.key("uri").value(uri);
-            jsonWriter.key("type").value(config.getDirectoryMimeType());
-            jsonWriter.key("size").value(totalSize);
-            jsonWriter.key("quota").value(this.getQuota(request));
-            jsonWriter.key("lastModified")
-                    .value(Files.getLastModifiedTime(dir));
-            jsonWriter.key("writeAllowed").value(this.getWriteAllowed(request));
-            jsonWriter.endObject();
-            outWriter.flush();
-            if (logger.isTraceEnabled()) {
-                logger.trace("Writing listing of [" + out.size()
-                        + "] bytes for dir [" + dir + "]");
+        } else if (ranges.size() == 1) {
+            final Range range = ranges.get(0);
+            response.setStatus(SC_PARTIAL_CONTENT);
+            response.addHeader("Content-Range",
+                    range.toContentRangeHeaderValue());
+            setContentLength(response, range.getBytesToRead());
+            response.setContentType(contentType);
+            if (!isHead(request)) {
+                this.sendTar(archive, response.getOutputStream(), range,
+                        this.getShaper(request));
             }
-            response.setContentLength(out.size());
-            out.writeTo(response.getOutputStream());
         } else {
-            if (logger.isTraceEnabled()) {
-                logger.trace("Sending HTML for listing ["
-                        + request.getRequestURI() + "]");
+            response.setStatus(SC_PARTIAL_CONTENT);
+            response.setContentType("multipart/byteranges; boundary="
+                    + MULTIPART_BOUNDARY);
+            if (!isHead(request)) {
+                final ServletOutputStream out = response.getOutputStream();
+                final BandwidthLimiter.Shaper shaper = this.getShaper(request);
+                for (Range range : ranges) {
+                    out.println();
+                    out.println("--" + MULTIPART_BOUNDARY);
+                    out.println("Content-Type: " + contentType);
+                    out.println("Content-Range: "
+                            + range.toContentRangeHeaderValue());
+                    out.println();
+                    this.sendTar(archive, out, range, shaper);
+                }
             }
-            request.setAttribute("uri", uri);
-            request.setAttribute("dir", dir);
-            request.setAttribute("writeAllowed", this.getWriteAllowed(request));
+        }
+    }
 
-            request.getRequestDispatcher("/WEB-INF/jsp/webfilez.jsp").forward(
-                    request, response);
+    private void sendTar(TarArchive archive, OutputStream out, Range range,
+            BandwidthLimiter.Shaper shaper) throws IOException {
+        final OutputStream shaped = shape(out, shaper);
+        try {
+            if (range == null) {
+                archive.write(shaped, config.getBufferSize());
+            } else {
+                archive.write(shaped, range.getStart(),
+                        range.getBytesToRead(), config.getBufferSize());
+            }
+            shaped.flush();
+        } catch (IOException e) {
+            if (isClientAbortException(e)) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Client aborted the connection while sending"
+                            + " tar. Bailing out");
+                }
+            } else {
+                throw e;
+            }
+        } finally {
+            if (shaper != null) {
+                shaper.done();
+            }
         }
     }
 
-    private boolean isClientAbortException(IOException e) {
-        final Throwable cause = e.getCause();
-        return cause instanceof SocketException
-                && "Broken pipe".equals(cause.getMessage());
+    /**
+     * Read the listing of the given version of the given directory, or share
+     * the one that someone else is reading already.
+     */
+    private DirectoryListing readListing(final Path dir, String version,
+            final boolean sizeNeeded) throws IOException {
+        return this.listings.get(dir + "@" + version + (sizeNeeded ? "+size"
+                : ""), new SingleFlight.Computation<DirectoryListing>() {
+            @Override
+            public DirectoryListing compute() throws IOException {
+                return DirectoryListing.read(dir, config.getReadmeFileName(),
+                        sizeNeeded ? diskUsage : null);
+            }
+        });
     }
 
-    private void sendFile(Path file, OutputStream out, Range range)
-            throws FileNotFoundException, IOException {
-        final long length = Files.size(file);
-        if (logger.isTraceEnabled()) {
-            logger.trace(String.format("Sending bytes %d-%d/%d of file %s",
-                    range == null ? 0 : range.getStart(),
-                    range == null ? max(length - 1, 0) : range.getEnd(),
-                    length, file));
+    /**
+     * Lay out a tar archive of the given files (with the current version of
+     * their directory), or share the one that someone else is laying out
+     * already.
+     */
+    private TarArchive layoutTar(final Path dir, final List<Path> files)
+            throws IOException {
+        final StringBuilder key = new StringBuilder();
+        key.append(dir).append('@').append(this.versions.getToken(dir));
+        for (Path file : files) {
+            key.append('\0').append(dir.relativize(file));
         }
-        try (final InputStream in = Files.newInputStream(file)) {
-            if (range != null) {
+        return this.tarLayouts.get(key.toString(),
+                new SingleFlight.Computation<TarArchive>() {
+                    @Override
+                    public TarArchive compute() throws IOException {
+                        return TarArchive.layout(dir, files);
+                    }
+                });
+    }
+
+    private void handleList(HttpServletRequest request,
+            HttpServletResponse response, Path dir, String basePath)
+            throws IOException, ServletException, JSONException {
+        final String uri = request.getRequestURI();
+        if (isHead(request) || isJson(request)) {
+            final String authToken = getAuthToken(request);
+            final EnumSet<FileField> fields;
+            try {
+                fields = FileField.parse(request.getParameter("fields"),
+                        LISTING_FIELDS);
+            } catch (IllegalArgumentException e) {
+                this.refuseBadRequest(request, response, "Cannot list [" + dir
+                        + "]: " + e.getMessage());
+                return;
+            }
+            final String version = this.versions.getToken(dir);
+            final String since = request.getParameter("since");
+            if (since != null && isJson(request)) {
+                final Set<String> changes = this.versions.getChangesSince(dir,
+                        since);
+                if (changes != null) {
+                    this.handleListDelta(request, response, dir, since,
+                            version, changes, fields);
+                    return;
+                } else if (logger.isDebugEnabled()) {
+                    logger.debug("Cannot list changes to [" + dir
+                            + "] since [" + since
+                            + "]. Falling back to a full listing.");
+                }
+            }
+            final DirectoryListing listing = this.readListing(dir, version,
+                    isSizeNeeded(fields));
+            final long lastModified = listing.getLastModified();
+            final String eTag = listing.toETag(this.getQuota(request),
+                    this.getWriteAllowed(request), authToken, fields);
+            response.setDateHeader("Last-Modified", lastModified);
+            response.setHeader("ETag", eTag);
+            setPrivateCacheHeaders(response, config.getListingMaxAge());
+            if (isNotModified(request, eTag, lastModified)) {
+                if (logger.isTraceEnabled()) {
+                    logger.trace("Listing of [" + dir + "] not modified ("
+                            + eTag + ")");
+                }
+                response.setStatus(SC_NOT_MODIFIED);
+            } else if (isJson(request)) {
+                if (logger.isTraceEnabled()) {
+                    logger.trace("Listing files in [" + dir + "]");
+                }
+                response.setContentType(JSON_CONTENT_TYPE);
+                response.setHeader("Accept-Ranges", "none");
+                final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                        8196);
+                final Writer outWriter = new OutputStreamWriter(out,
+                        DEFAULT_CHARSET);
+                final JSONWriter jsonWriter = new JSONWriter(outWriter);
+                jsonWriter.object();
+                jsonWriter.key("files").array();
+                String baseUri = this.getAbsoluteUri(request);
+                for (DirectoryListing.Entry entry : listing.getEntries()) {
+                    writeFileInfoToJson(baseUri, entry.getPath(),
+                            entry.isDirectory(), entry.getSize(),
+                            entry.getLastModified(), fields, jsonWriter,
+                            authToken);
+                }
+                jsonWriter.endArray();
+                jsonWriter.key("_links").object();
+                writeSelfLink(baseUri, jsonWriter);
+                if (uri.length() > basePath.length()
+                        && uri.startsWith(basePath)) {
+                    String upUri = getParentUriPath(baseUri);
+                    if (config.isAppendAuthToUrls() && authToken != null
+                            && !authToken.isEmpty()) {
+                        // assuming URL-encoded
+                        upUri += "?" + config.getTokenName() + "=" + authToken;
+                    }
+                    writeLink("up", upUri, jsonWriter);
+                } else {
+                    if (logger.isTraceEnabled()) {
+                        logger.trace("No parent present for uri [" + uri
+                                + "] and basePath [" + basePath + "]");
+                    }
+                }
+                final Path readmeFile = listing.getReadmeFile();
+                if (readmeFile != null) {
+                    writeLink("describedby", this.toUri(baseUri, readmeFile
+                            .getFileName().toString(), false, authToken),
+                            jsonWriter);
+                } else {
+                    if (logger.isTraceEnabled()) {
+                        logger.trace("No README file present for uri [" + uri
+                                + "] and dir [" + dir + "]");
+                    }
+                }
+                jsonWriter.endObject();
+                jsonWriter.key("name").value(dir.getFileName());
+                jsonWriter.key("uri").value(uri);
+                jsonWriter.key("type").value(config.getDirectoryMimeType());
+                if (fields.contains(FileField.SIZE)) {
+                    jsonWriter.key("size").value(listing.getTotalSize());
+                }
+                jsonWriter.key("version").value(version);
+                jsonWriter.key("quota").value(this.getQuota(request));
+                jsonWriter.key("lastModified").value(
+                        Files.getLastModifiedTime(dir));
+                jsonWriter.key("writeAllowed").value(
+                        this.getWriteAllowed(request));
+                jsonWriter.endObject();
+                outWriter.flush();
+                if (logger.isTraceEnabled()) {
+                    logger.trace("Writing listing of [" + out.size()
+                            + "] bytes for dir [" + dir + "]");
+                }
+                response.setContentLength(out.size());
+                out.writeTo(response.getOutputStream());
+            }
+        } else {
+            if (logger.isTraceEnabled()) {
+                logger.trace("Sending HTML for listing ["
+                        + request.getRequestURI() + "]");
+            }
+            setNoCacheHeaders(response);
+            request.setAttribute("uri", uri);
+            request.setAttribute("dir", dir);
+            request.setAttribute("writeAllowed", this.getWriteAllowed(request));
+
+            request.getRequestDispatcher("/WEB-INF/jsp/webfilez.jsp").forward(
+                    request, response);
+        }
+    }
+
+    private void handleManifest(HttpServletRequest request,
+            HttpServletResponse response, final Path dir) throws IOException,
+            ServletException, JSONException {
+        final EnumSet<FileField> fields;
+        final int depth;
+        try {
+            fields = FileField.parse(request.getParameter("fields"),
+                    MANIFEST_FIELDS);
+            final String depthParameter = request.getParameter("depth");
+            depth = depthParameter == null ? Integer.MAX_VALUE : Integer
+                    .parseInt(depthParameter);
+            if (depth < 1) {
+                throw new IllegalArgumentException("Invalid depth [" + depth
+                        + "]");
+            }
+        } catch (IllegalArgumentException e) {
+            this.refuseBadRequest(request, response,
+                    "Cannot send manifest of [" + dir + "]: " + e.getMessage());
+            return;
+        }
+        final boolean ndjson = isNdJson(request);
+        if (logger.isTraceEnabled()) {
+            logger.trace("Sending " + (ndjson ? "NDJSON" : "JSON")
+                    + " manifest of [" + dir + "] to depth [" + depth
+                    + "] with fields " + fields);
+        }
+        setNoCacheHeaders(response);
+        response.setContentType(ndjson ? NDJSON_CONTENT_TYPE
+                : JSON_CONTENT_TYPE);
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Accept-Ranges", "none");
+        if (isHead(request)) {
+            return;
+        }
+        final String baseUri = this.getAbsoluteUri(request);
+        final String authToken = getAuthToken(request);
+        final Writer out = response.getWriter();
+        final JSONWriter jsonWriter = ndjson ? null : new JSONWriter(out);
+        if (jsonWriter != null) {
+            jsonWriter.object();
+            jsonWriter.key("files").array();
+        }
+        Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), depth,
+                new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path d,
+                            BasicFileAttributes attrs) throws IOException {
+                        if (!d.equals(dir)) {
+                            this.write(d, attrs);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file,
+                            BasicFileAttributes attrs) throws IOException {
+                        this.write(file, attrs);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file,
+                            IOException e) throws IOException {
+                        if (logger.isWarnEnabled()) {
+                            logger.warn("Skipping [" + file
+                                    + "] in manifest of [" + dir + "]", e);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    private void write(Path file, BasicFileAttributes attrs)
+                            throws IOException {
+                        try {
+                            if (jsonWriter == null) {
+                                writeManifestEntry(baseUri, file,
+                                        dir.relativize(file), attrs, fields,
+                                        new JSONWriter(out), authToken);
+                                out.write('\n');
+                            } else {
+                                writeManifestEntry(baseUri, file,
+                                        dir.relativize(file), attrs, fields,
+                                        jsonWriter, authToken);
+                            }
+                        } catch (JSONException e) {
+                            throw new IOException("Failed to write [" + file
+                                    + "] to manifest", e);
+                        }
+                    }
+                });
+        if (jsonWriter != null) {
+            jsonWriter.endArray();
+            jsonWriter.endObject();
+        }
+        out.flush();
+    }
+
+    /**
+     * Send the files and directories under the given directory whose path
+     * contains (or, with wildcards, matches) the <code>find</code> query, as
+     * found in the index of the base path.
+     */
+    private void handleFind(HttpServletRequest request,
+            HttpServletResponse response, Path dir, String basePath)
+            throws IOException, ServletException, JSONException {
+        final String query = request.getParameter("find");
+        final EnumSet<FileField> fields;
+        final int limit;
+        try {
+            if (query.isEmpty()) {
+                throw new IllegalArgumentException("Empty query");
+            }
+            fields = FileField.parse(request.getParameter("fields"),
+                    FIND_FIELDS);
+            final String limitParameter = request.getParameter("limit");
+            limit = limitParameter == null ? 100 : Integer
+                    .parseInt(limitParameter);
+            if (limit < 1) {
+                throw new IllegalArgumentException("Invalid limit [" + limit
+                        + "]");
+            }
+        } catch (IllegalArgumentException e) {
+            this.refuseBadRequest(request, response, "Cannot find [" + query
+                    + "] in [" + dir + "]: " + e.getMessage());
+            return;
+        }
+        final Path basePathDir = this.resolvePath(basePath);
+        if (!dir.startsWith(basePathDir)) {
+            this.refuseRequest(request, response, SC_FORBIDDEN,
+                    "Cannot find files in [" + dir + "] outside of ["
+                            + basePathDir + "]");
+            return;
+        }
+        final long t = System.nanoTime();
+        final List<Path> found = this.filenameIndex.find(basePathDir, dir,
+                query, limit);
+        if (logger.isTraceEnabled()) {
+            logger.trace("Found [" + found.size() + "] match(es) for ["
+                    + query + "] in [" + dir + "] in ["
+                    + ((System.nanoTime() - t) / 1000) + "] us");
+        }
+        setNoCacheHeaders(response);
+        response.setContentType(JSON_CONTENT_TYPE);
+        response.setCharacterEncoding("UTF-8");
+        if (isHead(request)) {
+            return;
+        }
+        final String baseUri = this.getAbsoluteUri(request);
+        final String authToken = getAuthToken(request);
+        final JSONWriter jsonWriter = new JSONWriter(response.getWriter());
+        jsonWriter.object();
+        jsonWriter.key("files").array();
+        for (Path file : found.subList(0, min(limit, found.size()))) {
+            final BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (IOException e) {
+                // gone since
+                continue;
+            }
+            writeManifestEntry(baseUri, file, dir.relativize(file), attrs,
+                    fields, jsonWriter, authToken);
+        }
+        jsonWriter.endArray();
+        jsonWriter.key("truncated").value(found.size() > limit);
+        jsonWriter.endObject();
+    }
+
+    /**
+     * Send the total disk usage of the given directory, along with its
+     * largest sub-directories and files down to the given depth.
+     */
+    private void handleDiskUsage(HttpServletRequest request,
+            HttpServletResponse response, Path dir) throws IOException,
+            ServletException, JSONException {
+        final int depth;
+        final int top;
+        try {
+            final String depthParameter = request.getParameter("depth");
+            depth = depthParameter == null ? 1 : Integer
+                    .parseInt(depthParameter);
+            if (depth < 1) {
+                throw new IllegalArgumentException("Invalid depth [" + depth
+                        + "]");
+            }
+            final String topParameter = request.getParameter("top");
+            top = topParameter == null ? 10 : Integer.parseInt(topParameter);
+            if (top < 1) {
+                throw new IllegalArgumentException("Invalid top [" + top
+                        + "]");
+            }
+        } catch (IllegalArgumentException e) {
+            this.refuseBadRequest(request, response,
+                    "Cannot send disk usage of [" + dir + "]: "
+                            + e.getMessage());
+            return;
+        }
+        final long t = System.nanoTime();
+        final DiskUsage.Breakdown breakdown = this.diskUsage.getBreakdown(
+                dir, depth, top);
+        if (logger.isTraceEnabled()) {
+            logger.trace("Got disk usage of [" + dir + "] to depth [" + depth
+                    + "] in [" + ((System.nanoTime() - t) / 1000000)
+                    + "] ms");
+        }
+        setNoCacheHeaders(response);
+        response.setContentType(JSON_CONTENT_TYPE);
+        response.setCharacterEncoding("UTF-8");
+        if (isHead(request)) {
+            return;
+        }
+        final JSONWriter jsonWriter = new JSONWriter(response.getWriter());
+        jsonWriter.object();
+        jsonWriter.key("size").value(breakdown.getTotal().getSize());
+        jsonWriter.key("files").value(breakdown.getTotal().getFiles());
+        final long quota = this.getQuota(request);
+        if (quota > 0) {
+            jsonWriter.key("quota").value(quota);
+        }
+        jsonWriter.key("largestDirectories").array();
+        for (DiskUsage.Usage usage : breakdown.getDirectories()) {
+            jsonWriter.object();
+            jsonWriter.key("path").value(
+                    toPath(dir.relativize(usage.getPath())) + "/");
+            jsonWriter.key("size").value(usage.getSize());
+            jsonWriter.key("files").value(usage.getFiles());
+            jsonWriter.endObject();
+        }
+        jsonWriter.endArray();
+        jsonWriter.key("largestFiles").array();
+        for (DiskUsage.Usage usage : breakdown.getFiles()) {
+            jsonWriter.object();
+            jsonWriter.key("path").value(
+                    toPath(dir.relativize(usage.getPath())));
+            jsonWriter.key("size").value(usage.getSize());
+            jsonWriter.endObject();
+        }
+        jsonWriter.endArray();
+        jsonWriter.endObject();
+    }
+
+    /**
+     * Stream the lines of the text files under the given directory that
+     * contain the string <code>q</code>, as NDJSON (one match per line), as
+     * they are found.
+     */
+    private void handleSearch(HttpServletRequest request,
+            HttpServletResponse response, final Path dir) throws IOException,
+            ServletException {
+        final String q = request.getParameter("q");
+        final boolean ignoreCase = "true".equals(request
+                .getParameter("ignoreCase"));
+        final int limit;
+        try {
+            if (q == null || q.isEmpty()) {
+                throw new IllegalArgumentException("Missing query [q]");
+            } else if (q.indexOf('\n') >= 0) {
+                throw new IllegalArgumentException(
+                        "Query must not span lines");
+            }
+            final String limitParameter = request.getParameter("limit");
+            limit = limitParameter == null ? 1000 : Integer
+                    .parseInt(limitParameter);
+            if (limit < 1) {
+                throw new IllegalArgumentException("Invalid limit [" + limit
+                        + "]");
+            }
+        } catch (IllegalArgumentException e) {
+            this.refuseBadRequest(request, response, "Cannot search [" + dir
+                    + "]: " + e.getMessage());
+            return;
+        }
+        if (logger.isTraceEnabled()) {
+            logger.trace("Searching [" + dir + "] for [" + q + "]");
+        }
+        setNoCacheHeaders(response);
+        response.setContentType(NDJSON_CONTENT_TYPE);
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Accept-Ranges", "none");
+        if (isHead(request)) {
+            return;
+        }
+        // not the response's writer, which would swallow the failures that
+        // tell us that the client went away
+        final Writer out = new OutputStreamWriter(response.getOutputStream(),
+                DEFAULT_CHARSET);
+        final AtomicInteger matches = new AtomicInteger();
+        try {
+            this.search.search(dir, q.getBytes(DEFAULT_CHARSET), ignoreCase,
+                    new ContentSearch.Filter() {
+                        @Override
+                        public boolean accept(Path file,
+                                BasicFileAttributes attrs) throws IOException {
+                            return isText(getMimeType(file, false));
+                        }
+                    }, new ContentSearch.Callback() {
+                        @Override
+                        public boolean found(Path file, long line,
+                                long offset, String text) throws IOException {
+                            final int n = matches.incrementAndGet();
+                            if (n > limit) {
+                                return false;
+                            }
+                            synchronized (out) {
+                                try {
+                                    new JSONWriter(out).object()
+                                            .key("path")
+                                            .value(toPath(dir.relativize(file)))
+                                            .key("line").value(line)
+                                            .key("offset").value(offset)
+                                            .key("text").value(text)
+                                            .endObject();
+                                } catch (JSONException e) {
+                                    throw new IOException("Failed to write ["
+                                            + file + "] to search results", e);
+                                }
+                                out.write('\n');
+                                out.flush();
+                            }
+                            return n < limit;
+                        }
+                    });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Stopped searching [" + dir + "]: "
+                        + e.getMessage());
+            }
+            return;
+        }
+        out.flush();
+    }
+
+    private static String toPath(Path relativePath) {
+        final StringBuilder path = new StringBuilder();
+        for (Path name : relativePath) {
+            if (path.length() > 0) {
+                path.append('/');
+            }
+            path.append(name);
+        }
+        return path.toString();
+    }
+
+    private static boolean isText(String mimeType) {
+        return mimeType.startsWith("text/") || mimeType.endsWith("+xml")
+                || mimeType.endsWith("+json")
+                || TEXT_MIME_TYPES.contains(mimeType);
+    }
+
+    private void writeManifestEntry(String baseUri, Path file,
+            Path relativePath, BasicFileAttributes attrs, EnumSet<FileField> fields,
+            JSONWriter jsonWriter, String authToken) throws JSONException,
+            IOException {
+        final boolean isDirectory = attrs.isDirectory();
+        final long lastModified = attrs.lastModifiedTime().toMillis();
+        jsonWriter.object();
+        if (fields.contains(FileField.LINKS)) {
+            jsonWriter.key("_links").object();
+            writeSelfLink(
+                    toUri(baseUri, relativePath, isDirectory, authToken),
+                    jsonWriter);
+            jsonWriter.endObject();
+        }
+        if (fields.contains(FileField.NAME)) {
+            jsonWriter.key("name").value(relativePath.getFileName());
+        }
+        if (fields.contains(FileField.DIRECTORY)) {
+            jsonWriter.key("directory").value(isDirectory);
+        }
+        if (fields.contains(FileField.PATH)) {
+            jsonWriter.key("path").value(
+                    isDirectory ? toPath(relativePath) + "/"
+                            : toPath(relativePath));
+        }
+        if (fields.contains(FileField.TYPE)) {
+            jsonWriter.key("type").value(getMimeType(file, isDirectory));
+        }
+        if (!isDirectory && fields.contains(FileField.SIZE)) {
+            jsonWriter.key("size").value(attrs.size());
+        }
+        if (fields.contains(FileField.LAST_MODIFIED)) {
+            jsonWriter.key("lastModified").value(lastModified);
+        }
+        if (!isDirectory && fields.contains(FileField.ETAG)) {
+            jsonWriter.key("eTag").value(
+                    this.getETags(file, attrs.size(), lastModified)[0]);
+        }
+        if (!isDirectory && fields.contains(FileField.DIGEST)) {
+            this.writeDigest(file, attrs.size(), lastModified, jsonWriter);
+        }
+        jsonWriter.endObject();
+    }
+
+    private void handleListDelta(HttpServletRequest request,
+            HttpServletResponse response, Path dir, String since,
+            String version, Set<String> changes, EnumSet<FileField> fields)
+            throws IOException, JSONException {
+        if (logger.isTraceEnabled()) {
+            logger.trace("Listing " + changes.size() + " change(s) in [" + dir
+                    + "] since [" + since + "]");
+        }
+        setNoCacheHeaders(response);
+        response.setContentType(JSON_CONTENT_TYPE);
+        response.setHeader("Accept-Ranges", "none");
+        final String authToken = getAuthToken(request);
+        final String baseUri = this.getAbsoluteUri(request);
+        final Collection<String> removed = new ArrayList<>();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        final Writer outWriter = new OutputStreamWriter(out, DEFAULT_CHARSET);
+        final JSONWriter jsonWriter = new JSONWriter(outWriter);
+        jsonWriter.object();
+        jsonWriter.key("files").array();
+        for (String name : changes) {
+            final Path file = dir.resolve(name);
+            if (Files.exists(file)) {
+                writeFileInfoToJson(baseUri, file, fields, jsonWriter,
+                        authToken);
+            } else {
+                removed.add(name);
+            }
+        }
+        jsonWriter.endArray();
+        jsonWriter.key("removed").array();
+        for (String name : removed) {
+            jsonWriter.value(name);
+        }
+        jsonWriter.endArray();
+        jsonWriter.key("_links").object();
+        writeSelfLink(baseUri, jsonWriter);
+        jsonWriter.endObject();
+        jsonWriter.key("name").value(dir.getFileName());
+        jsonWriter.key("uri").value(request.getRequestURI());
+        jsonWriter.key("type").value(config.getDirectoryMimeType());
+        jsonWriter.key("since").value(since);
+        jsonWriter.key("version").value(version);
+        jsonWriter.key("quota").value(this.getQuota(request));
+        jsonWriter.key("lastModified").value(Files.getLastModifiedTime(dir));
+        jsonWriter.key("writeAllowed").value(this.getWriteAllowed(request));
+        jsonWriter.endObject();
+        outWriter.flush();
+        response.setContentLength(out.size());
+        out.writeTo(response.getOutputStream());
+    }
+
+    private boolean isClientAbortException(IOException e) {
+        final Throwable cause = e.getCause();
+        return cause instanceof SocketException
+                && "Broken pipe".equals(cause.getMessage());
+    }
+
+    /**
+     * @return the shaper that paces downloads on behalf of the given request
+     *         (or <code>null</code> if they are not limited), which only
+     *         waits when it is served on the transfer bulkhead
+     */
+    private BandwidthLimiter.Shaper getShaper(HttpServletRequest request) {
+        return this.bandwidthLimiter.getShaper(getBasePath(request, true),
+                getUser(request),
+                request.getAttribute(TRANSFER_THREAD_ATTR_NAME) != null);
+    }
+
+    /**
+     * @return the given stream, shaped by the given shaper (if any)
+     */
+    private static OutputStream shape(OutputStream out,
+            BandwidthLimiter.Shaper shaper) {
+        return shaper == null ? out : shaper.shape(out);
+    }
+
+    /**
+     * Send the given part of the file without holding on to a thread while
+     * the client is not ready for more.
+     */
+    private void sendFileNonBlocking(final Path file, long start,
+            long length, HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        final AsyncContext asyncContext = this.startTransfer(request,
+                response);
+        final NonBlockingDownload download = new NonBlockingDownload(
+                response.getOutputStream(), file, start, length,
+                this.config.getBufferSize(), this.getShaper(request),
+                this.transferTimer, new NonBlockingDownload.Listener() {
+                    @Override
+                    public void done(Throwable error) {
+                        if (error == null) {
+                            // sent
+                        } else if (error instanceof IOException
+                                && isClientAbortException((IOException) error)) {
+                            if (logger.isDebugEnabled()) {
+                                logger.debug("Client aborted the connection"
+                                        + " while sending file [" + file
+                                        + "]. Bailing out");
+                            }
+                        } else if (logger.isWarnEnabled()) {
+                            logger.warn("Failed to send file [" + file + "]",
+                                    error);
+                        }
+                        asyncContext.complete();
+                    }
+                });
+        try {
+            download.start();
+        } catch (IOException e) {
+            asyncContext.complete();
+            throw e;
+        }
+    }
+
+    private void sendFile(Path file, OutputStream out, Range range,
+            BandwidthLimiter.Shaper shaper) throws FileNotFoundException,
+            IOException {
+        final long length = Files.size(file);
+        if (logger.isTraceEnabled()) {
+            logger.trace(String.format("Sending bytes %d-%d/%d of file %s",
+                    range == null ? 0 : range.getStart(),
+                    range == null ? max(length - 1, 0) : range.getEnd(),
+                    length, file));
+        }
+        try (final InputStream in = Files.newInputStream(file)) {
+            if (range != null) {
                 final long skipped = in.skip(range.getStart());
                 if (skipped < range.getStart()) {
                     throw new IOException("Tried to skip [" + range.getStart()
@@ -534,45 +1889,336 @@ public final class WebFilezServlet extends HttpServlet {
                             + file + "]");
                 }
             }
-            long bytesToRead = range == null ? length : range.getBytesToRead();
+            long bytesToRead = range == null ? length : range.getBytesToRead();
+            final byte[] buffer = new byte[config.getBufferSize()];
+            for (int bytesRead; bytesToRead > 0
+                    && (bytesRead = in.read(buffer, 0,
+                            (int) min(buffer.length, bytesToRead))) > 0;) {
+                try {
+                    out.write(buffer, 0, bytesRead);
+                    bytesToRead -= bytesRead;
+                    if (shaper != null) {
+                        shaper.sent(bytesRead);
+                    }
+                } catch (IOException e) {
+                    if (isClientAbortException(e)) {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Client aborted the connection while sending file ["
+                                    + file + "]. Bailing out");
+                        }
+                        return;
+                    } else {
+                        throw e;
+                    }
+                }
+            }
+            try {
+                out.flush();
+                if (logger.isTraceEnabled()) {
+                    logger.trace("Sent " + file);
+                }
+            } catch (IOException e) {
+                if (isClientAbortException(e)) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Client aborted the connection while flushing file ["
+                                + file + "]. Bailing out");
+                    }
+                    return;
+                } else {
+                    throw e;
+                }
+            }
+        } finally {
+            if (shaper != null) {
+                shaper.done();
+            }
+        }
+    }
+
+    /**
+     * @return the part of the given (virtual) path that names a ZIP archive
+     *         (i.e. the part before the first "!/" that follows a regular
+     *         file, which ends with a "!"), or null if there isn't one
+     */
+    private static Path getArchivePath(Path file) {
+        final List<Path> candidates = new ArrayList<>();
+        for (Path path = file; path != null && path.getFileName() != null; path = path
+                .getParent()) {
+            final String name = path.getFileName().toString();
+            if (name.length() > 1 && name.endsWith("!")) {
+                candidates.add(path);
+            }
+        }
+        // directories may have a "!" at the end of their names, too
+        for (int i = candidates.size() - 1; i >= 0; i--) {
+            final Path path = candidates.get(i);
+            if (Files.isRegularFile(getArchiveFile(path))) {
+                return path;
+            }
+        }
+        return null;
+    }
+
+    private static Path getArchiveFile(Path archivePath) {
+        final String name = archivePath.getFileName().toString();
+        return archivePath.resolveSibling(name.substring(0,
+                name.length() - 1));
+    }
+
+    /**
+     * List or send an entry of a ZIP archive, given a virtual path such as
+     * <code>archive.zip!/dir/file</code>, without extracting the archive.
+     */
+    private void handleArchive(HttpServletRequest request,
+            HttpServletResponse response, Path archivePath, Path file)
+            throws IOException, ServletException {
+        final String uri = request.getRequestURI();
+        final Path archiveFile = getArchiveFile(archivePath);
+        if (!Files.isRegularFile(archiveFile)) {
+            this.refuseRequest(request, response, SC_NOT_FOUND,
+                    "No such archive [" + archiveFile + "] in response to ["
+                            + uri + "]");
+            return;
+        }
+        final ZipArchive archive;
+        try {
+            archive = this.zipArchives.get(archiveFile);
+        } catch (ZipException e) {
+            this.refuseRequest(request, response, SC_NOT_FOUND,
+                    "Not a ZIP archive [" + archiveFile + "] in response to ["
+                            + uri + "]", e);
+            return;
+        }
+        final String path = toPath(archivePath.relativize(file));
+        final ZipArchive.Entry entry = archive.getEntry(path);
+        if (path.isEmpty() || entry != null && entry.isDirectory()) {
+            if (!uri.endsWith("/")) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Adding trailing slash to [" + uri + "]");
+                }
+                response.sendRedirect(uri + "/");
+                return;
+            }
+            try {
+                this.handleArchiveList(request, response, archive, path);
+            } catch (JSONException e) {
+                this.sendServerFailure(request, response,
+                        "Failed to send listing of [" + path + "] in ["
+                                + archiveFile + "]", e);
+            }
+        } else if (entry == null) {
+            this.refuseRequest(request, response, SC_NOT_FOUND, "No entry ["
+                    + path + "] in [" + archiveFile + "] in response to ["
+                    + uri + "]");
+        } else if (!entry.isReadable()) {
+            this.refuseRequest(request, response, SC_FORBIDDEN,
+                    "Cannot send entry [" + path + "] of [" + archiveFile
+                            + "]; it is encrypted or compressed with method ["
+                            + entry.getMethod() + "]");
+        } else {
+            this.handleArchiveEntryDownload(request, response, archive, entry);
+        }
+    }
+
+    private void handleArchiveList(HttpServletRequest request,
+            HttpServletResponse response, ZipArchive archive, String path)
+            throws IOException, ServletException, JSONException {
+        final EnumSet<FileField> fields;
+        try {
+            fields = FileField.parse(request.getParameter("fields"),
+                    LISTING_FIELDS);
+        } catch (IllegalArgumentException e) {
+            this.refuseBadRequest(request, response, "Cannot list [" + path
+                    + "] in [" + archive.getFile() + "]: " + e.getMessage());
+            return;
+        }
+        final long lastModified = Files.getLastModifiedTime(
+                archive.getFile()).toMillis();
+        final String authToken = getAuthToken(request);
+        // like a directory listing's, it depends on more than the archive
+        final String eTag = DirectoryListing.toETag(DirectoryListing.hash(
+                Files.size(archive.getFile()), lastModified), 0, false,
+                authToken, fields);
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setHeader("ETag", eTag);
+        setPrivateCacheHeaders(response, config.getListingMaxAge());
+        if (isNotModified(request, eTag, lastModified)) {
+            response.setStatus(SC_NOT_MODIFIED);
+            return;
+        }
+        response.setContentType(JSON_CONTENT_TYPE);
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Accept-Ranges", "none");
+        if (isHead(request)) {
+            return;
+        }
+        final String baseUri = this.getAbsoluteUri(request);
+        final JSONWriter jsonWriter = new JSONWriter(response.getWriter());
+        jsonWriter.object();
+        jsonWriter.key("files").array();
+        long totalSize = 0;
+        for (ZipArchive.Entry entry : archive.list(path)) {
+            final boolean isDirectory = entry.isDirectory();
+            jsonWriter.object();
+            if (fields.contains(FileField.LINKS)) {
+                jsonWriter.key("_links").object();
+                writeSelfLink(toUri(baseUri, entry.getName(), isDirectory,
+                        authToken), jsonWriter);
+                jsonWriter.endObject();
+            }
+            if (fields.contains(FileField.NAME)) {
+                jsonWriter.key("name").value(entry.getName());
+            }
+            if (fields.contains(FileField.DIRECTORY)) {
+                jsonWriter.key("directory").value(isDirectory);
+            }
+            if (fields.contains(FileField.TYPE)) {
+                jsonWriter.key("type").value(
+                        isDirectory ? config.getDirectoryMimeType()
+                                : getMimeType(entry.getName()));
+            }
+            if (!isDirectory && fields.contains(FileField.SIZE)) {
+                jsonWriter.key("size").value(entry.getSize());
+            }
+            if (fields.contains(FileField.LAST_MODIFIED)) {
+                jsonWriter.key("lastModified").value(entry.getLastModified());
+            }
+            if (!isDirectory && fields.contains(FileField.ETAG)) {
+                jsonWriter.key("eTag").value(getETag(entry));
+            }
+            jsonWriter.endObject();
+            totalSize += entry.getSize();
+        }
+        jsonWriter.endArray();
+        jsonWriter.key("_links").object();
+        writeSelfLink(baseUri, jsonWriter);
+        writeLink("up", getParentUriPath(baseUri), jsonWriter);
+        jsonWriter.endObject();
+        jsonWriter.key("name").value(
+                path.isEmpty() ? archive.getFile().getFileName().toString()
+                        : path.substring(path.lastIndexOf('/') + 1));
+        jsonWriter.key("uri").value(request.getRequestURI());
+        jsonWriter.key("type").value(config.getDirectoryMimeType());
+        if (fields.contains(FileField.SIZE)) {
+            jsonWriter.key("size").value(totalSize);
+        }
+        jsonWriter.key("lastModified").value(lastModified);
+        jsonWriter.key("writeAllowed").value(false);
+        jsonWriter.endObject();
+    }
+
+    /**
+     * Send an entry of an archive, by range if it is stored (rather than
+     * compressed).
+     */
+    private void handleArchiveEntryDownload(HttpServletRequest request,
+            HttpServletResponse response, ZipArchive archive,
+            ZipArchive.Entry entry) throws IOException, ServletException {
+        final long length = entry.getSize();
+        final long lastModified = entry.getLastModified();
+        final String eTag = getETag(entry);
+        final String contentType = getMimeType(entry.getName());
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setHeader("ETag", eTag);
+        response.setHeader("Accept-Ranges", entry.isSeekable() ? "bytes"
+                : "none");
+        final List<Range> ranges = entry.isSeekable() ? parseRange(request,
+                response, eTag, lastModified, length) : Collections
+                .<Range> emptyList();
+        if (ranges == null) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("Cannot handle download of [" + entry.getPath()
+                        + "] in [" + archive.getFile()
+                        + "]. Problem with ranges.");
+            }
+        } else if (isNotModified(request, eTag, lastModified)) {
+            response.setStatus(SC_NOT_MODIFIED);
+        } else if (ranges.isEmpty()) {
+            response.setStatus(SC_OK);
+            response.setContentType(contentType);
+            setContentLength(response, length);
+            if (!isHead(request)) {
+                this.sendArchiveEntry(archive, entry,
+                        response.getOutputStream(), null,
+                        this.getShaper(request));
+            }
+        } else if (ranges.size() == 1) {
+            final Range range = ranges.get(0);
+            response.setStatus(SC_PARTIAL_CONTENT);
+            response.addHeader("Content-Range",
+                    range.toContentRangeHeaderValue());
+            setContentLength(response, range.getBytesToRead());
+            response.setContentType(contentType);
+            if (!isHead(request)) {
+                this.sendArchiveEntry(archive, entry,
+                        response.getOutputStream(), range,
+                        this.getShaper(request));
+            }
+        } else {
+            response.setStatus(SC_PARTIAL_CONTENT);
+            response.setContentType("multipart/byteranges; boundary="
+                    + MULTIPART_BOUNDARY);
+            if (!isHead(request)) {
+                final ServletOutputStream out = response.getOutputStream();
+                final BandwidthLimiter.Shaper shaper = this.getShaper(request);
+                for (Range range : ranges) {
+                    out.println();
+                    out.println("--" + MULTIPART_BOUNDARY);
+                    out.println("Content-Type: " + contentType);
+                    out.println("Content-Range: "
+                            + range.toContentRangeHeaderValue());
+                    out.println();
+                    this.sendArchiveEntry(archive, entry, out, range, shaper);
+                }
+            }
+        }
+    }
+
+    private void sendArchiveEntry(ZipArchive archive, ZipArchive.Entry entry,
+            OutputStream out, Range range, BandwidthLimiter.Shaper shaper)
+            throws IOException {
+        long bytesToRead = range == null ? entry.getSize() : range
+                .getBytesToRead();
+        try (InputStream in = range == null ? archive.open(entry) : archive
+                .open(entry, range.getStart(), bytesToRead)) {
             final byte[] buffer = new byte[config.getBufferSize()];
             for (int bytesRead; bytesToRead > 0
                     && (bytesRead = in.read(buffer, 0,
                             (int) min(buffer.length, bytesToRead))) > 0;) {
-                try {
-                    out.write(buffer, 0, bytesRead);
-                    bytesToRead -= bytesRead;
-                } catch (IOException e) {
-                    if (isClientAbortException(e)) {
-                        if (logger.isDebugEnabled()) {
-                            logger.debug("Client aborted the connection while sending file ["
-                                    + file + "]. Bailing out");
-                        }
-                        return;
-                    } else {
-                        throw e;
-                    }
+                out.write(buffer, 0, bytesRead);
+                bytesToRead -= bytesRead;
+                if (shaper != null) {
+                    shaper.sent(bytesRead);
                 }
             }
-            try {
-                out.flush();
-                if (logger.isTraceEnabled()) {
-                    logger.trace("Sent " + file);
-                }
-            } catch (IOException e) {
-                if (isClientAbortException(e)) {
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Client aborted the connection while flushing file ["
-                                + file + "]. Bailing out");
-                    }
-                    return;
-                } else {
-                    throw e;
+            out.flush();
+        } catch (IOException e) {
+            if (isClientAbortException(e)) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Client aborted the connection while sending ["
+                            + entry.getPath()
+                            + "] in ["
+                            + archive.getFile()
+                            + "]. Bailing out");
                 }
+            } else {
+                throw e;
+            }
+        } finally {
+            if (shaper != null) {
+                shaper.done();
             }
         }
     }
 
+    /**
+     * @return the ETag of an archive entry, which (like the entry itself)
+     *         only changes with its contents
+     */
+    private static String getETag(ZipArchive.Entry entry) {
+        return generateETag(entry.getSize(), entry.getCrc());
+    }
+
     private void handleDownload(HttpServletRequest request,
             HttpServletResponse response, Path file) throws IOException,
             ServletException {
@@ -581,17 +2227,24 @@ public final class WebFilezServlet extends HttpServlet {
                     "Cannot send file [" + file + "] for request URI ["
                             + request.getRequestURI()
                             + "]; file cannot be read");
+        } else if (this.watcher != null && !isHead(request)
+                && "true".equals(request.getParameter("follow"))
+                && request.isAsyncSupported()) {
+            this.handleFollow(request, response, file);
         } else {
             final long length = Files.size(file);
             final long lastModified = Files.getLastModifiedTime(file)
                     .toMillis();
-            final String eTag = generateETag(length, lastModified);
+            final byte[] digest = this.digests.get(file, length, lastModified);
+            final String[] eTags = this.getETags(length, lastModified, digest);
+            final String eTag = eTags[0];
             final String contentType = getMimeType(file);
             if (lastModified >= 0) {
                 response.setDateHeader("Last-Modified", lastModified);
             }
-            if (eTag != null) {
-                response.setHeader("ETag", eTag);
+            response.setHeader("ETag", eTag);
+            if (digest != null) {
+                response.setHeader("Digest", Digests.toHeaderValue(digest));
             }
             response.setHeader("Accept-Ranges", "bytes");
             final List<Range> ranges = parseRange(request, response, eTag,
@@ -602,8 +2255,7 @@ public final class WebFilezServlet extends HttpServlet {
                             + "]. Problem with ranges.");
                 }
                 return;
-            } else if (ifNoneMatch(request, eTag)
-                    || ifModifiedSince(request, lastModified)) {
+            } else if (!isNotModified(request, eTags, lastModified)) {
                 if (ranges.isEmpty()) {
                     if (logger.isTraceEnabled()) {
                         logger.trace(request.getMethod()
@@ -614,8 +2266,14 @@ public final class WebFilezServlet extends HttpServlet {
                     response.setStatus(SC_OK);
                     response.setContentType(contentType);
                     setContentLength(response, length);
-                    if (!isHead(request)) {
-                        sendFile(file, response.getOutputStream(), null);
+                    if (isHead(request)) {
+                        // headers only
+                    } else if (this.isNonBlocking(request, length)) {
+                        this.sendFileNonBlocking(file, 0, length, request,
+                                response);
+                    } else {
+                        sendFile(file, response.getOutputStream(), null,
+                                this.getShaper(request));
                     }
                 } else if (ranges.size() == 1) {
                     final Range range = ranges.get(0);
@@ -630,8 +2288,15 @@ public final class WebFilezServlet extends HttpServlet {
                             range.toContentRangeHeaderValue());
                     setContentLength(response, range.getBytesToRead());
                     response.setContentType(contentType);
-                    if (!isHead(request)) {
-                        sendFile(file, response.getOutputStream(), range);
+                    if (isHead(request)) {
+                        // headers only
+                    } else if (this.isNonBlocking(request,
+                            range.getBytesToRead())) {
+                        this.sendFileNonBlocking(file, range.getStart(),
+                                range.getBytesToRead(), request, response);
+                    } else {
+                        sendFile(file, response.getOutputStream(), range,
+                                this.getShaper(request));
                     }
                 } else if (ranges.size() > 1) {
                     if (logger.isTraceEnabled()) {
@@ -645,6 +2310,8 @@ public final class WebFilezServlet extends HttpServlet {
                     if (!isHead(request)) {
                         final ServletOutputStream out = response
                                 .getOutputStream();
+                        final BandwidthLimiter.Shaper shaper = this
+                                .getShaper(request);
                         for (Range range : ranges) {
                             // Writing MIME header.
                             out.println();
@@ -653,7 +2320,7 @@ public final class WebFilezServlet extends HttpServlet {
                             out.println("Content-Range: "
                                     + range.toContentRangeHeaderValue());
                             out.println();
-                            sendFile(file, out, range);
+                            sendFile(file, out, range, shaper);
                         }
                     }
                 }
@@ -663,6 +2330,349 @@ public final class WebFilezServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Send the file from the given <code>offset</code> (which counts from
+     * the end if it is negative; by default, the whole file), and then keep
+     * the response open to send whatever gets appended to it, until it has
+     * not grown for a while.
+     */
+    private void handleFollow(HttpServletRequest request,
+            HttpServletResponse response, Path file) throws IOException,
+            ServletException {
+        final long size = Files.size(file);
+        long offset = 0;
+        final String offsetParam = request.getParameter("offset");
+        if (offsetParam != null) {
+            try {
+                offset = Long.parseLong(offsetParam);
+            } catch (NumberFormatException e) {
+                this.refuseBadRequest(request, response, "Invalid offset ["
+                        + offsetParam + "]");
+                return;
+            }
+        }
+        final long position = offset < 0 ? max(0, size + offset) : min(
+                offset, size);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Following [" + file + "] from [" + position + "]");
+        }
+        response.setStatus(SC_OK);
+        response.setContentType(getMimeType(file));
+        setNoCacheHeaders(response);
+        final AsyncContext asyncContext = request.startAsync();
+        // we time out on inactivity ourselves
+        asyncContext.setTimeout(0);
+        final FileFollower follower = new FileFollower(asyncContext, file,
+                position, this.watcher, this.followExecutor,
+                this.followTimer,
+                this.config.getFollowIdleTimeout() * 1000L,
+                this.config.getBufferSize());
+        try {
+            follower.start();
+        } catch (IOException e) {
+            asyncContext.complete();
+            throw e;
+        }
+    }
+
+    private static boolean isPartialPut(HttpServletRequest request) {
+        return request.getHeader("Content-Range") != null
+                || "true".equals(request.getParameter("append"));
+    }
+
+    /**
+     * Write the request body into the given file in place: either at the
+     * range given by the "Content-Range" header, or (with
+     * <code>append=true</code>) at the end of the file. Either may create the
+     * file, but not leave a hole in it. A body that stops short is refused,
+     * with how far the file got in a "Range" header.
+     */
+    private boolean handlePartialPut(Path file, HttpServletRequest request,
+            HttpServletResponse response) throws ServletException, IOException {
+        final Range range;
+        try {
+            range = parseContentRange(request.getHeader("Content-Range"));
+        } catch (IllegalArgumentException e) {
+            this.refuseBadRequest(request, response, e.getMessage());
+            return false;
+        }
+        final long contentLength = request.getContentLength();
+        final long bytesToWrite = range == null ? contentLength : range
+                .getBytesToRead();
+        if (bytesToWrite < 0) {
+            this.refuseRequest(request, response, SC_LENGTH_REQUIRED,
+                    "Cannot append to [" + file + "] without a Content-Length");
+            return false;
+        } else if (range != null && contentLength >= 0
+                && contentLength != bytesToWrite) {
+            this.refuseBadRequest(request, response, "Content-Length ["
+                    + contentLength + "] does not match Content-Range ["
+                    + range.toContentRangeHeaderValue() + "]");
+            return false;
+        }
+        final long size = Files.exists(file) ? Files.size(file) : 0;
+        if (range != null && range.getStart() > size) {
+            this.refuseRequest(request, response,
+                    SC_REQUESTED_RANGE_NOT_SATISFIABLE, "Cannot write ["
+                            + range + "] to [" + file + "] of size [" + size
+                            + "] without leaving a hole");
+            return false;
+        }
+        final long quota = this.getQuota(request);
+        if (quota > 0) {
+            final long need = range == null ? bytesToWrite : max(0,
+                    range.getEnd() + 1 - size);
+            final long usage = this.getUsage(this.getBasePath(request, true));
+            if (usage + need > quota) {
+                refuseOverQuotaRequest(request, response, "write to " + file,
+                        need, usage, quota);
+                return false;
+            }
+        }
+        final Path parentDir = file.getParent();
+        if (!Files.exists(parentDir)) {
+            Files.createDirectories(parentDir);
+        }
+        if (Files.exists(file)) {
+            this.breakLink(file);
+            this.digests.invalidate(file);
+        }
+        final InputStream in = request.getInputStream();
+        try (FileChannel out = range == null ? FileChannel.open(file,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND) : FileChannel.open(file,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            long position = range == null ? -1 : range.getStart();
+            long bytesToRead = bytesToWrite;
+            final byte[] buffer = new byte[config.getBufferSize()];
+            while (bytesToRead > 0) {
+                final int numRead;
+                try {
+                    numRead = in.read(buffer, 0,
+                            (int) min(buffer.length, bytesToRead));
+                    if (numRead == -1) {
+                        break;
+                    }
+                    bytesToRead -= numRead;
+                } catch (IOException e) {
+                    this.changed(file);
+                    setWrittenRange(response, position < 0 ? out.size()
+                            : position);
+                    this.refuseBadRequest(request, response,
+                            "Failed to read data from the client ["
+                                    + request.getRemoteAddr()
+                                    + "] while writing to file [" + file
+                                    + "]. Aborting.", e);
+                    return false;
+                }
+                final ByteBuffer data = ByteBuffer.wrap(buffer, 0, numRead);
+                while (data.hasRemaining()) {
+                    if (position < 0) {
+                        // with APPEND, every write goes to the (current) end
+                        out.write(data);
+                    } else {
+                        position += out.write(data, position);
+                    }
+                }
+            }
+            if (bytesToRead != 0) {
+                // what did arrive was written in place, so the client has to
+                // know where to carry on from
+                this.changed(file);
+                setWrittenRange(response, position < 0 ? out.size()
+                        : position);
+                this.refuseBadRequest(request, response, "Wrote ["
+                        + (bytesToWrite - bytesToRead) + "] bytes to [" + file
+                        + "] but expected [" + bytesToWrite + "]");
+                return false;
+            } else if (logger.isDebugEnabled()) {
+                logger.debug("Wrote [" + bytesToWrite + "] bytes to [" + file
+                        + "] at ["
+                        + (range == null ? "end" : range.getStart()) + "]");
+            }
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
+    /**
+     * Tell the client of a partial write that stopped short that the file
+     * now runs up to the given offset (as with a resumable upload), so that
+     * it can resume from there.
+     */
+    private static void setWrittenRange(HttpServletResponse response,
+            long end) {
+        if (end > 0) {
+            response.setHeader("Range", "bytes=0-" + (end - 1));
+        }
+    }
+
+    /**
+     * Make sure that the given file is not a hard link shared with other
+     * files (see {@link ParallelCopier.Strategy#LINK}), before modifying it in
+     * place.
+     */
+    private void breakLink(Path file) throws IOException {
+        final Object links;
+        try {
+            links = Files.getAttribute(file, "unix:nlink");
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return; // no hard links here
+        }
+        if (links instanceof Integer && (Integer) links > 1) {
+            final Path tempFile = getTempFile(file, ".unlinking");
+            try {
+                this.copier.copy(file, tempFile, Long.MAX_VALUE);
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Unlinked [" + file + "] from [" + links
+                        + "] other link(s)");
+            }
+        }
+    }
+
+    /**
+     * Send the checksums of the blocks of the given file, which a client can
+     * use to send us a delta (see {@link Delta}).
+     */
+    private void handleChecksums(HttpServletRequest request,
+            HttpServletResponse response, Path file) throws IOException,
+            JSONException, ServletException {
+        final long size = Files.size(file);
+        final long lastModified = Files.getLastModifiedTime(file).toMillis();
+        final int blockSize;
+        try {
+            final String value = request.getParameter("blockSize");
+            blockSize = value == null ? Delta.getDefaultBlockSize(size)
+                    : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            this.refuseBadRequest(request, response, "Invalid block size");
+            return;
+        }
+        if (blockSize < Delta.MIN_BLOCK_SIZE
+                || blockSize > Delta.MAX_BLOCK_SIZE) {
+            this.refuseBadRequest(request, response, "Block size must be in ["
+                    + Delta.MIN_BLOCK_SIZE + ", " + Delta.MAX_BLOCK_SIZE + "]");
+            return;
+        }
+        if (logger.isTraceEnabled()) {
+            logger.trace("Sending checksums of [" + size + "/" + blockSize
+                    + "] blocks of [" + file + "]");
+        }
+        final String eTag = this.getETags(file, size, lastModified)[0];
+        response.setStatus(SC_OK);
+        response.setContentType(JSON_CONTENT_TYPE);
+        response.setHeader("ETag", eTag);
+        setNoCacheHeaders(response);
+        final JSONWriter jsonWriter = new JSONWriter(response.getWriter());
+        jsonWriter.object();
+        jsonWriter.key("size").value(size);
+        jsonWriter.key("blockSize").value(blockSize);
+        jsonWriter.key("eTag").value(eTag);
+        jsonWriter.key("blocks").array();
+        final MessageDigest md5 = Delta.newBlockDigest();
+        final ByteBuffer block = ByteBuffer.allocate(blockSize);
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (long position = 0; position < size; position += blockSize) {
+                block.clear();
+                while (block.hasRemaining()
+                        && in.read(block, position + block.position()) > 0) {
+                    // keep reading until the block is full (or we reach EOF)
+                }
+                final int length = block.position();
+                if (length == 0) {
+                    break;
+                }
+                md5.update(block.array(), 0, length);
+                jsonWriter.array();
+                jsonWriter.value(Delta.checksum(block.array(), 0, length));
+                jsonWriter.value(Digests.toHex(md5.digest()));
+                jsonWriter.endArray();
+            }
+        }
+        jsonWriter.endArray();
+        jsonWriter.endObject();
+        response.flushBuffer();
+    }
+
+    /**
+     * Apply a delta (see {@link Delta}) from the client to the given file.
+     * The result is written to a new file, which then replaces the original.
+     */
+    private void handleDelta(Path file, HttpServletRequest request,
+            HttpServletResponse response) throws ServletException,
+            IOException, JSONException {
+        final long size = Files.size(file);
+        final long lastModified = Files.getLastModifiedTime(file).toMillis();
+        if (request.getHeader("If-Match") == null) {
+            // the delta only makes sense against the version it was made for
+            this.refuseRequest(request, response, SC_PRECONDITION_FAILED,
+                    "Refusing to apply a delta to [" + file
+                            + "] without an If-Match precondition");
+            return;
+        } else if (!ifMatch(request, this.getETags(file, size, lastModified))
+                || !ifUnmodifiedSince(request, lastModified)) {
+            this.refuseRequest(request, response, SC_PRECONDITION_FAILED,
+                    "Cannot apply delta to file for which precondition failed: ["
+                            + file + "]");
+            return;
+        }
+        final long quota = this.getQuota(request);
+        final long usage = quota > 0 ? this.getUsage(this.getBasePath(
+                request, true)) : 0;
+        final byte[] expectedDigest = Digests.fromHeaderValue(request
+                .getHeader("Digest"));
+        final MessageDigest digest = Digests.newMessageDigest();
+        final Path tempFile = getTempFile(file, ".patching");
+        try {
+            final long newSize;
+            try (FileChannel original = FileChannel.open(file,
+                    StandardOpenOption.READ);
+                    FileChannel result = FileChannel.open(tempFile,
+                            StandardOpenOption.WRITE,
+                            StandardOpenOption.CREATE_NEW);
+                    DataInputStream delta = new DataInputStream(
+                            new BufferedInputStream(request.getInputStream(),
+                                    config.getBufferSize()))) {
+                newSize = Delta.apply(original, delta, result, digest,
+                        config.getBufferSize(), quota > 0 ? quota - usage
+                                + size : Long.MAX_VALUE);
+            } catch (Delta.TooLargeException e) {
+                this.refuseOverQuotaRequest(request, response,
+                        "apply delta to " + file, e.getSize() - size, usage,
+                        quota);
+                return;
+            } catch (IllegalArgumentException e) {
+                this.refuseBadRequest(request, response,
+                        "Invalid delta for [" + file + "]: " + e.getMessage());
+                return;
+            }
+            final byte[] actualDigest = digest.digest();
+            if (expectedDigest != null
+                    && !Arrays.equals(expectedDigest, actualDigest)) {
+                this.refuseBadRequest(request, response, "Result of delta to ["
+                        + file + "] does not match its digest. Aborting.");
+                return;
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            this.digests.put(file, actualDigest);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Applied delta to [" + file + "], which went from ["
+                        + size + "] to [" + newSize + "] bytes");
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        this.changed(file);
+        this.sendFileInfoResponse(request, response, file, true);
+    }
+
     private void handleUpload(Path dir, HttpServletRequest request,
             HttpServletResponse response) throws ServletException, IOException,
             JSONException {
@@ -691,8 +2701,9 @@ public final class WebFilezServlet extends HttpServlet {
                             + file, partSize, usage, quota);
                     return;
                 }
-                if (handleSingleUpload(part.getInputStream(), partSize, file,
-                        request, response)) {
+                if (handleSingleUpload(part.getInputStream(), partSize, null,
+                        file, request, response)) {
+                    this.changed(file);
                     uploadedFiles.add(file);
                     usage += Files.size(file);
                 } else {
@@ -703,7 +2714,14 @@ public final class WebFilezServlet extends HttpServlet {
         sendFileInfoResponse(request, response, uploadedFiles, false);
     }
 
-    private boolean handleSingleUpload(final Path target,
+    /**
+     * @param responseCode
+     *            what to respond with, if the upload goes on (and finishes)
+     *            without us
+     * @return true if the file was uploaded, false if the request was refused
+     *         or if the upload goes on without us
+     */
+    private boolean handleSingleUpload(final Path target, int responseCode,
             final HttpServletRequest request, final HttpServletResponse response)
             throws ServletException, IOException {
         InputStream in = null;
@@ -744,14 +2762,27 @@ public final class WebFilezServlet extends HttpServlet {
                 return false;
             }
         }
+        byte[] expectedDigest = null;
+        Path existing = null;
+        boolean nonBlocking = false;
         if (in == null) {
             contentLength = request.getContentLength();
-            if (contentLength > 0) {
+            // if we already have the content, we do not want the body (and
+            // with "Expect: 100-continue", the client will not even send it)
+            expectedDigest = Digests.fromHeaderValue(request
+                    .getHeader("Digest"));
+            if (expectedDigest != null && contentLength > 0) {
+                existing = this.digestIndex.find(
+                        this.resolvePath(this.getBasePath(request, true)),
+                        expectedDigest, contentLength);
+            }
+            if (existing == null && contentLength > 0) {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Uploading [" + contentLength
                             + "] bytes from requst to [" + target + "]");
                 }
                 in = request.getInputStream();
+                nonBlocking = this.isNonBlocking(request, contentLength);
             }
         }
         final long quota = this.getQuota(request);
@@ -770,7 +2801,9 @@ public final class WebFilezServlet extends HttpServlet {
                 logger.debug("Created parent directory for [" + target + "]");
             }
         }
-        if (in == null || contentLength == 0) {
+        if (existing != null) {
+            this.createFromExisting(existing, target);
+        } else if (in == null || contentLength == 0) {
             if (Files.exists(target)) {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Overwriting [" + target
@@ -791,19 +2824,146 @@ public final class WebFilezServlet extends HttpServlet {
                 Files.delete(target);
                 Files.createFile(target);
             }
+        } else if (nonBlocking) {
+            this.handleNonBlockingUpload(contentLength, expectedDigest,
+                    target, responseCode, request, response);
+            return false;
         } else {
-            this.handleSingleUpload(in, contentLength, target, request,
-                    response);
+            return this.handleSingleUpload(in, contentLength, expectedDigest,
+                    target, request, response);
         }
         return true;
     }
 
+    /**
+     * Receive the request body into the target without holding on to a
+     * thread while the client has not sent more, and respond once it has all
+     * arrived.
+     */
+    private void handleNonBlockingUpload(final long contentLength,
+            final byte[] expectedDigest, final Path target,
+            final int responseCode, final HttpServletRequest request,
+            final HttpServletResponse response) throws IOException {
+        // as with a blocking upload, write to a new file and rename it over
+        // the target
+        final Path tempFile = getTempFile(target, ".uploading");
+        final AsyncContext asyncContext = this.startTransfer(request,
+                response);
+        final NonBlockingUpload upload = new NonBlockingUpload(
+                request.getInputStream(), tempFile,
+                this.config.getBufferSize(), new NonBlockingUpload.Listener() {
+                    @Override
+                    public void uploaded(long bytes, byte[] digest) {
+                        try {
+                            if (bytes != contentLength) {
+                                if (logger.isWarnEnabled()) {
+                                    logger.warn("Uploaded [" + bytes
+                                            + "] bytes to [" + target
+                                            + "] but expected ["
+                                            + contentLength + "]. Ignoring.");
+                                }
+                            } else if (logger.isDebugEnabled()) {
+                                logger.debug("Uploaded [" + bytes
+                                        + "] bytes to [" + target + "]");
+                            }
+                            if (expectedDigest != null
+                                    && !Arrays.equals(expectedDigest, digest)) {
+                                refuseBadRequest(request, response,
+                                        "Content of [" + target
+                                                + "] does not match its"
+                                                + " digest. Aborting.");
+                                return;
+                            }
+                            Files.move(tempFile, target,
+                                    StandardCopyOption.REPLACE_EXISTING,
+                                    StandardCopyOption.ATOMIC_MOVE);
+                            // under its final name, as with blocking uploads
+                            digests.put(target, digest);
+                            sendPutResponse(target, responseCode, request,
+                                    response);
+                        } catch (IOException | ServletException e) {
+                            failUpload(target, tempFile, response, e);
+                        } finally {
+                            deleteUpload(tempFile);
+                            asyncContext.complete();
+                        }
+                    }
+
+                    @Override
+                    public void failed(Throwable error, boolean reading) {
+                        try {
+                            if (reading) {
+                                refuseBadRequest(request, response,
+                                        "Failed to read data from the client ["
+                                                + request.getRemoteAddr()
+                                                + "] while writing file ["
+                                                + target + "]. Aborting.",
+                                        error);
+                            } else {
+                                failUpload(target, tempFile, response, error);
+                            }
+                        } catch (IOException | ServletException
+                                | IllegalStateException e) {
+                            // the response is beyond saving
+                            if (logger.isDebugEnabled()) {
+                                logger.debug("Failed to refuse upload to ["
+                                        + target + "]", e);
+                            }
+                        } finally {
+                            deleteUpload(tempFile);
+                            asyncContext.complete();
+                        }
+                    }
+                });
+        try {
+            upload.start();
+        } catch (IOException e) {
+            asyncContext.complete();
+            throw e;
+        }
+    }
+
+    private void failUpload(Path target, Path tempFile,
+            HttpServletResponse response, Throwable cause) {
+        logger.error("Failed to upload [" + target + "] via [" + tempFile
+                + "]", cause);
+        if (!response.isCommitted()) {
+            try {
+                response.sendError(SC_INTERNAL_SERVER_ERROR);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void deleteUpload(Path tempFile) {
+        try {
+            Files.deleteIfExists(tempFile);
+        } catch (IOException e) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("Failed to delete [" + tempFile + "]", e);
+            }
+        }
+    }
+
+    /**
+     * @param expectedDigest
+     *            the digest that the client claims the content to have (if
+     *            any); the upload is refused if it does not
+     */
     private boolean handleSingleUpload(final InputStream sourceStream,
-            final long sourceLength, final Path target,
+            final long sourceLength, final byte[] expectedDigest,
+            final Path target,
             final HttpServletRequest request, final HttpServletResponse response)
             throws ServletException, IOException {
+        // write to a new file and rename it over the target, so that readers
+        // never see a partial file, and so that we never write through a
+        // hard link (see ParallelCopier)
+        final Path tempFile = getTempFile(target, ".uploading");
+        final MessageDigest digest = Digests.newMessageDigest();
         try {
-            try (final OutputStream out = Files.newOutputStream(target)) {
+            try (final OutputStream out = new DigestOutputStream(
+                    Files.newOutputStream(tempFile,
+                            StandardOpenOption.CREATE_NEW), digest)) {
                 long bytesToRead = sourceLength;
                 byte[] buffer = new byte[config.getBufferSize()];
                 while (bytesToRead > 0) {
@@ -816,7 +2976,6 @@ public final class WebFilezServlet extends HttpServlet {
                         }
                         bytesToRead -= numRead;
                     } catch (IOException e) {
-                        Files.deleteIfExists(target);
                         this.refuseBadRequest(request, response,
                                 "Failed to read data from the client ["
                                         + request.getRemoteAddr()
@@ -826,23 +2985,240 @@ public final class WebFilezServlet extends HttpServlet {
                     }
                     out.write(buffer, 0, numRead);
                 }
-                if (bytesToRead != 0) {
-                    if (logger.isWarnEnabled()) {
-                        logger.warn("Uploaded [" + (sourceLength - bytesToRead)
-                                + "] bytes to [" + target + "] but expected ["
-                                + sourceLength + "]. Ignoring.");
-                    }
-                } else {
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Uploaded [" + sourceLength
-                                + "] bytes to [" + target + "]");
-                    }
+                if (bytesToRead != 0) {
+                    if (logger.isWarnEnabled()) {
+                        logger.warn("Uploaded [" + (sourceLength - bytesToRead)
+                                + "] bytes to [" + target + "] but expected ["
+                                + sourceLength + "]. Ignoring.");
+                    }
+                } else {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Uploaded [" + sourceLength
+                                + "] bytes to [" + target + "]");
+                    }
+                }
+            }
+            final byte[] actualDigest = digest.digest();
+            if (expectedDigest != null
+                    && !Arrays.equals(expectedDigest, actualDigest)) {
+                this.refuseBadRequest(request, response, "Content of ["
+                        + target + "] does not match its digest. Aborting.");
+                return false;
+            }
+            Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            // record it under its final name (so that the index can find it)
+            this.digests.put(target, actualDigest);
+            return true;
+        } finally {
+            sourceStream.close();
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * @return true if the request's preconditions allow the given (existing)
+     *         file to be replaced
+     */
+    private boolean canReplace(Path file, HttpServletRequest request)
+            throws IOException {
+        final long lastModified = Files.getLastModifiedTime(file).toMillis();
+        final String[] eTags = this.getETags(file, Files.size(file),
+                lastModified);
+        return ifMatch(request, eTags) && ifNoneMatch(request, eTags)
+                && ifUnmodifiedSince(request, lastModified);
+    }
+
+    /**
+     * The second half of the upload handshake: given the names, digests (in
+     * the same <code>SHA-256=&lt;base64&gt;</code> form as the
+     * <code>Digest</code> header), and sizes of the files to be uploaded,
+     * create the ones whose content we already have in this base path. The
+     * client then only needs to upload the rest (i.e. the ones that come back
+     * as not found). Existing files are only replaced if the request's
+     * preconditions allow it, as with a PUT.
+     */
+    private void handleUploadByDigest(Path dir, HttpServletRequest request,
+            HttpServletResponse response) throws ServletException,
+            IOException, JSONException {
+        final String[] filenames = request.getParameterValues("file");
+        final String[] digests = request.getParameterValues("digest");
+        final String[] sizes = request.getParameterValues("size");
+        if (filenames == null || digests == null || sizes == null
+                || filenames.length != digests.length
+                || filenames.length != sizes.length) {
+            this.refuseBadRequest(request, response,
+                    "Expecting a [digest] and a [size] for every [file]");
+            return;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Handling request to upload [" + filenames.length
+                    + "] file(s) by digest to directory [" + dir + "]");
+        }
+        final String basePath = this.getBasePath(request, true);
+        final Path basePathDir = this.resolvePath(basePath);
+        final long quota = this.getQuota(request);
+        long usage = quota > 0 ? this.getUsage(basePath) : 0;
+        response.setStatus(SC_OK);
+        response.setContentType(JSON_CONTENT_TYPE);
+        final JSONWriter jsonWriter = new JSONWriter(response.getWriter());
+        jsonWriter.object();
+        jsonWriter.key("files").array();
+        for (int i = 0; i < filenames.length; i++) {
+            final Path file = this.resolveSafe(dir, filenames[i]);
+            int status;
+            try {
+                final byte[] digest = Digests.fromHeaderValue(digests[i]);
+                final long size = Long.parseLong(sizes[i]);
+                final Path existing = file == null || digest == null ? null
+                        : this.digestIndex.find(basePathDir, digest, size);
+                if (file == null || digest == null) {
+                    status = SC_BAD_REQUEST;
+                } else if (Files.isDirectory(file)) {
+                    status = SC_CONFLICT;
+                } else if (Files.exists(file)
+                        && !this.canReplace(file, request)) {
+                    status = SC_PRECONDITION_FAILED;
+                } else if (existing == null) {
+                    status = SC_NOT_FOUND;
+                } else if (quota > 0 && usage + size > quota) {
+                    status = SC_REQUEST_ENTITY_TOO_LARGE;
+                } else {
+                    this.createFromExisting(existing, file);
+                    this.changed(file);
+                    usage += size;
+                    status = SC_CREATED;
+                }
+            } catch (IllegalArgumentException e) {
+                status = SC_BAD_REQUEST;
+            } catch (IOException e) {
+                logger.error("Failed to upload [" + file + "] by digest", e);
+                status = SC_INTERNAL_SERVER_ERROR;
+            }
+            jsonWriter.object();
+            jsonWriter.key("name").value(filenames[i]);
+            jsonWriter.key("status").value(status);
+            jsonWriter.endObject();
+        }
+        jsonWriter.endArray();
+        jsonWriter.endObject();
+        response.flushBuffer();
+    }
+
+    /**
+     * Create the given target with the same content as the given existing
+     * file, by linking to it where possible. Like any upload, this replaces
+     * the target (rather than writing into it). Note that the target ends up
+     * with the modification time of the existing file.
+     */
+    private void createFromExisting(Path existing, Path target)
+            throws IOException {
+        final Path parentDir = target.getParent();
+        if (!Files.exists(parentDir)) {
+            Files.createDirectories(parentDir);
+        }
+        final Path tempFile = getTempFile(target, ".uploading");
+        try {
+            this.copier.copy(existing, tempFile, Long.MAX_VALUE,
+                    ParallelCopier.Strategy.LINK);
+            Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Created [" + target + "] from [" + existing
+                    + "], which has the same content");
+        }
+    }
+
+    private void handleBatchDelete(Path dir, final HttpServletRequest request,
+            HttpServletResponse response) throws ServletException,
+            IOException, JSONException, InterruptedException {
+        final String[] filenames = request.getParameterValues("file");
+        if (filenames == null || filenames.length == 0) {
+            this.refuseBadRequest(request, response,
+                    "Select at least one file to delete");
+            return;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Handling request to delete [" + filenames.length
+                    + "] file(s) in directory [" + dir + "]");
+        }
+        final List<Callable<Integer>> tasks = new ArrayList<>(
+                filenames.length);
+        for (String filename : filenames) {
+            final Path file = this.resolveSafe(dir, filename);
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return deleteIfMatch(file, request);
+                }
+            });
+        }
+        final List<Future<Integer>> results = this.deleteExecutor
+                .invokeAll(tasks);
+        response.setStatus(SC_OK);
+        response.setContentType(JSON_CONTENT_TYPE);
+        final JSONWriter jsonWriter = new JSONWriter(response.getWriter());
+        jsonWriter.object();
+        jsonWriter.key("files").array();
+        for (int i = 0; i < filenames.length; i++) {
+            int status;
+            try {
+                status = results.get(i).get();
+            } catch (ExecutionException e) {
+                status = SC_INTERNAL_SERVER_ERROR;
+            }
+            jsonWriter.object();
+            jsonWriter.key("name").value(filenames[i]);
+            jsonWriter.key("status").value(status);
+            jsonWriter.endObject();
+        }
+        jsonWriter.endArray();
+        jsonWriter.endObject();
+        response.flushBuffer();
+    }
+
+    /**
+     * Delete a file as part of a batch, checking the request's preconditions
+     * against the file itself.
+     *
+     * @return the status code that a DELETE of this file alone would have
+     *         gotten
+     */
+    private int deleteIfMatch(Path file, HttpServletRequest request) {
+        if (file == null) {
+            return SC_BAD_REQUEST;
+        }
+        try {
+            if (!Files.exists(file)) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Cannot delete a file that does not exist ["
+                            + file + "]");
+                }
+                return SC_NOT_FOUND;
+            }
+            final long lastModified = Files.getLastModifiedTime(file)
+                    .toMillis();
+            if (!ifMatch(request, this.getETags(file, Files.size(file),
+                    lastModified))
+                    || !ifUnmodifiedSince(request, lastModified)) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Refusing to delete file for which precondition failed: ["
+                            + file + "]");
                 }
-                return true;
+                return SC_PRECONDITION_FAILED;
             }
-            // TODO: store MD5 in xattr?
-        } finally {
-            sourceStream.close();
+            this.remove(file);
+            this.changed(file);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Deleted [" + file + "]");
+            }
+            return SC_NO_CONTENT;
+        } catch (IOException e) {
+            logger.error("Failed to delete [" + file + "]", e);
+            return SC_INTERNAL_SERVER_ERROR;
         }
     }
 
@@ -853,36 +3229,60 @@ public final class WebFilezServlet extends HttpServlet {
             logger.debug("Handling request to zip files in directory [" + dir
                     + "]");
         }
-        final Path zipFile;
         final List<Path> files = this.getFilesFromRequest(request, dir);
-        if (files.size() == 1) {
-            final Path file = files.get(0);
-            zipFile = getUniqueFileInDirectory(dir, file.getFileName()
-                    .toString(), ".zip");
-            if (Files.isDirectory(file)) {
-                if (logger.isTraceEnabled()) {
-                    logger.trace("Zipping directory [" + file + "] to ["
-                            + zipFile + "]");
-                }
-                zipDirectory(file, zipFile);
-            } else {
-                if (logger.isTraceEnabled()) {
-                    logger.trace("Zipping file [" + file + "] to [" + zipFile
-                            + "]");
-                }
-                zipFile(file, zipFile);
-            }
-        } else {
-            zipFile = getUniqueFileInDirectory(dir, "Archive", ".zip");
-            if (logger.isTraceEnabled()) {
-                logger.trace("Zipping files [" + files + "] to [" + zipFile
-                        + "]");
-            }
-            zipFiles(dir, files, zipFile);
+        final Path zipFile = getZipFile(dir, files);
+        if (isRespondAsync(request)) {
+            final Map<String, String> params = new LinkedHashMap<>();
+            params.put("dir", dir.toString());
+            params.put("files", joinPaths(files));
+            // named up front, so that a restarted job makes the same one
+            params.put("zipFile", zipFile.toString());
+            this.submitJob(request, response, "zip", params);
+            return;
         }
+        this.createZip(dir, files, zipFile, null);
         this.sendFileInfoResponse(request, response, zipFile, false);
     }
 
+    /**
+     * @return a new file in the given directory to zip the given files to
+     */
+    private static Path getZipFile(Path dir, List<Path> files) {
+        return files.size() == 1 ? getUniqueFileInDirectory(dir, files.get(0)
+                .getFileName().toString(), ".zip") : getUniqueFileInDirectory(
+                dir, "Archive", ".zip");
+    }
+
+    /**
+     * Zip the given files to the given ZIP file (next to it, only putting it
+     * in place once it is complete).
+     */
+    private void createZip(Path dir, List<Path> files, Path zipFile,
+            final JobManager.Job job) throws IOException {
+        if (logger.isTraceEnabled()) {
+            logger.trace("Zipping files [" + files + "] to [" + zipFile + "]");
+        }
+        final Path temp = getTempFile(zipFile, "");
+        if (job != null) {
+            job.setScratch(temp);
+        }
+        try {
+            // a single directory is zipped as relative to its own parent
+            zipFiles(files.size() == 1 ? files.get(0).getParent() : dir,
+                    files, temp, job == null ? null : new PathHandler() {
+                        @Override
+                        public void handle(Path file) throws IOException {
+                            job.progress(Files.size(file), 1);
+                        }
+                    });
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, zipFile, StandardCopyOption.ATOMIC_MOVE);
+        this.changed(zipFile);
+    }
+
     private void handleUnzip(Path file, HttpServletRequest request,
             HttpServletResponse response) throws Exception {
         if (logger.isDebugEnabled()) {
@@ -898,18 +3298,122 @@ public final class WebFilezServlet extends HttpServlet {
                 return;
             }
         }
+        if (isRespondAsync(request)) {
+            final Map<String, String> params = new LinkedHashMap<>();
+            params.put("file", file.toString());
+            this.submitJob(request, response, "unzip", params);
+            return;
+        }
+        this.sendFileInfoResponse(request, response,
+                this.extractZip(file, null), true);
+    }
+
+    /**
+     * Unzip the given file into its own directory. It is extracted into a
+     * (scratch) staging directory next to it first, and only moved into place
+     * once all of it is there, so that a failed, cancelled, or interrupted
+     * unzip leaves nothing behind. Files that are already in place with the
+     * same size and modification time (e.g. moved there by an attempt that
+     * was interrupted) are taken as extracted; any other file in the way
+     * fails the unzip before anything is moved.
+     *
+     * @return the files and directories at the top of the archive
+     */
+    private Collection<Path> extractZip(Path file, final JobManager.Job job)
+            throws IOException {
         final Path dir = file.getParent();
-        final Collection<Path> immediateCreatedFiles = new LinkedList<>();
-        unzip(file, dir, new PathHandler() {
+        final Path staging = getTempFile(file, ".unzipping");
+        if (job != null) {
+            job.setScratch(staging);
+        }
+        try {
+            Files.createDirectory(staging);
+            unzip(file, staging, job == null ? null : new PathHandler() {
+                @Override
+                public void handle(Path createdFile) throws IOException {
+                    if (!Files.isDirectory(createdFile)) {
+                        job.progress(Files.size(createdFile), 1);
+                    }
+                }
+            });
+            checkUnzipped(staging, dir);
+            final Collection<Path> immediateFiles = new LinkedList<>();
+            try (DirectoryStream<Path> entries = Files
+                    .newDirectoryStream(staging)) {
+                for (Path entry : entries) {
+                    final Path target = dir.resolve(entry.getFileName()
+                            .toString());
+                    this.moveUnzipped(entry, target);
+                    immediateFiles.add(target);
+                }
+            }
+            return immediateFiles;
+        } finally {
+            if (Files.exists(staging)) {
+                FileUtil.delete(staging);
+            }
+        }
+    }
+
+    /**
+     * @throws FileAlreadyExistsException
+     *             if moving the given unzipped tree into the given directory
+     *             would replace anything other than an identical file
+     */
+    private static void checkUnzipped(final Path staging, final Path dir)
+            throws IOException {
+        Files.walkFileTree(staging, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d,
+                    BasicFileAttributes attrs) throws IOException {
+                final Path target = this.getTarget(d);
+                if (Files.exists(target) && !Files.isDirectory(target)) {
+                    throw new FileAlreadyExistsException(target.toString());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
             @Override
-            public void handle(Path createdFile) throws IOException {
-                if (Files.isSameFile(createdFile.getParent(), dir)) {
-                    immediateCreatedFiles.add(createdFile);
+            public FileVisitResult visitFile(Path file,
+                    BasicFileAttributes attrs) throws IOException {
+                final Path target = this.getTarget(file);
+                if (Files.exists(target) && !isSameFile(attrs, target)) {
+                    throw new FileAlreadyExistsException(target.toString());
                 }
+                return FileVisitResult.CONTINUE;
+            }
+
+            private Path getTarget(Path unzipped) {
+                return dir.resolve(staging.relativize(unzipped).toString());
             }
         });
-        this.sendFileInfoResponse(request, response, immediateCreatedFiles,
-                true);
+    }
+
+    private static boolean isSameFile(BasicFileAttributes attrs, Path file)
+            throws IOException {
+        final BasicFileAttributes fileAttrs = Files.readAttributes(file,
+                BasicFileAttributes.class);
+        return fileAttrs.isRegularFile() && fileAttrs.size() == attrs.size()
+                && fileAttrs.lastModifiedTime().equals(attrs.lastModifiedTime());
+    }
+
+    /**
+     * Move the given unzipped file (or directory) to the given target, merging
+     * it into the target if both are directories.
+     */
+    private void moveUnzipped(Path unzipped, Path target) throws IOException {
+        if (Files.isDirectory(unzipped) && Files.isDirectory(target)) {
+            try (DirectoryStream<Path> entries = Files
+                    .newDirectoryStream(unzipped)) {
+                for (Path entry : entries) {
+                    this.moveUnzipped(entry, target.resolve(entry
+                            .getFileName().toString()));
+                }
+            }
+        } else if (!Files.exists(target)) {
+            Files.move(unzipped, target, StandardCopyOption.ATOMIC_MOVE);
+            this.changed(target);
+        }
     }
 
     private void handleRename(Path file, HttpServletRequest request,
@@ -928,6 +3432,8 @@ public final class WebFilezServlet extends HttpServlet {
                     + "] because newFile=[" + newFile + "] already exists");
         } else {
             Files.move(file, newFile);
+            this.changed(file);
+            this.changed(newFile);
             if (logger.isDebugEnabled()) {
                 logger.debug("Renamed [" + file + "] to [" + newFile + "]");
             }
@@ -950,30 +3456,38 @@ public final class WebFilezServlet extends HttpServlet {
         try {
             final Path source = this.getSourcePath(request);
             if (Files.exists(source)) {
-                final Path target = source.getParent().equals(targetDir) ? getUniqueFileInDirectory(
-                        targetDir, source.getFileName().toString()) : targetDir
-                        .resolve(source.getFileName());
+                final Path target = getCopyTarget(source, targetDir);
                 if (Files.exists(target) && !isOverwrite(request)) {
                     this.refuseBadRequest(request, response,
                             "Refusing to copy [" + source + "] to [" + target
                                     + "], which already exists.");
+                } else if (isRespondAsync(request)) {
+                    final Map<String, String> params = new LinkedHashMap<>();
+                    params.put("source", source.toString());
+                    params.put("dir", targetDir.toString());
+                    // named up front, so that a restarted job copies to the
+                    // same one
+                    params.put("target", target.toString());
+                    params.put("overwrite",
+                            Boolean.toString(isOverwrite(request)));
+                    params.put("strategy", this.getCopyStrategy(request)
+                            .name());
+                    params.put("quota", Long.toString(this.getQuota(request)));
+                    this.submitJob(request, response, "copy", params);
                 } else {
                     final long quota = this.getQuota(request);
-                    if (quota > 0) {
-                        final long usage = this.getUsage(this.getBasePath(
-                                request, true));
-                        final long need = size(source);
-                        if (usage + need > quota) {
-                            refuseOverQuotaRequest(request, response, "copy "
-                                    + source + " to " + target + target, need,
-                                    usage, quota);
-                            return;
-                        }
-                    }
-                    copy(source, target);
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Copied [" + source + "] to [" + target
-                                + "]");
+                    final long usage = quota > 0 ? this.getUsage(this
+                            .getBasePath(request, true)) : 0;
+                    try {
+                        this.copyInto(source, target,
+                                quota > 0 ? quota - usage : Long.MAX_VALUE,
+                                this.getCopyStrategy(request), null);
+                    } catch (ParallelCopier.BudgetExceededException e) {
+                        refuseOverQuotaRequest(request, response, "copy "
+                                + source + " to " + target,
+                                this.diskUsage.size(source),
+                                usage, quota);
+                        return;
                     }
                     this.sendFileInfoResponse(request, response, target, false);
                 }
@@ -988,6 +3502,85 @@ public final class WebFilezServlet extends HttpServlet {
         }
     }
 
+    private static Path getCopyTarget(Path source, Path targetDir) {
+        return source.getParent().equals(targetDir) ? getUniqueFileInDirectory(
+                targetDir, source.getFileName().toString()) : targetDir
+                .resolve(source.getFileName());
+    }
+
+    /**
+     * Copy the given source next to the given target, and only replace the
+     * target once we know that the whole thing fits within the budget.
+     *
+     * @return the number of bytes copied
+     */
+    private long copyInto(Path source, Path target, long budget,
+            ParallelCopier.Strategy strategy, final JobManager.Job job)
+            throws IOException {
+        final Path staging = getBackupFile(target, ".copying");
+        if (job != null) {
+            job.setScratch(staging);
+        }
+        final long size;
+        try {
+            size = this.copier.copy(source, staging, budget, strategy,
+                    job == null ? null : new ParallelCopier.Listener() {
+                        @Override
+                        public void copied(Path destination, long size)
+                                throws IOException {
+                            job.progress(size, 1);
+                        }
+                    });
+        } catch (IOException e) {
+            if (Files.exists(staging)) {
+                FileUtil.delete(staging);
+            }
+            throw e;
+        }
+        this.replace(staging, target);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Copied [" + size + "] bytes from [" + source
+                    + "] to [" + target + "]");
+        }
+        return size;
+    }
+
+    /**
+     * Move the given staging file or directory over the given target. An
+     * existing target is first moved aside (and only removed once it has been
+     * replaced), so that it is never lost: it is put back if the move fails,
+     * and a crash in between leaves it next to the target.
+     */
+    private void replace(Path staging, Path target) throws IOException {
+        Path aside = null;
+        if (Files.exists(target)) {
+            aside = getTempFile(target, ".replacing");
+            Files.move(target, aside, StandardCopyOption.ATOMIC_MOVE);
+        }
+        try {
+            Files.move(staging, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            if (aside != null) {
+                try {
+                    Files.move(aside, target, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e2) {
+                    if (logger.isErrorEnabled()) {
+                        logger.error("Failed to restore [" + target
+                                + "] from [" + aside + "]", e2);
+                    }
+                }
+            }
+            if (Files.exists(staging)) {
+                FileUtil.delete(staging);
+            }
+            throw e;
+        }
+        this.changed(target);
+        if (aside != null) {
+            this.remove(aside);
+        }
+    }
+
     private void handleMove(Path targetDir, HttpServletRequest request,
             HttpServletResponse response) throws Exception {
         if (logger.isDebugEnabled()) {
@@ -1009,7 +3602,7 @@ public final class WebFilezServlet extends HttpServlet {
                                         + "] in preparation to move [" + source
                                         + "] over it");
                             }
-                            delete(target);
+                            this.remove(target);
                         } else {
                             this.refuseBadRequest(request, response,
                                     "Refusing to move [" + source + "] to ["
@@ -1020,6 +3613,8 @@ public final class WebFilezServlet extends HttpServlet {
                     }
                     Files.move(source, target,
                             StandardCopyOption.REPLACE_EXISTING);
+                    this.changed(source);
+                    this.changed(target);
                     if (logger.isDebugEnabled()) {
                         logger.debug("Moved [" + source + "] to [" + target
                                 + "]");
@@ -1037,6 +3632,286 @@ public final class WebFilezServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Queue a background job, and respond with where to poll it.
+     */
+    private void submitJob(HttpServletRequest request,
+            HttpServletResponse response, String type,
+            Map<String, String> params) throws ServletException, IOException,
+            JSONException {
+        final JobManager.Job job;
+        try {
+            job = this.jobs.submit(type, this.getBasePath(request, true),
+                    params);
+        } catch (RejectedExecutionException e) {
+            this.refuseRequest(request, response, SC_SERVICE_UNAVAILABLE,
+                    "Too many jobs queued to " + type + " " + params);
+            return;
+        }
+        response.setStatus(SC_ACCEPTED);
+        response.setHeader("Location", this.getJobUri(request, job));
+        this.sendJob(request, response, job);
+    }
+
+    private void handleJob(HttpServletRequest request,
+            HttpServletResponse response) throws ServletException,
+            IOException, JSONException {
+        final JobManager.Job job = this.jobs.get(request.getParameter("id"),
+                this.getBasePath(request, true));
+        if (job == null) {
+            this.refuseRequest(request, response, SC_NOT_FOUND, "No job ["
+                    + request.getParameter("id") + "]");
+        } else {
+            this.sendJob(request, response, job);
+        }
+    }
+
+    private void handleCancelJob(HttpServletRequest request,
+            HttpServletResponse response) throws ServletException,
+            IOException, JSONException {
+        final JobManager.Job job = this.jobs.cancel(
+                request.getParameter("id"), this.getBasePath(request, true));
+        if (job == null) {
+            this.refuseRequest(request, response, SC_NOT_FOUND, "No job ["
+                    + request.getParameter("id") + "] to cancel");
+        } else {
+            this.sendJob(request, response, job);
+        }
+    }
+
+    /**
+     * Send the state and progress of the given job, along with the files it
+     * created once it has succeeded.
+     */
+    private void sendJob(HttpServletRequest request,
+            HttpServletResponse response, JobManager.Job job)
+            throws IOException, JSONException {
+        response.setContentType(JSON_CONTENT_TYPE);
+        setNoCacheHeaders(response);
+        final JSONWriter jsonWriter = new JSONWriter(response.getWriter());
+        jsonWriter.object();
+        jsonWriter.key("_links").object();
+        writeSelfLink(this.getJobUri(request, job), jsonWriter);
+        jsonWriter.endObject();
+        jsonWriter.key("id").value(job.getId());
+        jsonWriter.key("type").value(job.getType());
+        jsonWriter.key("state").value(job.getState().name().toLowerCase());
+        jsonWriter.key("created").value(job.getCreated());
+        if (job.getStarted() > 0) {
+            jsonWriter.key("started").value(job.getStarted());
+        }
+        if (job.getState().isFinished()) {
+            jsonWriter.key("finished").value(job.getFinished());
+        }
+        jsonWriter.key("bytesDone").value(job.getBytesDone());
+        jsonWriter.key("bytesTotal").value(job.getBytesTotal());
+        jsonWriter.key("entriesDone").value(job.getEntriesDone());
+        jsonWriter.key("entriesTotal").value(job.getEntriesTotal());
+        if (job.getState() == JobManager.State.FAILED) {
+            jsonWriter.key("status").value(job.getStatus());
+            jsonWriter.key("error").value(job.getError());
+        } else if (job.getState() == JobManager.State.SUCCEEDED) {
+            final String baseUri = this.getBasePathUri(request);
+            final Path baseDir = this.resolvePath(this.getBasePath(request,
+                    true));
+            final String authToken = getAuthToken(request);
+            final EnumSet<FileField> fields = this.getFileInfoFields(request);
+            jsonWriter.key("files").array();
+            for (Path file : job.getResults()) {
+                if (Files.exists(file)) {
+                    final Path parent = file.getParent();
+                    writeFileInfoToJson(parent.equals(baseDir) ? baseUri
+                            : toUri(baseUri, baseDir.relativize(parent), true,
+                                    null), file, fields, jsonWriter, authToken);
+                }
+            }
+            jsonWriter.endArray();
+        }
+        jsonWriter.endObject();
+        response.flushBuffer();
+    }
+
+    private String getJobUri(HttpServletRequest request, JobManager.Job job) {
+        final StringBuilder uri = new StringBuilder(
+                this.getBasePathUri(request));
+        uri.append("?_action=job&id=").append(job.getId());
+        final String authToken = getAuthToken(request);
+        if (config.isAppendAuthToUrls() && authToken != null
+                && !authToken.isEmpty()) {
+            uri.append('&').append(config.getTokenName()).append('=')
+                    .append(authToken);
+        }
+        return uri.toString();
+    }
+
+    /**
+     * @return the absolute URI of the base path of the given request
+     */
+    private String getBasePathUri(HttpServletRequest request) {
+        final StringBuffer uri = request.getRequestURL();
+        uri.setLength(uri.length() - request.getRequestURI().length());
+        final String basePath = this.getBasePath(request, true);
+        uri.append(basePath);
+        if (!basePath.endsWith("/")) {
+            uri.append('/');
+        }
+        return uri.toString();
+    }
+
+    /**
+     * Run a background job (again, if it was interrupted by a restart),
+     * depending on its type, with the parameters it was submitted with.
+     */
+    private void runJob(JobManager.Job job) throws Exception {
+        switch (job.getType()) {
+        case "zip": {
+            final Path dir = FileSystems.getDefault().getPath(
+                    job.getParam("dir"));
+            final List<Path> files = new ArrayList<>();
+            for (Path file : splitPaths(job.getParam("files"))) {
+                if (Files.exists(file)) {
+                    files.add(file);
+                }
+            }
+            Path zipFile = getJobPath(job, "zipFile");
+            if (zipFile == null) {
+                // submitted before the name was
+                zipFile = getZipFile(dir, files);
+            } else if (Files.exists(zipFile)) {
+                if (job.getAttempts() > 1) {
+                    // put in place by the attempt that was interrupted
+                    job.addResult(zipFile);
+                    break;
+                }
+                // taken since the job was submitted
+                zipFile = getZipFile(dir, files);
+            }
+            this.setTotal(job, files);
+            this.createZip(dir, files, zipFile, job);
+            job.addResult(zipFile);
+            break;
+        }
+        case "unzip": {
+            final Path file = FileSystems.getDefault().getPath(
+                    job.getParam("file"));
+            if (!Files.isRegularFile(file)) {
+                throw new JobManager.Failure(SC_NOT_FOUND, "No file ["
+                        + file + "] to unzip");
+            }
+            final ZipArchive archive = this.zipArchives.get(file);
+            job.setTotal(archive.getTotalSize(), archive.getFiles());
+            job.addResults(this.extractZip(file, job));
+            break;
+        }
+        case "copy": {
+            final Path source = FileSystems.getDefault().getPath(
+                    job.getParam("source"));
+            if (!Files.exists(source)) {
+                throw new JobManager.Failure(SC_NOT_FOUND, "No file ["
+                        + source + "] to copy");
+            }
+            Path target = getJobPath(job, "target");
+            if (target == null) {
+                // submitted before the target was
+                target = getCopyTarget(source, FileSystems.getDefault()
+                        .getPath(job.getParam("dir")));
+            }
+            if (Files.exists(target)
+                    && !Boolean.parseBoolean(job.getParam("overwrite"))) {
+                if (job.getAttempts() > 1) {
+                    // put in place by the attempt that was interrupted
+                    job.addResult(target);
+                    break;
+                }
+                throw new JobManager.Failure(SC_BAD_REQUEST,
+                        "Refusing to copy [" + source + "] to [" + target
+                                + "], which already exists.");
+            }
+            this.setTotal(job, Collections.singletonList(source));
+            final long quota = Long.parseLong(job.getParam("quota"));
+            final long usage = quota > 0 ? this.getUsage(job.getOwner()) : 0;
+            try {
+                this.copyInto(source, target, quota > 0 ? quota - usage
+                        : Long.MAX_VALUE, ParallelCopier.Strategy.valueOf(job
+                        .getParam("strategy")), job);
+            } catch (ParallelCopier.BudgetExceededException e) {
+                throw new JobManager.Failure(SC_REQUEST_ENTITY_TOO_LARGE,
+                        "Refusing to copy [" + source + "] to [" + target
+                                + "]; we are using [" + usage
+                                + "] bytes of a quota of [" + quota + "]");
+            }
+            job.addResult(target);
+            break;
+        }
+        default:
+            throw new JobManager.Failure(SC_BAD_REQUEST,
+                    "Unsupported job type [" + job.getType() + "]");
+        }
+    }
+
+    /**
+     * @return the path that the given parameter of the given job names, or
+     *         <code>null</code> if it has none
+     */
+    private static Path getJobPath(JobManager.Job job, String name) {
+        final String path = job.getParam(name);
+        return path == null ? null : FileSystems.getDefault().getPath(path);
+    }
+
+    /**
+     * Tell the given job how many bytes (and files) there are in the given
+     * files and directories.
+     */
+    private void setTotal(JobManager.Job job, List<Path> files)
+            throws IOException {
+        long size = 0;
+        long entries = 0;
+        for (Path file : files) {
+            if (Files.isDirectory(file)) {
+                final DiskUsage.Rollup rollup = this.diskUsage.get(file);
+                size += rollup.getSize();
+                entries += rollup.getFiles();
+            } else {
+                size += Files.size(file);
+                entries++;
+            }
+        }
+        job.setTotal(size, entries);
+    }
+
+    // NUL cannot be part of a path
+    private static String joinPaths(List<Path> paths) {
+        final StringBuilder joined = new StringBuilder();
+        for (Path path : paths) {
+            if (joined.length() > 0) {
+                joined.append('\0');
+            }
+            joined.append(path);
+        }
+        return joined.toString();
+    }
+
+    private static List<Path> splitPaths(String joined) {
+        final List<Path> paths = new ArrayList<>();
+        if (!joined.isEmpty()) {
+            for (String path : joined.split("\0")) {
+                paths.add(FileSystems.getDefault().getPath(path));
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Delete the given file or directory. Directories are moved to the trash
+     * (if enabled), so that they can be purged in the background.
+     */
+    private void remove(Path file) throws IOException {
+        if (this.trash == null || !Files.isDirectory(file)
+                || !this.trash.moveToTrash(file)) {
+            FileUtil.delete(file);
+        }
+    }
+
     private List<Path> getFilesFromRequest(HttpServletRequest req, Path dir) {
         final String[] filenames = req.getParameterValues("file");
         final List<Path> paths;
@@ -1064,6 +3939,16 @@ public final class WebFilezServlet extends HttpServlet {
         return paths;
     }
 
+    /**
+     * Record that the given file (or directory) was created, modified, or
+     * removed by one of our handlers.
+     */
+    private void changed(Path file) {
+        this.versions.changed(file);
+        this.filenameIndex.changed(file);
+        this.diskUsage.changed(file);
+    }
+
     private Path getRequestFile(HttpServletRequest request)
             throws UnsupportedEncodingException {
         return this.resolvePath(request.getRequestURI());
@@ -1083,6 +3968,19 @@ public final class WebFilezServlet extends HttpServlet {
         return resolvedPath;
     }
 
+    private ParallelCopier.Strategy getCopyStrategy(HttpServletRequest request) {
+        final String strategy = request.getParameter("strategy");
+        if (strategy == null || strategy.isEmpty()) {
+            return this.config.getCopyStrategy();
+        }
+        try {
+            return ParallelCopier.Strategy.valueOf(strategy.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("No such copy strategy ["
+                    + strategy + "]");
+        }
+    }
+
     private Path getSourcePath(HttpServletRequest request)
             throws UnsupportedEncodingException {
         final String basePath = this.getBasePath(request, false);
@@ -1130,9 +4028,19 @@ public final class WebFilezServlet extends HttpServlet {
         return null;
     }
 
+    private String getMimeType(String name) {
+        final String mimeType = super.getServletContext().getMimeType(name);
+        return mimeType == null ? config.getDefaultMimeType() : mimeType;
+    }
+
     private String getMimeType(Path path) throws IOException {
+        return getMimeType(path, Files.isDirectory(path));
+    }
+
+    private String getMimeType(Path path, boolean isDirectory)
+            throws IOException {
         String mimeType;
-        if (Files.isDirectory(path)) {
+        if (isDirectory) {
             mimeType = config.getDirectoryMimeType();
         } else {
             mimeType = super.getServletContext().getMimeType(
@@ -1149,13 +4057,33 @@ public final class WebFilezServlet extends HttpServlet {
 
     private String toUri(String baseUri, String name, boolean isDirectory,
             String authToken) throws UnsupportedEncodingException {
+        return toEncodedUri(baseUri, URLEncoder.encode(name, "UTF-8"),
+                isDirectory, authToken);
+    }
+
+    private String toUri(String baseUri, Path relativePath,
+            boolean isDirectory, String authToken)
+            throws UnsupportedEncodingException {
+        final StringBuilder encodedPath = new StringBuilder();
+        for (Path name : relativePath) {
+            if (encodedPath.length() > 0) {
+                encodedPath.append('/');
+            }
+            encodedPath.append(URLEncoder.encode(name.toString(), "UTF-8"));
+        }
+        return toEncodedUri(baseUri, encodedPath.toString(), isDirectory,
+                authToken);
+    }
+
+    private String toEncodedUri(String baseUri, String encodedName,
+            boolean isDirectory, String authToken) {
         StringBuilder out = new StringBuilder(baseUri.length()
-                + name.length()
+                + encodedName.length()
                 + 16
                 + (authToken == null ? 0 : authToken.length()
                         + config.getTokenName().length() + 2));
         out.append(baseUri);
-        out.append(URLEncoder.encode(name, "UTF-8"));
+        out.append(encodedName);
         if (isDirectory) {
             out.append('/');
         }
@@ -1170,12 +4098,13 @@ public final class WebFilezServlet extends HttpServlet {
     }
 
     private long writeFileInfoToJson(String baseUri, Collection<Path> paths,
-            JSONWriter jsonWriter, String authToken) throws JSONException,
-            IOException {
+            EnumSet<FileField> fields, JSONWriter jsonWriter, String authToken)
+            throws JSONException, IOException {
         long size = 0;
         jsonWriter.array();
         for (Path path : paths) {
-            size += writeFileInfoToJson(baseUri, path, jsonWriter, authToken);
+            size += writeFileInfoToJson(baseUri, path, fields, jsonWriter,
+                    authToken);
         }
         jsonWriter.endArray();
         return size;
@@ -1193,26 +4122,101 @@ public final class WebFilezServlet extends HttpServlet {
         writeLink("self", href, jsonWriter);
     }
 
+    private static boolean isSizeNeeded(EnumSet<FileField> fields) {
+        return fields.contains(FileField.SIZE)
+                || fields.contains(FileField.ETAG);
+    }
+
     private long writeFileInfoToJson(String baseUri, Path path,
-            JSONWriter jsonWriter, String authToken) throws JSONException,
-            IOException {
-        final long size = size(path);
-        final long lastModified = Files.getLastModifiedTime(path).toMillis();
+            EnumSet<FileField> fields, JSONWriter jsonWriter, String authToken)
+            throws JSONException, IOException {
+        final BasicFileAttributes attrs = Files.readAttributes(path,
+                BasicFileAttributes.class);
+        final boolean isDirectory = attrs.isDirectory();
+        return writeFileInfoToJson(baseUri, path, isDirectory, isDirectory
+                && isSizeNeeded(fields) ? this.diskUsage.get(path).getSize()
+                : attrs.size(), attrs
+                .lastModifiedTime().toMillis(), fields, jsonWriter, authToken);
+    }
+
+    /**
+     * Write the requested fields of the given file. The (possibly expensive)
+     * values are only computed for the fields that were asked for.
+     *
+     * @return the size of the file
+     */
+    private long writeFileInfoToJson(String baseUri, Path path,
+            boolean isDirectory, long size, long lastModified,
+            EnumSet<FileField> fields, JSONWriter jsonWriter, String authToken)
+            throws JSONException, IOException {
         jsonWriter.object();
         String name = path.getName(path.getNameCount() - 1).toString();
-        jsonWriter.key("_links").object();
-        writeSelfLink(toUri(baseUri, name, Files.isDirectory(path), authToken),
-                jsonWriter);
-        jsonWriter.endObject();
-        jsonWriter.key("name").value(name);
-        jsonWriter.key("type").value(getMimeType(path));
-        jsonWriter.key("size").value(size);
-        jsonWriter.key("lastModified").value(lastModified);
-        jsonWriter.key("eTag").value(generateETag(size, lastModified));
+        if (fields.contains(FileField.LINKS)) {
+            jsonWriter.key("_links").object();
+            writeSelfLink(toUri(baseUri, name, isDirectory, authToken),
+                    jsonWriter);
+            jsonWriter.endObject();
+        }
+        if (fields.contains(FileField.NAME)) {
+            jsonWriter.key("name").value(name);
+        }
+        if (fields.contains(FileField.DIRECTORY)) {
+            jsonWriter.key("directory").value(isDirectory);
+        }
+        if (fields.contains(FileField.TYPE)) {
+            jsonWriter.key("type").value(getMimeType(path, isDirectory));
+        }
+        if (fields.contains(FileField.SIZE)) {
+            jsonWriter.key("size").value(size);
+        }
+        if (fields.contains(FileField.LAST_MODIFIED)) {
+            jsonWriter.key("lastModified").value(lastModified);
+        }
+        if (fields.contains(FileField.ETAG)) {
+            jsonWriter.key("eTag").value(
+                    isDirectory ? generateETag(size, lastModified) : this
+                            .getETags(path, size, lastModified)[0]);
+        }
+        if (!isDirectory && fields.contains(FileField.DIGEST)) {
+            this.writeDigest(path, size, lastModified, jsonWriter);
+        }
         jsonWriter.endObject();
         return size;
     }
 
+    /**
+     * @return the ETags that identify the current contents of the given file
+     *         (using its digest only if it is already known); the first one is
+     *         the one to hand out
+     */
+    private String[] getETags(Path file, long size, long lastModified) {
+        return this.getETags(size, lastModified,
+                this.digests.peek(file, size, lastModified));
+    }
+
+    /**
+     * Content-based ETags survive touches and copies, and match across
+     * re-uploads of the same content. Clients may still hold the cheap
+     * size/time based ETag we handed out before the digest was known, so we
+     * keep accepting that one as well.
+     */
+    private String[] getETags(long size, long lastModified, byte[] digest) {
+        final String eTag = generateETag(size, lastModified);
+        return digest == null ? new String[] { eTag } : new String[] {
+                generateETag(digest), eTag };
+    }
+
+    /**
+     * Write the digest of the given file, if we know it (yet).
+     */
+    private void writeDigest(Path file, long size, long lastModified,
+            JSONWriter jsonWriter) throws JSONException {
+        final byte[] digest = this.digests.get(file, size, lastModified);
+        if (digest != null) {
+            jsonWriter.key("digest").value(Digests.toHex(digest));
+        }
+    }
+
     private void sendFileInfoResponse(HttpServletRequest request,
             HttpServletResponse response, Path path, boolean parentUri)
             throws IOException, JSONException {
@@ -1222,7 +4226,8 @@ public final class WebFilezServlet extends HttpServlet {
         if (parentUri) {
             baseUri = getParentUriPath(baseUri);
         }
-        writeFileInfoToJson(baseUri, path, jsonWriter, getAuthToken(request));
+        writeFileInfoToJson(baseUri, path, this.getFileInfoFields(request),
+                jsonWriter, getAuthToken(request));
         response.flushBuffer();
     }
 
@@ -1234,11 +4239,25 @@ public final class WebFilezServlet extends HttpServlet {
         if (parentUri) {
             baseUri = getParentUriPath(baseUri);
         }
-        writeFileInfoToJson(baseUri, paths,
+        writeFileInfoToJson(baseUri, paths, this.getFileInfoFields(request),
                 new JSONWriter(response.getWriter()), getAuthToken(request));
         response.flushBuffer();
     }
 
+    private EnumSet<FileField> getFileInfoFields(HttpServletRequest request) {
+        try {
+            return FileField.parse(request.getParameter("fields"),
+                    FILE_INFO_FIELDS);
+        } catch (IllegalArgumentException e) {
+            // the operation already happened, so don't fail it now
+            if (logger.isDebugEnabled()) {
+                logger.debug("Ignoring invalid fields in response to ["
+                        + request.getRequestURI() + "]: " + e.getMessage());
+            }
+            return FILE_INFO_FIELDS;
+        }
+    }
+
     private void refuseRequest(HttpServletRequest request,
             HttpServletResponse response, int responseCode, String msg)
             throws ServletException, IOException {
@@ -1306,7 +4325,7 @@ public final class WebFilezServlet extends HttpServlet {
         if (logger.isTraceEnabled()) {
             t = System.nanoTime();
         }
-        final long usage = size(path);
+        final long usage = this.diskUsage.size(path);
         if (logger.isTraceEnabled()) {
             t = System.nanoTime() - t;
             logger.trace(path + " uses " + usage + " bytes (computed in "
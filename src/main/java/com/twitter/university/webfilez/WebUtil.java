@@ -5,7 +5,10 @@ import static java.lang.Long.parseLong;
 import static java.lang.Math.min;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
@@ -32,12 +35,19 @@ public class WebUtil {
             .compile(".*filename=['\"]?([^'\"]+)['\" ].*");
 
     public static final String JSON_CONTENT_TYPE = "application/json";
+    public static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
     public static final String BINARY_CONTENT_TYPE = "application/octet-stream";
     public static final String DIRECTORY_CONTENT_TYPE = "x-directory/normal";
+    // not (yet) in HttpServletResponse
+    public static final int SC_TOO_MANY_REQUESTS = 429;
     public static final String READ_ONLY_ALLOWED_METHODS_HEADER;
     public static final String WRITE_ONLY_ALLOWED_METHODS_HEADER;
     public static final String READ_WRITE_ALLOWED_METHODS_HEADER;
 
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern
+            .compile("bytes\\s+(\\d{1,18})-(\\d{1,18})/(\\d{1,18}|\\*)");
+    private static final char[] HEX_DIGITS = "0123456789abcdef"
+            .toCharArray();
     private static final String[] READ_METHODS = { "GET", "HEAD", "OPTIONS" };
     private static final String[] WRITE_METHODS = { "POST", "PUT", "DELETE", };
 
@@ -147,6 +157,18 @@ public class WebUtil {
         response.setDateHeader("Expires", 0); // Proxies
     }
 
+    /**
+     * Allow the client (but not shared caches) to keep a response for up to
+     * maxAge seconds, after which it must revalidate it with us.
+     */
+    public static void setPrivateCacheHeaders(HttpServletResponse response,
+            int maxAge) {
+        response.setHeader("Cache-Control", "private, max-age=" + maxAge
+                + ", must-revalidate");
+        // JSON and HTML representations share the same URI
+        response.setHeader("Vary", "Accept");
+    }
+
     private static long getDateHeader(HttpServletRequest req, String headerName) {
         try {
             return req.getDateHeader(headerName);
@@ -221,57 +243,101 @@ public class WebUtil {
         }
     }
 
-    public static boolean ifMatch(HttpServletRequest req, String eTag) {
+    /**
+     * @param eTags
+     *            the ETags that currently identify the resource (there may be
+     *            more than one, e.g. a content digest, and a size/time based
+     *            one that was handed out before the digest was known)
+     */
+    public static boolean ifMatch(HttpServletRequest req, String... eTags) {
         String ifMatch = req.getHeader("If-Match");
         if (ifMatch == null) {
             return true;
         } else if (ifMatch.equals("*")) {
-            return eTag != null;
+            return eTags.length > 0 && eTags[0] != null;
         } else {
             for (StringTokenizer st = new StringTokenizer(ifMatch, ","); st
                     .hasMoreTokens();) {
-                if (eTag.equals(st.nextToken().trim())) {
+                if (matches(st.nextToken().trim(), eTags)) {
                     if (logger.isTraceEnabled()) {
-                        logger.trace(req.getRequestURI() + " matches " + eTag);
+                        logger.trace(req.getRequestURI() + " matches "
+                                + Arrays.toString(eTags));
                     }
                     return true;
                 }
             }
             if (logger.isTraceEnabled()) {
-                logger.trace(req.getRequestURI() + " does not match " + eTag);
+                logger.trace(req.getRequestURI() + " does not match "
+                        + Arrays.toString(eTags));
             }
             return false;
         }
     }
 
+    private static boolean matches(String eTag, String[] eTags) {
+        for (String e : eTags) {
+            if (eTag.equals(e)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * @return true if the request does not contain 'If-None-Match' or if its
      *         value is '*' and the etag is null or if its value does not match
      *         the etag; false otherwise.
      */
-    public static boolean ifNoneMatch(HttpServletRequest req, String eTag) {
+    public static boolean ifNoneMatch(HttpServletRequest req,
+            String... eTags) {
         String ifNoneMatch = req.getHeader("If-None-Match");
         if (ifNoneMatch == null) {
             return true;
         } else if (ifNoneMatch.equals("*")) {
-            return eTag == null;
+            return eTags.length == 0 || eTags[0] == null;
         } else {
             for (StringTokenizer st = new StringTokenizer(ifNoneMatch, ","); st
                     .hasMoreTokens();) {
-                if (eTag.equals(st.nextToken().trim())) {
+                if (matches(st.nextToken().trim(), eTags)) {
                     if (logger.isTraceEnabled()) {
-                        logger.trace(req.getRequestURI() + " matches " + eTag);
+                        logger.trace(req.getRequestURI() + " matches "
+                                + Arrays.toString(eTags));
                     }
                     return false;
                 }
             }
             if (logger.isTraceEnabled()) {
-                logger.trace(req.getRequestURI() + " does not match " + eTag);
+                logger.trace(req.getRequestURI() + " does not match "
+                        + Arrays.toString(eTags));
             }
             return true;
         }
     }
 
+    /**
+     * Check whether the client's cached copy of a resource is still current.
+     * Per RFC 2616 (14.26), "If-Modified-Since" is only considered when there
+     * is no "If-None-Match" header.
+     *
+     * @return true if the request carries a validator that matches the eTag
+     *         or lastModified values (so a 304 should be sent); false
+     *         otherwise.
+     */
+    public static boolean isNotModified(HttpServletRequest req, String eTag,
+            long lastModified) {
+        return isNotModified(req, new String[] { eTag }, lastModified);
+    }
+
+    public static boolean isNotModified(HttpServletRequest req,
+            String[] eTags, long lastModified) {
+        if (req.getHeader("If-None-Match") != null) {
+            return !ifNoneMatch(req, eTags);
+        } else {
+            // HTTP dates have a resolution of one second
+            return !ifModifiedSince(req, lastModified - lastModified % 1000);
+        }
+    }
+
     public static void setContentLength(HttpServletResponse resp, long length) {
         if (length < Integer.MAX_VALUE) {
             resp.setContentLength((int) length);
@@ -280,8 +346,43 @@ public class WebUtil {
         }
     }
 
+    /**
+     * @return a cheap (but weak in spirit) ETag derived from the given length
+     *         and modification time, formatted as
+     *         <code>"&lt;length&gt;-&lt;lastModified&gt;"</code> in hex
+     */
     public static String generateETag(long length, long lastModified) {
-        return String.format("\"%d%d\"", length, lastModified);
+        // this is called for every file we touch, so skip String.format
+        final char[] chars = new char[35];
+        int i = chars.length;
+        chars[--i] = '"';
+        i = toHex(lastModified, chars, i);
+        chars[--i] = '-';
+        i = toHex(length, chars, i);
+        chars[--i] = '"';
+        return new String(chars, i, chars.length - i);
+    }
+
+    /**
+     * @return a strong ETag derived from the given content digest
+     */
+    public static String generateETag(byte[] digest) {
+        final char[] chars = new char[digest.length * 2 + 2];
+        chars[0] = '"';
+        for (int i = 0; i < digest.length; i++) {
+            chars[i * 2 + 1] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            chars[i * 2 + 2] = HEX_DIGITS[digest[i] & 0xf];
+        }
+        chars[chars.length - 1] = '"';
+        return new String(chars);
+    }
+
+    private static int toHex(long value, char[] chars, int end) {
+        do {
+            chars[--end] = HEX_DIGITS[(int) (value & 0xf)];
+            value >>>= 4;
+        } while (value != 0);
+        return end;
     }
 
     public static boolean isHead(HttpServletRequest req) {
@@ -293,11 +394,77 @@ public class WebUtil {
         return accept != null && accept.startsWith("application/json");
     }
 
+    public static boolean isNdJson(HttpServletRequest request) {
+        String accept = request.getHeader("Accept");
+        return accept != null && accept.startsWith(NDJSON_CONTENT_TYPE);
+    }
+
     public static boolean isZip(HttpServletRequest request) {
         String accept = request.getHeader("Accept");
         return accept != null && accept.equals("application/zip");
     }
 
+    public static boolean isTar(HttpServletRequest request) {
+        String accept = request.getHeader("Accept");
+        return accept != null && accept.equals("application/x-tar")
+                || isTarGzip(request);
+    }
+
+    public static boolean isTarGzip(HttpServletRequest request) {
+        String accept = request.getHeader("Accept");
+        return accept != null
+                && (accept.equals("application/gzip") || accept
+                        .equals("application/x-gzip"));
+    }
+
+    /**
+     * @return whether the client asked for long operations to be run as
+     *         background jobs (with <code>Prefer: respond-async</code>, or
+     *         <code>async=true</code>)
+     */
+    public static boolean isRespondAsync(HttpServletRequest request) {
+        return isRespondAsync(request.getHeader("Prefer"),
+                request.getParameter("async"));
+    }
+
+    /**
+     * @return whether the given <code>Prefer</code> header or
+     *         <code>async</code> parameter asks for a background job
+     */
+    public static boolean isRespondAsync(String prefer, String async) {
+        return prefer != null && prefer.contains("respond-async")
+                || "true".equals(async);
+    }
+
+    /**
+     * Like {@link HttpServletRequest#getParameter(String)}, but only looks at
+     * the query string, so unlike it, it never reads (and waits on) the body
+     * of a form or multi-part request.
+     *
+     * @return the first value of the given parameter in the query string, or
+     *         <code>null</code> if it has none (or it cannot be decoded)
+     */
+    public static String getQueryParameter(HttpServletRequest request,
+            String name) {
+        final String query = request.getQueryString();
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            final int i = pair.indexOf('=');
+            try {
+                if (URLDecoder.decode(i < 0 ? pair : pair.substring(0, i),
+                        "UTF-8").equals(name)) {
+                    return i < 0 ? "" : URLDecoder.decode(
+                            pair.substring(i + 1), "UTF-8");
+                }
+            } catch (IllegalArgumentException | UnsupportedEncodingException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
     public static boolean isAjax(HttpServletRequest request) {
         String requestedWith = request.getHeader("X-Requested-With");
         return requestedWith != null
@@ -338,6 +505,37 @@ public class WebUtil {
         }
     }
 
+    /**
+     * Parse the value of a "Content-Range" request header, as in
+     * <code>bytes 100-199/1000</code> (or <code>bytes 100-199/*</code> when the
+     * complete length is not known, in which case the length of the returned
+     * range is -1).
+     *
+     * @return the range, or null if the header is null
+     * @throws IllegalArgumentException
+     *             if the header is not a valid byte range
+     */
+    public static Range parseContentRange(String contentRange) {
+        if (contentRange == null) {
+            return null;
+        }
+        final Matcher matcher = CONTENT_RANGE_PATTERN.matcher(contentRange
+                .trim());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid Content-Range ["
+                    + contentRange + "]");
+        }
+        final long start = parseLong(matcher.group(1));
+        final long end = parseLong(matcher.group(2));
+        final long length = "*".equals(matcher.group(3)) ? -1
+                : parseLong(matcher.group(3));
+        if (end < start || (length >= 0 && end >= length)) {
+            throw new IllegalArgumentException("Invalid Content-Range ["
+                    + contentRange + "]");
+        }
+        return new Range(start, end, length);
+    }
+
     private static void setContentRangeHeader(HttpServletResponse response,
             long length) {
         response.addHeader("Content-Range", "bytes */" + length);
@@ -0,0 +1,507 @@
+package com.twitter.university.webfilez;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * The entries of a ZIP archive, as read from its central directory (including
+ * ZIP64 archives), so that they can be listed and read without extracting the
+ * archive (or reading more than the entry itself).
+ * <p>
+ * Directories are implied by the entry names, whether or not the archive has
+ * entries for them.
+ */
+public final class ZipArchive {
+    public static final int STORED = 0;
+    public static final int DEFLATED = 8;
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP64_EXTRA_FIELD = 0x0001;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    // room for about a million entries; anything bigger is read into memory
+    // only at the archive's word
+    static final int MAX_CENTRAL_DIRECTORY_SIZE = 1 << 26;
+    private static final int FLAG_ENCRYPTED = 1;
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    private static final Charset DEFAULT_CHARSET = Charset
+            .isSupported("IBM437") ? Charset.forName("IBM437")
+            : StandardCharsets.ISO_8859_1;
+
+    private final Path file;
+
+    // entries (real and implied) of each directory, by name; the root
+    // directory is ""
+    private final Map<String, Map<String, Entry>> directories = new HashMap<>();
+
+    private int size;
+
+    private int files;
+
+    private long totalSize;
+
+    private ZipArchive(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Read the central directory of the given ZIP archive.
+     *
+     * @throws ZipException
+     *             if it is not a (supported) ZIP archive
+     */
+    public static ZipArchive read(Path file) throws IOException {
+        final ZipArchive archive = new ZipArchive(file);
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            archive.read(in);
+        }
+        return archive;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of (real) entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of (real) file entries
+     */
+    public int getFiles() {
+        return files;
+    }
+
+    /**
+     * @return the total uncompressed size of the file entries
+     */
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * @return the entry (file or directory) with the given path (without a
+     *         trailing slash), or null if there isn't one
+     */
+    public Entry getEntry(String path) {
+        if (path.isEmpty()) {
+            return null;
+        }
+        final int slash = path.lastIndexOf('/');
+        final Map<String, Entry> parent = this.directories.get(slash < 0 ? ""
+                : path.substring(0, slash));
+        return parent == null ? null : parent.get(path.substring(slash + 1));
+    }
+
+    /**
+     * @return the entries of the directory with the given path (without a
+     *         trailing slash; "" for the root), in order, or null if there is
+     *         no such directory
+     */
+    public Collection<Entry> list(String path) {
+        final Map<String, Entry> entries = this.directories.get(path);
+        return entries == null ? null : Collections.unmodifiableCollection(entries
+                .values());
+    }
+
+    private void read(FileChannel in) throws IOException {
+        final long fileSize = in.size();
+        final int tailSize = (int) Math.min(fileSize, EOCD_SIZE
+                + MAX_COMMENT_SIZE);
+        final ByteBuffer tail = read(in, fileSize - tailSize, tailSize);
+        int eocd = -1;
+        for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new ZipException("No end of central directory in ["
+                    + this.file + "]");
+        }
+        long entries = tail.getShort(eocd + 10) & 0xffff;
+        long cdSize = tail.getInt(eocd + 12) & 0xffffffffL;
+        long cdOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+        final long eocdOffset = fileSize - tailSize + eocd;
+        if ((entries == 0xffff || cdSize == 0xffffffffL || cdOffset == 0xffffffffL)
+                && eocdOffset >= ZIP64_EOCD_LOCATOR_SIZE) {
+            final ByteBuffer locator = read(in, eocdOffset
+                    - ZIP64_EOCD_LOCATOR_SIZE, ZIP64_EOCD_LOCATOR_SIZE);
+            if (locator.getInt(0) == ZIP64_EOCD_LOCATOR_SIGNATURE) {
+                final ByteBuffer zip64 = read(in, locator.getLong(8),
+                        ZIP64_EOCD_SIZE);
+                if (zip64.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                    throw new ZipException(
+                            "Invalid ZIP64 end of central directory in ["
+                                    + this.file + "]");
+                }
+                cdSize = zip64.getLong(40);
+                cdOffset = zip64.getLong(48);
+            }
+        }
+        if (cdSize < 0 || cdOffset < 0 || cdSize > fileSize - cdOffset) {
+            throw new ZipException("Invalid central directory of [" + cdSize
+                    + "] bytes at [" + cdOffset + "] in [" + this.file + "]");
+        } else if (cdSize > MAX_CENTRAL_DIRECTORY_SIZE) {
+            throw new ZipException("Central directory of [" + cdSize
+                    + "] bytes in [" + this.file + "] is larger than ["
+                    + MAX_CENTRAL_DIRECTORY_SIZE + "] bytes");
+        }
+        this.directories.put("", new TreeMap<String, Entry>());
+        final ByteBuffer cd = read(in, cdOffset, (int) cdSize);
+        // rather than trusting the number of entries (which some writers
+        // let overflow), read headers for as long as there are any
+        while (cd.remaining() >= 4
+                && cd.getInt(cd.position()) == CENTRAL_HEADER_SIGNATURE) {
+            this.readEntry(cd);
+        }
+    }
+
+    private void readEntry(ByteBuffer cd) throws ZipException {
+        final int start = cd.position();
+        if (cd.remaining() < CENTRAL_HEADER_SIZE
+                || cd.getInt(start) != CENTRAL_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid central directory header at ["
+                    + start + "] in [" + this.file + "]");
+        }
+        final int flags = cd.getShort(start + 8) & 0xffff;
+        final int method = cd.getShort(start + 10) & 0xffff;
+        final long lastModified = fromDosTime(cd.getInt(start + 12));
+        final long crc = cd.getInt(start + 16) & 0xffffffffL;
+        long compressedSize = cd.getInt(start + 20) & 0xffffffffL;
+        long size = cd.getInt(start + 24) & 0xffffffffL;
+        final int nameLength = cd.getShort(start + 28) & 0xffff;
+        final int extraLength = cd.getShort(start + 30) & 0xffff;
+        final int commentLength = cd.getShort(start + 32) & 0xffff;
+        long offset = cd.getInt(start + 42) & 0xffffffffL;
+        final int end = start + CENTRAL_HEADER_SIZE + nameLength + extraLength
+                + commentLength;
+        if (end > cd.limit()) {
+            throw new ZipException("Truncated central directory header at ["
+                    + start + "] in [" + this.file + "]");
+        }
+        final byte[] nameBytes = new byte[nameLength];
+        cd.position(start + CENTRAL_HEADER_SIZE);
+        cd.get(nameBytes);
+        // the ZIP64 extra field only has the values that didn't fit
+        for (int i = start + CENTRAL_HEADER_SIZE + nameLength; i + 4 <= start
+                + CENTRAL_HEADER_SIZE + nameLength + extraLength;) {
+            final int id = cd.getShort(i) & 0xffff;
+            final int length = cd.getShort(i + 2) & 0xffff;
+            if (id == ZIP64_EXTRA_FIELD) {
+                int j = i + 4;
+                if (size == 0xffffffffL && j + 8 <= i + 4 + length) {
+                    size = cd.getLong(j);
+                    j += 8;
+                }
+                if (compressedSize == 0xffffffffL && j + 8 <= i + 4 + length) {
+                    compressedSize = cd.getLong(j);
+                    j += 8;
+                }
+                if (offset == 0xffffffffL && j + 8 <= i + 4 + length) {
+                    offset = cd.getLong(j);
+                }
+            }
+            i += 4 + length;
+        }
+        cd.position(end);
+        String name = new String(nameBytes,
+                (flags & FLAG_UTF8) != 0 ? StandardCharsets.UTF_8
+                        : DEFAULT_CHARSET).replace('\\', '/');
+        final boolean directory = name.endsWith("/");
+        while (name.startsWith("/")) {
+            name = name.substring(1);
+        }
+        while (name.endsWith("/")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        if (name.isEmpty()) {
+            return;
+        }
+        this.size++;
+        if (!directory) {
+            this.files++;
+            this.totalSize += size;
+        }
+        this.add(name, new Entry(name, directory, method,
+                (flags & FLAG_ENCRYPTED) != 0, crc, compressedSize, size,
+                lastModified, offset));
+    }
+
+    private void add(String path, Entry entry) {
+        final int slash = path.lastIndexOf('/');
+        final String parent = slash < 0 ? "" : path.substring(0, slash);
+        Map<String, Entry> entries = this.directories.get(parent);
+        if (entries == null) {
+            // implied
+            this.add(parent, new Entry(parent, true, STORED, false, 0, 0, 0,
+                    entry.lastModified, -1));
+            entries = this.directories.get(parent);
+        }
+        final String name = path.substring(slash + 1);
+        final Entry existing = entries.get(name);
+        if (existing == null || existing.offset < 0) {
+            entries.put(name, entry);
+        }
+        if (entry.directory && !this.directories.containsKey(path)) {
+            this.directories.put(path, new TreeMap<String, Entry>());
+        }
+    }
+
+    /**
+     * @return an input stream of the (uncompressed) contents of the given
+     *         file entry
+     * @throws ZipException
+     *             if the entry cannot be read (encrypted, or compressed with
+     *             an unsupported method)
+     */
+    public InputStream open(Entry entry) throws IOException {
+        return this.open(entry, 0, entry.size);
+    }
+
+    /**
+     * @return an input stream of the given range of the (uncompressed)
+     *         contents of the given file entry, which must be stored unless
+     *         the range is all of it
+     */
+    public InputStream open(Entry entry, long start, long length)
+            throws IOException {
+        if (entry.directory) {
+            throw new ZipException("Cannot read directory [" + entry.path
+                    + "] in [" + this.file + "]");
+        } else if (entry.encrypted) {
+            throw new ZipException("Cannot read encrypted [" + entry.path
+                    + "] in [" + this.file + "]");
+        } else if (entry.method != STORED
+                && (entry.method != DEFLATED || start != 0 || length != entry.size)) {
+            throw new ZipException("Cannot read [" + entry.path + "] in ["
+                    + this.file + "] compressed with method [" + entry.method
+                    + "]" + (entry.method == DEFLATED ? " by range" : ""));
+        }
+        final FileChannel in = FileChannel.open(this.file,
+                StandardOpenOption.READ);
+        try {
+            final ByteBuffer header = read(in, entry.offset, LOCAL_HEADER_SIZE);
+            if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid local header of ["
+                        + entry.path + "] in [" + this.file + "]");
+            }
+            final long dataOffset = entry.offset + LOCAL_HEADER_SIZE
+                    + (header.getShort(26) & 0xffff)
+                    + (header.getShort(28) & 0xffff);
+            if (entry.method == STORED) {
+                in.position(dataOffset + start);
+                return new BoundedInputStream(Channels.newInputStream(in),
+                        length);
+            } else {
+                in.position(dataOffset);
+                final Inflater inflater = new Inflater(true);
+                // the inflater may need a byte past the end of the data
+                return new InflaterInputStream(new BoundedInputStream(
+                        Channels.newInputStream(in), entry.compressedSize + 1),
+                        inflater, 8192) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            inflater.end();
+                        }
+                    }
+                };
+            }
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private static ByteBuffer read(FileChannel in, long position, int length)
+            throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length).order(
+                ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) {
+                throw new ZipException("Unexpected end of archive at ["
+                        + (position + buffer.position()) + "]");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static long fromDosTime(int dosTime) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(((dosTime >> 25) & 0x7f) + 1980,
+                ((dosTime >> 21) & 0x0f) - 1, (dosTime >> 16) & 0x1f,
+                (dosTime >> 11) & 0x1f, (dosTime >> 5) & 0x3f,
+                (dosTime << 1) & 0x3e);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * A file or directory in an archive.
+     */
+    public static final class Entry {
+        private final String path;
+        private final boolean directory;
+        private final int method;
+        private final boolean encrypted;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long lastModified;
+        // of the local header, or -1 if implied
+        private final long offset;
+
+        Entry(String path, boolean directory, int method, boolean encrypted,
+                long crc, long compressedSize, long size, long lastModified,
+                long offset) {
+            this.path = path;
+            this.directory = directory;
+            this.method = method;
+            this.encrypted = encrypted;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.offset = offset;
+        }
+
+        /**
+         * @return the path of the entry (without a trailing slash)
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public String getName() {
+            return path.substring(path.lastIndexOf('/') + 1);
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        /**
+         * @return whether the contents can be read at all (i.e. they are not
+         *         encrypted, nor compressed with a method we don't support)
+         */
+        public boolean isReadable() {
+            return !encrypted && (method == STORED || method == DEFLATED);
+        }
+
+        /**
+         * @return whether a range of the contents can be read without
+         *         reading everything before it
+         */
+        public boolean isSeekable() {
+            return method == STORED && !encrypted;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry [path=" + path + ", directory=" + directory
+                    + ", method=" + method + ", size=" + size + "]";
+        }
+    }
+
+    /**
+     * Stops (and reports the end of the stream) after a given number of
+     * bytes.
+     */
+    private static final class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            final int b = super.read();
+            if (b >= 0) {
+                this.remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            final int n = super.read(b, off,
+                    (int) Math.min(len, this.remaining));
+            if (n > 0) {
+                this.remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(Math.min(n, this.remaining));
+            this.remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), this.remaining);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.twitter.university.webfilez;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The most recently used {@link ZipArchive}s, so that browsing an archive
+ * only reads its central directory once (for as long as the archive's size
+ * and modification time stay the same).
+ */
+public final class ZipArchives {
+    private static final Logger logger = LoggerFactory
+            .getLogger(ZipArchives.class);
+
+    private final Map<Path, Cached> archives;
+
+    public ZipArchives(final int maxArchives) {
+        this.archives = new LinkedHashMap<Path, Cached>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Cached> e) {
+                return size() > maxArchives;
+            }
+        };
+    }
+
+    /**
+     * @return the current entries of the given archive
+     * @throws java.util.zip.ZipException
+     *             if it is not a (supported) ZIP archive
+     */
+    public ZipArchive get(Path file) throws IOException {
+        final BasicFileAttributes attrs = Files.readAttributes(file,
+                BasicFileAttributes.class);
+        final long size = attrs.size();
+        final long lastModified = attrs.lastModifiedTime().toMillis();
+        synchronized (this.archives) {
+            final Cached cached = this.archives.get(file);
+            if (cached != null && cached.size == size
+                    && cached.lastModified == lastModified) {
+                return cached.archive;
+            }
+        }
+        // read it outside of the lock; we may end up doing this twice
+        // (concurrently), but that is harmless
+        final long t = System.nanoTime();
+        final ZipArchive archive = ZipArchive.read(file);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Read [" + archive.size() + "] entries of [" + file
+                    + "] in [" + ((System.nanoTime() - t) / 1000000) + "] ms");
+        }
+        synchronized (this.archives) {
+            this.archives.put(file, new Cached(archive, size, lastModified));
+        }
+        return archive;
+    }
+
+    private static final class Cached {
+        final ZipArchive archive;
+        final long size;
+        final long lastModified;
+
+        Cached(ZipArchive archive, long size, long lastModified) {
+            this.archive = archive;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -127,16 +127,9 @@ function setupNewResource(name, type) {
 
 function unzip() {
   var filename = getFilenameFromRow($(this).closest('tr'));
-  $.ajax({
-    url : toUri(filename),
-    type : "POST",
-    data : "_action=unzip",
-    dataType : 'json',
-    beforeSend : function() {
-      setStatus("Unzipping '" + filename + "' ...", true);
-    },
-    context : filename
-  }).done(function(files) {
+  setStatus("Unzipping '" + filename + "' ...", true);
+  runJob(toUri(filename), "_action=unzip", "Unzipping '" + filename + "'",
+      function(files) {
     for ( var i = 0; i < files.length; i++) {
       removeFileRow(files[i].name);
       var tr = fileToRow(files[i]);
@@ -145,9 +138,67 @@ function unzip() {
     }
     setStatus("Unzipped '" + filename + "'");
     resort();
+  });
+}
+
+// POSTs the given action as a background job, and polls the job (showing its
+// progress in the status) until it is done, with the files it created
+function runJob(url, data, description, done) {
+  $.ajax({
+    url : url,
+    type : "POST",
+    data : data,
+    dataType : 'json',
+    headers : {
+      "Prefer" : "respond-async"
+    }
+  }).done(function(job) {
+    pollJob(job, description, done);
   }).fail(handleError);
 }
 
+function pollJob(job, description, done) {
+  switch (job.state) {
+  case "succeeded":
+    done(job.files);
+    break;
+  case "failed":
+    log("Job " + job.id + " failed: " + job.error);
+    handleError({
+      status : job.status,
+      statusText : job.error
+    });
+    break;
+  case "cancelled":
+    setStatus(description + " was cancelled");
+    break;
+  default:
+    setStatus(description + " ... " + describeProgress(job), true);
+    setTimeout(function() {
+      $.ajax({
+        url : job._links.self.href,
+        type : "GET",
+        dataType : 'json',
+        cache : false
+      }).done(function(job) {
+        pollJob(job, description, done);
+      }).fail(handleError);
+    }, 1000);
+  }
+}
+
+function describeProgress(job) {
+  if (job.state === "queued") {
+    return "(queued)";
+  }
+  var progress = job.entriesDone
+      + (job.entriesTotal >= 0 ? " of " + job.entriesTotal : "") + " file(s)";
+  if (job.bytesTotal > 0) {
+    progress += ", " + Math.floor(100 * job.bytesDone / job.bytesTotal) + "%";
+  }
+  return progress;
+}
+
 function downloadAsZip() {
   var filename = getFilenameFromRow($(this).closest('tr'));
   window.location.href = toSelfUri('_action=zip_download&file='
@@ -257,58 +308,102 @@ function fileToRow(file) {
   return tr;
 }
 
-function list(url) {
-  log("Listing " + url);
+var listVersion = null;
+
+function listChanges(url) {
+  log("Listing changes to " + url + " since " + listVersion);
   $.ajax({
     url : url,
     type : "GET",
+    data : { since : listVersion },
     dataType : "json",
-    cache : false,
-    context : $(this)
+    cache : false
   }).done(function(response) {
-    document.title = response.uri;
-    baseUrl = response.uri;
-    $("h1").html(decodeURI(response.uri));
-    var table = $("#listing");
-    var tablesort = table.data("tablesort");
-    if (tablesort) {
-      tablesort.destroy();
-    }
-    var tbody = table.find("tbody");
-    tbody.empty();
-    if (response._links.up) {
-      var tr = $('<tr>').addClass('directory');
-      tr.append($('<td>').addClass('file-select').html(''));
-      tr.append($('<td>').addClass('file-name').append(
-          $('<a>').attr('href', response._links.up.href).html('..')));
-      tr.append($('<td>').addClass('file-size').html(''));
-      tr.append($('<td>').addClass('file-last-modified-date').html(''));
-      tbody.append(tr);
+    if (response.since === undefined) {
+      showListing(response);
+      return;
     }
-    $("#info .dir-file-count").html(response.files.length + " item(s)");
-    $("#info .dir-size").html("using " + addCommas(response.size) + " bytes");
-    if (response.quota > 0) {
-      $("#info .quota").html("(quota " + addCommas(response.quota) + " bytes)");
+    for ( var i = 0; i < response.removed.length; i++) {
+      var removed = getRowForFilename(response.removed[i]);
+      if (removed) {
+        removed.remove();
+      }
     }
     for ( var i = 0; i < response.files.length; i++) {
-      tbody.append(fileToRow(response.files[i]));
-    }
-    var readme = $("#readme");
-    if (response._links.describedby) {
-      $.ajax({
-        url : response._links.describedby.href,
-        type : "GET",
-      }).done(function(data, textStatus, jqXHR) {
-        $("#readme").html(data);
-      }).fail(handleError);
-    } else {
-      readme.empty();
+      var tr = getRowForFilename(response.files[i].name);
+      if (tr) {
+        tr.replaceWith(fileToRow(response.files[i]));
+      } else {
+        $("#listing tbody").append(fileToRow(response.files[i]));
+      }
     }
-    table.tablesort();
-    table.data("tablesort").sort(table.find("thead th:FIRST"), "asc");
+    listVersion = response.version;
+    var size = 0;
+    $("#listing tbody td.file-size").each(function() {
+      size += Number($(this).attr('data-sort-value')) || 0;
+    });
+    var count = $("#listing tbody input[type='checkbox'][name='file']").length;
+    $("#info .dir-file-count").html(count + " item(s)");
+    $("#info .dir-size").html("using " + addCommas(size) + " bytes");
+    resort();
   }).fail(handleError);
 }
 
+function list(url) {
+  log("Listing " + url);
+  $.ajax({
+    url : url,
+    type : "GET",
+    dataType : "json",
+    cache : true,
+    context : $(this)
+  }).done(showListing).fail(handleError);
+}
+
+function showListing(response) {
+  listVersion = response.version;
+  document.title = response.uri;
+  baseUrl = response.uri;
+  $("h1").html(decodeURI(response.uri));
+  var table = $("#listing");
+  var tablesort = table.data("tablesort");
+  if (tablesort) {
+    tablesort.destroy();
+  }
+  var tbody = table.find("tbody");
+  tbody.empty();
+  if (response._links.up) {
+    var tr = $('<tr>').addClass('directory');
+    tr.append($('<td>').addClass('file-select').html(''));
+    tr.append($('<td>').addClass('file-name').append(
+        $('<a>').attr('href', response._links.up.href).html('..')));
+    tr.append($('<td>').addClass('file-size').html(''));
+    tr.append($('<td>').addClass('file-last-modified-date').html(''));
+    tbody.append(tr);
+  }
+  $("#info .dir-file-count").html(response.files.length + " item(s)");
+  $("#info .dir-size").html("using " + addCommas(response.size) + " bytes");
+  if (response.quota > 0) {
+    $("#info .quota").html("(quota " + addCommas(response.quota) + " bytes)");
+  }
+  for ( var i = 0; i < response.files.length; i++) {
+    tbody.append(fileToRow(response.files[i]));
+  }
+  var readme = $("#readme");
+  if (response._links.describedby) {
+    $.ajax({
+      url : response._links.describedby.href,
+      type : "GET",
+    }).done(function(data, textStatus, jqXHR) {
+      $("#readme").html(data);
+    }).fail(handleError);
+  } else {
+    readme.empty();
+  }
+  table.tablesort();
+  table.data("tablesort").sort(table.find("thead th:FIRST"), "asc");
+}
+
 function resort() {
   var tablesort = $("#listing").data("tablesort");
   if (tablesort && tablesort.index != null) {
@@ -388,12 +483,38 @@ function deleteNextFile(filenames) {
   }
 }
 
+function deleteFiles(filenames) {
+  setStatus("Deleting " + filenames.length + " file(s) ...", true);
+  $.ajax({
+    url : toSelfUri(),
+    type : "POST",
+    data : "_action=delete&" + $.param({ file : filenames }, true),
+    dataType : 'json'
+  }).done(function(response) {
+    var failed = [];
+    for ( var i = 0; i < response.files.length; i++) {
+      var result = response.files[i];
+      if (result.status === 204) {
+        removeFileRow(result.name);
+      } else {
+        failed.push(result.name);
+      }
+    }
+    if (failed.length > 0) {
+      setStatus("Deleted " + (response.files.length - failed.length)
+          + " file(s). Failed to delete '" + failed.join("', '") + "'");
+    } else {
+      setStatus("Deleted " + response.files.length + " file(s)");
+    }
+  }).fail(handleError);
+}
+
 function handleDelete() {
   var filenames = getSelectedFileNames();
   if (confirm("Please confirm that you wish to delete the following resources:\n\n"
       + filenames.join("\n"))) {
     setEnabledStatusOnActionButtons(false);
-    deleteNextFile(filenames.reverse());
+    deleteFiles(filenames);
   }
   return false;
 }
@@ -408,12 +529,9 @@ function deleteFile() {
 
 function handleZip() {
   setStatus("Creating a ZIP archive ...", true);
-  $.ajax({
-    url : toSelfUri(),
-    type : "POST",
-    data : "_action=zip&" + $("#form").serialize(),
-    dataType : 'json'
-  }).done(function(file) {
+  runJob(toSelfUri(), "_action=zip&" + $("#form").serialize(),
+      "Creating a ZIP archive", function(files) {
+    var file = files[0];
     setEnabledStatusOnActionButtons(false);
     clearFilenameSelection();
     setStatus("Created a ZIP archive '" + file.name + "'");
@@ -421,7 +539,7 @@ function handleZip() {
     $("#listing").find("tbody").append(tr);
     tr.effect("highlight", {}, 500);
     resort();
-  }).fail(handleError);
+  });
   return false;
 }
 
@@ -747,19 +865,28 @@ function handleSinglePaste(action, paths) {
   if (path) {
     log("Executing " + action + " on " + path);
     setStatus((action === 'copy' ? "Copying" : "Moving") + " '" + path + "' ...", true);
-    $.ajax({
-      url : toSelfUri(),
-      type : "POST",
-      data : "_action=" + action + "&source=" + path,
-      dataType : 'json'
-    }).done(function(file) {
+    var pasted = function(file) {
       log("Executed " + action + " on " + path);
       setStatus((action === 'copy' ? "Copied" : "Moved") + " '" + file.name + "'");
       var tr = fileToRow(file);
       $("#listing").find("tbody").append(tr);
       tr.effect("highlight", {}, 500);
       handleSinglePaste(action, paths);
-    }).fail(handleError);
+    };
+    if (action === 'copy') {
+      // copying a large tree can take a while
+      runJob(toSelfUri(), "_action=copy&source=" + path, "Copying '" + path + "'",
+          function(files) {
+        pasted(files[0]);
+      });
+    } else {
+      $.ajax({
+        url : toSelfUri(),
+        type : "POST",
+        data : "_action=" + action + "&source=" + path,
+        dataType : 'json'
+      }).done(pasted).fail(handleError);
+    }
   } else {
     log("Done executing " + action);
     resort();
@@ -768,7 +895,11 @@ function handleSinglePaste(action, paths) {
 
 function handleRefresh() {
   log("Refreshing");
-  list(toSelfUri());
+  if (listVersion && baseUrl === window.location.pathname) {
+    listChanges(toSelfUri());
+  } else {
+    list(toSelfUri());
+  }
 }
 
 function handleNewDir() {
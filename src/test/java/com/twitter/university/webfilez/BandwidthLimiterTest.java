@@ -0,0 +1,66 @@
+package com.twitter.university.webfilez;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class BandwidthLimiterTest {
+	@Test
+	public void testUnlimited() {
+		Assert.assertNull(new BandwidthLimiter(0, 0, 0).getShaper("/a/",
+				"1"));
+		// per user only
+		BandwidthLimiter limiter = new BandwidthLimiter(0, 0, 1000);
+		Assert.assertNull(limiter.getShaper("/a/", null));
+		Assert.assertNotNull(limiter.getShaper("/a/", "1"));
+	}
+
+	@Test
+	public void testShaping() throws IOException {
+		BandwidthLimiter limiter = new BandwidthLimiter(0, 0, 100000);
+		BandwidthLimiter.Shaper shaper = limiter.getShaper("/a/", "1");
+		long start = System.nanoTime();
+		// the first second's worth is a burst, the next 50k take ~0.5s
+		for (int i = 0; i < 150; i++) {
+			shaper.sent(1000);
+		}
+		shaper.done();
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		Assert.assertTrue("Took " + elapsed + "ms", elapsed >= 350);
+		Assert.assertTrue("Took " + elapsed + "ms", elapsed < 2000);
+
+		// the same user shares the bucket, even across transfers...
+		start = System.nanoTime();
+		limiter.getShaper("/b/", "1").sent(20000);
+		Assert.assertTrue(System.nanoTime() - start > 100000000);
+		// ...but another user does not
+		start = System.nanoTime();
+		limiter.getShaper("/a/", "2").sent(20000);
+		Assert.assertTrue(System.nanoTime() - start < 100000000);
+	}
+
+	@Test
+	public void testWithoutWaiting() throws IOException {
+		BandwidthLimiter limiter = new BandwidthLimiter(0, 0, 100000);
+		// written through a shaper that may not wait, 150k go out at once...
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		BandwidthLimiter.Shaper shaper = limiter.getShaper("/a/", "1", false);
+		long start = System.nanoTime();
+		OutputStream out = shaper.shape(bytes);
+		for (int i = 0; i < 150; i++) {
+			out.write(new byte[1000]);
+		}
+		shaper.done();
+		Assert.assertEquals(150000, bytes.size());
+		Assert.assertTrue(System.nanoTime() - start < 100000000);
+
+		// ...but are still accounted for, so the next one that may waits
+		start = System.nanoTime();
+		limiter.getShaper("/a/", "1", true).sent(20000);
+		Assert.assertTrue(System.nanoTime() - start > 300000000);
+	}
+}
@@ -0,0 +1,130 @@
+package com.twitter.university.webfilez;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class BulkheadTest {
+	@Test
+	public void testRejectsWhenFull() throws Exception {
+		Bulkhead bulkhead = new Bulkhead("test", 2, 1);
+		final CountDownLatch started = new CountDownLatch(2);
+		final CountDownLatch proceed = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(3);
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					proceed.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				done.countDown();
+			}
+		};
+		try {
+			bulkhead.execute(task);
+			bulkhead.execute(task);
+			Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+			bulkhead.execute(task);
+			Assert.assertEquals(2, bulkhead.getActive());
+			Assert.assertEquals(1, bulkhead.getQueued());
+			try {
+				bulkhead.execute(task);
+				Assert.fail("Expected the full bulkhead to turn us away");
+			} catch (RejectedExecutionException expected) {
+			}
+			Assert.assertEquals(1, bulkhead.getRejected());
+
+			proceed.countDown();
+			Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+			for (int i = 0; i < 1000 && bulkhead.getCompleted() < 3; i++) {
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(3, bulkhead.getCompleted());
+			Assert.assertEquals(0, bulkhead.getQueued());
+		} finally {
+			bulkhead.shutdown();
+		}
+	}
+
+	@Test
+	public void testThrottlesUsers() throws Exception {
+		Bulkhead bulkhead = new Bulkhead("throttled", 1, 10, 2, null);
+		final CountDownLatch proceed = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(3);
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					proceed.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				done.countDown();
+			}
+		};
+		try {
+			bulkhead.execute("a", task);
+			bulkhead.execute("a", task);
+			try {
+				bulkhead.execute("a", task);
+				Assert.fail("Expected the user's third request to be throttled");
+			} catch (Bulkhead.ThrottledException expected) {
+			}
+			// but there is still room for others
+			bulkhead.execute("b", task);
+			Assert.assertEquals(1, bulkhead.getThrottled());
+			Assert.assertEquals(0, bulkhead.getRejected());
+			Assert.assertEquals(2, bulkhead.getUsers());
+
+			proceed.countDown();
+			Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+			for (int i = 0; i < 1000 && bulkhead.getUsers() > 0; i++) {
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(0, bulkhead.getUsers());
+			// and once done, the user can come back
+			bulkhead.execute("a", task);
+		} finally {
+			bulkhead.shutdown();
+		}
+	}
+
+	@Test
+	public void testWithoutQueue() throws Exception {
+		Bulkhead bulkhead = new Bulkhead("unqueued", 1, 0);
+		final CountDownLatch proceed = new CountDownLatch(1);
+		try {
+			bulkhead.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						proceed.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			try {
+				bulkhead.execute(new Runnable() {
+					@Override
+					public void run() {
+					}
+				});
+				Assert.fail("Expected the busy bulkhead to turn us away");
+			} catch (RejectedExecutionException expected) {
+			}
+			Assert.assertEquals(1, bulkhead.getRejected());
+			Assert.assertEquals(0, bulkhead.getQueueCapacity());
+		} finally {
+			proceed.countDown();
+			bulkhead.shutdown();
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package com.twitter.university.webfilez;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ContentSearchTest {
+	private static final ContentSearch.Filter ALL = new ContentSearch.Filter() {
+		@Override
+		public boolean accept(Path file, BasicFileAttributes attrs) {
+			return true;
+		}
+	};
+
+	@Test
+	public void testSearch() throws Exception {
+		Path dir = Files.createTempDirectory("webfilez");
+		ContentSearch search = new ContentSearch(2);
+		try {
+			write(dir.resolve("a.txt"), "one\r\nHello world\nhello hello\n");
+			write(Files.createDirectory(dir.resolve("sub")).resolve("b.txt"),
+					"nothing here\nsay hello");
+			Files.write(dir.resolve("c.bin"), new byte[] { 'h', 'e', 'l',
+					'l', 'o', 0 });
+
+			Assert.assertEquals(
+					"a.txt:3:17:hello hello\nsub/b.txt:2:17:say hello\n",
+					search(search, dir, "hello", false, ALL));
+			Assert.assertEquals("a.txt:2:5:Hello world\n"
+					+ "a.txt:3:17:hello hello\nsub/b.txt:2:17:say hello\n",
+					search(search, dir, "HELLO", true, ALL));
+			Assert.assertEquals("a.txt:3:17:hello hello\n",
+					search(search, dir, "hello", false,
+							new ContentSearch.Filter() {
+								@Override
+								public boolean accept(Path file,
+										BasicFileAttributes attrs) {
+									return file.getFileName().toString()
+											.startsWith("a");
+								}
+							}));
+			Assert.assertEquals("", search(search, dir, "bye", false, ALL));
+		} finally {
+			search.shutdown();
+			FileUtil.delete(dir);
+		}
+	}
+
+	@Test
+	public void testShutdown() throws Exception {
+		Path dir = Files.createTempDirectory("webfilez");
+		ContentSearch search = new ContentSearch(2);
+		try {
+			write(dir.resolve("a.txt"), "hello");
+			search.shutdown();
+			// refused, rather than left waiting for scans that never run
+			search(search, dir, "hello", false, ALL);
+			Assert.fail("Expected the search to be refused");
+		} catch (RejectedExecutionException expected) {
+		} finally {
+			FileUtil.delete(dir);
+		}
+	}
+
+	private static void write(Path file, String text) throws IOException {
+		Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String search(ContentSearch search, final Path dir,
+			String pattern, boolean ignoreCase, ContentSearch.Filter filter)
+			throws Exception {
+		final List<String> matches = new CopyOnWriteArrayList<>();
+		search.search(dir, pattern.getBytes(StandardCharsets.UTF_8),
+				ignoreCase, filter, new ContentSearch.Callback() {
+					@Override
+					public boolean found(Path file, long line, long offset,
+							String text) {
+						matches.add(dir.relativize(file).toString().replace(
+								'\\', '/')
+								+ ":" + line + ":" + offset + ":" + text + "\n");
+						return true;
+					}
+				});
+		Collections.sort(matches);
+		final StringBuilder result = new StringBuilder();
+		for (String match : matches) {
+			result.append(match);
+		}
+		return result.toString();
+	}
+}
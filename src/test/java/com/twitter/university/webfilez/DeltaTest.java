@@ -0,0 +1,94 @@
+package com.twitter.university.webfilez;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class DeltaTest {
+	@Test
+	public void testRoll() {
+		byte[] data = new byte[10000];
+		new Random(42).nextBytes(data);
+		int length = 1024;
+		int checksum = Delta.checksum(data, 0, length);
+		for (int i = 1; i + length <= data.length; i++) {
+			checksum = Delta.roll(checksum, length, data[i - 1], data[i
+					+ length - 1]);
+			Assert.assertEquals(Delta.checksum(data, i, length), checksum);
+		}
+	}
+
+	@Test
+	public void testApply() throws IOException {
+		Path original = Files.createTempFile("webfilez", ".original");
+		Path result = Files.createTempFile("webfilez", ".result");
+		try {
+			byte[] data = new byte[5000];
+			new Random(42).nextBytes(data);
+			Files.write(original, data);
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream delta = new DataOutputStream(bytes);
+			delta.writeByte(Delta.OP_COPY);
+			delta.writeLong(1000);
+			delta.writeInt(3000);
+			delta.writeByte(Delta.OP_LITERAL);
+			delta.writeInt(3);
+			delta.write(new byte[] { 1, 2, 3 });
+			delta.writeByte(Delta.OP_COPY);
+			delta.writeLong(0);
+			delta.writeInt(10);
+			delta.writeByte(Delta.OP_END);
+
+			byte[] expected = new byte[3013];
+			System.arraycopy(data, 1000, expected, 0, 3000);
+			System.arraycopy(new byte[] { 1, 2, 3 }, 0, expected, 3000, 3);
+			System.arraycopy(data, 0, expected, 3003, 10);
+
+			Assert.assertEquals(3013, apply(original, bytes.toByteArray(),
+					result, Long.MAX_VALUE));
+			Assert.assertTrue(Arrays.equals(expected, Files.readAllBytes(result)));
+
+			try {
+				apply(original, bytes.toByteArray(), result, 3000);
+				Assert.fail("Expected the result to be too large");
+			} catch (Delta.TooLargeException expectedException) {
+			}
+
+			try {
+				apply(original, Arrays.copyOf(bytes.toByteArray(),
+						bytes.size() - 1), result, Long.MAX_VALUE);
+				Assert.fail("Expected the delta to be truncated");
+			} catch (IllegalArgumentException expectedException) {
+			}
+		} finally {
+			Files.delete(original);
+			Files.delete(result);
+		}
+	}
+
+	private static long apply(Path original, byte[] delta, Path result,
+			long maxSize) throws IOException {
+		try (FileChannel in = FileChannel.open(original,
+				StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(result,
+						StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			return Delta.apply(in, new DataInputStream(
+					new ByteArrayInputStream(delta)), out, Digests
+					.newMessageDigest(), 1024, maxSize);
+		}
+	}
+}
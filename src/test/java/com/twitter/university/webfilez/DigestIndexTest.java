@@ -0,0 +1,45 @@
+package com.twitter.university.webfilez;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class DigestIndexTest {
+	@Test
+	public void testFind() throws IOException {
+		Path root = Files.createTempDirectory("webfilez");
+		Digests digests = new Digests(1, 4096);
+		try {
+			Path basePath = Files.createDirectory(root.resolve("base"));
+			Path other = Files.createDirectory(root.resolve("other"));
+			byte[] data = { 1, 2, 3 };
+			byte[] digest = Digests.newMessageDigest().digest(data);
+
+			Path a = Files.write(basePath.resolve("a"), data);
+			digests.put(a, digest);
+			DigestIndex index = new DigestIndex(digests, 10);
+			digests.setListener(index);
+			Assert.assertEquals(a, index.find(basePath, digest, data.length));
+			Assert.assertNull(index.find(basePath, digest, data.length + 1));
+			Assert.assertNull(index.find(other, digest, data.length));
+
+			// kept up to date as digests are recorded
+			Path b = Files.write(
+					Files.createDirectory(other.resolve("sub")).resolve("b"),
+					data);
+			digests.put(b, digest);
+			Assert.assertEquals(b, index.find(other, digest, data.length));
+
+			// modified files are not trusted
+			Files.write(a, new byte[] { 4, 5, 6, 7 });
+			Assert.assertNull(index.find(basePath, digest, data.length));
+		} finally {
+			digests.shutdown();
+			FileUtil.delete(root);
+		}
+	}
+}
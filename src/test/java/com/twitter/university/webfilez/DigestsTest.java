@@ -0,0 +1,75 @@
+package com.twitter.university.webfilez;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class DigestsTest {
+	@Test
+	public void testHex() {
+		byte[] bytes = { 0, 1, 127, -128, -1 };
+		Assert.assertEquals("00017f80ff", Digests.toHex(bytes));
+		Assert.assertTrue(Arrays.equals(bytes, Digests.fromHex("00017f80ff")));
+	}
+
+	@Test
+	public void testGetAndPut() throws Exception {
+		Path file = Files.createTempFile("webfilez", ".txt");
+		Digests digests = new Digests(1, 4096);
+		try {
+			Files.write(file, "hello".getBytes(StandardCharsets.US_ASCII));
+			byte[] expected = Digests.newMessageDigest().digest(
+					"hello".getBytes(StandardCharsets.US_ASCII));
+
+			digests.put(file, expected);
+			Assert.assertTrue(Arrays.equals(expected, digests.get(file)));
+
+			// a stale digest is not trusted, but recomputed in the background
+			Files.setLastModifiedTime(file, FileTime.fromMillis(1000000000L));
+			Assert.assertNull(digests.get(file));
+			byte[] actual = null;
+			for (int i = 0; i < 100 && actual == null; i++) {
+				Thread.sleep(10);
+				actual = digests.get(file);
+			}
+			Assert.assertTrue(Arrays.equals(expected, actual));
+		} finally {
+			digests.shutdown();
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testFailedPut() throws Exception {
+		Path dir = Files.createTempDirectory("webfilez");
+		Digests digests = new Digests(1, 4096);
+		try {
+			byte[] hello = "hello".getBytes(StandardCharsets.US_ASCII);
+			byte[] expected = Digests.newMessageDigest().digest(hello);
+			// failing to store the digests of files that are gone already...
+			for (int i = 0; i < 10; i++) {
+				digests.put(dir.resolve("gone"), expected, 5, 0);
+			}
+
+			// ...does not stop others from being computed
+			Path file = Files.write(dir.resolve("a.txt"), hello);
+			Assert.assertNull(digests.get(file));
+			byte[] actual = null;
+			for (int i = 0; i < 100 && actual == null; i++) {
+				Thread.sleep(10);
+				actual = digests.get(file);
+			}
+			Assert.assertTrue(Arrays.equals(expected, actual));
+		} finally {
+			digests.shutdown();
+			FileUtil.delete(dir);
+		}
+	}
+}
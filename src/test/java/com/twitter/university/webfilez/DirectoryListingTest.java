@@ -0,0 +1,63 @@
+package com.twitter.university.webfilez;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.EnumSet;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class DirectoryListingTest {
+	@Test
+	public void testFingerprint() throws IOException {
+		Path dir = Files.createTempDirectory("webfilez");
+		try {
+			Path readme = dir.resolve("README.html");
+			Files.write(readme, "hello".getBytes("UTF-8"));
+			Files.createDirectory(dir.resolve("sub"));
+			Files.write(dir.resolve("sub").resolve("a.txt"),
+					"abc".getBytes("UTF-8"));
+
+			DirectoryListing listing = DirectoryListing.read(dir,
+					readme.getFileName());
+			Assert.assertEquals(2, listing.getEntries().size());
+			Assert.assertEquals(8, listing.getTotalSize());
+			Assert.assertEquals(readme, listing.getReadmeFile());
+			Assert.assertEquals(listing.getFingerprint(), DirectoryListing
+					.read(dir, readme.getFileName()).getFingerprint());
+			EnumSet<FileField> fields = EnumSet.allOf(FileField.class);
+			Assert.assertEquals(listing.toETag(0, true, "t", fields),
+					listing.toETag(0, true, "t", fields));
+			Assert.assertFalse(listing.toETag(0, true, "t", fields).equals(
+					listing.toETag(0, false, "t", fields)));
+			Assert.assertFalse(listing.toETag(0, true, "t", fields).equals(
+					listing.toETag(0, true, "t", EnumSet.of(FileField.NAME))));
+
+			// without sizing sub-directories
+			DirectoryListing unsized = DirectoryListing.read(dir,
+					readme.getFileName(), false);
+			Assert.assertEquals(2, unsized.getEntries().size());
+
+			// same size, different mtime
+			Files.setLastModifiedTime(readme, FileTime.fromMillis(1000));
+			DirectoryListing touched = DirectoryListing.read(dir,
+					readme.getFileName());
+			Assert.assertFalse(listing.getFingerprint() == touched
+					.getFingerprint());
+
+			// nested changes show up through the recursive size
+			Files.write(dir.resolve("sub").resolve("b.txt"),
+					"de".getBytes("UTF-8"));
+			DirectoryListing grown = DirectoryListing.read(dir,
+					readme.getFileName());
+			Assert.assertEquals(10, grown.getTotalSize());
+			Assert.assertFalse(touched.getFingerprint() == grown
+					.getFingerprint());
+		} finally {
+			FileUtil.delete(dir);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package com.twitter.university.webfilez;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class DirectoryVersionsTest {
+	@Test
+	public void testChangesSince() throws IOException {
+		Path root = Files.createTempDirectory("webfilez");
+		try {
+			Path dir = Files.createDirectory(root.resolve("dir"));
+			Path sub = Files.createDirectory(dir.resolve("sub"));
+			DirectoryVersions versions = new DirectoryVersions(root, 3, 100);
+
+			String token = versions.getToken(dir);
+			String subToken = versions.getToken(sub);
+			Assert.assertTrue(versions.getChangesSince(dir, token).isEmpty());
+
+			Path a = Files.createFile(dir.resolve("a"));
+			versions.changed(a);
+			Path b = Files.createFile(sub.resolve("b"));
+			versions.changed(b);
+			Assert.assertEquals(new HashSet<>(Arrays.asList("a", "sub")),
+					versions.getChangesSince(dir, token));
+			Assert.assertEquals(new HashSet<>(Arrays.asList("b")),
+					versions.getChangesSince(sub, subToken));
+
+			String next = versions.getToken(dir);
+			Assert.assertTrue(versions.getChangesSince(dir, next).isEmpty());
+
+			// overflow the change log
+			for (int i = 0; i < 4; i++) {
+				Path c = Files.createFile(dir.resolve("c" + i));
+				versions.changed(c);
+			}
+			Assert.assertNull(versions.getChangesSince(dir, next));
+
+			// bad tokens
+			Assert.assertNull(versions.getChangesSince(dir, null));
+			Assert.assertNull(versions.getChangesSince(dir, "0-0"));
+			Assert.assertNull(versions.getChangesSince(dir, "garbage"));
+		} finally {
+			FileUtil.delete(root);
+		}
+	}
+
+	@Test
+	public void testChangesBehindOurBack() throws IOException {
+		Path root = Files.createTempDirectory("webfilez");
+		try {
+			DirectoryVersions versions = new DirectoryVersions(root, 10, 100);
+			String token = versions.getToken(root);
+			Files.setLastModifiedTime(root, java.nio.file.attribute.FileTime
+					.fromMillis(1000));
+			Assert.assertNull(versions.getChangesSince(root, token));
+		} finally {
+			FileUtil.delete(root);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package com.twitter.university.webfilez;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class DiskUsageTest {
+	@Test
+	public void testRollup() throws IOException {
+		Path root = Files.createTempDirectory("webfilez");
+		try {
+			Path a = Files.createDirectories(root.resolve("a"));
+			Path b = Files.createDirectories(a.resolve("b"));
+			Files.write(root.resolve("x"), new byte[1]);
+			Files.write(a.resolve("y"), new byte[10]);
+			Files.write(b.resolve("z"), new byte[100]);
+
+			DiskUsage diskUsage = new DiskUsage(root, 60000, 100);
+			Assert.assertEquals(111, diskUsage.get(root).getSize());
+			Assert.assertEquals(3, diskUsage.get(root).getFiles());
+			Assert.assertEquals(110, diskUsage.size(a));
+			Assert.assertEquals(1, diskUsage.size(root.resolve("x")));
+
+			// rolled up from what was computed before...
+			Files.write(b.resolve("z"), new byte[200]);
+			Assert.assertEquals(111, diskUsage.size(root));
+
+			// ...until we're told about the change
+			diskUsage.changed(b.resolve("z"));
+			Assert.assertEquals(211, diskUsage.size(root));
+
+			// or the directory changes behind our back
+			Path c = Files.createDirectories(root.resolve("c"));
+			Files.write(c.resolve("w"), new byte[1000]);
+			Files.setLastModifiedTime(root, FileTime.fromMillis(1000000000L));
+			Assert.assertEquals(1211, diskUsage.size(root));
+
+			DiskUsage.Breakdown breakdown = diskUsage.getBreakdown(root, 1, 1);
+			Assert.assertEquals(1211, breakdown.getTotal().getSize());
+			Assert.assertEquals(1, breakdown.getDirectories().size());
+			Assert.assertEquals(c, breakdown.getDirectories().get(0).getPath());
+			Assert.assertEquals(1, breakdown.getFiles().size());
+			Assert.assertEquals(root.resolve("x"), breakdown.getFiles().get(0)
+					.getPath());
+
+			breakdown = diskUsage.getBreakdown(root, 3, 10);
+			Assert.assertEquals(3, breakdown.getDirectories().size());
+			Assert.assertEquals(c, breakdown.getDirectories().get(0).getPath());
+			Assert.assertEquals(4, breakdown.getFiles().size());
+			Assert.assertEquals(c.resolve("w"), breakdown.getFiles().get(0)
+					.getPath());
+			Assert.assertEquals(root.resolve("x"), breakdown.getFiles().get(3)
+					.getPath());
+		} finally {
+			FileUtil.delete(root);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package com.twitter.university.webfilez;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class FairQueueTest {
+	@Test
+	public void testRoundRobin() throws InterruptedException {
+		FairQueue queue = new FairQueue(100, null);
+		// a burst from "a" ahead of a couple from "b" and "c"
+		for (int i = 0; i < 5; i++) {
+			Assert.assertTrue(queue.offer(new Task("a", i)));
+		}
+		queue.offer(new Task("b", 0));
+		queue.offer(new Task("b", 1));
+		queue.offer(new Task("c", 0));
+		Assert.assertEquals(8, queue.size());
+		Assert.assertEquals(3, queue.getKeys());
+		Assert.assertEquals("a0 b0 c0 a1 b1 a2 a3 a4", drain(queue));
+		Assert.assertEquals(0, queue.getKeys());
+		Assert.assertNull(queue.poll(1, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testWeights() {
+		FairQueue queue = new FairQueue(100,
+				Collections.singletonMap("a", 3));
+		for (int i = 0; i < 5; i++) {
+			queue.offer(new Task("a", i));
+			queue.offer(new Task("b", i));
+		}
+		Assert.assertEquals("a0 a1 a2 b0 a3 a4 b1 b2 b3 b4", drain(queue));
+	}
+
+	@Test
+	public void testCapacityAndRemove() {
+		FairQueue queue = new FairQueue(3, null);
+		Task a0 = new Task("a", 0);
+		Assert.assertTrue(queue.offer(a0));
+		Assert.assertTrue(queue.offer(new Task("b", 0)));
+		Assert.assertTrue(queue.offer(new Task("a", 1)));
+		Assert.assertFalse(queue.offer(new Task("c", 0)));
+		Assert.assertEquals(0, queue.remainingCapacity());
+
+		Assert.assertTrue(queue.remove(a0));
+		Assert.assertFalse(queue.remove(a0));
+		Assert.assertTrue(queue.offer(new Task("c", 0)));
+		Assert.assertEquals("a1 b0 c0", drain(queue));
+	}
+
+	private static String drain(FairQueue queue) {
+		List<Runnable> tasks = new ArrayList<>();
+		queue.drainTo(tasks);
+		StringBuilder order = new StringBuilder();
+		for (Runnable task : tasks) {
+			if (order.length() > 0) {
+				order.append(' ');
+			}
+			order.append(task);
+		}
+		return order.toString();
+	}
+
+	private static final class Task implements FairQueue.Keyed {
+		private final String key;
+		private final int i;
+
+		Task(String key, int i) {
+			this.key = key;
+			this.i = i;
+		}
+
+		@Override
+		public String getKey() {
+			return key;
+		}
+
+		@Override
+		public void run() {
+		}
+
+		@Override
+		public String toString() {
+			return key + i;
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.twitter.university.webfilez;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class FileFollowerTest {
+	@Test
+	public void testStalledClient() throws Exception {
+		Path dir = Files.createTempDirectory("webfilez");
+		FileWatcher watcher = new FileWatcher();
+		// a single thread, shared by both followers
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		ScheduledExecutorService timer = Executors
+				.newSingleThreadScheduledExecutor();
+		ClientOutputStream stalled = new ClientOutputStream(false);
+		ClientOutputStream fast = new ClientOutputStream(true);
+		try {
+			watcher.start();
+			byte[] data = { 1, 2, 3 };
+			Path a = Files.write(dir.resolve("a.log"), data);
+			Path b = Files.write(dir.resolve("b.log"), data);
+			new FileFollower(asyncContext(stalled), a, 0, watcher, executor,
+					timer, 10000, 4096).start();
+			new FileFollower(asyncContext(fast), b, 0, watcher, executor,
+					timer, 10000, 4096).start();
+			for (int i = 0; i < 1000 && fast.size() < data.length; i++) {
+				Thread.sleep(10);
+			}
+			Assert.assertTrue(Arrays.equals(data, fast.toByteArray()));
+			Assert.assertEquals(0, stalled.size());
+
+			// and once the stalled client catches up, so does its follower
+			stalled.ready();
+			for (int i = 0; i < 1000 && stalled.size() < data.length; i++) {
+				Thread.sleep(10);
+			}
+			Assert.assertTrue(Arrays.equals(data, stalled.toByteArray()));
+		} finally {
+			stalled.ready();
+			executor.shutdownNow();
+			timer.shutdownNow();
+			watcher.stop();
+			FileUtil.delete(dir);
+		}
+	}
+
+	private static AsyncContext asyncContext(final ServletOutputStream out) {
+		final ServletResponse response = fake(ServletResponse.class,
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						return method.getName().equals("getOutputStream") ? out
+								: null;
+					}
+				});
+		return fake(AsyncContext.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return method.getName().equals("getResponse") ? response
+						: null;
+			}
+		});
+	}
+
+	private static <T> T fake(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(
+				FileFollowerTest.class.getClassLoader(),
+				new Class<?>[] { type }, handler));
+	}
+
+	/**
+	 * Like a container's: a write that comes when the client is not ready
+	 * blocks until it is, and it calls back once the client is ready.
+	 */
+	private static final class ClientOutputStream extends ServletOutputStream {
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		private final CountDownLatch ready = new CountDownLatch(1);
+		private volatile WriteListener listener;
+
+		ClientOutputStream(boolean ready) {
+			if (ready) {
+				this.ready.countDown();
+			}
+		}
+
+		void ready() throws IOException {
+			this.ready.countDown();
+			if (this.listener != null) {
+				this.listener.onWritePossible();
+			}
+		}
+
+		@Override
+		public boolean isReady() {
+			return this.ready.getCount() == 0;
+		}
+
+		@Override
+		public void setWriteListener(WriteListener listener) {
+			this.listener = listener;
+			if (this.isReady()) {
+				try {
+					listener.onWritePossible();
+				} catch (IOException e) {
+					listener.onError(e);
+				}
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			this.write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			try {
+				this.ready.await();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			synchronized (this) {
+				this.out.write(b, off, len);
+			}
+		}
+
+		synchronized int size() {
+			return this.out.size();
+		}
+
+		synchronized byte[] toByteArray() {
+			return this.out.toByteArray();
+		}
+	}
+}
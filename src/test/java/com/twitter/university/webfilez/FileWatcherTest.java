@@ -0,0 +1,41 @@
+package com.twitter.university.webfilez;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class FileWatcherTest {
+	@Test
+	public void testWatch() throws Exception {
+		Path dir = Files.createTempDirectory("webfilez");
+		FileWatcher watcher = new FileWatcher();
+		final BlockingQueue<Path> changes = new LinkedBlockingQueue<>();
+		FileWatcher.Listener listener = new FileWatcher.Listener() {
+			@Override
+			public void changed(Path dir, Path file) {
+				changes.add(file == null ? dir : file);
+			}
+		};
+		try {
+			watcher.start();
+			watcher.watch(dir, listener);
+			Path file = Files.write(dir.resolve("a.log"), new byte[] { 1 });
+			Assert.assertEquals(file, changes.poll(10, TimeUnit.SECONDS));
+
+			// no longer told once unwatched
+			watcher.unwatch(dir, listener);
+			changes.clear();
+			Files.write(file, new byte[] { 2 });
+			Assert.assertNull(changes.poll(500, TimeUnit.MILLISECONDS));
+		} finally {
+			watcher.stop();
+			FileUtil.delete(dir);
+		}
+	}
+}
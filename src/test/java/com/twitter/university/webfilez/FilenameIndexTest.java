@@ -0,0 +1,71 @@
+package com.twitter.university.webfilez;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class FilenameIndexTest {
+	@Test
+	public void testFind() throws IOException {
+		Path basePath = Files.createTempDirectory("webfilez");
+		try {
+			Path src = Files.createDirectories(basePath.resolve("src/main"));
+			Files.createFile(src.resolve("Hello.java"));
+			Files.createFile(src.resolve("World.java"));
+			Files.createFile(basePath.resolve("hello.txt"));
+			Files.createFile(basePath.resolve(".__hello.txt_1_1.tmp"));
+
+			FilenameIndex index = new FilenameIndex(null, 10);
+			Assert.assertEquals("[hello.txt, src/main/Hello.java]",
+					find(index, basePath, basePath, "hello"));
+			Assert.assertEquals("[src/main/Hello.java]",
+					find(index, basePath, basePath, "MAIN/hel"));
+			Assert.assertEquals("[src/main/Hello.java, src/main/World.java]",
+					find(index, basePath, basePath, "*.java"));
+			Assert.assertEquals("[src/main/World.java]",
+					find(index, basePath, basePath, "src/**/w*"));
+			Assert.assertEquals("[src/main/World.java]",
+					find(index, basePath, basePath, "LD"));
+			Assert.assertEquals("[]", find(index, basePath, basePath, "nothing"));
+
+			// relative to (and only under) the given directory
+			Assert.assertEquals("[src/main/Hello.java]",
+					find(index, basePath, src, "hello.j"));
+			Assert.assertEquals("[src/main/Hello.java]",
+					find(index, basePath, src, "h"));
+
+			// up to the limit (plus one)
+			Assert.assertEquals(2, index.find(basePath, basePath, "l", 1)
+					.size());
+
+			// kept up to date
+			index.changed(Files.createFile(src.resolve("Hello2.java")));
+			Files.delete(basePath.resolve("hello.txt"));
+			index.changed(basePath.resolve("hello.txt"));
+			Assert.assertEquals("[src/main/Hello.java, src/main/Hello2.java]",
+					find(index, basePath, basePath, "hello"));
+			FileUtil.delete(basePath.resolve("src"));
+			index.changed(basePath.resolve("src"));
+			Assert.assertEquals("[]", find(index, basePath, basePath, "hello"));
+		} finally {
+			FileUtil.delete(basePath);
+		}
+	}
+
+	private static String find(FilenameIndex index, Path basePath, Path dir,
+			String query) throws IOException {
+		List<String> paths = new ArrayList<>();
+		for (Path file : index.find(basePath, dir, query, 100)) {
+			paths.add(basePath.relativize(file).toString().replace('\\', '/'));
+		}
+		Collections.sort(paths);
+		return paths.toString();
+	}
+}
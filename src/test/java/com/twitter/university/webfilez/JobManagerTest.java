@@ -0,0 +1,137 @@
+package com.twitter.university.webfilez;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class JobManagerTest {
+	@Test
+	public void testRunAndCancel() throws Exception {
+		final Path dir = Files.createTempDirectory("webfilez");
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch proceed = new CountDownLatch(1);
+		JobManager jobs = new JobManager(dir, 1, 10, 60000,
+				new JobManager.Runner() {
+					@Override
+					public void run(JobManager.Job job) throws Exception {
+						switch (job.getType()) {
+						case "block":
+							started.countDown();
+							proceed.await();
+							for (int i = 0; i < 100; i++) {
+								job.progress(1, 1);
+								Thread.sleep(10);
+							}
+							break;
+						case "fail":
+							throw new JobManager.Failure(413, "Too big");
+						default:
+							job.setTotal(10, 2);
+							job.progress(10, 2);
+							job.addResult(dir.resolve("result"));
+						}
+					}
+				});
+		try {
+			jobs.start();
+			JobManager.Job job = jobs.submit("ok", "/a/",
+					Collections.<String, String> emptyMap());
+			await(job);
+			Assert.assertEquals(JobManager.State.SUCCEEDED, job.getState());
+			Assert.assertEquals(10, job.getBytesDone());
+			Assert.assertEquals(2, job.getEntriesTotal());
+			Assert.assertEquals(1, job.getResults().size());
+			// only visible to its owner
+			Assert.assertSame(job, jobs.get(job.getId(), "/a/"));
+			Assert.assertNull(jobs.get(job.getId(), "/b/"));
+
+			job = jobs.submit("fail", "/a/",
+					Collections.<String, String> emptyMap());
+			await(job);
+			Assert.assertEquals(JobManager.State.FAILED, job.getState());
+			Assert.assertEquals(413, job.getStatus());
+			Assert.assertEquals("Too big", job.getError());
+
+			// cancel one while running, and one while still queued behind it
+			JobManager.Job running = jobs.submit("block", "/a/",
+					Collections.<String, String> emptyMap());
+			JobManager.Job queued = jobs.submit("ok", "/a/",
+					Collections.<String, String> emptyMap());
+			Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+			Assert.assertEquals(JobManager.State.QUEUED, queued.getState());
+			jobs.cancel(queued.getId(), "/a/");
+			Assert.assertEquals(JobManager.State.CANCELLED, queued.getState());
+			jobs.cancel(running.getId(), "/a/");
+			proceed.countDown();
+			await(running);
+			Assert.assertEquals(JobManager.State.CANCELLED, running.getState());
+			Assert.assertTrue(running.getBytesDone() < 100);
+		} finally {
+			jobs.shutdown();
+			FileUtil.delete(dir);
+		}
+	}
+
+	@Test
+	public void testStartOver() throws Exception {
+		Path dir = Files.createTempDirectory("webfilez");
+		final Path scratch = dir.resolve("scratch");
+		final CountDownLatch started = new CountDownLatch(1);
+		JobManager jobs = new JobManager(dir, 1, 10, 60000,
+				new JobManager.Runner() {
+					@Override
+					public void run(JobManager.Job job) throws Exception {
+						Files.createFile(scratch);
+						job.setScratch(scratch);
+						started.countDown();
+						Thread.sleep(60000);
+					}
+				});
+		try {
+			jobs.start();
+			JobManager.Job job = jobs.submit("slow", "/a/",
+					Collections.singletonMap("param", "value"));
+			Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+			// the server goes down while the job is running...
+			jobs.shutdown();
+
+			// ...and when it comes back up, the job is started over
+			final CountDownLatch resumed = new CountDownLatch(1);
+			final String[] param = new String[1];
+			final boolean[] scratchExisted = new boolean[1];
+			jobs = new JobManager(dir, 1, 10, 60000, new JobManager.Runner() {
+				@Override
+				public void run(JobManager.Job job) throws IOException {
+					param[0] = job.getParam("param");
+					scratchExisted[0] = Files.exists(scratch);
+					job.progress(1, 1);
+					resumed.countDown();
+				}
+			});
+			jobs.start();
+			Assert.assertTrue(resumed.await(10, TimeUnit.SECONDS));
+			JobManager.Job again = jobs.get(job.getId(), "/a/");
+			await(again);
+			Assert.assertEquals(JobManager.State.SUCCEEDED, again.getState());
+			Assert.assertEquals(2, again.getAttempts());
+			Assert.assertEquals("value", param[0]);
+			Assert.assertFalse(scratchExisted[0]);
+		} finally {
+			jobs.shutdown();
+			FileUtil.delete(dir);
+		}
+	}
+
+	private static void await(JobManager.Job job) throws InterruptedException {
+		for (int i = 0; i < 1000 && !job.getState().isFinished(); i++) {
+			Thread.sleep(10);
+		}
+	}
+}
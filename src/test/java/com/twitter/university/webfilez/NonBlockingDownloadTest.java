@@ -0,0 +1,148 @@
+package com.twitter.university.webfilez;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class NonBlockingDownloadTest {
+	@Test
+	public void testSlowClient() throws Exception {
+		Path file = Files.createTempFile("webfilez", ".bin");
+		try {
+			byte[] data = new byte[10000];
+			new Random(42).nextBytes(data);
+			Files.write(file, data);
+			// the client only takes three writes at a time
+			SlowOutputStream out = new SlowOutputStream(3);
+			Result result = new Result();
+			NonBlockingDownload download = new NonBlockingDownload(out, file,
+					500, 7000, 1000, null, null, result);
+			download.start();
+			for (int i = 0; i < 100 && result.done.getCount() > 0; i++) {
+				// ...until the container calls back
+				out.ready = 3;
+				out.listener.onWritePossible();
+			}
+			Assert.assertTrue(result.done.await(10, TimeUnit.SECONDS));
+			Assert.assertNull(result.error);
+			Assert.assertTrue(Arrays.equals(
+					Arrays.copyOfRange(data, 500, 7500), out.toByteArray()));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testShaped() throws Exception {
+		Path file = Files.createTempFile("webfilez", ".bin");
+		ScheduledExecutorService timer = Executors
+				.newSingleThreadScheduledExecutor();
+		try {
+			byte[] data = new byte[30000];
+			new Random(42).nextBytes(data);
+			Files.write(file, data);
+			SlowOutputStream out = new SlowOutputStream(Integer.MAX_VALUE);
+			Result result = new Result();
+			long start = System.nanoTime();
+			// a 20k burst, and then the next 10k at 20k/s
+			new NonBlockingDownload(out, file, 0, data.length, 1000,
+					new BandwidthLimiter(0, 0, 20000).getShaper("/a/", "1"),
+					timer, result).start();
+			Assert.assertTrue(result.done.await(10, TimeUnit.SECONDS));
+			long elapsed = (System.nanoTime() - start) / 1000000;
+			Assert.assertNull(result.error);
+			Assert.assertTrue("Took " + elapsed + "ms", elapsed >= 300);
+			Assert.assertTrue(Arrays.equals(data, out.toByteArray()));
+		} finally {
+			timer.shutdownNow();
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testFileShrank() throws Exception {
+		Path file = Files.createTempFile("webfilez", ".bin");
+		try {
+			Files.write(file, new byte[1000]);
+			Result result = new Result();
+			new NonBlockingDownload(new SlowOutputStream(Integer.MAX_VALUE),
+					file, 0, 2000, 100, null, null, result).start();
+			Assert.assertTrue(result.done.await(10, TimeUnit.SECONDS));
+			Assert.assertTrue(result.error instanceof IOException);
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	private static final class Result implements NonBlockingDownload.Listener {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile Throwable error;
+
+		@Override
+		public void done(Throwable error) {
+			this.error = error;
+			this.done.countDown();
+		}
+	}
+
+	/**
+	 * Behaves like a container's: calls back as soon as it is given a
+	 * listener, and is only ready for so many writes in a row.
+	 */
+	private static final class SlowOutputStream extends ServletOutputStream {
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		private volatile int ready;
+		private WriteListener listener;
+
+		SlowOutputStream(int ready) {
+			this.ready = ready;
+		}
+
+		@Override
+		public boolean isReady() {
+			return this.ready > 0;
+		}
+
+		@Override
+		public void setWriteListener(WriteListener listener) {
+			this.listener = listener;
+			try {
+				listener.onWritePossible();
+			} catch (IOException e) {
+				listener.onError(e);
+			}
+		}
+
+		@Override
+		public void write(int b) {
+			this.write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			if (this.ready <= 0) {
+				throw new IllegalStateException("Not ready");
+			}
+			this.ready--;
+			this.out.write(b, off, len);
+		}
+
+		synchronized byte[] toByteArray() {
+			return this.out.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package com.twitter.university.webfilez;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class NonBlockingUploadTest {
+	@Test
+	public void testSlowClient() throws Exception {
+		Path dir = Files.createTempDirectory("webfilez");
+		try {
+			byte[] data = new byte[10000];
+			new Random(42).nextBytes(data);
+			// the client sends 700 bytes at a time
+			SlowInputStream in = new SlowInputStream(data, 700);
+			Result result = new Result();
+			Path file = dir.resolve("upload");
+			new NonBlockingUpload(in, file, 256, result).start();
+			for (int i = 0; i < 100 && !in.isFinished(); i++) {
+				// ...until the container calls back
+				in.arrive();
+				in.listener.onDataAvailable();
+			}
+			Assert.assertTrue(in.isFinished());
+			Assert.assertEquals(-1, result.bytes);
+			in.listener.onAllDataRead();
+			Assert.assertEquals(data.length, result.bytes);
+			Assert.assertTrue(Arrays.equals(Digests.newMessageDigest()
+					.digest(data), result.digest));
+			Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(file)));
+		} finally {
+			FileUtil.delete(dir);
+		}
+	}
+
+	@Test
+	public void testFailures() throws Exception {
+		Path dir = Files.createTempDirectory("webfilez");
+		try {
+			SlowInputStream in = new SlowInputStream(new byte[1000], 100);
+			Result result = new Result();
+			new NonBlockingUpload(in, dir.resolve("upload"), 256, result)
+					.start();
+			in.listener.onError(new IOException("Connection reset"));
+			Assert.assertTrue(result.reading);
+			Assert.assertNotNull(result.error);
+			// only once
+			in.listener.onAllDataRead();
+			Assert.assertEquals(-1, result.bytes);
+
+			// never over an existing file
+			try {
+				new NonBlockingUpload(in, dir.resolve("upload"), 256, result)
+						.start();
+				Assert.fail("Expected the existing file to be refused");
+			} catch (FileAlreadyExistsException expected) {
+			}
+		} finally {
+			FileUtil.delete(dir);
+		}
+	}
+
+	private static final class Result implements NonBlockingUpload.Listener {
+		private long bytes = -1;
+		private byte[] digest;
+		private Throwable error;
+		private boolean reading;
+
+		@Override
+		public void uploaded(long bytes, byte[] digest) {
+			this.bytes = bytes;
+			this.digest = digest;
+		}
+
+		@Override
+		public void failed(Throwable error, boolean reading) {
+			this.error = error;
+			this.reading = reading;
+		}
+	}
+
+	/**
+	 * Behaves like a container's: calls back as soon as it is given a
+	 * listener, and only has so much data at a time.
+	 */
+	private static final class SlowInputStream extends ServletInputStream {
+		private final byte[] data;
+		private final int chunkSize;
+		private int position;
+		private int available;
+		private ReadListener listener;
+
+		SlowInputStream(byte[] data, int chunkSize) {
+			this.data = data;
+			this.chunkSize = chunkSize;
+		}
+
+		void arrive() {
+			this.available = Math.min(this.chunkSize, this.data.length
+					- this.position);
+		}
+
+		@Override
+		public boolean isReady() {
+			return this.available > 0;
+		}
+
+		@Override
+		public boolean isFinished() {
+			return this.position == this.data.length;
+		}
+
+		@Override
+		public void setReadListener(ReadListener listener) {
+			this.listener = listener;
+			try {
+				listener.onDataAvailable();
+			} catch (IOException e) {
+				listener.onError(e);
+			}
+		}
+
+		@Override
+		public int read() {
+			byte[] b = new byte[1];
+			return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (this.isFinished()) {
+				return -1;
+			}
+			if (this.available <= 0) {
+				throw new IllegalStateException("Not ready");
+			}
+			int n = Math.min(len, this.available);
+			System.arraycopy(this.data, this.position, b, off, n);
+			this.position += n;
+			this.available -= n;
+			return n;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package com.twitter.university.webfilez;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ParallelCopierTest {
+	@Test
+	public void testCopy() throws IOException {
+		Path root = Files.createTempDirectory("webfilez");
+		ParallelCopier copier = new ParallelCopier(2);
+		try {
+			Path source = Files.createDirectory(root.resolve("source"));
+			long expected = 0;
+			for (int i = 0; i < 5; i++) {
+				Path dir = Files.createDirectories(source.resolve("d" + i)
+						.resolve("e"));
+				byte[] data = new byte[1000 * i];
+				Files.write(dir.resolve("f"), data);
+				Files.setLastModifiedTime(dir.resolve("f"),
+						FileTime.fromMillis(1000000000L * i));
+				expected += data.length;
+			}
+			Files.write(source.resolve("g"), new byte[] { 1, 2, 3 });
+			expected += 3;
+
+			Path destination = root.resolve("destination");
+			Assert.assertEquals(expected,
+					copier.copy(source, destination, Long.MAX_VALUE));
+			Assert.assertEquals(expected, FileUtil.size(destination));
+			for (int i = 0; i < 5; i++) {
+				Path f = destination.resolve("d" + i).resolve("e")
+						.resolve("f");
+				Assert.assertEquals(1000 * i, Files.size(f));
+				Assert.assertEquals(1000000000L * i, Files
+						.getLastModifiedTime(f).toMillis());
+			}
+			Assert.assertEquals(Files.getLastModifiedTime(source),
+					Files.getLastModifiedTime(destination));
+		} finally {
+			copier.shutdown();
+			FileUtil.delete(root);
+		}
+	}
+
+	@Test
+	public void testLink() throws IOException {
+		Path root = Files.createTempDirectory("webfilez");
+		ParallelCopier copier = new ParallelCopier(2);
+		try {
+			Path source = Files.createDirectory(root.resolve("source"));
+			Path a = Files.write(source.resolve("a"), new byte[100]);
+			Path destination = root.resolve("destination");
+			Assert.assertEquals(100, copier.copy(source, destination, 100,
+					ParallelCopier.Strategy.LINK));
+			Assert.assertTrue(Files.isSameFile(a, destination.resolve("a")));
+		} finally {
+			copier.shutdown();
+			FileUtil.delete(root);
+		}
+	}
+
+	@Test
+	public void testBudgetExceeded() throws IOException {
+		Path root = Files.createTempDirectory("webfilez");
+		ParallelCopier copier = new ParallelCopier(2);
+		try {
+			Path source = Files.createDirectory(root.resolve("source"));
+			Files.write(source.resolve("a"), new byte[100]);
+			Files.write(
+					Files.createDirectory(source.resolve("b")).resolve("c"),
+					new byte[100]);
+			try {
+				copier.copy(source, root.resolve("destination"), 150);
+				Assert.fail("Expected the budget to be exceeded");
+			} catch (ParallelCopier.BudgetExceededException expected) {
+			}
+		} finally {
+			copier.shutdown();
+			FileUtil.delete(root);
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package com.twitter.university.webfilez;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ParallelGzipOutputStreamTest {
+	@Test
+	public void testRoundTrip() throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			// compressible, but not trivially so
+			Random random = new Random(42);
+			byte[] data = new byte[1000000];
+			for (int i = 0; i < data.length; i++) {
+				data[i] = (byte) ('a' + random.nextInt(8));
+			}
+			for (int length : new int[] { 0, 1, 4096, 4097, data.length }) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				try (ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(
+						out, executor, Deflater.DEFAULT_COMPRESSION, 4096, 6)) {
+					for (int i = 0; i < length; i += 1000) {
+						gzip.write(data, i, Math.min(1000, length - i));
+					}
+				}
+				Assert.assertTrue(Arrays.equals(
+						Arrays.copyOf(data, length),
+						gunzip(out.toByteArray())));
+				if (length == data.length) {
+					Assert.assertTrue(out.size() < length / 2);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static byte[] gunzip(byte[] gzipped) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(
+				gzipped))) {
+			byte[] buffer = new byte[8192];
+			for (int n; (n = in.read(buffer)) > 0;) {
+				out.write(buffer, 0, n);
+			}
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,154 @@
+package com.twitter.university.webfilez;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class SingleFlightTest {
+	@Test
+	public void testShared() throws Exception {
+		final SingleFlight<Integer> flight = new SingleFlight<>("test", 10000);
+		final AtomicInteger computations = new AtomicInteger();
+		final CountDownLatch proceed = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Future<Integer> leader = executor.submit(get(flight, "a",
+					new SingleFlight.Computation<Integer>() {
+						@Override
+						public Integer compute() throws IOException {
+							computations.incrementAndGet();
+							await(proceed);
+							return 42;
+						}
+					}));
+			waitForComputations(computations, 1);
+			Future<Integer> follower1 = executor.submit(get(flight, "a",
+					counting(computations, 0)));
+			Future<Integer> follower2 = executor.submit(get(flight, "a",
+					counting(computations, 0)));
+			// a different key is not held up
+			Assert.assertEquals(7,
+					(int) flight.get("b", counting(computations, 7)));
+			for (int i = 0; i < 1000 && flight.getJoined() < 2; i++) {
+				Thread.sleep(10);
+			}
+			proceed.countDown();
+			Assert.assertEquals(42, (int) leader.get(10, TimeUnit.SECONDS));
+			Assert.assertEquals(42, (int) follower1.get(10, TimeUnit.SECONDS));
+			Assert.assertEquals(42, (int) follower2.get(10, TimeUnit.SECONDS));
+			Assert.assertEquals(2, computations.get());
+			Assert.assertEquals(2, flight.getLed());
+			Assert.assertEquals(2, flight.getJoined());
+			Assert.assertEquals(0, flight.getFellBack());
+
+			// and once done, it is computed again
+			Assert.assertEquals(1,
+					(int) flight.get("a", counting(computations, 1)));
+			Assert.assertEquals(3, computations.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testFallBack() throws Exception {
+		final SingleFlight<Integer> flight = new SingleFlight<>("test", 200);
+		final AtomicInteger computations = new AtomicInteger();
+		final CountDownLatch proceed = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			// the leader fails...
+			Future<Integer> leader = executor.submit(get(flight, "a",
+					new SingleFlight.Computation<Integer>() {
+						@Override
+						public Integer compute() throws IOException {
+							computations.incrementAndGet();
+							await(proceed);
+							throw new IOException("Failed");
+						}
+					}));
+			waitForComputations(computations, 1);
+			Future<Integer> follower = executor.submit(get(flight, "a",
+					counting(computations, 2)));
+			for (int i = 0; i < 1000 && flight.getJoined() < 1; i++) {
+				Thread.sleep(10);
+			}
+			proceed.countDown();
+			try {
+				leader.get(10, TimeUnit.SECONDS);
+				Assert.fail("Expected the leader to fail");
+			} catch (ExecutionException expected) {
+			}
+			// ...but not its follower
+			Assert.assertEquals(2, (int) follower.get(10, TimeUnit.SECONDS));
+
+			// and a slow leader gets left behind
+			final CountDownLatch slow = new CountDownLatch(1);
+			executor.submit(get(flight, "b",
+					new SingleFlight.Computation<Integer>() {
+						@Override
+						public Integer compute() throws IOException {
+							computations.incrementAndGet();
+							await(slow);
+							return 0;
+						}
+					}));
+			waitForComputations(computations, 3);
+			long start = System.nanoTime();
+			Assert.assertEquals(3,
+					(int) flight.get("b", counting(computations, 3)));
+			Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS
+					.toNanos(200));
+			slow.countDown();
+			Assert.assertEquals(2, flight.getFellBack());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static Callable<Integer> get(final SingleFlight<Integer> flight,
+			final String key, final SingleFlight.Computation<Integer> computation) {
+		return new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				return flight.get(key, computation);
+			}
+		};
+	}
+
+	private static SingleFlight.Computation<Integer> counting(
+			final AtomicInteger computations, final int value) {
+		return new SingleFlight.Computation<Integer>() {
+			@Override
+			public Integer compute() {
+				computations.incrementAndGet();
+				return value;
+			}
+		};
+	}
+
+	private static void await(CountDownLatch latch) throws IOException {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static void waitForComputations(AtomicInteger computations,
+			int n) throws InterruptedException {
+		for (int i = 0; i < 1000 && computations.get() < n; i++) {
+			Thread.sleep(10);
+		}
+	}
+}
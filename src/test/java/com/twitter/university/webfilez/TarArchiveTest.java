@@ -0,0 +1,156 @@
+package com.twitter.university.webfilez;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TarArchiveTest {
+	@Test
+	public void testLayout() throws IOException {
+		Path dir = Files.createTempDirectory("webfilez");
+		try {
+			StringBuilder longName = new StringBuilder();
+			for (int i = 0; i < 30; i++) {
+				longName.append("long");
+			}
+			Path a = Files.createDirectories(dir.resolve("a"));
+			Path prefixed = Files.createDirectories(a.resolve(longName
+					.substring(0, 90)));
+			Files.write(a.resolve("small.txt"), "hello".getBytes(StandardCharsets.US_ASCII));
+			Files.write(prefixed.resolve("prefixed.txt"), new byte[1000]);
+			Files.write(a.resolve(longName.toString()), new byte[512]);
+			Files.createDirectories(a.resolve("empty"));
+			Files.write(dir.resolve("b.txt"), new byte[] { 'b' });
+			Files.write(dir.resolve("unselected.txt"), new byte[] { 'u' });
+
+			TarArchive archive = TarArchive.layout(dir,
+					Arrays.asList(a, dir.resolve("b.txt")));
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			archive.write(out, 100);
+			byte[] tar = out.toByteArray();
+			Assert.assertEquals(archive.size(), tar.length);
+			Assert.assertEquals(0, tar.length % 512);
+
+			List<String> names = new ArrayList<>();
+			List<Long> sizes = new ArrayList<>();
+			read(tar, names, sizes);
+			Assert.assertEquals(7, names.size());
+			Assert.assertTrue(names.contains("a/"));
+			Assert.assertTrue(names.contains("a/empty/"));
+			Assert.assertTrue(names.contains("a/" + longName.substring(0, 90)
+					+ "/prefixed.txt"));
+			Assert.assertTrue(names.contains("a/" + longName));
+			Assert.assertEquals(1000L,
+					(long) sizes.get(names.indexOf("a/" + longName.substring(0, 90)
+							+ "/prefixed.txt")));
+			Assert.assertEquals("b.txt", names.get(names.size() - 1));
+			Assert.assertFalse(names.contains("unselected.txt"));
+
+			// any range is the same as that part of the whole
+			for (long start : new long[] { 0, 1, 511, 512, 600, 1536,
+					tar.length - 1025, tar.length - 1 }) {
+				for (long length : new long[] { 0, 1, 100, 513, 2000 }) {
+					length = Math.min(length, tar.length - start);
+					out = new ByteArrayOutputStream();
+					archive.write(out, start, length, 100);
+					Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(tar,
+							(int) start, (int) (start + length)), out
+							.toByteArray()));
+				}
+			}
+
+			// the same length even if a file changed since
+			Files.write(a.resolve("small.txt"), new byte[10000]);
+			out = new ByteArrayOutputStream();
+			archive.write(out, 100);
+			Assert.assertEquals(archive.size(), out.size());
+		} finally {
+			FileUtil.delete(dir);
+		}
+	}
+
+	@Test
+	public void testDeletedSinceLayout() throws IOException {
+		Path dir = Files.createTempDirectory("webfilez");
+		try {
+			Path a = Files.write(dir.resolve("a.txt"), new byte[1000]);
+			Path b = Files.write(dir.resolve("b.txt"), new byte[] { 'b' });
+			TarArchive archive = TarArchive.layout(dir, Arrays.asList(a, b));
+			Files.delete(a);
+
+			// still all there, with the deleted file as zeros
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			archive.write(out, 100);
+			byte[] tar = out.toByteArray();
+			Assert.assertEquals(archive.size(), tar.length);
+			List<String> names = new ArrayList<>();
+			read(tar, names, new ArrayList<Long>());
+			Assert.assertEquals(Arrays.asList("a.txt", "b.txt"), names);
+			out = new ByteArrayOutputStream();
+			archive.write(out, 600, 100, 100);
+			Assert.assertTrue(Arrays.equals(new byte[100], out.toByteArray()));
+		} finally {
+			FileUtil.delete(dir);
+		}
+	}
+
+	private static void read(byte[] tar, List<String> names, List<Long> sizes) {
+		String paxPath = null;
+		for (int offset = 0; offset < tar.length; ) {
+			if (tar[offset] == 0) {
+				// end of archive
+				break;
+			}
+			int checksum = 0;
+			for (int i = 0; i < 512; i++) {
+				checksum += i >= 148 && i < 156 ? ' ' : tar[offset + i] & 0xff;
+			}
+			Assert.assertEquals(checksum,
+					Integer.parseInt(string(tar, offset + 148, 6), 8));
+			Assert.assertEquals("ustar", string(tar, offset + 257, 6));
+			long size = Long.parseLong(string(tar, offset + 124, 12), 8);
+			char type = (char) tar[offset + 156];
+			if (type == 'x') {
+				String records = new String(tar, offset + 512, (int) size,
+						StandardCharsets.UTF_8);
+				for (String record : records.split("\n")) {
+					Assert.assertEquals(record.length() + 1,
+							Integer.parseInt(record.substring(0, record.indexOf(' '))));
+					if (record.contains(" path=")) {
+						paxPath = record.substring(record.indexOf('=') + 1);
+					}
+				}
+			} else {
+				String name = string(tar, offset, 100);
+				String prefix = string(tar, offset + 345, 155);
+				if (paxPath != null) {
+					name = paxPath;
+					paxPath = null;
+				} else if (!prefix.isEmpty()) {
+					name = prefix + "/" + name;
+				}
+				Assert.assertEquals(name.endsWith("/") ? '5' : '0', type);
+				names.add(name);
+				sizes.add(size);
+			}
+			offset += 512 + (size + 511) / 512 * 512;
+		}
+	}
+
+	private static String string(byte[] b, int offset, int length) {
+		int end = offset;
+		while (end < offset + length && b[end] != 0) {
+			end++;
+		}
+		return new String(b, offset, end - offset, StandardCharsets.UTF_8);
+	}
+}
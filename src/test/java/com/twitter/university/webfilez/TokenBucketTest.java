@@ -0,0 +1,36 @@
+package com.twitter.university.webfilez;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+	@Test
+	public void testTake() {
+		TokenBucket bucket = new TokenBucket(1000, 1000);
+		Assert.assertTrue(bucket.isIdle());
+		// a full bucket's worth goes right away...
+		Assert.assertEquals(0, bucket.take(1000));
+		Assert.assertFalse(bucket.isIdle());
+		// ...but more has to wait for the refill
+		long delay = bucket.take(500);
+		Assert.assertTrue(delay > TimeUnit.MILLISECONDS.toNanos(400));
+		Assert.assertTrue(delay <= TimeUnit.MILLISECONDS.toNanos(500));
+		// and waits add up
+		Assert.assertTrue(bucket.take(500) > TimeUnit.MILLISECONDS
+				.toNanos(900));
+	}
+
+	@Test
+	public void testRefill() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(10000, 100);
+		Assert.assertEquals(0, bucket.take(100));
+		Thread.sleep(50);
+		Assert.assertTrue(bucket.isIdle());
+		// it never holds more than its capacity
+		Assert.assertEquals(0, bucket.take(100));
+		Assert.assertTrue(bucket.take(100) > 0);
+	}
+}
@@ -0,0 +1,113 @@
+package com.twitter.university.webfilez;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TrashTest {
+	@Test
+	public void testMoveToTrash() throws Exception {
+		Path root = Files.createTempDirectory("webfilez");
+		Path trashDir = root.resolve(".trash");
+		Trash trash = new Trash(trashDir, 0);
+		try {
+			Path dir = Files.createDirectories(root.resolve("u/1/files/dir"));
+			Files.write(Files.createDirectories(dir.resolve("sub")).resolve(
+					"a.txt"), "Hello".getBytes("UTF-8"));
+			Files.createDirectories(trashDir);
+			Assert.assertTrue(trash.moveToTrash(dir));
+			// gone from the base path right away...
+			Assert.assertFalse(Files.exists(dir));
+			List<Path> trashed = list(trashDir);
+			Assert.assertEquals(1, trashed.size());
+			Assert.assertTrue(trashed.get(0).getFileName().toString()
+					.endsWith("-dir"));
+			Assert.assertTrue(Files.exists(trashed.get(0).resolve(
+					"sub/a.txt")));
+			// ...and purged once the purger gets to it
+			trash.start();
+			awaitEmpty(trashDir);
+		} finally {
+			trash.stop();
+			FileUtil.delete(root);
+		}
+	}
+
+	@Test
+	public void testPurgeLeftovers() throws Exception {
+		Path root = Files.createTempDirectory("webfilez");
+		Path trashDir = root.resolve(".trash");
+		Trash trash = new Trash(trashDir, 0);
+		try {
+			// left behind by a previous run
+			Files.write(Files.createDirectories(trashDir.resolve("1-1-dir"))
+					.resolve("a.txt"), "Hello".getBytes("UTF-8"));
+			trash.start();
+			awaitEmpty(trashDir);
+		} finally {
+			trash.stop();
+			FileUtil.delete(root);
+		}
+	}
+
+	@Test
+	public void testDeleteInPlace() throws Exception {
+		Path root = Files.createTempDirectory("webfilez");
+		Path shm = FileSystems.getDefault().getPath("/dev/shm");
+		if (!Files.isDirectory(shm)
+				|| Files.getFileStore(shm).equals(Files.getFileStore(root))) {
+			// there is no other volume to put the trash on
+			FileUtil.delete(root);
+			return;
+		}
+		Path trashDir = Files.createTempDirectory(shm, "webfilez-trash");
+		Map<String, Object> params = new HashMap<>();
+		params.put("trash-enabled", Boolean.TRUE);
+		params.put("trash-dir", trashDir.toString());
+		WebFilezServlet servlet = WebFilezServletTest.start(root, params);
+		try {
+			Path dir = Files.createDirectories(root.resolve("u/1/files/dir"));
+			Files.write(dir.resolve("a.txt"), "Hello".getBytes("UTF-8"));
+			// the trash cannot take it, so it is deleted where it is
+			Assert.assertEquals(HttpServletResponse.SC_NO_CONTENT,
+					WebFilezServletTest.delete(servlet, "/u/1/files/dir"));
+			Assert.assertFalse(Files.exists(dir));
+			Assert.assertTrue(list(trashDir).isEmpty());
+		} finally {
+			servlet.destroy();
+			FileUtil.delete(root);
+			FileUtil.delete(trashDir);
+		}
+	}
+
+	private static List<Path> list(Path dir) throws Exception {
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path file : stream) {
+				files.add(file);
+			}
+		}
+		return files;
+	}
+
+	private static void awaitEmpty(Path dir) throws Exception {
+		for (int i = 0; i < 1000; i++) {
+			if (list(dir).isEmpty()) {
+				return;
+			}
+			Thread.sleep(10);
+		}
+		throw new AssertionError("[" + dir + "] was not purged");
+	}
+}
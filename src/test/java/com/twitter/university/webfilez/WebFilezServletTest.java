@@ -0,0 +1,846 @@
+package com.twitter.university.webfilez;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URLEncoder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.spi.InitialContextFactory;
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.Assert;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Drives the servlet end to end, with just enough of a container (and of
+ * JNDI, where its configuration comes from) faked around it.
+ */
+public class WebFilezServletTest {
+	private static final Map<String, Object> env = new HashMap<>();
+
+	@Test
+	public void testUploadThenFindByDigest() throws Exception {
+		Path root = Files.createTempDirectory("webfilez");
+		WebFilezServlet servlet = start(root);
+		try {
+			Files.createDirectories(root.resolve("u/1/files"));
+			byte[] data = "Hello, World!".getBytes("UTF-8");
+			String digest = Digests.toHeaderValue(Digests.newMessageDigest()
+					.digest(data));
+
+			// not there yet, so it gets uploaded (having looked it up, the
+			// base path is now indexed)
+			Map<String, String> headers = new HashMap<>();
+			headers.put("Digest", digest);
+			Response response = put(servlet, "/u/1/files/a.txt", headers,
+					new ByteArrayInputStream(data), data.length);
+			Assert.assertEquals(HttpServletResponse.SC_CREATED,
+					response.status);
+
+			// ...and then found by digest, without reading the body
+			response = put(servlet, "/u/1/files/b.txt", headers,
+					new InputStream() {
+						@Override
+						public int read() throws IOException {
+							throw new IOException("Not expecting the body");
+						}
+					}, data.length);
+			Assert.assertEquals(HttpServletResponse.SC_CREATED,
+					response.status);
+			Assert.assertTrue(Arrays.equals(data,
+					Files.readAllBytes(root.resolve("u/1/files/b.txt"))));
+		} finally {
+			servlet.destroy();
+			FileUtil.delete(root);
+		}
+	}
+
+	@Test
+	public void testNonBlockingUploadThenFindByDigest() throws Exception {
+		Path root = Files.createTempDirectory("webfilez");
+		WebFilezServlet servlet = start(root);
+		try {
+			Files.createDirectories(root.resolve("u/1/files"));
+			// more than a small download, so it is received without blocking
+			byte[] data = new byte[2 * 1024 * 1024];
+			new Random(1).nextBytes(data);
+			Map<String, String> headers = Collections.singletonMap("Digest",
+					Digests.toHeaderValue(Digests.newMessageDigest().digest(
+							data)));
+			Assert.assertEquals(HttpServletResponse.SC_CREATED, put(servlet,
+					"/u/1/files/a.bin", headers, new ByteArrayInputStream(data),
+					data.length).status);
+			Assert.assertEquals(HttpServletResponse.SC_CREATED, put(servlet,
+					"/u/1/files/b.bin", headers, new InputStream() {
+						@Override
+						public int read() throws IOException {
+							throw new IOException("Not expecting the body");
+						}
+					}, data.length).status);
+			Assert.assertTrue(Arrays.equals(data,
+					Files.readAllBytes(root.resolve("u/1/files/b.bin"))));
+		} finally {
+			servlet.destroy();
+			FileUtil.delete(root);
+		}
+	}
+
+	@Test
+	public void testShortPartialPut() throws Exception {
+		Path root = Files.createTempDirectory("webfilez");
+		WebFilezServlet servlet = start(root);
+		try {
+			Path dir = Files.createDirectories(root.resolve("u/1/files"));
+			// the client promises ten bytes, but only four arrive
+			Response response = put(servlet, "/u/1/files/a.bin",
+					Collections.singletonMap("Content-Range", "bytes 0-9/10"),
+					new ByteArrayInputStream(new byte[] { 1, 2, 3, 4 }), 10);
+			Assert.assertEquals(HttpServletResponse.SC_BAD_REQUEST,
+					response.status);
+			Assert.assertEquals("bytes=0-3", response.headers.get("Range"));
+			Assert.assertEquals(4, Files.size(dir.resolve("a.bin")));
+
+			// ...so it resumes from there
+			response = put(servlet, "/u/1/files/a.bin",
+					Collections.singletonMap("Content-Range", "bytes 4-9/10"),
+					new ByteArrayInputStream(new byte[6]), 6);
+			Assert.assertEquals(HttpServletResponse.SC_OK, response.status);
+			Assert.assertEquals(10, Files.size(dir.resolve("a.bin")));
+		} finally {
+			servlet.destroy();
+			FileUtil.delete(root);
+		}
+	}
+
+	@Test
+	public void testUploadByDigest() throws Exception {
+		Path root = Files.createTempDirectory("webfilez");
+		WebFilezServlet servlet = start(root);
+		try {
+			Path dir = Files.createDirectories(root.resolve("u/1/files"));
+			byte[] data = "Hello, World!".getBytes("UTF-8");
+			byte[] digest = Digests.newMessageDigest().digest(data);
+			Assert.assertEquals(HttpServletResponse.SC_CREATED, put(servlet,
+					"/u/1/files/a.txt", Collections.<String, String> emptyMap(),
+					new ByteArrayInputStream(data), data.length).status);
+			byte[] other = { 1, 2, 3 };
+			Files.write(dir.resolve("c.txt"), other);
+
+			// digests are given as in the Digest header, and existing files
+			// are only replaced if the preconditions allow it
+			Map<String, String[]> params = new HashMap<>();
+			params.put("_action", new String[] { "upload" });
+			params.put("file", new String[] { "b.txt", "c.txt", "d.txt" });
+			params.put("digest", new String[] {
+					Digests.toHeaderValue(digest),
+					Digests.toHeaderValue(digest), Digests.toHex(digest) });
+			String size = Integer.toString(data.length);
+			params.put("size", new String[] { size, size, size });
+			Response response = new Response();
+			servlet.service(request("POST", "/u/1/files/",
+					Collections.singletonMap("If-None-Match", "*"), params,
+					null, 0), response.fake());
+			Assert.assertEquals(HttpServletResponse.SC_OK, response.status);
+			Assert.assertTrue(Arrays.equals(data,
+					Files.readAllBytes(dir.resolve("b.txt"))));
+			Assert.assertTrue(Arrays.equals(other,
+					Files.readAllBytes(dir.resolve("c.txt"))));
+			Assert.assertFalse(Files.exists(dir.resolve("d.txt")));
+		} finally {
+			servlet.destroy();
+			FileUtil.delete(root);
+		}
+	}
+
+	@Test
+	public void testArchiveInBangDirectory() throws Exception {
+		Path root = Files.createTempDirectory("webfilez");
+		WebFilezServlet servlet = start(root);
+		try {
+			// a directory that merely looks like an archive path
+			Path dir = Files.createDirectories(root
+					.resolve("u/1/files/x.zip!"));
+			try (ZipOutputStream zip = new ZipOutputStream(
+					Files.newOutputStream(dir.resolve("a.zip")))) {
+				zip.putNextEntry(new ZipEntry("hello.txt"));
+				zip.write("Hello".getBytes("UTF-8"));
+			}
+			Response response = get(servlet,
+					"/u/1/files/x.zip!/a.zip!/hello.txt",
+					Collections.<String, String[]> emptyMap());
+			Assert.assertEquals(HttpServletResponse.SC_OK, response.status);
+			Assert.assertEquals("Hello", response.body.toString());
+
+			// the listing's ETag depends on the fields it has
+			String uri = "/u/1/files/x.zip!/a.zip!/";
+			String names = get(servlet, uri,
+					Collections.singletonMap("fields", new String[] { "name" }))
+					.headers.get("ETag");
+			String sizes = get(servlet, uri,
+					Collections.singletonMap("fields", new String[] { "size" }))
+					.headers.get("ETag");
+			Assert.assertNotNull(names);
+			Assert.assertFalse(names.equals(sizes));
+		} finally {
+			servlet.destroy();
+			FileUtil.delete(root);
+		}
+	}
+
+	@Test
+	public void testManifest() throws Exception {
+		Path root = Files.createTempDirectory("webfilez");
+		WebFilezServlet servlet = start(root);
+		Path locked = root.resolve("u/1/files/locked");
+		try {
+			Path dir = Files.createDirectories(root.resolve("u/1/files"));
+			Files.write(dir.resolve("a.txt"), "Hello".getBytes("UTF-8"));
+			Files.createDirectories(dir.resolve("sub/deeper"));
+			Files.write(dir.resolve("sub/b.txt"), new byte[1]);
+			Files.write(dir.resolve("sub/deeper/c.txt"), new byte[2]);
+			Files.createDirectories(locked);
+			Files.write(locked.resolve("secret.txt"), new byte[3]);
+			Files.setPosixFilePermissions(locked,
+					PosixFilePermissions.fromString("---------"));
+			// (unless we are root, for whom it is not locked at all)
+			boolean readable = Files.isReadable(locked);
+
+			Map<String, String> ndjson = Collections.singletonMap("Accept",
+					"application/x-ndjson");
+			Map<String, String[]> params = new HashMap<>();
+			params.put("_action", new String[] { "manifest" });
+			params.put("fields", new String[] { "path,size" });
+			Response response = service(servlet, "GET", "/u/1/files/",
+					ndjson, params);
+			Assert.assertEquals(HttpServletResponse.SC_OK, response.status);
+			List<String> paths = new ArrayList<>();
+			for (String line : response.body.toString().split("\n")) {
+				JSONObject entry = new JSONObject(line);
+				String path = entry.getString("path");
+				paths.add(path);
+				// only the fields asked for, and no sizes of directories
+				Assert.assertEquals(path, path.endsWith("/") ? 1 : 2,
+						entry.length());
+				if (path.equals("a.txt")) {
+					Assert.assertEquals(5, entry.getLong("size"));
+				}
+			}
+			// what cannot be read is skipped, rather than failing the rest
+			List<String> expected = new ArrayList<>(Arrays.asList("a.txt",
+					"sub/", "sub/b.txt", "sub/deeper/", "sub/deeper/c.txt"));
+			if (readable) {
+				expected.add("locked/");
+				expected.add("locked/secret.txt");
+			}
+			Assert.assertEquals(new HashSet<>(expected), new HashSet<>(paths));
+			Assert.assertEquals(expected.size(), paths.size());
+			// every directory comes before what is in it
+			for (String path : paths) {
+				int slash = path.lastIndexOf('/', path.length() - 2);
+				if (slash >= 0) {
+					Assert.assertTrue(path, paths.indexOf(path.substring(0,
+							slash + 1)) < paths.indexOf(path));
+				}
+			}
+
+			// just the headers
+			response = service(servlet, "HEAD", "/u/1/files/", ndjson,
+					params);
+			Assert.assertEquals(HttpServletResponse.SC_OK, response.status);
+			Assert.assertEquals("", response.body.toString());
+		} finally {
+			Files.setPosixFilePermissions(locked,
+					PosixFilePermissions.fromString("rwx------"));
+			servlet.destroy();
+			FileUtil.delete(root);
+		}
+	}
+
+	@Test
+	public void testBatchDelete() throws Exception {
+		Path root = Files.createTempDirectory("webfilez");
+		WebFilezServlet servlet = start(root);
+		try {
+			Path dir = Files.createDirectories(root.resolve("u/1/files"));
+			Files.write(dir.resolve("a.txt"), "Hello".getBytes("UTF-8"));
+			Files.write(dir.resolve("b.txt"), "World!".getBytes("UTF-8"));
+			String eTag = get(servlet, "/u/1/files/a.txt",
+					Collections.<String, String[]> emptyMap()).headers
+					.get("ETag");
+			Assert.assertNotNull(eTag);
+
+			// each file is checked against the preconditions on its own
+			Map<String, String[]> params = new HashMap<>();
+			params.put("_action", new String[] { "delete" });
+			params.put("file", new String[] { "a.txt", "missing.txt",
+					"b.txt" });
+			Response response = new Response();
+			servlet.service(request("POST", "/u/1/files/",
+					Collections.singletonMap("If-Match", eTag), params, null, 0),
+					response.fake());
+			Assert.assertEquals(HttpServletResponse.SC_OK, response.status);
+			JSONArray files = new JSONObject(response.body.toString())
+					.getJSONArray("files");
+			Assert.assertEquals(3, files.length());
+			int[] expected = { HttpServletResponse.SC_NO_CONTENT,
+					HttpServletResponse.SC_NOT_FOUND,
+					HttpServletResponse.SC_PRECONDITION_FAILED };
+			for (int i = 0; i < expected.length; i++) {
+				JSONObject file = files.getJSONObject(i);
+				Assert.assertEquals(params.get("file")[i],
+						file.getString("name"));
+				Assert.assertEquals(file.getString("name"), expected[i],
+						file.getInt("status"));
+			}
+			Assert.assertFalse(Files.exists(dir.resolve("a.txt")));
+			Assert.assertTrue(Files.exists(dir.resolve("b.txt")));
+		} finally {
+			servlet.destroy();
+			FileUtil.delete(root);
+		}
+	}
+
+	@Test
+	public void testUnzipAgain() throws Exception {
+		Path root = Files.createTempDirectory("webfilez");
+		WebFilezServlet servlet = start(root);
+		try {
+			Path dir = Files.createDirectories(root.resolve("u/1/files"));
+			try (ZipOutputStream zip = new ZipOutputStream(
+					Files.newOutputStream(dir.resolve("a.zip")))) {
+				zip.putNextEntry(new ZipEntry("a/hello.txt"));
+				zip.write("Hello".getBytes("UTF-8"));
+				zip.putNextEntry(new ZipEntry("a/world.txt"));
+				zip.write("World".getBytes("UTF-8"));
+			}
+			Map<String, String[]> params = Collections.singletonMap(
+					"_action", new String[] { "unzip" });
+			Assert.assertEquals(HttpServletResponse.SC_OK,
+					post(servlet, "/u/1/files/a.zip", params).status);
+			Assert.assertEquals("Hello", new String(
+					Files.readAllBytes(dir.resolve("a/hello.txt")), "UTF-8"));
+
+			// as if an earlier attempt had only got part of the way
+			Files.delete(dir.resolve("a/world.txt"));
+			Assert.assertEquals(HttpServletResponse.SC_OK,
+					post(servlet, "/u/1/files/a.zip", params).status);
+			Assert.assertEquals("World", new String(
+					Files.readAllBytes(dir.resolve("a/world.txt")), "UTF-8"));
+
+			// but a different file in the way fails it, with nothing moved
+			Files.write(dir.resolve("a/hello.txt"), "Bye".getBytes("UTF-8"));
+			Files.delete(dir.resolve("a/world.txt"));
+			Assert.assertFalse(HttpServletResponse.SC_OK == post(servlet,
+					"/u/1/files/a.zip", params).status);
+			Assert.assertFalse(Files.exists(dir.resolve("a/world.txt")));
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+				for (Path file : files) {
+					Assert.assertFalse(file.toString(), file.getFileName()
+							.toString().contains("unzipping"));
+				}
+			}
+		} finally {
+			servlet.destroy();
+			FileUtil.delete(root);
+		}
+	}
+
+	@Test
+	public void testZipDownloadInBulkhead() throws Exception {
+		Path root = Files.createTempDirectory("webfilez");
+		WebFilezServlet servlet = start(root, 1);
+		try {
+			Path dir = Files.createDirectories(root.resolve("u/1/files"));
+			Files.write(dir.resolve("a.txt"), "Hello".getBytes("UTF-8"));
+			Map<String, String[]> params = new HashMap<>();
+			params.put("_action", new String[] { "zip_download" });
+			params.put("file", new String[] { "a.txt" });
+			// written by a blocking loop, so not on the container's thread
+			Response response = get(servlet, "/u/1/files/", params).await();
+			Assert.assertEquals(HttpServletResponse.SC_OK, response.status);
+			Assert.assertNotNull(response.writer);
+			Assert.assertTrue(response.writer,
+					response.writer.startsWith("webfilez-transfer-"));
+		} finally {
+			servlet.destroy();
+			FileUtil.delete(root);
+		}
+	}
+
+	@Test
+	public void testFormPostInBulkhead() throws Exception {
+		Path root = Files.createTempDirectory("webfilez");
+		WebFilezServlet servlet = start(root, 1);
+		try {
+			Path dir = Files.createDirectories(root.resolve("u/1/files"));
+			try (ZipOutputStream zip = new ZipOutputStream(
+					Files.newOutputStream(dir.resolve("a.zip")))) {
+				zip.putNextEntry(new ZipEntry("hello.txt"));
+				zip.write("Hello".getBytes("UTF-8"));
+			}
+			// the action is in the form, not the query string, and still the
+			// unzip goes async on the heavy bulkhead
+			Response response = post(servlet, "/u/1/files/a.zip",
+					Collections.singletonMap("_action",
+							new String[] { "unzip" })).await();
+			Assert.assertEquals(HttpServletResponse.SC_OK, response.status);
+			Assert.assertTrue(Files.exists(dir.resolve("hello.txt")));
+		} finally {
+			servlet.destroy();
+			FileUtil.delete(root);
+		}
+	}
+
+	@Test
+	public void testRestartedJobs() throws Exception {
+		Path root = Files.createTempDirectory("webfilez");
+		Path dir = Files.createDirectories(root.resolve("u/1/files"));
+		Path jobs = Files.createDirectories(root.resolve(".webfilez/jobs"));
+		Path a = Files.write(dir.resolve("a.txt"), new byte[] { 1 });
+		Path b = Files.write(dir.resolve("b.txt"), new byte[] { 2 });
+		// as if interrupted just after their results were put in place
+		Files.write(dir.resolve("Archive.zip"), new byte[] { 3 });
+		Files.write(dir.resolve("a copy.txt"), new byte[] { 1 });
+		Map<String, String> zip = new HashMap<>();
+		zip.put("dir", dir.toString());
+		zip.put("files", a + "\0" + b);
+		zip.put("zipFile", dir.resolve("Archive.zip").toString());
+		writeInterruptedJob(jobs, "zip", zip);
+		Map<String, String> copy = new HashMap<>();
+		copy.put("source", a.toString());
+		copy.put("dir", dir.toString());
+		copy.put("target", dir.resolve("a copy.txt").toString());
+		copy.put("overwrite", "false");
+		copy.put("strategy", "COPY");
+		copy.put("quota", "0");
+		writeInterruptedJob(jobs, "copy", copy);
+		WebFilezServlet servlet = start(root);
+		try {
+			for (String id : new String[] { "zip", "copy" }) {
+				Assert.assertEquals(id, "SUCCEEDED", awaitJob(jobs, id));
+			}
+			// done rather than done again
+			Assert.assertFalse(Files.exists(dir.resolve("Archive copy.zip")));
+			Assert.assertFalse(Files.exists(dir.resolve("a copy 2.txt")));
+			Assert.assertTrue(Arrays.equals(new byte[] { 3 },
+					Files.readAllBytes(dir.resolve("Archive.zip"))));
+		} finally {
+			servlet.destroy();
+			FileUtil.delete(root);
+		}
+	}
+
+	private static void writeInterruptedJob(Path jobs, String type,
+			Map<String, String> params) throws IOException {
+		Properties job = new Properties();
+		job.setProperty("id", type);
+		job.setProperty("type", type);
+		job.setProperty("owner", "/u/1/files/");
+		job.setProperty("created", "0");
+		job.setProperty("state", "RUNNING");
+		job.setProperty("attempts", "1");
+		for (Map.Entry<String, String> param : params.entrySet()) {
+			job.setProperty("param." + param.getKey(), param.getValue());
+		}
+		try (OutputStream out = Files.newOutputStream(jobs.resolve(type
+				+ ".job"))) {
+			job.store(out, null);
+		}
+	}
+
+	/**
+	 * @return the state that the given job has ended in
+	 */
+	private static String awaitJob(Path jobs, String id) throws Exception {
+		for (int i = 0; i < 1000; i++) {
+			Properties job = new Properties();
+			try (InputStream in = Files.newInputStream(jobs.resolve(id
+					+ ".job"))) {
+				job.load(in);
+			}
+			String state = job.getProperty("state");
+			if (!state.equals("QUEUED") && !state.equals("RUNNING")) {
+				return state;
+			}
+			Thread.sleep(10);
+		}
+		throw new AssertionError("Job [" + id + "] did not end");
+	}
+
+	private static WebFilezServlet start(Path root) throws Exception {
+		return start(root, 0);
+	}
+
+	/**
+	 * @param threads
+	 *            how many threads each bulkhead has (if none, there are no
+	 *            bulkheads, and everything is served on the calling thread)
+	 */
+	private static WebFilezServlet start(Path root, int threads)
+			throws Exception {
+		Map<String, Object> params = new HashMap<>();
+		params.put("heavy-threads", threads);
+		params.put("transfer-threads", threads);
+		return start(root, params);
+	}
+
+	/**
+	 * @param params
+	 *            the servlet's settings, other than where its root is and how
+	 *            it authenticates
+	 */
+	static WebFilezServlet start(Path root, Map<String, Object> params)
+			throws Exception {
+		env.clear();
+		env.put("root-dir", root.toString());
+		env.put("auth-key", "secret");
+		env.put("auth-url", "http://localhost/auth");
+		env.putAll(params);
+		System.setProperty(Context.INITIAL_CONTEXT_FACTORY,
+				Env.class.getName());
+		final Map<String, Object> attributes = new HashMap<>();
+		final ServletContext context = fake(ServletContext.class,
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						switch (method.getName()) {
+						case "getAttribute":
+							return attributes.get(args[0]);
+						case "setAttribute":
+							return attributes.put((String) args[0], args[1]);
+						case "getContextPath":
+							return "";
+						default:
+							return null;
+						}
+					}
+				});
+		Config.buildAndRegisterConfig(context);
+		WebFilezServlet servlet = new WebFilezServlet();
+		servlet.init(fake(ServletConfig.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return method.getName().equals("getServletContext") ? context
+						: null;
+			}
+		}));
+		return servlet;
+	}
+
+	private static Response put(WebFilezServlet servlet, String uri,
+			Map<String, String> headers, InputStream body, int length)
+			throws Exception {
+		Response response = new Response();
+		servlet.service(request("PUT", uri, headers,
+				Collections.<String, String[]> emptyMap(), body, length),
+				response.fake());
+		return response;
+	}
+
+	private static Response service(WebFilezServlet servlet, String method,
+			String uri, Map<String, String> headers,
+			Map<String, String[]> params) throws Exception {
+		Response response = new Response();
+		servlet.service(request(method, uri, headers, params, null, 0),
+				response.fake());
+		return response;
+	}
+
+	/**
+	 * @return the status of deleting the given file
+	 */
+	static int delete(WebFilezServlet servlet, String uri) throws Exception {
+		return service(servlet, "DELETE", uri,
+				Collections.<String, String> emptyMap(),
+				Collections.<String, String[]> emptyMap()).status;
+	}
+
+	private static Response get(WebFilezServlet servlet, String uri,
+			Map<String, String[]> params) throws Exception {
+		Response response = new Response();
+		servlet.service(request("GET", uri,
+				Collections.<String, String> emptyMap(), params, null, 0),
+				response.fake());
+		return response;
+	}
+
+	private static Response post(WebFilezServlet servlet, String uri,
+			Map<String, String[]> params) throws Exception {
+		Response response = new Response();
+		servlet.service(request("POST", uri,
+				Collections.<String, String> emptyMap(), params, null, 0),
+				response.fake());
+		return response;
+	}
+
+	private static HttpServletRequest request(final String method,
+			final String uri, final Map<String, String> headers,
+			final Map<String, String[]> params, final InputStream body,
+			final int length) {
+		final Map<String, Object> attributes = new HashMap<>();
+		final ServletInputStream in = new ServletInputStream() {
+			@Override
+			public int read() throws IOException {
+				return body.read();
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return body.read(b, off, len);
+			}
+
+			@Override
+			public boolean isReady() {
+				return true;
+			}
+
+			@Override
+			public boolean isFinished() {
+				return false;
+			}
+
+			// as if it had all arrived at once
+			@Override
+			public void setReadListener(ReadListener listener) {
+				try {
+					listener.onDataAvailable();
+					listener.onAllDataRead();
+				} catch (IOException e) {
+					listener.onError(e);
+				}
+			}
+		};
+		return fake(HttpServletRequest.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method m, Object[] args) {
+				switch (m.getName()) {
+				case "getMethod":
+					return method;
+				case "getRequestURI":
+					return uri;
+				case "getRequestURL":
+					return new StringBuffer("http://localhost").append(uri);
+				case "getHeader":
+					return headers.get(args[0]);
+				case "getHeaders":
+					return Collections.enumeration(headers.containsKey(args[0])
+							? Collections.singleton(headers.get(args[0]))
+							: Collections.<String> emptySet());
+				case "getParameter":
+					return params.containsKey(args[0]) ? params.get(args[0])[0]
+							: null;
+				case "getParameterValues":
+					return params.get(args[0]);
+				case "getQueryString":
+					// posted parameters are in a form body instead
+					return method.equals("POST") ? null : query(params);
+				case "getContentType":
+					return method.equals("POST") && !params.isEmpty()
+							? "application/x-www-form-urlencoded" : null;
+				case "getDateHeader":
+					return -1L;
+				case "getContentLength":
+					return length;
+				case "getContentLengthLong":
+					return (long) length;
+				case "getInputStream":
+					return in;
+				case "isAsyncSupported":
+					return true;
+				case "startAsync":
+					return asyncContext((HttpServletResponse) args[1]);
+				case "getRemoteAddr":
+					return "127.0.0.1";
+				case "getAttribute":
+					return attributes.get(args[0]);
+				case "setAttribute":
+					return attributes.put((String) args[0], args[1]);
+				case "removeAttribute":
+					return attributes.remove(args[0]);
+				default:
+					return defaultValue(m);
+				}
+			}
+		});
+	}
+
+	private static String query(Map<String, String[]> params) {
+		final StringBuilder query = new StringBuilder();
+		try {
+			for (Map.Entry<String, String[]> param : params.entrySet()) {
+				for (String value : param.getValue()) {
+					query.append(query.length() == 0 ? "" : "&")
+							.append(URLEncoder.encode(param.getKey(), "UTF-8"))
+							.append('=')
+							.append(URLEncoder.encode(value, "UTF-8"));
+				}
+			}
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+		return query.length() == 0 ? null : query.toString();
+	}
+
+	/**
+	 * @return a context that, once complete, lets the given response's
+	 *         {@link Response#await()} return
+	 */
+	private static AsyncContext asyncContext(HttpServletResponse response) {
+		final Response r = (Response) Proxy.getInvocationHandler(response);
+		return fake(AsyncContext.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method m, Object[] args) {
+				if (m.getName().equals("complete")) {
+					r.completed.countDown();
+				}
+				return defaultValue(m);
+			}
+		});
+	}
+
+	private static final class Response implements InvocationHandler {
+		private final Map<String, String> headers = new HashMap<>();
+		private final StringWriter body = new StringWriter();
+		private final CountDownLatch completed = new CountDownLatch(1);
+		private volatile int status = HttpServletResponse.SC_OK;
+		// the thread that wrote the body
+		private volatile String writer;
+
+		HttpServletResponse fake() {
+			return WebFilezServletTest.fake(HttpServletResponse.class, this);
+		}
+
+		/**
+		 * Wait for a response that went async to be complete.
+		 */
+		Response await() throws InterruptedException {
+			Assert.assertTrue(this.completed.await(10, TimeUnit.SECONDS));
+			return this;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method m, Object[] args) {
+			switch (m.getName()) {
+			case "setStatus":
+			case "sendError":
+				this.status = (Integer) args[0];
+				return null;
+			case "setHeader":
+			case "addHeader":
+				this.headers.put((String) args[0], String.valueOf(args[1]));
+				return null;
+			case "getHeader":
+				return this.headers.get(args[0]);
+			case "getStatus":
+				return this.status;
+			case "getWriter":
+				return new PrintWriter(this.body);
+			case "getOutputStream":
+				return new ServletOutputStream() {
+					@Override
+					public void write(int b) {
+						writer = Thread.currentThread().getName();
+						body.write(b);
+					}
+
+					@Override
+					public boolean isReady() {
+						return true;
+					}
+
+					@Override
+					public void setWriteListener(WriteListener listener) {
+						try {
+							listener.onWritePossible();
+						} catch (IOException e) {
+							listener.onError(e);
+						}
+					}
+				};
+			default:
+				return defaultValue(m);
+			}
+		}
+	}
+
+	private static <T> T fake(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(
+				WebFilezServletTest.class.getClassLoader(),
+				new Class<?>[] { type }, handler));
+	}
+
+	private static Object defaultValue(Method method) {
+		final Class<?> type = method.getReturnType();
+		if (type == boolean.class) {
+			return false;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == long.class) {
+			return 0L;
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Serves {@link #env} as <code>java:comp/env/</code>.
+	 */
+	public static final class Env implements InitialContextFactory {
+		@Override
+		public Context getInitialContext(Hashtable<?, ?> environment) {
+			return fake(Context.class, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method,
+						Object[] args) throws NameNotFoundException {
+					if (!method.getName().equals("lookup")) {
+						return null;
+					} else if (args[0].equals("java:comp/env/")) {
+						return proxy;
+					} else if (env.containsKey(args[0])) {
+						return env.get(args[0]);
+					}
+					throw new NameNotFoundException(String.valueOf(args[0]));
+				}
+			});
+		}
+	}
+}
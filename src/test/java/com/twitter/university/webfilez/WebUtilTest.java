@@ -1,5 +1,11 @@
 package com.twitter.university.webfilez;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.http.HttpServletRequest;
+
 import junit.framework.Assert;
 
 import org.junit.Test;
@@ -25,4 +31,67 @@ public class WebUtilTest {
 		Assert.assertEquals("/foo/bar/x/y/",
 				WebUtil.getParentUriPath("/foo/bar/x/y/z"));
 	}
+
+	@Test
+	public void testGenerateETag() {
+		Assert.assertEquals("\"0-0\"", WebUtil.generateETag(0, 0));
+		Assert.assertEquals("\"1-17\"", WebUtil.generateETag(1, 23));
+		Assert.assertEquals("\"c-3\"", WebUtil.generateETag(12, 3));
+		Assert.assertEquals("\"ffffffffffffffff-7fffffffffffffff\"",
+				WebUtil.generateETag(-1, Long.MAX_VALUE));
+		Assert.assertEquals("\"00ff10\"",
+				WebUtil.generateETag(new byte[] { 0, -1, 16 }));
+	}
+
+	@Test
+	public void testParseContentRange() {
+		Assert.assertNull(WebUtil.parseContentRange(null));
+		WebUtil.Range range = WebUtil.parseContentRange("bytes 100-199/1000");
+		Assert.assertEquals(100, range.getStart());
+		Assert.assertEquals(199, range.getEnd());
+		Assert.assertEquals(1000, range.getLength());
+		Assert.assertEquals(100, range.getBytesToRead());
+		Assert.assertEquals(-1, WebUtil.parseContentRange("bytes 0-0/*")
+				.getLength());
+		for (String invalid : new String[] { "", "bytes */1000",
+				"bytes 200-100/1000", "bytes 0-1000/1000", "items 0-1/2" }) {
+			try {
+				WebUtil.parseContentRange(invalid);
+				Assert.fail("Expected [" + invalid + "] to be invalid");
+			} catch (IllegalArgumentException expected) {
+			}
+		}
+	}
+
+	@Test
+	public void testGetQueryParameter() {
+		Assert.assertNull(WebUtil.getQueryParameter(query(null), "a"));
+		Assert.assertNull(WebUtil.getQueryParameter(query(""), "a"));
+		Assert.assertEquals("1", WebUtil.getQueryParameter(query("a=1"), "a"));
+		Assert.assertEquals("1",
+				WebUtil.getQueryParameter(query("b=2&a=1&a=3"), "a"));
+		Assert.assertEquals("",
+				WebUtil.getQueryParameter(query("b=2&a"), "a"));
+		Assert.assertEquals("x y&z",
+				WebUtil.getQueryParameter(query("a+b=x+y%26z"), "a b"));
+		Assert.assertNull(WebUtil.getQueryParameter(query("ab=1"), "a"));
+		Assert.assertNull(WebUtil.getQueryParameter(query("a=%zz"), "a"));
+	}
+
+	private static HttpServletRequest query(final String query) {
+		return (HttpServletRequest) Proxy.newProxyInstance(
+				WebUtilTest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals("getQueryString")) {
+							return query;
+						}
+						throw new UnsupportedOperationException(method
+								.getName());
+					}
+				});
+	}
 }
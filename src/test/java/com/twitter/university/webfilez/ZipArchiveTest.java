@@ -0,0 +1,158 @@
+package com.twitter.university.webfilez;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ZipArchiveTest {
+	@Test
+	public void testRead() throws IOException {
+		Path file = Files.createTempFile("webfilez", ".zip");
+		try {
+			byte[] stored = "0123456789".getBytes(StandardCharsets.US_ASCII);
+			byte[] deflated = new byte[10000];
+			for (int i = 0; i < deflated.length; i++) {
+				deflated[i] = (byte) ('a' + i % 26);
+			}
+			try (OutputStream out = Files.newOutputStream(file);
+					ZipOutputStream zip = new ZipOutputStream(out)) {
+				ZipEntry entry = new ZipEntry("dir/stored.txt");
+				entry.setMethod(ZipEntry.STORED);
+				entry.setSize(stored.length);
+				CRC32 crc = new CRC32();
+				crc.update(stored);
+				entry.setCrc(crc.getValue());
+				zip.putNextEntry(entry);
+				zip.write(stored);
+				zip.putNextEntry(new ZipEntry("dir/sub/deflated.txt"));
+				zip.write(deflated);
+				zip.putNextEntry(new ZipEntry("top.txt"));
+				zip.putNextEntry(new ZipEntry("empty/"));
+			}
+
+			ZipArchive archive = ZipArchive.read(file);
+			Assert.assertEquals(4, archive.size());
+			Assert.assertEquals("[dir, empty, top.txt]", names(archive.list("")));
+			Assert.assertEquals("[stored.txt, sub]", names(archive.list("dir")));
+			Assert.assertEquals("[]", names(archive.list("empty")));
+			Assert.assertNull(archive.list("top.txt"));
+			Assert.assertTrue(archive.getEntry("dir/sub").isDirectory());
+			Assert.assertNull(archive.getEntry("dir/nothing"));
+
+			ZipArchive.Entry entry = archive.getEntry("dir/stored.txt");
+			Assert.assertTrue(entry.isSeekable());
+			Assert.assertEquals("0123456789", read(archive.open(entry)));
+			Assert.assertEquals("345", read(archive.open(entry, 3, 3)));
+
+			entry = archive.getEntry("dir/sub/deflated.txt");
+			Assert.assertFalse(entry.isSeekable());
+			Assert.assertEquals(deflated.length, entry.getSize());
+			Assert.assertEquals(new String(deflated, StandardCharsets.US_ASCII),
+					read(archive.open(entry)));
+			try {
+				archive.open(entry, 3, 3);
+				Assert.fail("Expected deflated entries not to be seekable");
+			} catch (ZipException expected) {
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testZip64() throws IOException {
+		Path file = Files.createTempFile("webfilez", ".zip");
+		try {
+			// more entries than fit in the (non-ZIP64) end of central directory
+			try (OutputStream out = Files.newOutputStream(file);
+					ZipOutputStream zip = new ZipOutputStream(out)) {
+				for (int i = 0; i < 70000; i++) {
+					zip.putNextEntry(new ZipEntry("d" + (i % 10) + "/" + i));
+				}
+			}
+			ZipArchive archive = ZipArchive.read(file);
+			Assert.assertEquals(70000, archive.size());
+			Assert.assertEquals(7000, archive.list("d3").size());
+			Assert.assertNotNull(archive.getEntry("d9/69999"));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testNotAnArchive() throws IOException {
+		Path file = Files.createTempFile("webfilez", ".zip");
+		try {
+			Files.write(file, new byte[100]);
+			ZipArchive.read(file);
+			Assert.fail("Expected not to find a central directory");
+		} catch (ZipException expected) {
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testCentralDirectoryTooLarge() throws IOException {
+		Path file = Files.createTempFile("webfilez", ".zip");
+		try {
+			// a (sparse) archive that claims to be all central directory
+			int cdSize = ZipArchive.MAX_CENTRAL_DIRECTORY_SIZE + 1;
+			ByteBuffer eocd = ByteBuffer.allocate(22).order(
+					ByteOrder.LITTLE_ENDIAN);
+			eocd.putInt(0x06054b50).putShort((short) 0).putShort((short) 0)
+					.putShort((short) 1).putShort((short) 1).putInt(cdSize)
+					.putInt(0).putShort((short) 0).flip();
+			try (FileChannel out = FileChannel.open(file,
+					StandardOpenOption.WRITE)) {
+				out.write(eocd, cdSize);
+			}
+			ZipArchive.read(file);
+			Assert.fail("Expected the central directory to be refused");
+		} catch (ZipException expected) {
+			Assert.assertTrue(expected.getMessage(), expected.getMessage()
+					.contains("larger than"));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	private static String names(Iterable<ZipArchive.Entry> entries) {
+		List<String> names = new ArrayList<>();
+		for (ZipArchive.Entry entry : entries) {
+			names.add(entry.getName());
+		}
+		return names.toString();
+	}
+
+	private static String read(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			for (int n; (n = in.read(buffer)) > 0;) {
+				out.write(buffer, 0, n);
+			}
+			return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+		} finally {
+			in.close();
+		}
+	}
+}